@@ -0,0 +1,110 @@
+package ca.uhn.fhir.example.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.example.binary.BinaryEncoding;
+import ca.uhn.fhir.example.binary.BinaryParser;
+import ca.uhn.fhir.example.stream.ParserPool;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the binary formats in hapi-fhirstarters-binary-encoding with JSON,
+ * encoding to and parsing from a byte array (as a server and client do with
+ * the HTTP body). JSON is encoded with {@link ParserPool}, so that it also
+ * writes bytes directly.
+ * <p>
+ * Run the <code>main</code> method to print the encoded size of each payload
+ * in each format, with and without gzip.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BinaryEncodingBenchmark {
+
+   public enum Format {
+      JSON, CBOR, SMILE
+   }
+
+   @Param
+   public Format format;
+
+   @Param({"SMALL_PATIENT", "LARGE_PATIENT", "CONTAINED_BUNDLE"})
+   public Fixtures.Payload payload;
+
+   private IBaseResource myResource;
+   private Class<? extends IBaseResource> myResourceType;
+   private ParserPool myJsonPool;
+   private BinaryParser myBinaryParser;
+   private byte[] myEncoded;
+   private final ByteArrayOutputStream myOutput = new ByteArrayOutputStream(64 * 1024);
+
+   @Setup
+   public void setup() throws IOException {
+      FhirContext ctx = Fixtures.getContext(FhirVersionEnum.R4);
+      myResource = Fixtures.create(payload, FhirVersionEnum.R4);
+      myResourceType = myResource.getClass();
+      myJsonPool = new ParserPool(ctx, EncodingEnum.JSON);
+      if (format != Format.JSON) {
+         myBinaryParser = BinaryEncoding.valueOf(format.name()).newParser(ctx);
+      }
+      myEncoded = encodeToBytes();
+   }
+
+   @Benchmark
+   public int encode() throws IOException {
+      myOutput.reset();
+      if (myBinaryParser != null) {
+         myBinaryParser.encodeResourceToOutputStream(myResource, myOutput);
+      } else {
+         myJsonPool.encode(myResource, myOutput);
+      }
+      return myOutput.size();
+   }
+
+   @Benchmark
+   public IBaseResource parse() {
+      if (myBinaryParser != null) {
+         return myBinaryParser.parseResource(myResourceType, myEncoded);
+      }
+      return myJsonPool.parse(myResourceType, new ByteArrayInputStream(myEncoded));
+   }
+
+   private byte[] encodeToBytes() throws IOException {
+      encode();
+      return myOutput.toByteArray();
+   }
+
+   /**
+    * Prints the encoded size of every payload in every format
+    */
+   public static void main(String[] theArgs) throws IOException {
+      System.out.println(String.format("%-18s %-6s %10s %10s", "Payload", "Format", "Bytes", "Gzipped"));
+      for (Fixtures.Payload nextPayload : Fixtures.Payload.values()) {
+         for (Format nextFormat : Format.values()) {
+            BinaryEncodingBenchmark benchmark = new BinaryEncodingBenchmark();
+            benchmark.payload = nextPayload;
+            benchmark.format = nextFormat;
+            benchmark.setup();
+
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+               gzip.write(benchmark.myEncoded);
+            }
+            System.out.println(String.format("%-18s %-6s %10d %10d", nextPayload, nextFormat, benchmark.myEncoded.length, gzipped.size()));
+         }
+      }
+   }
+
+}
@@ -0,0 +1,29 @@
+package ca.uhn.fhir.example.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * The two ways of creating a {@link PatientClient} which are compared by the
+ * client benchmarks
+ */
+public enum ClientBinding {
+
+   /** A dynamic proxy, created with <code>FhirContext#newRestfulClient</code> */
+   PROXY {
+      @Override
+      public PatientClient newClient(FhirContext theCtx, String theServerBase) {
+         return theCtx.newRestfulClient(PatientClient.class, theServerBase);
+      }
+   },
+
+   /** The implementation generated at compile time by the client code generator */
+   GENERATED {
+      @Override
+      public PatientClient newClient(FhirContext theCtx, String theServerBase) {
+         return new PatientClientImpl(theCtx.newRestfulGenericClient(theServerBase));
+      }
+   };
+
+   public abstract PatientClient newClient(FhirContext theCtx, String theServerBase);
+
+}
@@ -0,0 +1,64 @@
+package ca.uhn.fhir.example.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time taken by a steady-state read and create through the proxy
+ * client and through the generated client, against a {@link StubFhirServer}
+ * on the loopback interface.
+ * <p>
+ * Both bindings send identical requests and parse identical responses, so
+ * the difference between them is the per-call cost of the binding itself.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientCallBenchmark {
+
+   @Param
+   public ClientBinding binding;
+
+   private StubFhirServer myServer;
+   private PatientClient myClient;
+   private IdType myId;
+   private Patient myPatient;
+
+   @Setup
+   public void setup() throws IOException {
+      FhirContext ctx = Fixtures.getContext(FhirVersionEnum.R4);
+      ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+      myServer = new StubFhirServer(ctx);
+      myClient = binding.newClient(ctx, myServer.getBaseUrl());
+      myId = new IdType("Patient/1");
+      myPatient = (Patient) Fixtures.create(Fixtures.Payload.SMALL_PATIENT, FhirVersionEnum.R4);
+   }
+
+   @TearDown
+   public void tearDown() {
+      myServer.stop();
+   }
+
+   @Benchmark
+   public Patient read() {
+      return myClient.read(myId);
+   }
+
+   @Benchmark
+   public MethodOutcome create() {
+      return myClient.create(myPatient);
+   }
+
+}
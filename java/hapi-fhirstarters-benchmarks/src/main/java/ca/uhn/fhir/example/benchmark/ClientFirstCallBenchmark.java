@@ -0,0 +1,61 @@
+package ca.uhn.fhir.example.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time taken to create a client and make its first read, using
+ * the proxy client and the generated client.
+ * <p>
+ * Each measurement uses a new FhirContext, because the proxy's method
+ * bindings are cached by the context's client factory. The model, parser and
+ * HTTP connection pool are warmed up with a generic client read beforehand,
+ * so the measured time is that of creating and binding the client.
+ * </p>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 50)
+@Fork(3)
+@State(Scope.Benchmark)
+public class ClientFirstCallBenchmark {
+
+   @Param
+   public ClientBinding binding;
+
+   private StubFhirServer myServer;
+   private FhirContext myCtx;
+   private IdType myId;
+
+   @Setup(Level.Trial)
+   public void startServer() throws IOException {
+      myServer = new StubFhirServer(Fixtures.getContext(FhirVersionEnum.R4));
+      myId = new IdType("Patient/1");
+   }
+
+   @Setup(Level.Iteration)
+   public void newContext() {
+      myCtx = FhirContext.forR4();
+      myCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+      myCtx.newRestfulGenericClient(myServer.getBaseUrl()).read().resource(Patient.class).withId(myId).execute();
+   }
+
+   @TearDown(Level.Trial)
+   public void stopServer() {
+      myServer.stop();
+   }
+
+   @Benchmark
+   public Patient createAndRead() {
+      return binding.newClient(myCtx, myServer.getBaseUrl()).read(myId);
+   }
+
+}
@@ -0,0 +1,55 @@
+package ca.uhn.fhir.example.benchmark;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of encoding a resource to a String, as in
+ * Example04_EncodeResource, for each combination of FHIR version,
+ * encoding, payload and pretty printing.
+ * <p>
+ * Run with <code>-prof gc</code> to also report the bytes allocated per
+ * operation (<code>gc.alloc.rate.norm</code>).
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+   @Param({"DSTU3", "R4"})
+   public FhirVersionEnum version;
+
+   @Param({"JSON", "XML"})
+   public EncodingEnum encoding;
+
+   @Param
+   public Fixtures.Payload payload;
+
+   @Param({"false", "true"})
+   public boolean prettyPrint;
+
+   private IParser myParser;
+   private IBaseResource myResource;
+
+   @Setup
+   public void setup() {
+      myParser = encoding.newParser(Fixtures.getContext(version));
+      myParser.setPrettyPrint(prettyPrint);
+      myResource = Fixtures.create(payload, version);
+   }
+
+   @Benchmark
+   public String encode() {
+      return myParser.encodeResourceToString(myResource);
+   }
+
+}
@@ -0,0 +1,162 @@
+package ca.uhn.fhir.example.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+import org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.r4.model.ContactPoint.ContactPointUse;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Synthetic resources used by the benchmarks.
+ * <p>
+ * Each payload is built once using the R4 model, and is converted to other
+ * FHIR versions by encoding it as JSON and parsing it with that version's
+ * context. Only elements which exist unchanged in both DSTU3 and R4 are used,
+ * so the converted resources are identical and parse cleanly with a strict
+ * error handler.
+ * </p>
+ */
+public class Fixtures {
+
+   private static final Map<FhirVersionEnum, FhirContext> ourContexts = new EnumMap<>(FhirVersionEnum.class);
+
+   /**
+    * The benchmarked payloads
+    */
+   public enum Payload {
+      /** A Patient with one name and one identifier */
+      SMALL_PATIENT,
+      /** A Patient with the demographics typically found in a real record */
+      MEDIUM_PATIENT,
+      /** A Patient with many repeating elements and a narrative */
+      LARGE_PATIENT,
+      /** A searchset Bundle of Observations, each with its subject Patient contained */
+      CONTAINED_BUNDLE,
+      /** A Patient carrying primitive, coded and nested extensions */
+      EXTENSIONS
+   }
+
+   /**
+    * Returns a shared context for the given version. Contexts are expensive to
+    * create and are thread safe, so a single instance is used for each version.
+    */
+   public static synchronized FhirContext getContext(FhirVersionEnum theVersion) {
+      FhirContext retVal = ourContexts.get(theVersion);
+      if (retVal == null) {
+         retVal = new FhirContext(theVersion);
+         ourContexts.put(theVersion, retVal);
+      }
+      return retVal;
+   }
+
+   /**
+    * Creates a new instance of the given payload for the given FHIR version
+    */
+   public static IBaseResource create(Payload thePayload, FhirVersionEnum theVersion) {
+      Resource resource = createR4(thePayload);
+      if (theVersion == FhirVersionEnum.R4) {
+         return resource;
+      }
+      String json = getContext(FhirVersionEnum.R4).newJsonParser().encodeResourceToString(resource);
+      return getContext(theVersion).newJsonParser().parseResource(json);
+   }
+
+   private static Resource createR4(Payload thePayload) {
+      switch (thePayload) {
+         case SMALL_PATIENT:
+            return createSmallPatient();
+         case MEDIUM_PATIENT:
+            return createMediumPatient(1);
+         case LARGE_PATIENT:
+            return createLargePatient();
+         case CONTAINED_BUNDLE:
+            return createContainedBundle(50);
+         case EXTENSIONS:
+            return createPatientWithExtensions();
+      }
+      throw new IllegalArgumentException("Unknown payload: " + thePayload);
+   }
+
+   private static Patient createSmallPatient() {
+      Patient retVal = new Patient();
+      retVal.setId("1");
+      retVal.addName().setFamily("Simpson").addGiven("Homer");
+      retVal.addIdentifier().setSystem("http://acme.org/MRNs").setValue("7000135");
+      return retVal;
+   }
+
+   private static Patient createMediumPatient(int theIndex) {
+      Patient retVal = new Patient();
+      retVal.setId(Integer.toString(theIndex));
+      retVal.setActive(true);
+      retVal.addIdentifier().setSystem("http://acme.org/MRNs").setValue(Integer.toString(7000000 + theIndex));
+      retVal.addIdentifier().setSystem("urn:oid:2.16.840.1.113883.4.1").setValue("123-45-" + (1000 + theIndex % 9000));
+      retVal.addName().setFamily("Simpson").addGiven("Homer").addGiven("J");
+      retVal.addName().setFamily("Simpson").addGiven("Max").addGiven("Power");
+      retVal.setGender(AdministrativeGender.MALE);
+      retVal.setBirthDateElement(new DateType("1956-05-12"));
+      retVal.addTelecom().setUse(ContactPointUse.HOME).setSystem(ContactPointSystem.PHONE).setValue("1 (416) 340-4800");
+      retVal.addTelecom().setUse(ContactPointUse.WORK).setSystem(ContactPointSystem.EMAIL).setValue("homer@example.com");
+      retVal.addAddress().addLine("742 Evergreen Terrace").setCity("Springfield").setState("OR").setPostalCode("97403").setCountry("USA");
+      return retVal;
+   }
+
+   private static Patient createLargePatient() {
+      Patient retVal = createMediumPatient(1);
+      retVal.getText().setStatus(Narrative.NarrativeStatus.GENERATED);
+      retVal.getText().setDivAsString("<div xmlns=\"http://www.w3.org/1999/xhtml\"><b>Homer J Simpson</b> - a large synthetic record</div>");
+      for (int i = 0; i < 50; i++) {
+         retVal.addIdentifier().setSystem("http://acme.org/visits").setValue("V" + i);
+         retVal.addName().setFamily("Alias" + i).addGiven("Given" + i).addGiven("Middle" + i);
+         retVal.addTelecom().setSystem(ContactPointSystem.PHONE).setValue("555-01" + i);
+         retVal.addAddress().addLine(i + " Fake Street").addLine("Unit " + i).setCity("Toronto").setPostalCode("M5G 2C4").setCountry("CA");
+      }
+      return retVal;
+   }
+
+   private static Bundle createContainedBundle(int theEntryCount) {
+      Bundle retVal = new Bundle();
+      retVal.setType(Bundle.BundleType.SEARCHSET);
+      retVal.setTotal(theEntryCount);
+      for (int i = 0; i < theEntryCount; i++) {
+         Observation obs = new Observation();
+         obs.setId("Observation/" + i);
+         obs.setStatus(Observation.ObservationStatus.FINAL);
+         obs.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4").setDisplay("Heart rate");
+         obs.setValue(new Quantity().setValue(60 + i % 40).setUnit("beats/minute").setSystem("http://unitsofmeasure.org").setCode("/min"));
+         obs.setEffective(new DateTimeType("2021-03-0" + (1 + i % 9) + "T10:15:00Z"));
+
+         // As in Example34_ContainedResources, the subject has no ID so it is contained
+         Patient subject = new Patient();
+         subject.addName().setFamily("Simpson").addGiven("Homer");
+         obs.getSubject().setResource(subject);
+
+         Bundle.BundleEntryComponent entry = retVal.addEntry();
+         entry.setFullUrl("http://example.com/fhir/Observation/" + i);
+         entry.setResource(obs);
+         entry.getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+      }
+      return retVal;
+   }
+
+   private static Patient createPatientWithExtensions() {
+      Patient retVal = createMediumPatient(1);
+      retVal.addExtension().setUrl("http://acme.org/fhir/ext/favourite-colour").setValue(new StringType("blue"));
+      retVal.addExtension().setUrl("http://acme.org/fhir/ext/billing-code").setValue(new CodeType("00102-1"));
+      retVal.addExtension().setUrl("http://acme.org/fhir/ext/vip").setValue(new BooleanType(true));
+
+      Extension parent = retVal.addExtension().setUrl("http://acme.org/fhir/ext/emergency-contact");
+      parent.addExtension().setUrl("active").setValue(new BooleanType(true));
+      parent.addExtension().setUrl("contact").setValue(new ContactPoint().setSystem(ContactPointSystem.PHONE).setValue("555-0199"));
+
+      retVal.getNameFirstRep().getFamilyElement().addExtension().setUrl("http://acme.org/fhir/ext/name-origin").setValue(new CodeType("latin"));
+      retVal.getBirthDateElement().addExtension().setUrl("http://acme.org/fhir/ext/estimated").setValue(new BooleanType(false));
+      return retVal;
+   }
+
+}
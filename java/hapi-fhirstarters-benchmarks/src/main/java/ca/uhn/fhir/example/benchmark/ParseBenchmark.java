@@ -0,0 +1,67 @@
+package ca.uhn.fhir.example.benchmark;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.LenientErrorHandler;
+import ca.uhn.fhir.parser.StrictErrorHandler;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of parsing a resource from a String, as in
+ * Example05_ParseResource, for each combination of FHIR version, encoding,
+ * payload, pretty printed input and parser error handler.
+ * <p>
+ * Run with <code>-prof gc</code> to also report the bytes allocated per
+ * operation (<code>gc.alloc.rate.norm</code>).
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+   @Param({"DSTU3", "R4"})
+   public FhirVersionEnum version;
+
+   @Param({"JSON", "XML"})
+   public EncodingEnum encoding;
+
+   @Param
+   public Fixtures.Payload payload;
+
+   @Param({"false", "true"})
+   public boolean prettyPrint;
+
+   @Param({"LENIENT", "STRICT"})
+   public String errorHandler;
+
+   private IParser myParser;
+   private String myInput;
+
+   @Setup
+   public void setup() {
+      IBaseResource resource = Fixtures.create(payload, version);
+      IParser encoder = encoding.newParser(Fixtures.getContext(version));
+      myInput = encoder.setPrettyPrint(prettyPrint).encodeResourceToString(resource);
+
+      myParser = encoding.newParser(Fixtures.getContext(version));
+      if ("STRICT".equals(errorHandler)) {
+         myParser.setParserErrorHandler(new StrictErrorHandler());
+      } else {
+         myParser.setParserErrorHandler(new LenientErrorHandler());
+      }
+   }
+
+   @Benchmark
+   public IBaseResource parse() {
+      return myParser.parseResource(myInput);
+   }
+
+}
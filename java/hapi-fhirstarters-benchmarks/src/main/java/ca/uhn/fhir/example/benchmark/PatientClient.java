@@ -0,0 +1,24 @@
+package ca.uhn.fhir.example.benchmark;
+
+import ca.uhn.fhir.rest.annotation.Create;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Read;
+import ca.uhn.fhir.rest.annotation.ResourceParam;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IRestfulClient;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+
+/**
+ * The R4 equivalent of <code>SampleClient</code> from the tutorial snippets.
+ * The client code generator turns this into <code>PatientClientImpl</code>.
+ */
+public interface PatientClient extends IRestfulClient {
+
+   @Create
+   MethodOutcome create(@ResourceParam Patient thePatient);
+
+   @Read
+   Patient read(@IdParam IdType theId);
+
+}
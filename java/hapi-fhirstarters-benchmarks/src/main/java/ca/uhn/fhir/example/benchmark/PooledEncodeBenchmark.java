@@ -0,0 +1,94 @@
+package ca.uhn.fhir.example.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.example.stream.ParserPool;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding a resource to an OutputStream (as a server does when it
+ * writes a response), comparing the usual approach with {@link ParserPool}:
+ * <ul>
+ * <li><code>NEW_PARSER_STRING</code> - <code>ctx.newJsonParser()</code> and <code>encodeResourceToString</code> for every call, then <code>getBytes</code></li>
+ * <li><code>POOLED_PARSER_STRING</code> - a reused parser from the pool, still encoding to a String</li>
+ * <li><code>POOLED_STREAM</code> - {@link ParserPool#encode(IBaseResource, OutputStream)}, which writes straight to the stream through reused buffers</li>
+ * </ul>
+ * <p>
+ * The interesting result is <code>gc.alloc.rate.norm</code>, so run with
+ * <code>-prof gc</code>.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PooledEncodeBenchmark {
+
+   public enum Strategy {
+      NEW_PARSER_STRING, POOLED_PARSER_STRING, POOLED_STREAM
+   }
+
+   @Param
+   public Strategy strategy;
+
+   @Param({"JSON", "XML"})
+   public EncodingEnum encoding;
+
+   @Param({"SMALL_PATIENT", "LARGE_PATIENT", "CONTAINED_BUNDLE"})
+   public Fixtures.Payload payload;
+
+   private FhirContext myCtx;
+   private ParserPool myPool;
+   private IBaseResource myResource;
+   private final DiscardingOutputStream myOutput = new DiscardingOutputStream();
+
+   @Setup
+   public void setup() {
+      myCtx = Fixtures.getContext(FhirVersionEnum.R4);
+      myPool = new ParserPool(myCtx, encoding);
+      myResource = Fixtures.create(payload, FhirVersionEnum.R4);
+   }
+
+   @Benchmark
+   public long encode() throws IOException {
+      switch (strategy) {
+         case NEW_PARSER_STRING:
+            myOutput.write(encoding.newParser(myCtx).encodeResourceToString(myResource).getBytes(StandardCharsets.UTF_8));
+            break;
+         case POOLED_PARSER_STRING:
+            myOutput.write(myPool.get().encodeResourceToString(myResource).getBytes(StandardCharsets.UTF_8));
+            break;
+         case POOLED_STREAM:
+            myPool.encode(myResource, myOutput);
+            break;
+      }
+      return myOutput.myCount;
+   }
+
+   /**
+    * Counts the bytes written to it, so that the encoded output can't be optimized away
+    */
+   private static class DiscardingOutputStream extends OutputStream {
+      private long myCount;
+
+      @Override
+      public void write(int theByte) {
+         myCount++;
+      }
+
+      @Override
+      public void write(byte[] theBytes, int theOffset, int theLength) {
+         myCount += theLength;
+      }
+   }
+
+}
@@ -0,0 +1,80 @@
+package ca.uhn.fhir.example.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A minimal HTTP server on the loopback interface which answers every GET
+ * with the same Patient and every POST with <code>201 Created</code>.
+ * <p>
+ * It does no FHIR processing of its own, so that client benchmarks run against
+ * it measure the client and the network stack rather than a server.
+ * </p>
+ */
+public class StubFhirServer {
+
+   static {
+      // Without TCP_NODELAY, small responses are held back by delayed ACKs for ~40ms
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+   }
+
+   private final HttpServer myServer;
+   private final ExecutorService myExecutor = Executors.newFixedThreadPool(4);
+   private final byte[] myPatient;
+
+   public StubFhirServer(FhirContext theCtx) throws IOException {
+      Patient patient = (Patient) Fixtures.create(Fixtures.Payload.SMALL_PATIENT, theCtx.getVersion().getVersion());
+      patient.setId("Patient/1/_history/1");
+      myPatient = theCtx.newJsonParser().encodeResourceToString(patient).getBytes(StandardCharsets.UTF_8);
+
+      myServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+      myServer.setExecutor(myExecutor);
+      myServer.createContext("/", this::handle);
+      myServer.start();
+   }
+
+   /**
+    * Returns the base URL of the server, e.g. <code>http://127.0.0.1:12345/fhir</code>
+    */
+   public String getBaseUrl() {
+      return "http://" + myServer.getAddress().getHostString() + ":" + myServer.getAddress().getPort() + "/fhir";
+   }
+
+   public void stop() {
+      myServer.stop(0);
+      myExecutor.shutdownNow();
+   }
+
+   private void handle(HttpExchange theExchange) throws IOException {
+      try (InputStream in = theExchange.getRequestBody()) {
+         byte[] buffer = new byte[8192];
+         while (in.read(buffer) != -1) {
+            // Discard the request body
+         }
+      }
+
+      theExchange.getResponseHeaders().add("Content-Type", "application/fhir+json;charset=utf-8");
+      if ("POST".equals(theExchange.getRequestMethod())) {
+         theExchange.getResponseHeaders().add("Location", getBaseUrl() + "/Patient/1/_history/1");
+         theExchange.sendResponseHeaders(201, -1);
+      } else {
+         theExchange.sendResponseHeaders(200, myPatient.length);
+         try (OutputStream out = theExchange.getResponseBody()) {
+            out.write(myPatient);
+         }
+      }
+      theExchange.close();
+   }
+
+}
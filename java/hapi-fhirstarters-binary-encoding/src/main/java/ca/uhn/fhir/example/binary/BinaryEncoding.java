@@ -0,0 +1,220 @@
+package ca.uhn.fhir.example.binary;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Binary formats which carry exactly the same structure as FHIR's JSON
+ * format: the same objects, arrays, property names and primitive values, but
+ * with binary length-prefixed tokens instead of text. Anything that can be
+ * expressed in FHIR JSON can be expressed in these formats and back without
+ * loss, and decimals keep their precision.
+ * <p>
+ * Neither format is part of the FHIR specification, so both ends of a
+ * connection need to support them. The content types are
+ * <code>application/fhir+cbor</code> and <code>application/fhir+smile</code>,
+ * and the <code>_format</code> values are <code>cbor</code> and <code>smile</code>.
+ * </p>
+ */
+public enum BinaryEncoding {
+
+   /**
+    * Concise Binary Object Representation (RFC 8949)
+    */
+   CBOR("application/fhir+cbor", "cbor", "application/cbor", new CBORFactory()),
+
+   /**
+    * Jackson's Smile format, which also back-references repeated property names and short strings
+    */
+   SMILE("application/fhir+smile", "smile", "application/x-jackson-smile", new SmileFactory());
+
+   private static final JsonFactory ourJsonFactory = new JsonFactory()
+      .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+      .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+   private final String myContentType;
+   private final String myFormatName;
+   private final String myGenericContentType;
+   private final JsonFactory myFactory;
+   private final ObjectMapper myMapper;
+
+   BinaryEncoding(String theContentType, String theFormatName, String theGenericContentType, JsonFactory theFactory) {
+      myContentType = theContentType;
+      myFormatName = theFormatName;
+      myGenericContentType = theGenericContentType;
+      myFactory = theFactory
+         .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+         .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+      // Decimals must come back exactly as they were written, e.g. "1.50" and not "1.5"
+      myMapper = new ObjectMapper(myFactory);
+      myMapper.enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+      myMapper.setNodeFactory(JsonNodeFactory.withExactBigDecimals(true));
+   }
+
+   /**
+    * Returns the content type for this format, e.g. <code>application/fhir+cbor</code>
+    */
+   public String getContentType() {
+      return myContentType;
+   }
+
+   /**
+    * Returns the value of the <code>_format</code> parameter for this format, e.g. <code>cbor</code>
+    */
+   public String getFormatName() {
+      return myFormatName;
+   }
+
+   JsonFactory getFactory() {
+      return myFactory;
+   }
+
+   ObjectMapper getMapper() {
+      return myMapper;
+   }
+
+   /**
+    * Creates a new parser for this format. Like the parsers created by the
+    * context, it is not thread safe.
+    */
+   public BinaryParser newParser(FhirContext theCtx) {
+      return new BinaryParser(theCtx, this);
+   }
+
+   /**
+    * Copies a document in this format to FHIR JSON, token by token, without
+    * parsing it into resources
+    */
+   public void transcodeToJson(InputStream theInput, OutputStream theOutput) throws IOException {
+      try (JsonParser parser = myFactory.createParser(theInput);
+           JsonGenerator generator = ourJsonFactory.createGenerator(theOutput)) {
+         copy(parser, generator);
+      }
+   }
+
+   /**
+    * Copies a FHIR JSON document to this format, token by token, without
+    * parsing it into resources
+    */
+   public void transcodeFromJson(InputStream theInput, OutputStream theOutput) throws IOException {
+      try (JsonParser parser = ourJsonFactory.createParser(theInput);
+           JsonGenerator generator = myFactory.createGenerator(theOutput)) {
+         copy(parser, generator);
+      }
+   }
+
+   private static void copy(JsonParser theParser, JsonGenerator theGenerator) throws IOException {
+      JsonToken token;
+      while ((token = theParser.nextToken()) != null) {
+         if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+            // Copying the event would convert the number to a double
+            theGenerator.writeNumber(theParser.getDecimalValue());
+         } else {
+            theGenerator.copyCurrentEvent(theParser);
+         }
+      }
+   }
+
+   /**
+    * Returns the format with the given content type (parameters such as
+    * <code>charset</code> are ignored), or <code>null</code> if it is not a
+    * binary format
+    */
+   public static BinaryEncoding forContentType(String theContentType) {
+      if (theContentType == null) {
+         return null;
+      }
+      String contentType = theContentType;
+      int semicolon = contentType.indexOf(';');
+      if (semicolon != -1) {
+         contentType = contentType.substring(0, semicolon);
+      }
+      contentType = contentType.trim().toLowerCase(Locale.US);
+      for (BinaryEncoding next : values()) {
+         if (next.myContentType.equals(contentType) || next.myGenericContentType.equals(contentType)) {
+            return next;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Returns the format requested by a <code>_format</code> parameter, which
+    * may be a format name or a content type, or <code>null</code> if it is not
+    * a binary format
+    */
+   public static BinaryEncoding forFormatParameter(String theFormat) {
+      if (theFormat == null) {
+         return null;
+      }
+      for (BinaryEncoding next : values()) {
+         if (next.myFormatName.equalsIgnoreCase(theFormat.trim())) {
+            return next;
+         }
+      }
+      return forContentType(theFormat);
+   }
+
+   /**
+    * Returns the binary format preferred by an <code>Accept</code> header, or
+    * <code>null</code> if the client prefers something else. A binary format
+    * is preferred if no other type in the header has a higher quality value,
+    * so <code>application/fhir+cbor, application/fhir+json;q=0.9</code>
+    * selects CBOR, and falls back to JSON on a server that does not support it.
+    */
+   public static BinaryEncoding forAcceptHeader(String theAccept) {
+      if (theAccept == null) {
+         return null;
+      }
+
+      BinaryEncoding bestBinary = null;
+      double bestBinaryQuality = 0;
+      double bestOtherQuality = 0;
+      for (String next : theAccept.split(",")) {
+         double quality = parseQuality(next);
+         BinaryEncoding encoding = forContentType(next);
+         if (encoding != null) {
+            if (quality > bestBinaryQuality) {
+               bestBinary = encoding;
+               bestBinaryQuality = quality;
+            }
+         } else if (next.trim().length() > 0) {
+            bestOtherQuality = Math.max(bestOtherQuality, quality);
+         }
+      }
+
+      if (bestBinary != null && bestBinaryQuality >= bestOtherQuality) {
+         return bestBinary;
+      }
+      return null;
+   }
+
+   private static double parseQuality(String theMediaRange) {
+      for (String next : theMediaRange.split(";")) {
+         String parameter = next.trim();
+         if (parameter.startsWith("q=")) {
+            try {
+               return Double.parseDouble(parameter.substring(2).trim());
+            } catch (NumberFormatException e) {
+               return 0;
+            }
+         }
+      }
+      return 1;
+   }
+
+}
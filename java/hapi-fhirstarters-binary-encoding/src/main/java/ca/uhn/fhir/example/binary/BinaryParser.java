@@ -0,0 +1,157 @@
+package ca.uhn.fhir.example.binary;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IJsonLikeParser;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.json.jackson.JacksonStructure;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.Predicate;
+
+/**
+ * Encodes and parses resources in a {@link BinaryEncoding}.
+ * <p>
+ * The work is done by an ordinary HAPI FHIR JSON parser, through its
+ * "JSON-like" interface, which walks the resource model exactly as it does
+ * for JSON but writes to (and reads from) a Jackson structure instead of
+ * text. This is what keeps the binary formats 1:1 with FHIR JSON, and it means
+ * every setting of the JSON parser returned by {@link #getJsonParser()}, such
+ * as the summary mode, the elements to encode, or the error handler, applies
+ * here too. Pretty printing has no effect.
+ * </p>
+ * <p>
+ * Like the parsers created by the context, instances are not thread safe.
+ * </p>
+ */
+public class BinaryParser {
+
+   private final BinaryEncoding myEncoding;
+   private final IJsonLikeParser myJsonParser;
+
+   /**
+    * Constructor
+    */
+   public BinaryParser(FhirContext theCtx, BinaryEncoding theEncoding) {
+      myEncoding = theEncoding;
+      myJsonParser = (IJsonLikeParser) theCtx.newJsonParser();
+   }
+
+   public BinaryEncoding getEncoding() {
+      return myEncoding;
+   }
+
+   /**
+    * Returns the JSON parser which does the encoding and parsing, so that it
+    * can be configured
+    */
+   public IParser getJsonParser() {
+      return myJsonParser;
+   }
+
+   /**
+    * Encodes a resource to a stream. The stream is not closed.
+    */
+   public void encodeResourceToOutputStream(IBaseResource theResource, OutputStream theOutput) throws IOException {
+      try (JsonGenerator generator = myEncoding.getFactory().createGenerator(theOutput)) {
+         myJsonParser.encodeResourceToJsonLikeWriter(theResource, new JsonGeneratorWriter(generator));
+      }
+   }
+
+   /**
+    * Encodes a resource to a byte array
+    */
+   public byte[] encodeResourceToBytes(IBaseResource theResource) throws IOException {
+      ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+      encodeResourceToOutputStream(theResource, retVal);
+      return retVal.toByteArray();
+   }
+
+   /**
+    * Parses a resource of any type from a stream. The stream is not closed.
+    */
+   public IBaseResource parseResource(InputStream theInput) throws DataFormatException {
+      return myJsonParser.parseResource(load(theInput));
+   }
+
+   /**
+    * Parses a resource of the given type from a stream. The stream is not closed.
+    */
+   public <T extends IBaseResource> T parseResource(Class<T> theResourceType, InputStream theInput) throws DataFormatException {
+      return myJsonParser.parseResource(theResourceType, load(theInput));
+   }
+
+   /**
+    * Parses a resource of the given type from a byte array
+    */
+   public <T extends IBaseResource> T parseResource(Class<T> theResourceType, byte[] theInput) throws DataFormatException {
+      return parseResource(theResourceType, new ByteArrayInputStream(theInput));
+   }
+
+   /**
+    * Parses a resource of the given type from a byte array, reading only the
+    * top-level properties which the filter accepts, e.g. <code>identifier</code>
+    * and <code>name</code>. The others are skipped over without being decoded,
+    * which is much cheaper than parsing them when only a few elements of a
+    * large resource are needed. The <code>resourceType</code> property is
+    * always read, and the <code>_</code> property holding the id and
+    * extensions of a primitive, e.g. <code>_birthDate</code>, is read if its
+    * property is.
+    *
+    * @param thePropertyFilter Accepts the names of the top-level properties to read, as they appear in FHIR JSON, e.g. <code>valueQuantity</code>
+    */
+   public <T extends IBaseResource> T parseResource(Class<T> theResourceType, byte[] theInput, Predicate<String> thePropertyFilter) throws DataFormatException {
+      return myJsonParser.parseResource(theResourceType, load(new ByteArrayInputStream(theInput), thePropertyFilter));
+   }
+
+   private JacksonStructure load(InputStream theInput, Predicate<String> thePropertyFilter) {
+      ObjectNode root = myEncoding.getMapper().createObjectNode();
+      try (JsonParser parser = myEncoding.getFactory().createParser(theInput)) {
+         if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new DataFormatException("Content does not start with an object, so it is not a FHIR resource");
+         }
+         while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if ("resourceType".equals(name) || thePropertyFilter.test(name.startsWith("_") ? name.substring(1) : name)) {
+               root.set(name, myEncoding.getMapper().readTree(parser));
+            } else {
+               parser.skipChildren();
+            }
+         }
+      } catch (IOException e) {
+         throw new DataFormatException("Failed to parse " + myEncoding.name() + " content, error was: " + e.getMessage(), e);
+      }
+
+      JacksonStructure retVal = new JacksonStructure();
+      retVal.setNativeObject(root);
+      return retVal;
+   }
+
+   private JacksonStructure load(InputStream theInput) {
+      JsonNode root;
+      try {
+         root = myEncoding.getMapper().readTree(theInput);
+      } catch (IOException e) {
+         throw new DataFormatException("Failed to parse " + myEncoding.name() + " content, error was: " + e.getMessage(), e);
+      }
+      if (!(root instanceof ObjectNode)) {
+         throw new DataFormatException("Content does not start with an object, so it is not a FHIR resource");
+      }
+
+      JacksonStructure retVal = new JacksonStructure();
+      retVal.setNativeObject((ObjectNode) root);
+      return retVal;
+   }
+
+}
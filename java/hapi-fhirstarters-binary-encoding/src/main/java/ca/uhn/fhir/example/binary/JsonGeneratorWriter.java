@@ -0,0 +1,169 @@
+package ca.uhn.fhir.example.binary;
+
+import ca.uhn.fhir.parser.json.JsonLikeWriter;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Passes the events of the JSON parser to any Jackson generator. HAPI FHIR's
+ * own <code>JacksonWriter</code> does the same, but can only create a
+ * generator for a character stream, which the binary formats don't have.
+ */
+class JsonGeneratorWriter extends JsonLikeWriter {
+
+   private final JsonGenerator myGenerator;
+
+   JsonGeneratorWriter(JsonGenerator theGenerator) {
+      myGenerator = theGenerator;
+   }
+
+   @Override
+   public JsonLikeWriter init() {
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter flush() {
+      return this;
+   }
+
+   @Override
+   public void close() throws IOException {
+      myGenerator.close();
+   }
+
+   @Override
+   public JsonLikeWriter beginObject() throws IOException {
+      myGenerator.writeStartObject();
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter beginObject(String theName) throws IOException {
+      myGenerator.writeObjectFieldStart(theName);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter beginArray(String theName) throws IOException {
+      myGenerator.writeArrayFieldStart(theName);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter write(String theValue) throws IOException {
+      myGenerator.writeString(theValue);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter write(BigInteger theValue) throws IOException {
+      myGenerator.writeNumber(theValue);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter write(BigDecimal theValue) throws IOException {
+      myGenerator.writeNumber(theValue);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter write(long theValue) throws IOException {
+      myGenerator.writeNumber(theValue);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter write(double theValue) throws IOException {
+      myGenerator.writeNumber(theValue);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter write(Boolean theValue) throws IOException {
+      if (theValue == null) {
+         myGenerator.writeNull();
+      } else {
+         myGenerator.writeBoolean(theValue);
+      }
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter write(boolean theValue) throws IOException {
+      myGenerator.writeBoolean(theValue);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter writeNull() throws IOException {
+      myGenerator.writeNull();
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter write(String theName, String theValue) throws IOException {
+      myGenerator.writeStringField(theName, theValue);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter write(String theName, BigInteger theValue) throws IOException {
+      myGenerator.writeFieldName(theName);
+      myGenerator.writeNumber(theValue);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter write(String theName, BigDecimal theValue) throws IOException {
+      myGenerator.writeNumberField(theName, theValue);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter write(String theName, long theValue) throws IOException {
+      myGenerator.writeNumberField(theName, theValue);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter write(String theName, double theValue) throws IOException {
+      myGenerator.writeNumberField(theName, theValue);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter write(String theName, Boolean theValue) throws IOException {
+      myGenerator.writeFieldName(theName);
+      return write(theValue);
+   }
+
+   @Override
+   public JsonLikeWriter write(String theName, boolean theValue) throws IOException {
+      myGenerator.writeBooleanField(theName, theValue);
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter endObject() throws IOException {
+      myGenerator.writeEndObject();
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter endArray() throws IOException {
+      myGenerator.writeEndArray();
+      return this;
+   }
+
+   @Override
+   public JsonLikeWriter endBlock() throws IOException {
+      myGenerator.writeEndObject();
+      return this;
+   }
+
+}
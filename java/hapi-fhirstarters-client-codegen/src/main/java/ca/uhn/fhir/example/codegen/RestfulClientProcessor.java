@@ -0,0 +1,440 @@
+package ca.uhn.fhir.example.codegen;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Annotation processor which generates a concrete implementation of every
+ * annotation-driven client interface (an interface extending
+ * <code>IRestfulClient</code> whose methods are annotated with
+ * <code>@Read</code>, <code>@Create</code>, etc.) found in the sources being
+ * compiled.
+ * <p>
+ * A client created with <code>FhirContext#newRestfulClient(Class, String)</code>
+ * is a dynamic proxy, which looks up the binding for the invoked method on every
+ * call and assembles the request reflectively. The class generated for an
+ * interface named <code>SampleClient</code> is called <code>SampleClientImpl</code>,
+ * and implements each method with the equivalent direct call to an
+ * <code>IGenericClient</code>, so the binding is worked out once, by the compiler:
+ * </p>
+ * <pre>
+ * SampleClient client = new SampleClientImpl(ctx.newRestfulGenericClient(serverBase));
+ * </pre>
+ * <p>
+ * Methods which can not be bound are reported as compile errors. The generated
+ * constructor checks that every resource type used by the interface belongs to
+ * the FHIR version of the client's context, so that a mismatch fails when the
+ * client is created instead of on the first call.
+ * </p>
+ * <p>
+ * The supported bindings are:
+ * </p>
+ * <ul>
+ * <li><code>@Read</code> with a single <code>@IdParam</code>, returning a concrete resource type (a versioned ID performs a vread)</li>
+ * <li><code>@Create</code> with a single <code>@ResourceParam</code>, returning <code>MethodOutcome</code></li>
+ * <li><code>@Update</code> with a <code>@ResourceParam</code> and optionally an <code>@IdParam</code>, returning <code>MethodOutcome</code></li>
+ * <li><code>@Delete</code> with a single <code>@IdParam</code>, returning <code>MethodOutcome</code> or <code>void</code></li>
+ * </ul>
+ * <p>
+ * Interfaces using any other operation should keep using the proxy.
+ * </p>
+ */
+@SupportedAnnotationTypes("ca.uhn.fhir.rest.annotation.*")
+public class RestfulClientProcessor extends AbstractProcessor {
+
+   private static final String ANNOTATION_PACKAGE = "ca.uhn.fhir.rest.annotation.";
+   private static final String READ = ANNOTATION_PACKAGE + "Read";
+   private static final String CREATE = ANNOTATION_PACKAGE + "Create";
+   private static final String UPDATE = ANNOTATION_PACKAGE + "Update";
+   private static final String DELETE = ANNOTATION_PACKAGE + "Delete";
+   private static final String ID_PARAM = ANNOTATION_PACKAGE + "IdParam";
+   private static final String RESOURCE_PARAM = ANNOTATION_PACKAGE + "ResourceParam";
+   private static final List<String> BINDINGS = Arrays.asList(READ, CREATE, UPDATE, DELETE);
+
+   private static final String RESTFUL_CLIENT = "ca.uhn.fhir.rest.client.api.IRestfulClient";
+   private static final String GENERIC_CLIENT = "ca.uhn.fhir.rest.client.api.IGenericClient";
+   private static final String BASE_RESOURCE = "org.hl7.fhir.instance.model.api.IBaseResource";
+   private static final String ID_TYPE = "org.hl7.fhir.instance.model.api.IIdType";
+   private static final String METHOD_OUTCOME = "ca.uhn.fhir.rest.api.MethodOutcome";
+   private static final String CONFIGURATION_EXCEPTION = "ca.uhn.fhir.context.ConfigurationException";
+
+   private final Set<String> myGenerated = new HashSet<>();
+
+   @Override
+   public SourceVersion getSupportedSourceVersion() {
+      return SourceVersion.latestSupported();
+   }
+
+   @Override
+   public boolean process(Set<? extends TypeElement> theAnnotations, RoundEnvironment theRoundEnv) {
+      TypeElement restfulClient = processingEnv.getElementUtils().getTypeElement(RESTFUL_CLIENT);
+      if (restfulClient == null) {
+         // The HAPI FHIR client API is not on the classpath, so there is nothing to do
+         return false;
+      }
+
+      Set<TypeElement> interfaces = new LinkedHashSet<>();
+      for (TypeElement nextAnnotation : theAnnotations) {
+         if (!BINDINGS.contains(nextAnnotation.getQualifiedName().toString())) {
+            continue;
+         }
+         for (Element nextMethod : theRoundEnv.getElementsAnnotatedWith(nextAnnotation)) {
+            Element owner = nextMethod.getEnclosingElement();
+            if (owner.getKind() == ElementKind.INTERFACE && isSubtype(owner.asType(), restfulClient.asType())) {
+               interfaces.add((TypeElement) owner);
+            }
+         }
+      }
+
+      for (TypeElement next : interfaces) {
+         if (myGenerated.add(next.getQualifiedName().toString())) {
+            generate(next, restfulClient);
+         }
+      }
+
+      // Other processors may also be interested in these annotations
+      return false;
+   }
+
+   private void generate(TypeElement theInterface, TypeElement theRestfulClient) {
+      if (!theInterface.getTypeParameters().isEmpty()) {
+         error(theInterface, "Generic client interfaces are not supported");
+         return;
+      }
+
+      List<ExecutableElement> delegated = new ArrayList<>();
+      List<Binding> bindings = new ArrayList<>();
+      boolean valid = true;
+
+      for (ExecutableElement nextMethod : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(theInterface))) {
+         if (!nextMethod.getModifiers().contains(Modifier.ABSTRACT)) {
+            continue;
+         }
+
+         String bindingType = null;
+         String unsupportedType = null;
+         for (AnnotationMirror nextAnnotation : nextMethod.getAnnotationMirrors()) {
+            String name = annotationName(nextAnnotation);
+            if (BINDINGS.contains(name)) {
+               bindingType = name;
+            } else if (name.startsWith(ANNOTATION_PACKAGE)) {
+               unsupportedType = name;
+            }
+         }
+
+         if (unsupportedType != null) {
+            error(nextMethod, "@" + simpleName(unsupportedType) + " methods are not supported by generated clients");
+            valid = false;
+            continue;
+         }
+         if (bindingType == null) {
+            if (overridesRestfulClientMethod(nextMethod, theInterface, theRestfulClient)) {
+               delegated.add(nextMethod);
+            } else {
+               error(nextMethod, "Method has no supported binding annotation (@Read, @Create, @Update or @Delete)");
+               valid = false;
+            }
+            continue;
+         }
+
+         Binding binding = bind(bindingType, nextMethod);
+         if (binding == null) {
+            valid = false;
+         } else {
+            bindings.add(binding);
+         }
+      }
+
+      if (!valid) {
+         return;
+      }
+
+      try {
+         write(theInterface, delegated, bindings);
+      } catch (IOException e) {
+         error(theInterface, "Failed to write generated client: " + e);
+      }
+   }
+
+   /**
+    * Works out how a single annotated method maps onto the generic client, or
+    * reports an error and returns null if it can't be mapped
+    */
+   private Binding bind(String theBindingType, ExecutableElement theMethod) {
+      Binding retVal = new Binding(theBindingType, theMethod);
+      List<? extends VariableElement> parameters = theMethod.getParameters();
+      for (int i = 0; i < parameters.size(); i++) {
+         VariableElement nextParameter = parameters.get(i);
+         String paramName = "arg" + i;
+         Set<String> paramAnnotations = new HashSet<>();
+         for (AnnotationMirror nextAnnotation : nextParameter.getAnnotationMirrors()) {
+            paramAnnotations.add(annotationName(nextAnnotation));
+         }
+
+         if (paramAnnotations.contains(ID_PARAM) && retVal.myIdParam == null) {
+            if (!isSubtype(nextParameter.asType(), type(ID_TYPE))) {
+               error(nextParameter, "@IdParam must be an IIdType");
+               return null;
+            }
+            retVal.myIdParam = paramName;
+         } else if (paramAnnotations.contains(RESOURCE_PARAM) && retVal.myResourceParam == null) {
+            if (!isSubtype(nextParameter.asType(), type(BASE_RESOURCE))) {
+               error(nextParameter, "@ResourceParam must be a resource");
+               return null;
+            }
+            retVal.myResourceParam = paramName;
+            retVal.myResourceType = nextParameter.asType();
+         } else {
+            error(nextParameter, "Parameter is not supported by generated clients for @" + simpleName(theBindingType) + " methods");
+            return null;
+         }
+      }
+
+      TypeMirror returnType = theMethod.getReturnType();
+      boolean returnsOutcome = isSameType(returnType, type(METHOD_OUTCOME));
+      switch (theBindingType) {
+         case READ:
+            if (retVal.myIdParam == null || retVal.myResourceParam != null) {
+               error(theMethod, "@Read methods must have exactly one @IdParam parameter");
+               return null;
+            }
+            if (!isConcreteResource(returnType)) {
+               error(theMethod, "@Read methods must return a concrete resource type");
+               return null;
+            }
+            retVal.myResourceType = returnType;
+            break;
+         case CREATE:
+            if (retVal.myResourceParam == null || retVal.myIdParam != null || !returnsOutcome) {
+               error(theMethod, "@Create methods must have exactly one @ResourceParam parameter and return MethodOutcome");
+               return null;
+            }
+            break;
+         case UPDATE:
+            if (retVal.myResourceParam == null || !returnsOutcome) {
+               error(theMethod, "@Update methods must have a @ResourceParam parameter and return MethodOutcome");
+               return null;
+            }
+            break;
+         case DELETE:
+            if (retVal.myIdParam == null || retVal.myResourceParam != null || !(returnsOutcome || returnType.getKind() == TypeKind.VOID)) {
+               error(theMethod, "@Delete methods must have exactly one @IdParam parameter and return MethodOutcome or void");
+               return null;
+            }
+            break;
+      }
+
+      // Only concrete resource classes can be checked against the FhirContext up front
+      if (retVal.myResourceType != null && !isConcreteResource(retVal.myResourceType)) {
+         retVal.myResourceType = null;
+      }
+      return retVal;
+   }
+
+   private void write(TypeElement theInterface, List<ExecutableElement> theDelegated, List<Binding> theBindings) throws IOException {
+      String packageName = processingEnv.getElementUtils().getPackageOf(theInterface).getQualifiedName().toString();
+      String className = generatedSimpleName(theInterface);
+      String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+
+      Set<String> resourceTypes = new TreeSet<>();
+      for (Binding next : theBindings) {
+         if (next.myResourceType != null) {
+            resourceTypes.add(erasure(next.myResourceType));
+         }
+      }
+
+      JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, theInterface);
+      try (Writer w = file.openWriter()) {
+         if (!packageName.isEmpty()) {
+            w.write("package " + packageName + ";\n\n");
+         }
+         w.write("/**\n");
+         w.write(" * Implementation of {@link " + theInterface.getQualifiedName() + "} generated by\n");
+         w.write(" * {@link " + RestfulClientProcessor.class.getName() + "}. Do not edit.\n");
+         w.write(" */\n");
+         w.write("public class " + className + " implements " + theInterface.getQualifiedName() + " {\n\n");
+         w.write("   private final " + GENERIC_CLIENT + " myClient;\n\n");
+
+         w.write("   /**\n");
+         w.write("    * Constructor\n");
+         w.write("    *\n");
+         w.write("    * @param theClient The client which all calls are sent through\n");
+         w.write("    * @throws " + CONFIGURATION_EXCEPTION + " If a resource type used by the interface does not belong to the FHIR version of the client\n");
+         w.write("    */\n");
+         w.write("   public " + className + "(" + GENERIC_CLIENT + " theClient) {\n");
+         w.write("      if (theClient == null) {\n");
+         w.write("         throw new NullPointerException(\"theClient must not be null\");\n");
+         w.write("      }\n");
+         w.write("      myClient = theClient;\n");
+         if (!resourceTypes.isEmpty()) {
+            w.write("      ca.uhn.fhir.context.FhirContext ctx = theClient.getFhirContext();\n");
+            w.write("      try {\n");
+            for (String next : resourceTypes) {
+               w.write("         ctx.getResourceDefinition(" + next + ".class);\n");
+            }
+            w.write("      } catch (" + CONFIGURATION_EXCEPTION + " e) {\n");
+            w.write("         throw new " + CONFIGURATION_EXCEPTION + "(\"Unable to bind " + theInterface.getSimpleName() + ": \" + e.getMessage(), e);\n");
+            w.write("      }\n");
+         }
+         w.write("   }\n");
+
+         for (Binding next : theBindings) {
+            w.write("\n");
+            writeSignature(w, next.myMethod);
+            w.write("      " + next.body() + "\n");
+            w.write("   }\n");
+         }
+
+         for (ExecutableElement next : theDelegated) {
+            w.write("\n");
+            writeSignature(w, next);
+            StringBuilder call = new StringBuilder("myClient." + next.getSimpleName() + "(");
+            for (int i = 0; i < next.getParameters().size(); i++) {
+               call.append(i > 0 ? ", " : "").append("arg").append(i);
+            }
+            call.append(");");
+            w.write("      " + (next.getReturnType().getKind() == TypeKind.VOID ? "" : "return ") + call + "\n");
+            w.write("   }\n");
+         }
+
+         w.write("\n}\n");
+      }
+   }
+
+   private void writeSignature(Writer theWriter, ExecutableElement theMethod) throws IOException {
+      StringBuilder b = new StringBuilder("   @Override\n   public ");
+      List<? extends TypeParameterElement> typeParameters = theMethod.getTypeParameters();
+      if (!typeParameters.isEmpty()) {
+         b.append("<");
+         for (int i = 0; i < typeParameters.size(); i++) {
+            TypeParameterElement next = typeParameters.get(i);
+            b.append(i > 0 ? ", " : "").append(next.getSimpleName());
+            List<? extends TypeMirror> bounds = next.getBounds();
+            if (!(bounds.size() == 1 && bounds.get(0).toString().equals(Object.class.getName()))) {
+               b.append(" extends ");
+               for (int j = 0; j < bounds.size(); j++) {
+                  b.append(j > 0 ? " & " : "").append(bounds.get(j));
+               }
+            }
+         }
+         b.append("> ");
+      }
+      b.append(theMethod.getReturnType()).append(" ").append(theMethod.getSimpleName()).append("(");
+      List<? extends VariableElement> parameters = theMethod.getParameters();
+      for (int i = 0; i < parameters.size(); i++) {
+         b.append(i > 0 ? ", " : "").append(parameters.get(i).asType()).append(" arg").append(i);
+      }
+      b.append(") {\n");
+      theWriter.write(b.toString());
+   }
+
+   private boolean overridesRestfulClientMethod(ExecutableElement theMethod, TypeElement theInterface, TypeElement theRestfulClient) {
+      if (theMethod.getEnclosingElement().equals(theRestfulClient)) {
+         return true;
+      }
+      for (ExecutableElement next : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(theRestfulClient))) {
+         if (processingEnv.getElementUtils().overrides(theMethod, next, theInterface)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private boolean isConcreteResource(TypeMirror theType) {
+      if (theType.getKind() != TypeKind.DECLARED || !isSubtype(theType, type(BASE_RESOURCE))) {
+         return false;
+      }
+      Element element = ((DeclaredType) theType).asElement();
+      return element.getKind() == ElementKind.CLASS && !element.getModifiers().contains(Modifier.ABSTRACT);
+   }
+
+   private TypeMirror type(String theQualifiedName) {
+      TypeElement element = processingEnv.getElementUtils().getTypeElement(theQualifiedName);
+      return element != null ? element.asType() : null;
+   }
+
+   private boolean isSubtype(TypeMirror theType, TypeMirror theSuperType) {
+      return theSuperType != null && processingEnv.getTypeUtils().isAssignable(processingEnv.getTypeUtils().erasure(theType), processingEnv.getTypeUtils().erasure(theSuperType));
+   }
+
+   private boolean isSameType(TypeMirror theType, TypeMirror theOther) {
+      return theOther != null && processingEnv.getTypeUtils().isSameType(theType, theOther);
+   }
+
+   private String erasure(TypeMirror theType) {
+      return processingEnv.getTypeUtils().erasure(theType).toString();
+   }
+
+   private void error(Element theElement, String theMessage) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, theMessage, theElement);
+   }
+
+   private static String annotationName(AnnotationMirror theAnnotation) {
+      return ((TypeElement) theAnnotation.getAnnotationType().asElement()).getQualifiedName().toString();
+   }
+
+   private static String simpleName(String theQualifiedName) {
+      return theQualifiedName.substring(theQualifiedName.lastIndexOf('.') + 1);
+   }
+
+   /**
+    * Nested interfaces are named after their enclosing types, e.g. <code>Outer_InnerImpl</code>
+    */
+   private static String generatedSimpleName(TypeElement theInterface) {
+      StringBuilder b = new StringBuilder(theInterface.getSimpleName());
+      Element enclosing = theInterface.getEnclosingElement();
+      while (enclosing.getKind().isClass() || enclosing.getKind().isInterface()) {
+         b.insert(0, enclosing.getSimpleName() + "_");
+         enclosing = enclosing.getEnclosingElement();
+      }
+      return b.append("Impl").toString();
+   }
+
+   /**
+    * A method which has been matched to a generic client operation
+    */
+   private static class Binding {
+      private final String myType;
+      private final ExecutableElement myMethod;
+      private String myIdParam;
+      private String myResourceParam;
+      private TypeMirror myResourceType;
+
+      private Binding(String theType, ExecutableElement theMethod) {
+         myType = theType;
+         myMethod = theMethod;
+      }
+
+      private String body() {
+         switch (myType) {
+            case READ:
+               return "return myClient.read().resource(" + myMethod.getReturnType() + ".class).withId(" + myIdParam + ").execute();";
+            case CREATE:
+               return "return myClient.create().resource(" + myResourceParam + ").execute();";
+            case UPDATE:
+               if (myIdParam != null) {
+                  return "return myClient.update().resource(" + myResourceParam + ").withId(" + myIdParam + ").execute();";
+               }
+               return "return myClient.update().resource(" + myResourceParam + ").execute();";
+            case DELETE:
+               String call = "myClient.delete().resourceById(" + myIdParam + ").execute();";
+               return myMethod.getReturnType().getKind() == TypeKind.VOID ? call : "return " + call;
+            default:
+               throw new IllegalStateException(myType);
+         }
+      }
+   }
+
+}
@@ -0,0 +1,325 @@
+package test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadDriver {
+
+	/*
+	 * This class is a load generator which can be pointed at any FHIR server in
+	 * order to find out how much traffic it can handle. It is configured with
+	 * system properties, e.g.:
+	 *
+	 *   -Dload.baseUrl=http://localhost:8080/fhir -Dload.rate=200 -Dload.durationSeconds=60
+	 *
+	 * Requests are scheduled "open loop": they are issued at a constant rate no
+	 * matter how quickly the server responds, and each latency is measured from
+	 * the time the request was *supposed* to start. If the server stalls, the
+	 * requests which queue up behind the stall are charged for the time they
+	 * spent waiting, which avoids the "coordinated omission" problem of a closed
+	 * loop (one request at a time per thread) load generator.
+	 *
+	 * Supported properties (defaults in brackets):
+	 *
+	 *   load.baseUrl          Server base URL (http://localhost:8080/fhir)
+	 *   load.rate             Requests per second (100)
+	 *   load.durationSeconds  Measured time (60)
+	 *   load.warmupSeconds    Unrecorded time before measuring (10)
+	 *   load.workers          Maximum number of concurrent requests (64)
+	 *   load.ids              Comma separated Patient IDs to target (found by searching if not set)
+	 *   load.families         Comma separated family names to search for (read from the load.ids Patients if not set)
+	 *   load.mix              Operation weights (read:70,search:20,create:10,update:0)
+	 *   load.outputDir        Directory for HdrHistogram .hgrm files (target/load)
+	 */
+
+	enum Operation {
+		READ, SEARCH, CREATE, UPDATE
+	}
+
+	private final FhirContext myCtx = FhirContext.forR4();
+	private final Map<Operation, Integer> myMix;
+	private final Map<Operation, Recorder> myRecorders = new EnumMap<>(Operation.class);
+	private final Map<Operation, AtomicLong> myErrors = new EnumMap<>(Operation.class);
+	private final List<String> myIds = Collections.synchronizedList(new ArrayList<>());
+	private final List<String> myFamilies = Collections.synchronizedList(new ArrayList<>());
+	private final AtomicLong myCounter = new AtomicLong();
+	private final IGenericClient myClient;
+	private final int myWorkers;
+	private volatile boolean myRecording;
+
+	public LoadDriver(String theBaseUrl, int theWorkers, Map<Operation, Integer> theMix) {
+		myWorkers = theWorkers;
+		myMix = theMix;
+		for (Operation next : Operation.values()) {
+			myRecorders.put(next, new Recorder(3));
+			myErrors.put(next, new AtomicLong());
+		}
+
+		// All workers share one client, whose connection pool is sized for the worker count
+		IRestfulClientFactory clientFactory = myCtx.getRestfulClientFactory();
+		clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+		clientFactory.setPoolMaxTotal(theWorkers);
+		clientFactory.setPoolMaxPerRoute(theWorkers);
+		myClient = myCtx.newRestfulGenericClient(theBaseUrl);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String baseUrl = System.getProperty("load.baseUrl", "http://localhost:8080/fhir");
+		int rate = Integer.getInteger("load.rate", 100);
+		int durationSeconds = Integer.getInteger("load.durationSeconds", 60);
+		int warmupSeconds = Integer.getInteger("load.warmupSeconds", 10);
+		int workers = Integer.getInteger("load.workers", 64);
+		Map<Operation, Integer> mix = parseMix(System.getProperty("load.mix", "read:70,search:20,create:10,update:0"));
+		File outputDir = new File(System.getProperty("load.outputDir", "target/load"));
+
+		LoadDriver driver = new LoadDriver(baseUrl, workers, mix);
+		String ids = System.getProperty("load.ids");
+		String families = System.getProperty("load.families");
+		if (families != null) {
+			for (String next : families.split(",")) {
+				driver.myFamilies.add(next.trim());
+			}
+		}
+		if (ids != null) {
+			for (String next : ids.split(",")) {
+				driver.myIds.add(next.trim());
+			}
+			if (families == null && mix.containsKey(Operation.SEARCH)) {
+				driver.readFamilies();
+			}
+		} else {
+			driver.discoverTargets();
+		}
+		if (mix.containsKey(Operation.SEARCH) && driver.myFamilies.isEmpty()) {
+			throw new IllegalStateException("The operation mix contains search, but no family names are known to search for. Set load.families, or give load.ids Patients which have a family name");
+		}
+
+		System.out.println("Warming up for " + warmupSeconds + "s at " + rate + " req/s");
+		driver.run(rate, warmupSeconds, false);
+
+		System.out.println("Measuring for " + durationSeconds + "s at " + rate + " req/s");
+		driver.run(rate, durationSeconds, true);
+		driver.report(durationSeconds, outputDir);
+	}
+
+	/**
+	 * Finds existing Patients to read, update and search for. If the server
+	 * has none, a few are created first.
+	 */
+	public void discoverTargets() {
+		try {
+			Bundle bundle = myClient
+				.search()
+				.forResource(Patient.class)
+				.count(500)
+				.returnBundle(Bundle.class)
+				.execute();
+			for (Bundle.BundleEntryComponent next : bundle.getEntry()) {
+				addTarget((Patient) next.getResource());
+			}
+		} catch (BaseServerResponseException e) {
+			System.out.println("Unable to search for Patients (" + e.getMessage() + "), will create some instead");
+		}
+
+		while (myIds.size() < 10) {
+			Patient patient = newPatient();
+			String id = myClient.create().resource(patient).execute().getId().getIdPart();
+			patient.setId(id);
+			addTarget(patient);
+		}
+		System.out.println("Found " + myIds.size() + " target Patients");
+	}
+
+	/**
+	 * Reads each of the target Patients given explicitly in order to find
+	 * family names to search for
+	 */
+	public void readFamilies() {
+		for (String next : myIds) {
+			String family = myClient.read().resource(Patient.class).withId(next).execute().getNameFirstRep().getFamily();
+			if (family != null) {
+				myFamilies.add(family);
+			}
+		}
+		System.out.println("Found " + myFamilies.size() + " family names to search for");
+	}
+
+	/**
+	 * Issues requests at a constant rate for the given time, then waits for the
+	 * outstanding requests to complete
+	 */
+	public void run(int theRate, int theSeconds, boolean theRecord) throws InterruptedException {
+		// Discard anything recorded so far
+		for (Recorder next : myRecorders.values()) {
+			next.reset();
+		}
+		myRecording = theRecord;
+
+		ExecutorService executor = Executors.newFixedThreadPool(myWorkers);
+		long intervalNanos = TimeUnit.SECONDS.toNanos(1) / theRate;
+		long startNanos = System.nanoTime();
+		long totalRequests = (long) theRate * theSeconds;
+
+		for (long i = 0; i < totalRequests; i++) {
+			long intendedStart = startNanos + i * intervalNanos;
+			long delay = intendedStart - System.nanoTime();
+			if (delay > 0) {
+				LockSupport.parkNanos(delay);
+			}
+			Operation operation = chooseOperation();
+			executor.execute(() -> execute(operation, intendedStart));
+		}
+
+		executor.shutdown();
+		executor.awaitTermination(5, TimeUnit.MINUTES);
+	}
+
+	private void execute(Operation theOperation, long theIntendedStartNanos) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		try {
+			switch (theOperation) {
+				case READ:
+					myClient.read().resource(Patient.class).withId(pick(myIds, random)).execute();
+					break;
+				case SEARCH:
+					myClient
+						.search()
+						.forResource(Patient.class)
+						.where(Patient.FAMILY.matches().value(pick(myFamilies, random)))
+						.returnBundle(Bundle.class)
+						.execute();
+					break;
+				case CREATE:
+					myClient.create().resource(newPatient()).execute();
+					break;
+				case UPDATE:
+					Patient patient = newPatient();
+					patient.setId(pick(myIds, random));
+					myClient.update().resource(patient).execute();
+					break;
+			}
+		} catch (Exception e) {
+			if (myRecording) {
+				myErrors.get(theOperation).incrementAndGet();
+			}
+			return;
+		}
+
+		if (myRecording) {
+			// Latency includes any time spent queued behind other requests
+			long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - theIntendedStartNanos);
+			myRecorders.get(theOperation).recordValue(latencyMicros);
+		}
+	}
+
+	/**
+	 * Prints a summary and writes one HdrHistogram percentile distribution file
+	 * (in milliseconds) per operation
+	 */
+	public void report(int theSeconds, File theOutputDir) throws IOException {
+		theOutputDir.mkdirs();
+		Histogram total = new Histogram(3);
+
+		System.out.println(String.format("%-8s %10s %8s %10s %10s %10s %10s %10s %10s", "op", "count", "errors", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		for (Operation next : myMix.keySet()) {
+			Histogram histogram = myRecorders.get(next).getIntervalHistogram();
+			total.add(histogram);
+			printRow(next.name().toLowerCase(), histogram, myErrors.get(next).get(), theSeconds);
+
+			try (PrintStream out = new PrintStream(new FileOutputStream(new File(theOutputDir, next.name().toLowerCase() + ".hgrm")))) {
+				histogram.outputPercentileDistribution(out, 1000.0);
+			}
+		}
+		printRow("total", total, 0, theSeconds);
+		try (PrintStream out = new PrintStream(new FileOutputStream(new File(theOutputDir, "total.hgrm")))) {
+			total.outputPercentileDistribution(out, 1000.0);
+		}
+		System.out.println("Wrote latency distributions to " + theOutputDir.getAbsolutePath());
+	}
+
+	private static void printRow(String theName, Histogram theHistogram, long theErrors, int theSeconds) {
+		System.out.println(String.format("%-8s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f",
+			theName,
+			theHistogram.getTotalCount(),
+			theErrors,
+			theHistogram.getTotalCount() / (double) theSeconds,
+			theHistogram.getValueAtPercentile(50) / 1000.0,
+			theHistogram.getValueAtPercentile(90) / 1000.0,
+			theHistogram.getValueAtPercentile(99) / 1000.0,
+			theHistogram.getValueAtPercentile(99.9) / 1000.0,
+			theHistogram.getMaxValue() / 1000.0));
+	}
+
+	private void addTarget(Patient thePatient) {
+		myIds.add(thePatient.getIdElement().getIdPart());
+		String family = thePatient.getNameFirstRep().getFamily();
+		if (family != null) {
+			myFamilies.add(family);
+		}
+	}
+
+	private Operation chooseOperation() {
+		int total = 0;
+		for (int next : myMix.values()) {
+			total += next;
+		}
+		int choice = ThreadLocalRandom.current().nextInt(total);
+		for (Map.Entry<Operation, Integer> next : myMix.entrySet()) {
+			choice -= next.getValue();
+			if (choice < 0) {
+				return next.getKey();
+			}
+		}
+		throw new IllegalStateException();
+	}
+
+	private Patient newPatient() {
+		long counter = myCounter.incrementAndGet();
+		Patient retVal = new Patient();
+		retVal.addName().setFamily("LoadTest" + (counter % 100)).addGiven("Given" + counter);
+		retVal.addIdentifier().setSystem("http://acme.org/mrn").setValue("LT" + counter);
+		retVal.setGender(counter % 2 == 0 ? Enumerations.AdministrativeGender.FEMALE : Enumerations.AdministrativeGender.MALE);
+		return retVal;
+	}
+
+	private static String pick(List<String> theList, ThreadLocalRandom theRandom) {
+		return theList.get(theRandom.nextInt(theList.size()));
+	}
+
+	private static Map<Operation, Integer> parseMix(String theMix) {
+		Map<Operation, Integer> retVal = new EnumMap<>(Operation.class);
+		for (String next : theMix.split(",")) {
+			String[] parts = next.split(":");
+			int weight = Integer.parseInt(parts[1].trim());
+			if (weight > 0) {
+				retVal.put(Operation.valueOf(parts[0].trim().toUpperCase()), weight);
+			}
+		}
+		if (retVal.isEmpty()) {
+			throw new IllegalArgumentException("Operation mix must contain at least one operation: " + theMix);
+		}
+		return retVal;
+	}
+
+}
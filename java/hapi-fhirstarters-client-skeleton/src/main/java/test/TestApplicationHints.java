@@ -1,6 +1,7 @@
 package test;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.example.binary.BinaryEncoding;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
@@ -8,6 +9,17 @@ import org.hl7.fhir.r4.model.DateType;
 import org.hl7.fhir.r4.model.Enumerations;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import test.client.BatchingResourceWriter;
+import test.client.BinaryEncodingClientInterceptor;
+import test.client.CachingResourceReader;
+import test.client.PrefetchingSearchIterator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
 
 public class TestApplicationHints {
 
@@ -19,6 +31,10 @@ public class TestApplicationHints {
 //		step1_read_a_resource();
 //		step2_search_for_patients_named_test();
 //		step3_create_patient();
+//		step4_cached_reads();
+//		step5_stream_all_pages();
+//		step6_batched_creates();
+//		step7_binary_encoding();
 	}
 
 	public static void step1_read_a_resource() {
@@ -96,5 +112,73 @@ public class TestApplicationHints {
 		IIdType id = outcome.getId();
 		System.out.println("Created patient, got ID: " + id);
 	}
-	
+
+	public static void step4_cached_reads() {
+		FhirContext ctx = FhirContext.forR4();
+		IGenericClient client = ctx.newRestfulGenericClient("http://hapi.fhir.org/baseR4");
+
+		// Cache up to 1000 resources. Use them for 10 seconds without asking the server,
+		// and for a further 60 seconds while checking for changes in the background
+		CachingResourceReader reader = new CachingResourceReader(client, 1000, 10000, 60000);
+
+		for (int i = 0; i < 10; i++) {
+			Patient patient = reader.read(Patient.class, "example");
+			System.out.println("Read " + patient.getIdElement().getValue());
+		}
+
+		System.out.println("Served from cache: " + reader.getHitCount() + ", fetched: " + reader.getFetchCount());
+	}
+
+	public static void step5_stream_all_pages() {
+		FhirContext ctx = FhirContext.forR4();
+		IGenericClient client = ctx.newRestfulGenericClient("http://hapi.fhir.org/baseR4");
+
+		org.hl7.fhir.r4.model.Bundle firstPage = client
+			.search()
+			.forResource(Patient.class)
+			.where(Patient.NAME.matches().value("test"))
+			.returnBundle(org.hl7.fhir.r4.model.Bundle.class)
+			.execute();
+
+		// Walk every page, loading up to 2 pages ahead while the current one is processed
+		try (Stream<IBaseResource> resources = PrefetchingSearchIterator.stream(client, firstPage, 2)) {
+			resources.limit(500).forEach(next -> System.out.println(next.getIdElement().getValue()));
+		}
+	}
+
+	public static void step6_batched_creates() {
+		FhirContext ctx = FhirContext.forR4();
+		IGenericClient client = ctx.newRestfulGenericClient("http://hapi.fhir.org/baseR4");
+
+		// Send up to 100 creates per batch Bundle, waiting at most 50ms for a batch
+		// to fill up, with up to 4 batches in flight at once
+		List<CompletableFuture<MethodOutcome>> outcomes = new ArrayList<>();
+		try (BatchingResourceWriter writer = new BatchingResourceWriter(client, 100, 50, 4)) {
+			for (int i = 0; i < 1000; i++) {
+				Patient newPatient = new Patient();
+				newPatient.addName().setFamily("DevDays2015").addGiven("Patient" + i);
+				outcomes.add(writer.create(newPatient));
+			}
+		}
+
+		for (CompletableFuture<MethodOutcome> next : outcomes) {
+			try {
+				System.out.println("Created patient, got ID: " + next.join().getId());
+			} catch (CompletionException e) {
+				System.out.println("Failed to create patient: " + e.getCause().getMessage());
+			}
+		}
+	}
+
+	public static void step7_binary_encoding() {
+		FhirContext ctx = FhirContext.forR4();
+		IGenericClient client = ctx.newRestfulGenericClient("http://localhost:8080/fhir");
+
+		// Ask for Smile instead of JSON. Servers which don't support it return JSON.
+		client.registerInterceptor(new BinaryEncodingClientInterceptor(BinaryEncoding.SMILE));
+
+		Patient patient = client.read().resource(Patient.class).withId("1").execute();
+		System.out.println("Read patient: " + patient.getNameFirstRep().getNameAsSingleString());
+	}
+
 }
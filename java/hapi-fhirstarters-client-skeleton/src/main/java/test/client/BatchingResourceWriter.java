@@ -0,0 +1,231 @@
+package test.client;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Collects individual resource creates and sends them to the server in
+ * <code>batch</code> Bundles, so that many resources share one round trip.
+ * <p>
+ * Callers submit resources with {@link #create(Resource)} and immediately get a
+ * future back. A batch is sent as soon as it holds <code>theMaxBatchSize</code>
+ * resources, or once <code>theLingerMillis</code> has passed since its first
+ * resource was submitted, whichever comes first. Up to
+ * <code>theMaxInFlightBatches</code> batches are sent concurrently. When that
+ * many are already in flight, {@link #create(Resource)} blocks until one completes,
+ * which stops a fast producer from queueing an unbounded amount of work.
+ * </p>
+ * <p>
+ * Each entry of the batch response is mapped back to the future of the
+ * resource which produced it. Entries which fail complete their future
+ * exceptionally without affecting the rest of the batch. If the batch as a
+ * whole fails, every future in it fails with the same exception.
+ * </p>
+ */
+public class BatchingResourceWriter implements AutoCloseable {
+
+   private final IGenericClient myClient;
+   private final int myMaxBatchSize;
+   private final long myLingerMillis;
+   private final Semaphore myInFlight;
+   private final ExecutorService mySender;
+   private final ScheduledExecutorService myLingerTimer;
+   private final Object myLock = new Object();
+   private List<PendingWrite> myPending = new ArrayList<>();
+   private ScheduledFuture<?> myLingerFuture;
+   private boolean myClosed;
+
+   /**
+    * Constructor
+    *
+    * @param theClient              The client used to send batches
+    * @param theMaxBatchSize        The maximum number of resources in one batch
+    * @param theLingerMillis        How long to wait for a batch to fill up before sending it anyway
+    * @param theMaxInFlightBatches  The maximum number of batches being sent at the same time
+    */
+   public BatchingResourceWriter(IGenericClient theClient, int theMaxBatchSize, long theLingerMillis, int theMaxInFlightBatches) {
+      myClient = theClient;
+      myMaxBatchSize = theMaxBatchSize;
+      myLingerMillis = theLingerMillis;
+      myInFlight = new Semaphore(theMaxInFlightBatches);
+      mySender = Executors.newFixedThreadPool(theMaxInFlightBatches, daemonThreads("batch-writer"));
+      myLingerTimer = Executors.newSingleThreadScheduledExecutor(daemonThreads("batch-linger"));
+   }
+
+   /**
+    * Queues a resource to be created on the server
+    *
+    * @return A future which completes with the outcome (including the assigned ID) once the batch containing the resource has been processed
+    */
+   public CompletableFuture<MethodOutcome> create(Resource theResource) {
+      PendingWrite write = new PendingWrite(theResource);
+      List<PendingWrite> fullBatch = null;
+      synchronized (myLock) {
+         if (myClosed) {
+            throw new IllegalStateException("Writer has been closed");
+         }
+         myPending.add(write);
+         if (myPending.size() >= myMaxBatchSize) {
+            fullBatch = takePending();
+         } else if (myPending.size() == 1) {
+            myLingerFuture = myLingerTimer.schedule(this::flush, myLingerMillis, TimeUnit.MILLISECONDS);
+         }
+      }
+
+      if (fullBatch != null) {
+         send(fullBatch);
+      }
+      return write.myFuture;
+   }
+
+   /**
+    * Sends any queued resources immediately, without waiting for the batch to fill up
+    */
+   public void flush() {
+      List<PendingWrite> batch;
+      synchronized (myLock) {
+         if (myPending.isEmpty()) {
+            return;
+         }
+         batch = takePending();
+      }
+      send(batch);
+   }
+
+   /**
+    * Sends any queued resources and waits for all batches to complete
+    *
+    * @throws IllegalStateException If the thread is interrupted while waiting. Its interrupt flag is set again, and
+    *                               the batches which were already sent are left to complete in the background.
+    */
+   @Override
+   public void close() {
+      synchronized (myLock) {
+         myClosed = true;
+      }
+      flush();
+      myLingerTimer.shutdownNow();
+      mySender.shutdown();
+      try {
+         mySender.awaitTermination(1, TimeUnit.HOURS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted while waiting for batches to complete", e);
+      }
+   }
+
+   private List<PendingWrite> takePending() {
+      if (myLingerFuture != null) {
+         myLingerFuture.cancel(false);
+         myLingerFuture = null;
+      }
+      List<PendingWrite> retVal = myPending;
+      myPending = new ArrayList<>();
+      return retVal;
+   }
+
+   private void send(List<PendingWrite> theBatch) {
+      // Blocks the submitting thread while the maximum number of batches are in flight
+      myInFlight.acquireUninterruptibly();
+      try {
+         mySender.execute(() -> {
+            try {
+               sendBatch(theBatch);
+            } finally {
+               myInFlight.release();
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         myInFlight.release();
+         theBatch.forEach(next -> next.myFuture.completeExceptionally(e));
+      }
+   }
+
+   private void sendBatch(List<PendingWrite> theBatch) {
+      Bundle request = new Bundle();
+      request.setType(Bundle.BundleType.BATCH);
+      for (PendingWrite next : theBatch) {
+         request
+            .addEntry()
+            .setResource(next.myResource)
+            .getRequest()
+            .setMethod(Bundle.HTTPVerb.POST)
+            .setUrl(next.myResource.fhirType());
+      }
+
+      Bundle response;
+      try {
+         response = myClient.transaction().withBundle(request).execute();
+      } catch (RuntimeException e) {
+         theBatch.forEach(next -> next.myFuture.completeExceptionally(e));
+         return;
+      }
+
+      // Batch response entries are in the same order as the request entries
+      List<Bundle.BundleEntryComponent> entries = response.getEntry();
+      if (entries.size() != theBatch.size()) {
+         IllegalStateException e = new IllegalStateException("Server returned " + entries.size() + " batch response entries for " + theBatch.size() + " requests");
+         theBatch.forEach(next -> next.myFuture.completeExceptionally(e));
+         return;
+      }
+      for (int i = 0; i < entries.size(); i++) {
+         complete(theBatch.get(i), entries.get(i).getResponse());
+      }
+   }
+
+   private void complete(PendingWrite theWrite, Bundle.BundleEntryResponseComponent theResponse) {
+      String status = theResponse.getStatus();
+      int statusCode;
+      try {
+         statusCode = Integer.parseInt(status.trim().split(" ")[0]);
+      } catch (RuntimeException e) {
+         theWrite.myFuture.completeExceptionally(new IllegalStateException("Invalid batch response status: " + status));
+         return;
+      }
+
+      if (statusCode >= 200 && statusCode < 300) {
+         MethodOutcome outcome = new MethodOutcome();
+         if (theResponse.hasLocation()) {
+            outcome.setId(new IdType(theResponse.getLocation()));
+         }
+         outcome.setCreated(statusCode == 201);
+         if (theResponse.getOutcome() instanceof OperationOutcome) {
+            outcome.setOperationOutcome((OperationOutcome) theResponse.getOutcome());
+         }
+         theWrite.myFuture.complete(outcome);
+      } else {
+         BaseServerResponseException e = BaseServerResponseException.newInstance(statusCode, "Batch entry failed with status " + status);
+         if (theResponse.getOutcome() instanceof OperationOutcome) {
+            e.setOperationOutcome((OperationOutcome) theResponse.getOutcome());
+         }
+         theWrite.myFuture.completeExceptionally(e);
+      }
+   }
+
+   private static ThreadFactory daemonThreads(String theName) {
+      return theRunnable -> {
+         Thread retVal = new Thread(theRunnable, theName);
+         retVal.setDaemon(true);
+         return retVal;
+      };
+   }
+
+   private static class PendingWrite {
+      private final Resource myResource;
+      private final CompletableFuture<MethodOutcome> myFuture = new CompletableFuture<>();
+
+      private PendingWrite(Resource theResource) {
+         myResource = theResource;
+      }
+   }
+
+}
@@ -0,0 +1,131 @@
+package test.client;
+
+import ca.uhn.fhir.example.binary.BinaryEncoding;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpResponse;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Asks the server to return resources in a binary format (CBOR or Smile)
+ * instead of JSON, for servers such as the one in
+ * hapi-fhirstarters-rest-server-skeleton which support it.
+ * <pre>
+ * IGenericClient client = ctx.newRestfulGenericClient(serverBase);
+ * client.registerInterceptor(new BinaryEncodingClientInterceptor(BinaryEncoding.SMILE));
+ * </pre>
+ * <p>
+ * The <code>Accept</code> header prefers the binary format but still accepts
+ * JSON, so servers without binary support simply return JSON. The client
+ * itself can only parse JSON and XML, so a binary response is copied to JSON
+ * token by token before the client parses it. This is much cheaper than
+ * parsing the resource, so the saving is in bandwidth and in the server's
+ * encoding time.
+ * </p>
+ * <p>
+ * Request bodies (creates, updates, transactions) are sent as JSON unless
+ * <code>theEncodeRequestBodies</code> is set, since the server also has to
+ * copy them back to JSON before parsing them. That is only worth doing when
+ * bandwidth matters more than CPU.
+ * </p>
+ * <p>
+ * This interceptor works with the default Apache HTTP client. With any other
+ * client it leaves requests unchanged.
+ * </p>
+ */
+public class BinaryEncodingClientInterceptor implements IClientInterceptor {
+
+   private final BinaryEncoding myEncoding;
+   private final boolean myEncodeRequestBodies;
+
+   /**
+    * Constructor which sends request bodies as JSON
+    */
+   public BinaryEncodingClientInterceptor(BinaryEncoding theEncoding) {
+      this(theEncoding, false);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param theEncoding           The format to ask for
+    * @param theEncodeRequestBodies Should JSON request bodies be sent in the binary format too
+    */
+   public BinaryEncodingClientInterceptor(BinaryEncoding theEncoding, boolean theEncodeRequestBodies) {
+      myEncoding = theEncoding;
+      myEncodeRequestBodies = theEncodeRequestBodies;
+   }
+
+   @Override
+   public void interceptRequest(IHttpRequest theRequest) {
+      if (!(theRequest instanceof ApacheHttpRequest)) {
+         return;
+      }
+
+      theRequest.removeHeaders(Constants.HEADER_ACCEPT);
+      theRequest.addHeader(Constants.HEADER_ACCEPT, myEncoding.getContentType() + ", " + Constants.CT_FHIR_JSON_NEW + ";q=0.9");
+
+      if (myEncodeRequestBodies) {
+         HttpRequestBase request = ((ApacheHttpRequest) theRequest).getApacheRequest();
+         if (request instanceof HttpEntityEnclosingRequest) {
+            encodeRequestBody((HttpEntityEnclosingRequest) request);
+         }
+      }
+   }
+
+   private void encodeRequestBody(HttpEntityEnclosingRequest theRequest) {
+      HttpEntity entity = theRequest.getEntity();
+      if (entity == null || entity.getContentType() == null || EncodingEnum.forContentType(entity.getContentType().getValue()) != EncodingEnum.JSON) {
+         return;
+      }
+
+      ByteArrayOutputStream binary = new ByteArrayOutputStream();
+      try (InputStream json = entity.getContent()) {
+         myEncoding.transcodeFromJson(json, binary);
+      } catch (IOException e) {
+         // Leave the request as it was
+         return;
+      }
+
+      ContentType contentType = ContentType.create(myEncoding.getContentType());
+      theRequest.setEntity(new ByteArrayEntity(binary.toByteArray(), contentType));
+      theRequest.setHeader(Constants.HEADER_CONTENT_TYPE, contentType.toString());
+   }
+
+   @Override
+   public void interceptResponse(IHttpResponse theResponse) throws IOException {
+      if (!(theResponse instanceof ApacheHttpResponse) || BinaryEncoding.forContentType(theResponse.getMimeType()) == null) {
+         return;
+      }
+
+      HttpResponse response = ((ApacheHttpResponse) theResponse).getResponse();
+      HttpEntity entity = response.getEntity();
+      if (entity == null) {
+         return;
+      }
+
+      ByteArrayOutputStream json = new ByteArrayOutputStream();
+      try (InputStream binary = entity.getContent()) {
+         BinaryEncoding.forContentType(theResponse.getMimeType()).transcodeToJson(binary, json);
+      }
+
+      ContentType contentType = ContentType.create(Constants.CT_FHIR_JSON_NEW, StandardCharsets.UTF_8);
+      response.setEntity(new ByteArrayEntity(json.toByteArray(), contentType));
+      response.setHeader(Constants.HEADER_CONTENT_TYPE, contentType.toString());
+   }
+
+}
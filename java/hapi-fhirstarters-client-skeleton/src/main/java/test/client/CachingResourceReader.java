@@ -0,0 +1,269 @@
+package test.client;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads resources through an {@link IGenericClient}, keeping a bounded in-memory
+ * cache of the parsed results.
+ * <p>
+ * Cached resources are kept fresh using HTTP revalidation: once an entry is
+ * older than the max-age, the next read sends an <code>If-None-Match</code>
+ * header containing the cached version (the resource's ETag). If the server
+ * replies with <code>304 Not Modified</code>, the cached instance is returned
+ * and nothing is parsed.
+ * </p>
+ * <ul>
+ * <li>Reads of an entry younger than <code>maxAgeMillis</code> are served from memory without contacting the server</li>
+ * <li>Reads of an entry older than that, but within a further <code>staleWhileRevalidateMillis</code>,
+ * return the cached copy immediately and revalidate it in the background</li>
+ * <li>Anything older is revalidated before returning</li>
+ * <li>Concurrent reads of the same resource which need the server share a single request</li>
+ * </ul>
+ * <p>
+ * This is a wrapper around the client rather than a client interceptor, because
+ * an interceptor can only modify a request that is already being sent, so it can
+ * neither skip the round trip for fresh entries nor avoid parsing the response.
+ * </p>
+ * <p>
+ * The returned resources are shared between callers and must not be modified.
+ * </p>
+ */
+public class CachingResourceReader {
+
+   private static final int DEFAULT_REVALIDATION_THREADS = 2;
+   private static final int DEFAULT_REVALIDATION_QUEUE_SIZE = 100;
+
+   private final IGenericClient myClient;
+   private final long myMaxAgeMillis;
+   private final long myStaleWhileRevalidateMillis;
+   private final Executor myRevalidationExecutor;
+   private final Map<String, CacheEntry> myCache;
+   private final ConcurrentMap<String, CompletableFuture<CacheEntry>> myInFlight = new ConcurrentHashMap<>();
+
+   private final AtomicLong myHits = new AtomicLong();
+   private final AtomicLong myStaleHits = new AtomicLong();
+   private final AtomicLong myNotModified = new AtomicLong();
+   private final AtomicLong myFetches = new AtomicLong();
+
+   /**
+    * Constructor which performs background revalidation on a small pool of its own.
+    * Revalidations which don't fit in the pool's queue are dropped, and the next
+    * read of the resource asks again.
+    *
+    * @param theClient                    The client to read with
+    * @param theMaxEntries                The maximum number of resources to cache. The least recently used are discarded first.
+    * @param theMaxAgeMillis              How long a cached resource is used without revalidating it
+    * @param theStaleWhileRevalidateMillis How long after the max-age a cached resource may still be returned while it is revalidated in the background
+    */
+   public CachingResourceReader(IGenericClient theClient, int theMaxEntries, long theMaxAgeMillis, long theStaleWhileRevalidateMillis) {
+      this(theClient, theMaxEntries, theMaxAgeMillis, theStaleWhileRevalidateMillis, newRevalidationExecutor());
+   }
+
+   public CachingResourceReader(IGenericClient theClient, int theMaxEntries, long theMaxAgeMillis, long theStaleWhileRevalidateMillis, Executor theRevalidationExecutor) {
+      myClient = theClient;
+      myMaxAgeMillis = theMaxAgeMillis;
+      myStaleWhileRevalidateMillis = theStaleWhileRevalidateMillis;
+      myRevalidationExecutor = theRevalidationExecutor;
+      myCache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> theEldest) {
+            return size() > theMaxEntries;
+         }
+      };
+   }
+
+   /**
+    * Reads the current version of a resource, equivalent to
+    * <code>client.read().resource(theType).withId(theId).execute()</code>
+    */
+   public <T extends IBaseResource> T read(Class<T> theType, String theId) {
+      String key = myClient.getFhirContext().getResourceType(theType) + "/" + theId;
+
+      CacheEntry entry;
+      synchronized (myCache) {
+         entry = myCache.get(key);
+      }
+
+      if (entry != null) {
+         long age = System.currentTimeMillis() - entry.myValidatedAt;
+         if (age <= myMaxAgeMillis) {
+            myHits.incrementAndGet();
+            return theType.cast(entry.myResource);
+         }
+         if (age <= myMaxAgeMillis + myStaleWhileRevalidateMillis) {
+            myStaleHits.incrementAndGet();
+            // Only revalidate if nobody is fetching it already, since the task would just wait for that fetch
+            if (!myInFlight.containsKey(key)) {
+               CacheEntry staleEntry = entry;
+               myRevalidationExecutor.execute(() -> {
+                  if (myInFlight.containsKey(key)) {
+                     return;
+                  }
+                  try {
+                     fetchCoalesced(key, theType, theId, staleEntry);
+                  } catch (RuntimeException e) {
+                     // The next read will try again, and report the failure if it persists
+                  }
+               });
+            }
+            return theType.cast(entry.myResource);
+         }
+      }
+
+      return theType.cast(fetchCoalesced(key, theType, theId, entry).myResource);
+   }
+
+   /**
+    * Removes a resource from the cache, e.g. after it has been updated by this client
+    */
+   public void invalidate(Class<? extends IBaseResource> theType, String theId) {
+      String key = myClient.getFhirContext().getResourceType(theType) + "/" + theId;
+      synchronized (myCache) {
+         myCache.remove(key);
+      }
+   }
+
+   /**
+    * Fetches or revalidates the resource, sharing the request with any other
+    * thread which is already doing the same
+    */
+   private <T extends IBaseResource> CacheEntry fetchCoalesced(String theKey, Class<T> theType, String theId, CacheEntry theCached) {
+      CompletableFuture<CacheEntry> future = new CompletableFuture<>();
+      CompletableFuture<CacheEntry> existing = myInFlight.putIfAbsent(theKey, future);
+      if (existing != null) {
+         try {
+            return existing.join();
+         } catch (CompletionException e) {
+            // Rethrow what the other thread's fetch threw, if it can be thrown unwrapped
+            if (e.getCause() instanceof RuntimeException) {
+               throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+               throw (Error) e.getCause();
+            }
+            throw e;
+         }
+      }
+
+      try {
+         CacheEntry retVal = fetch(theKey, theType, theId, theCached);
+         future.complete(retVal);
+         return retVal;
+      } catch (RuntimeException | Error e) {
+         synchronized (myCache) {
+            myCache.remove(theKey);
+         }
+         // Complete the future whatever went wrong, so that threads waiting for it don't wait forever
+         future.completeExceptionally(e);
+         throw e;
+      } finally {
+         myInFlight.remove(theKey, future);
+      }
+   }
+
+   private <T extends IBaseResource> CacheEntry fetch(String theKey, Class<T> theType, String theId, CacheEntry theCached) {
+      T resource;
+      String cachedVersion = theCached != null ? theCached.myResource.getIdElement().getVersionIdPart() : null;
+      if (cachedVersion != null) {
+         // Sends If-None-Match, and returns the cached instance if the server replies 304
+         @SuppressWarnings("unchecked")
+         T cachedResource = (T) theCached.myResource;
+         resource = myClient
+            .read()
+            .resource(theType)
+            .withId(theId)
+            .ifVersionMatches(cachedVersion)
+            .returnResource(cachedResource)
+            .execute();
+      } else {
+         resource = myClient
+            .read()
+            .resource(theType)
+            .withId(theId)
+            .execute();
+      }
+
+      if (theCached != null && resource == theCached.myResource) {
+         myNotModified.incrementAndGet();
+      } else {
+         myFetches.incrementAndGet();
+      }
+
+      CacheEntry retVal = new CacheEntry(resource, System.currentTimeMillis());
+      synchronized (myCache) {
+         myCache.put(theKey, retVal);
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns the number of reads served from memory without contacting the server
+    */
+   public long getHitCount() {
+      return myHits.get();
+   }
+
+   /**
+    * Returns the number of reads which returned a stale entry while it was revalidated in the background
+    */
+   public long getStaleHitCount() {
+      return myStaleHits.get();
+   }
+
+   /**
+    * Returns the number of revalidations which the server answered with 304 Not Modified
+    */
+   public long getNotModifiedCount() {
+      return myNotModified.get();
+   }
+
+   /**
+    * Returns the number of times a resource body was downloaded and parsed
+    */
+   public long getFetchCount() {
+      return myFetches.get();
+   }
+
+   /**
+    * A bounded pool of daemon threads, which are let go while the cache is idle
+    */
+   private static Executor newRevalidationExecutor() {
+      ThreadPoolExecutor retVal = new ThreadPoolExecutor(
+         DEFAULT_REVALIDATION_THREADS,
+         DEFAULT_REVALIDATION_THREADS,
+         60, TimeUnit.SECONDS,
+         new LinkedBlockingQueue<>(DEFAULT_REVALIDATION_QUEUE_SIZE),
+         theRunnable -> {
+            Thread thread = new Thread(theRunnable, "cache-revalidate");
+            thread.setDaemon(true);
+            return thread;
+         },
+         new ThreadPoolExecutor.DiscardPolicy());
+      retVal.allowCoreThreadTimeOut(true);
+      return retVal;
+   }
+
+   private static class CacheEntry {
+      private final IBaseResource myResource;
+      private final long myValidatedAt;
+
+      private CacheEntry(IBaseResource theResource, long theValidatedAt) {
+         myResource = theResource;
+         myValidatedAt = theValidatedAt;
+      }
+   }
+
+}
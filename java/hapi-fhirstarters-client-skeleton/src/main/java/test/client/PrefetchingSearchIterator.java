@@ -0,0 +1,184 @@
+package test.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.BundleUtil;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over every resource in every page of a search result, loading the
+ * following pages in the background while the current one is being consumed.
+ * <p>
+ * Without prefetching, each page costs a full round trip on top of the time
+ * taken to process the previous page. With it, the next page is normally
+ * already available by the time the current one has been processed.
+ * </p>
+ * <p>
+ * At most <code>theLookahead</code> pages are held ahead of the consumer. When
+ * that many are waiting the background loader stops until the consumer catches
+ * up, so a slow consumer never causes the whole result set to be held in memory.
+ * Each Bundle is discarded as soon as its resources have been extracted, and each
+ * resource is released as soon as it has been returned.
+ * </p>
+ * <p>
+ * Instances must be {@link #close() closed} if they are not read to the end, in
+ * order to stop the background loader. The iterator itself is not thread safe.
+ * </p>
+ */
+public class PrefetchingSearchIterator implements Iterator<IBaseResource>, AutoCloseable {
+
+   private final FhirContext myCtx;
+   private final IGenericClient myClient;
+   private final Class<? extends IBaseBundle> myBundleType;
+   private final BlockingQueue<Page> myPages;
+   private final ArrayDeque<IBaseResource> myCurrent = new ArrayDeque<>();
+   private final Thread myLoader;
+   private volatile boolean myClosed;
+   private boolean myFinished;
+
+   /**
+    * Constructor
+    *
+    * @param theClient    The client used to load subsequent pages
+    * @param theFirstPage The first page of results, as returned by <code>client.search()...execute()</code>
+    * @param theLookahead The maximum number of pages to load ahead of the consumer (must be at least 1)
+    */
+   public PrefetchingSearchIterator(IGenericClient theClient, IBaseBundle theFirstPage, int theLookahead) {
+      if (theLookahead < 1) {
+         throw new IllegalArgumentException("Lookahead must be at least 1");
+      }
+      myClient = theClient;
+      myCtx = theClient.getFhirContext();
+      myBundleType = theFirstPage.getClass();
+      myPages = new ArrayBlockingQueue<>(theLookahead);
+
+      myCurrent.addAll(BundleUtil.toListOfResources(myCtx, theFirstPage));
+      String nextUrl = BundleUtil.getLinkUrlOfType(myCtx, theFirstPage, IBaseBundle.LINK_NEXT);
+      if (nextUrl == null) {
+         myFinished = true;
+         myLoader = null;
+      } else {
+         myLoader = new Thread(() -> loadPages(nextUrl), "search-prefetch");
+         myLoader.setDaemon(true);
+         myLoader.start();
+      }
+   }
+
+   /**
+    * Returns a sequential stream over every resource in the search results. Closing
+    * the stream stops the background loader.
+    */
+   public static Stream<IBaseResource> stream(IGenericClient theClient, IBaseBundle theFirstPage, int theLookahead) {
+      PrefetchingSearchIterator iterator = new PrefetchingSearchIterator(theClient, theFirstPage, theLookahead);
+      Spliterator<IBaseResource> spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL);
+      return StreamSupport.stream(spliterator, false).onClose(iterator::close);
+   }
+
+   /**
+    * Runs on the background thread, following "next" links until there are none left
+    */
+   private void loadPages(String theFirstUrl) {
+      String nextUrl = theFirstUrl;
+      try {
+         while (nextUrl != null && !myClosed) {
+            IBaseBundle bundle = myClient
+               .loadPage()
+               .byUrl(nextUrl)
+               .andReturnBundle(myBundleType)
+               .execute();
+            List<IBaseResource> resources = BundleUtil.toListOfResources(myCtx, bundle);
+            nextUrl = BundleUtil.getLinkUrlOfType(myCtx, bundle, IBaseBundle.LINK_NEXT);
+
+            // Blocks while the consumer is "lookahead" pages behind
+            myPages.put(new Page(resources, null, nextUrl == null));
+         }
+      } catch (InterruptedException e) {
+         // Closed by the consumer
+      } catch (Throwable e) {
+         // Anything else, including an Error, is handed to the consumer, which would otherwise wait forever
+         try {
+            myPages.put(new Page(null, e, true));
+         } catch (InterruptedException e2) {
+            // Closed by the consumer
+         }
+      }
+   }
+
+   @Override
+   public boolean hasNext() {
+      while (myCurrent.isEmpty()) {
+         if (myFinished || myClosed) {
+            return false;
+         }
+
+         Page page;
+         try {
+            page = myPages.take();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Interrupted while waiting for the next page of results", e);
+         }
+
+         if (page.myError != null) {
+            myFinished = true;
+            if (page.myError instanceof RuntimeException) {
+               throw (RuntimeException) page.myError;
+            }
+            if (page.myError instanceof Error) {
+               throw (Error) page.myError;
+            }
+            throw new IllegalStateException("Failed to load the next page of results", page.myError);
+         }
+         myCurrent.addAll(page.myResources);
+         myFinished = page.myLast;
+      }
+      return true;
+   }
+
+   @Override
+   public IBaseResource next() {
+      if (!hasNext()) {
+         throw new NoSuchElementException();
+      }
+      return myCurrent.poll();
+   }
+
+   /**
+    * Stops loading further pages and discards any which have already been loaded
+    */
+   @Override
+   public void close() {
+      myClosed = true;
+      myCurrent.clear();
+      if (myLoader != null) {
+         myLoader.interrupt();
+      }
+      myPages.clear();
+   }
+
+   private static class Page {
+      private final List<IBaseResource> myResources;
+      private final Throwable myError;
+      private final boolean myLast;
+
+      private Page(List<IBaseResource> theResources, Throwable theError, boolean theLast) {
+         myResources = theResources;
+         myError = theError;
+         myLast = theLast;
+      }
+   }
+
+}
@@ -0,0 +1,55 @@
+package ca.uhn.fhir.example;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.example.stream.StreamedEntry;
+import ca.uhn.fhir.example.stream.StreamingBundleReader;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Patient;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+public class Example36_StreamLargeBundle {
+
+   public static void main(String[] theArgs) throws IOException {
+
+      // Create a context
+      FhirContext ctx = FhirContext.forDstu3();
+
+      // Write a searchset Bundle with lots of entries to a file
+      Bundle bundle = new Bundle();
+      bundle.setType(Bundle.BundleType.SEARCHSET);
+      bundle.setTotal(10000);
+      for (int i = 0; i < 10000; i++) {
+         Patient pat = new Patient();
+         pat.setId("Patient/" + i);
+         pat.addName().setFamily("Simpson").addGiven("Homer " + i);
+         bundle.addEntry().setFullUrl("http://example.com/Patient/" + i).setResource(pat);
+      }
+      File file = File.createTempFile("bundle", ".json");
+      file.deleteOnExit();
+      try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+         ctx.newJsonParser().encodeResourceToWriter(bundle, writer);
+      }
+
+      // Read it back one entry at a time. Only the current entry is held in memory.
+      try (StreamingBundleReader reader = StreamingBundleReader.open(ctx, new FileInputStream(file))) {
+
+         // Elements before the entries are available straight away
+         Bundle metadata = (Bundle) reader.getBundleMetadata();
+         System.out.println("Bundle type " + metadata.getType() + " with " + metadata.getTotal() + " entries");
+
+         int count = 0;
+         while (reader.hasNext()) {
+            StreamedEntry entry = reader.next();
+            Patient pat = (Patient) entry.getResource();
+            if (count++ % 1000 == 0) {
+               System.out.println(entry.getFullUrl() + " " + pat.getNameFirstRep().getGivenAsSingleString());
+            }
+         }
+         System.out.println("Read " + count + " entries");
+      }
+
+   }
+
+}
@@ -0,0 +1,61 @@
+package ca.uhn.fhir.example;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.example.stream.NdJsonReader;
+import ca.uhn.fhir.example.stream.NdJsonWriter;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class Example37_ParallelNdJson {
+
+   public static void main(String[] theArgs) throws IOException {
+
+      // Create a context
+      FhirContext ctx = FhirContext.forDstu3();
+
+      // Write a Bulk Data style NDJSON file, encoding on all cores
+      int count = theArgs.length > 0 ? Integer.parseInt(theArgs[0]) : 200000;
+      Path file = Files.createTempFile("Patient", ".ndjson");
+      file.toFile().deleteOnExit();
+      try (NdJsonWriter writer = new NdJsonWriter(ctx, file)) {
+         Stream<Patient> patients = IntStream.range(0, count).mapToObj(i -> {
+            Patient pat = new Patient();
+            pat.setId("Patient/" + i);
+            pat.addIdentifier().setSystem("http://acme.org/MRNs").setValue(Integer.toString(i));
+            pat.addName().setFamily("Simpson").addGiven("Homer").addGiven("J");
+            pat.setGender(i % 2 == 0 ? AdministrativeGender.MALE : AdministrativeGender.FEMALE);
+            return pat;
+         });
+         writer.write(patients);
+      }
+      long size = Files.size(file);
+      System.out.println("Wrote " + count + " resources (" + size / (1024 * 1024) + "MB)");
+
+      // Read it back with an increasing number of threads
+      int cores = Runtime.getRuntime().availableProcessors();
+      for (int threads = 1; threads <= cores; threads *= 2) {
+         ForkJoinPool pool = new ForkJoinPool(threads);
+         NdJsonReader reader = new NdJsonReader(ctx, pool, NdJsonReader.DEFAULT_CHUNK_SIZE);
+
+         long start = System.nanoTime();
+         long read;
+         try (Stream<IBaseResource> resources = reader.read(file, false)) {
+            read = resources.count();
+         }
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.println(String.format("%2d threads: %d resources in %.2fs (%.1f MB/s)", threads, read, seconds, size / seconds / (1024 * 1024)));
+
+         pool.shutdown();
+      }
+
+   }
+
+}
@@ -0,0 +1,41 @@
+package ca.uhn.fhir.example;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.example.stream.ParserPool;
+import ca.uhn.fhir.parser.LenientErrorHandler;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.dstu3.model.Patient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class Example38_ParserPool {
+
+   public static void main(String[] theArgs) throws IOException {
+
+      // Create a context
+      FhirContext ctx = FhirContext.forDstu3();
+
+      // Create a pool once, and say how every parser in it should be configured
+      ParserPool pool = new ParserPool(ctx, EncodingEnum.JSON, parser -> {
+         parser.setPrettyPrint(true);
+         parser.setParserErrorHandler(new LenientErrorHandler());
+      });
+
+      Patient pat = new Patient();
+      pat.addName().setFamily("Simpson").addGiven("Homer").addGiven("J");
+      pat.addIdentifier().setSystem("http://acme.org/MRNs").setValue("7000135");
+
+      // Encode straight to a stream (e.g. a servlet response) without building a String
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      pool.encode(pat, output);
+      System.out.println(output.toString("UTF-8"));
+
+      // Each thread reuses its own parser, so this is safe from any thread
+      Patient parsed = pool.parse(Patient.class, new ByteArrayInputStream(output.toByteArray()));
+      System.out.println(parsed.getNameFirstRep().getFamily());
+
+   }
+
+}
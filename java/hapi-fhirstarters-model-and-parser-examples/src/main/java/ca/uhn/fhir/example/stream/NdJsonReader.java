@@ -0,0 +1,282 @@
+package ca.uhn.fhir.example.stream;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads NDJSON (newline delimited JSON, as used by FHIR Bulk Data) files using
+ * several threads.
+ * <p>
+ * The file is split into chunks of roughly <code>theChunkSize</code> bytes,
+ * each ending on a newline. Each chunk is memory-mapped and its lines are parsed
+ * by a task on a fork-join pool, using the {@link ParserPool} parser belonging
+ * to the thread running the task. At most two chunks per thread of the pool are
+ * read ahead of the consumer, so memory use does not depend on the size of the
+ * file.
+ * </p>
+ * <pre>
+ * try (Stream&lt;IBaseResource&gt; resources = new NdJsonReader(ctx).read(path, true)) {
+ *    resources.forEach(...);
+ * }
+ * </pre>
+ * <p>
+ * Blank lines are skipped. The returned stream must be closed in order to
+ * release the file.
+ * </p>
+ */
+public class NdJsonReader {
+
+   /**
+    * The default chunk size, 8MB
+    */
+   public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+   private final ForkJoinPool myPool;
+   private final int myChunkSize;
+   private final ParserPool myParsers;
+   private final ThreadLocal<byte[]> myLineBuffers = ThreadLocal.withInitial(() -> new byte[8192]);
+
+   /**
+    * Constructor which parses on the common fork-join pool
+    */
+   public NdJsonReader(FhirContext theCtx) {
+      this(theCtx, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param theCtx       The context used to parse
+    * @param thePool      The pool which parsing tasks run on
+    * @param theChunkSize The number of bytes parsed by each task (chunks are extended to the end of the line)
+    */
+   public NdJsonReader(FhirContext theCtx, ForkJoinPool thePool, int theChunkSize) {
+      if (theChunkSize < 1) {
+         throw new IllegalArgumentException("Chunk size must be at least 1");
+      }
+      myPool = thePool;
+      myChunkSize = theChunkSize;
+      myParsers = new ParserPool(theCtx, EncodingEnum.JSON);
+   }
+
+   /**
+    * Reads every resource in a file
+    *
+    * @param theFile    The NDJSON file
+    * @param theOrdered If true, resources are returned in the order they appear in the file. If false,
+    *                   each chunk's resources are returned as soon as the chunk has been parsed, which
+    *                   avoids waiting for a slow chunk.
+    */
+   public Stream<IBaseResource> read(Path theFile, boolean theOrdered) throws IOException {
+      FileChannel channel = FileChannel.open(theFile, StandardOpenOption.READ);
+      List<Chunk> chunks;
+      try {
+         chunks = split(channel);
+      } catch (IOException | RuntimeException e) {
+         channel.close();
+         throw e;
+      }
+
+      ChunkIterator iterator = new ChunkIterator(channel, chunks, theOrdered);
+      Spliterator<List<IBaseResource>> spliterator = Spliterators.spliteratorUnknownSize(iterator, theOrdered ? Spliterator.ORDERED : 0);
+      return StreamSupport
+         .stream(spliterator, false)
+         .onClose(iterator::close)
+         .flatMap(List::stream);
+   }
+
+   /**
+    * Works out where each chunk starts and ends, so that every chunk ends with a complete line
+    */
+   private List<Chunk> split(FileChannel theChannel) throws IOException {
+      List<Chunk> retVal = new ArrayList<>();
+      long size = theChannel.size();
+      long start = 0;
+      while (start < size) {
+         long end = Math.min(size, start + myChunkSize);
+         if (end < size) {
+            end = nextLineStart(theChannel, end, size);
+         }
+         retVal.add(new Chunk(start, end));
+         start = end;
+      }
+      return retVal;
+   }
+
+   private static long nextLineStart(FileChannel theChannel, long thePosition, long theSize) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+      long position = thePosition;
+      while (position < theSize) {
+         buffer.clear();
+         int read = theChannel.read(buffer, position);
+         if (read <= 0) {
+            break;
+         }
+         for (int i = 0; i < read; i++) {
+            if (buffer.get(i) == '\n') {
+               return position + i + 1;
+            }
+         }
+         position += read;
+      }
+      return theSize;
+   }
+
+   /**
+    * Runs on a pool thread, and parses every line of a chunk
+    */
+   private List<IBaseResource> parseChunk(FileChannel theChannel, Chunk theChunk) {
+      MappedByteBuffer buffer;
+      try {
+         buffer = theChannel.map(FileChannel.MapMode.READ_ONLY, theChunk.myStart, theChunk.myEnd - theChunk.myStart);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+
+      IParser parser = myParsers.get();
+      List<IBaseResource> retVal = new ArrayList<>();
+      int lineStart = 0;
+      int limit = buffer.limit();
+      for (int i = 0; i <= limit; i++) {
+         if (i == limit || buffer.get(i) == '\n') {
+            int lineEnd = i;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+               lineEnd--;
+            }
+            if (lineEnd > lineStart) {
+               String line = decode(buffer, lineStart, lineEnd);
+               try {
+                  retVal.add(parser.parseResource(line));
+               } catch (DataFormatException e) {
+                  throw new DataFormatException("Failed to parse line at byte offset " + (theChunk.myStart + lineStart) + ": " + e.getMessage(), e);
+               }
+            }
+            lineStart = i + 1;
+         }
+      }
+      return retVal;
+   }
+
+   private String decode(ByteBuffer theBuffer, int theStart, int theEnd) {
+      int length = theEnd - theStart;
+      byte[] bytes = myLineBuffers.get();
+      if (bytes.length < length) {
+         bytes = new byte[Math.max(length, bytes.length * 2)];
+         myLineBuffers.set(bytes);
+      }
+      ByteBuffer line = theBuffer.duplicate();
+      line.position(theStart);
+      line.get(bytes, 0, length);
+      return new String(bytes, 0, length, StandardCharsets.UTF_8);
+   }
+
+   private static class Chunk {
+      private final long myStart;
+      private final long myEnd;
+
+      private Chunk(long theStart, long theEnd) {
+         myStart = theStart;
+         myEnd = theEnd;
+      }
+   }
+
+   /**
+    * Submits chunks to the pool, keeping a limited number in flight, and
+    * returns their results either in order or as they complete
+    */
+   private class ChunkIterator implements Iterator<List<IBaseResource>> {
+
+      private final FileChannel myChannel;
+      private final Iterator<Chunk> myChunks;
+      private final boolean myOrdered;
+      private final int myWindow;
+      private final Deque<CompletableFuture<List<IBaseResource>>> myInFlight = new ArrayDeque<>();
+      private final BlockingQueue<CompletableFuture<List<IBaseResource>>> myCompleted = new LinkedBlockingQueue<>();
+
+      private ChunkIterator(FileChannel theChannel, List<Chunk> theChunks, boolean theOrdered) {
+         myChannel = theChannel;
+         myChunks = theChunks.iterator();
+         myOrdered = theOrdered;
+         myWindow = Math.max(2, myPool.getParallelism() * 2);
+         fill();
+      }
+
+      private void fill() {
+         while (myInFlight.size() < myWindow && myChunks.hasNext()) {
+            Chunk chunk = myChunks.next();
+            CompletableFuture<List<IBaseResource>> future = CompletableFuture.supplyAsync(() -> parseChunk(myChannel, chunk), myPool);
+            if (!myOrdered) {
+               future.whenComplete((theResult, theError) -> myCompleted.add(future));
+            }
+            myInFlight.add(future);
+         }
+      }
+
+      @Override
+      public boolean hasNext() {
+         return !myInFlight.isEmpty();
+      }
+
+      @Override
+      public List<IBaseResource> next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+
+         CompletableFuture<List<IBaseResource>> future;
+         if (myOrdered) {
+            future = myInFlight.poll();
+         } else {
+            try {
+               future = myCompleted.take();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new IllegalStateException("Interrupted while reading NDJSON", e);
+            }
+            myInFlight.remove(future);
+         }
+
+         List<IBaseResource> retVal;
+         try {
+            retVal = future.join();
+         } catch (CompletionException e) {
+            close();
+            if (e.getCause() instanceof RuntimeException) {
+               throw (RuntimeException) e.getCause();
+            }
+            throw e;
+         }
+         fill();
+         return retVal;
+      }
+
+      private void close() {
+         for (CompletableFuture<List<IBaseResource>> next : myInFlight) {
+            next.cancel(false);
+         }
+         myInFlight.clear();
+         try {
+            myChannel.close();
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      }
+   }
+
+}
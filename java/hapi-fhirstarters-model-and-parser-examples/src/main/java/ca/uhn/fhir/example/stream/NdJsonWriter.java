@@ -0,0 +1,144 @@
+package ca.uhn.fhir.example.stream;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * Writes resources to an NDJSON (newline delimited JSON) file using several
+ * threads.
+ * <p>
+ * Resources are collected into batches, and each batch is encoded by a task on
+ * a fork-join pool, using the {@link ParserPool} parser belonging to the thread
+ * running the task. The encoded batches are written to the file in the order
+ * the resources were supplied, by the calling thread, through a single channel.
+ * At most two batches per thread of the pool are held in memory at once.
+ * </p>
+ */
+public class NdJsonWriter implements AutoCloseable {
+
+   /**
+    * The default number of resources encoded by each task
+    */
+   public static final int DEFAULT_BATCH_SIZE = 500;
+
+   private final FileChannel myChannel;
+   private final ForkJoinPool myPool;
+   private final int myBatchSize;
+   private final ParserPool myParsers;
+
+   /**
+    * Constructor which creates (or replaces) a file and encodes on the common fork-join pool
+    */
+   public NdJsonWriter(FhirContext theCtx, Path theFile) throws IOException {
+      this(theCtx, theFile, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE);
+   }
+
+   /**
+    * Constructor which creates (or replaces) a file
+    *
+    * @param theCtx       The context used to encode
+    * @param theFile      The file to write
+    * @param thePool      The pool which encoding tasks run on
+    * @param theBatchSize The number of resources encoded by each task
+    */
+   public NdJsonWriter(FhirContext theCtx, Path theFile, ForkJoinPool thePool, int theBatchSize) throws IOException {
+      if (theBatchSize < 1) {
+         throw new IllegalArgumentException("Batch size must be at least 1");
+      }
+      myPool = thePool;
+      myBatchSize = theBatchSize;
+      myParsers = new ParserPool(theCtx, EncodingEnum.JSON, theParser -> theParser.setPrettyPrint(false));
+      myChannel = FileChannel.open(theFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+   }
+
+   /**
+    * Writes every resource in a stream, returning once they have all been written
+    *
+    * @return The number of resources written
+    */
+   public long write(Stream<? extends IBaseResource> theResources) throws IOException {
+      return write(theResources.iterator());
+   }
+
+   /**
+    * Writes every resource supplied by an iterator, returning once they have all been written
+    *
+    * @return The number of resources written
+    */
+   public long write(Iterator<? extends IBaseResource> theResources) throws IOException {
+      int window = Math.max(2, myPool.getParallelism() * 2);
+      Deque<CompletableFuture<ByteBuffer>> inFlight = new ArrayDeque<>();
+      long retVal = 0;
+
+      try {
+         while (theResources.hasNext() || !inFlight.isEmpty()) {
+            while (inFlight.size() < window && theResources.hasNext()) {
+               List<IBaseResource> batch = new ArrayList<>(myBatchSize);
+               while (batch.size() < myBatchSize && theResources.hasNext()) {
+                  batch.add(theResources.next());
+               }
+               retVal += batch.size();
+               inFlight.add(CompletableFuture.supplyAsync(() -> encode(batch), myPool));
+            }
+
+            ByteBuffer encoded = inFlight.poll().join();
+            while (encoded.hasRemaining()) {
+               myChannel.write(encoded);
+            }
+         }
+      } catch (CompletionException e) {
+         for (CompletableFuture<ByteBuffer> next : inFlight) {
+            next.cancel(false);
+         }
+         if (e.getCause() instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) e.getCause()).getCause();
+         }
+         if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+         }
+         throw e;
+      }
+
+      return retVal;
+   }
+
+   /**
+    * Runs on a pool thread, and encodes a batch of resources as NDJSON lines
+    */
+   private ByteBuffer encode(List<IBaseResource> theBatch) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(theBatch.size() * 1024);
+      try {
+         for (IBaseResource next : theBatch) {
+            myParsers.encode(next, bytes);
+            bytes.write('\n');
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      return ByteBuffer.wrap(bytes.toByteArray());
+   }
+
+   @Override
+   public void close() throws IOException {
+      myChannel.close();
+   }
+
+}
@@ -0,0 +1,108 @@
+package ca.uhn.fhir.example.stream;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.function.Consumer;
+
+/**
+ * Hands out a reusable, pre-configured parser to each thread, and encodes
+ * resources straight to an <code>OutputStream</code> without building a String.
+ * <p>
+ * A parser is cheap to create, but it is not thread safe, so code which
+ * encodes or parses from several threads usually calls
+ * <code>ctx.newJsonParser()</code> every time and configures it again. Every
+ * thread using a pool instead gets its own parser the first time it asks, set
+ * up by the configurer given to the constructor (e.g. pretty printing and the
+ * error handler), and gets the same instance back from then on.
+ * </p>
+ * <p>
+ * <code>encodeResourceToString</code> builds the whole document as a String,
+ * which then has to be copied again to be converted to bytes and written out.
+ * {@link #encode(IBaseResource, OutputStream)} writes through a UTF-8 writer
+ * belonging to the thread, whose char and byte buffers are reused between
+ * calls, so the only garbage is that created by the parser itself.
+ * </p>
+ * <p>
+ * Parsers obtained from {@link #get()} must not be reconfigured, as the
+ * change would affect every later user on that thread. The pool holds one
+ * parser and one set of buffers for each thread which has used it, for as long
+ * as the pool is reachable.
+ * </p>
+ */
+public class ParserPool {
+
+   private final ThreadLocal<IParser> myParsers;
+   private final ThreadLocal<PooledUtf8Writer> myWriters = ThreadLocal.withInitial(PooledUtf8Writer::new);
+
+   /**
+    * Constructor for a pool of parsers with the default configuration
+    */
+   public ParserPool(FhirContext theCtx, EncodingEnum theEncoding) {
+      this(theCtx, theEncoding, theParser -> {
+      });
+   }
+
+   /**
+    * Constructor
+    *
+    * @param theCtx        The context used to create parsers
+    * @param theEncoding   The encoding of the parsers
+    * @param theConfigurer Called once for each new parser, e.g. <code>p -&gt; p.setPrettyPrint(true)</code>
+    */
+   public ParserPool(FhirContext theCtx, EncodingEnum theEncoding, Consumer<IParser> theConfigurer) {
+      myParsers = ThreadLocal.withInitial(() -> {
+         IParser retVal = theEncoding.newParser(theCtx);
+         theConfigurer.accept(retVal);
+         return retVal;
+      });
+   }
+
+   /**
+    * Returns the calling thread's parser
+    */
+   public IParser get() {
+      return myParsers.get();
+   }
+
+   /**
+    * Encodes a resource as UTF-8 bytes to a stream. The stream is flushed but not closed.
+    */
+   public void encode(IBaseResource theResource, OutputStream theOutput) throws IOException {
+      PooledUtf8Writer writer = myWriters.get();
+      if (writer.isInUse()) {
+         // Called re-entrantly, e.g. from an OutputStream which itself encodes
+         writer = new PooledUtf8Writer();
+      }
+
+      writer.open(theOutput);
+      try {
+         get().encodeResourceToWriter(theResource, writer);
+         writer.finish();
+      } finally {
+         writer.release();
+      }
+      theOutput.flush();
+   }
+
+   /**
+    * Encodes a resource to a writer
+    */
+   public void encode(IBaseResource theResource, Writer theWriter) throws IOException {
+      get().encodeResourceToWriter(theResource, theWriter);
+   }
+
+   /**
+    * Parses a resource from a stream, detecting the character set as the parser normally does
+    */
+   public <T extends IBaseResource> T parse(Class<T> theType, InputStream theInput) {
+      return get().parseResource(theType, theInput);
+   }
+
+}
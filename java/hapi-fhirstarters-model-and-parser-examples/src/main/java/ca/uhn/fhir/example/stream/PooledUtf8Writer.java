@@ -0,0 +1,140 @@
+package ca.uhn.fhir.example.stream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A UTF-8 writer which can be pointed at a different stream for each use, so
+ * that its buffers and encoder are allocated once instead of once per document.
+ * <p>
+ * Closing the writer finishes the current document but does not close the
+ * stream, because parsers close the writer they are given when they finish.
+ * </p>
+ */
+class PooledUtf8Writer extends Writer {
+
+   private final CharsetEncoder myEncoder = StandardCharsets.UTF_8
+      .newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+   private final CharBuffer myChars = CharBuffer.allocate(4096);
+   private final ByteBuffer myBytes = ByteBuffer.allocate(8192);
+   private OutputStream myOutput;
+   private boolean myFinished;
+
+   boolean isInUse() {
+      return myOutput != null;
+   }
+
+   void open(OutputStream theOutput) {
+      myOutput = theOutput;
+      myFinished = false;
+      myEncoder.reset();
+      myChars.clear();
+      myBytes.clear();
+   }
+
+   void release() {
+      myOutput = null;
+   }
+
+   @Override
+   public void write(int theChar) throws IOException {
+      if (!myChars.hasRemaining()) {
+         encode(false);
+      }
+      myChars.put((char) theChar);
+   }
+
+   @Override
+   public void write(char[] theBuffer, int theOffset, int theLength) throws IOException {
+      int offset = theOffset;
+      int remaining = theLength;
+      while (remaining > 0) {
+         if (!myChars.hasRemaining()) {
+            encode(false);
+         }
+         int count = Math.min(remaining, myChars.remaining());
+         myChars.put(theBuffer, offset, count);
+         offset += count;
+         remaining -= count;
+      }
+   }
+
+   @Override
+   public void write(String theString, int theOffset, int theLength) throws IOException {
+      int offset = theOffset;
+      int end = theOffset + theLength;
+      while (offset < end) {
+         if (!myChars.hasRemaining()) {
+            encode(false);
+         }
+         int count = Math.min(end - offset, myChars.remaining());
+         myChars.put(theString, offset, offset + count);
+         offset += count;
+      }
+   }
+
+   /**
+    * Encodes the buffered characters. Unless this is the end of the input, a
+    * trailing high surrogate is kept back until its pair arrives.
+    */
+   private void encode(boolean theEndOfInput) throws IOException {
+      myChars.flip();
+      while (true) {
+         CoderResult result = myEncoder.encode(myChars, myBytes, theEndOfInput);
+         if (result.isOverflow()) {
+            writeBytes();
+         } else {
+            break;
+         }
+      }
+      myChars.compact();
+   }
+
+   private void writeBytes() throws IOException {
+      if (myBytes.position() > 0) {
+         myOutput.write(myBytes.array(), 0, myBytes.position());
+         myBytes.clear();
+      }
+   }
+
+   @Override
+   public void flush() throws IOException {
+      if (myOutput != null && !myFinished) {
+         encode(false);
+         writeBytes();
+         myOutput.flush();
+      }
+   }
+
+   /**
+    * Writes out everything buffered for the current document
+    */
+   void finish() throws IOException {
+      if (myFinished) {
+         return;
+      }
+      encode(true);
+      while (myEncoder.flush(myBytes).isOverflow()) {
+         writeBytes();
+      }
+      writeBytes();
+      myFinished = true;
+   }
+
+   @Override
+   public void close() throws IOException {
+      if (myOutput != null) {
+         finish();
+      }
+   }
+
+}
@@ -0,0 +1,52 @@
+package ca.uhn.fhir.example.stream;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * A single <code>Bundle.entry</code> read by a {@link StreamingBundleReader}
+ */
+public class StreamedEntry {
+
+   private final int myIndex;
+   private final String myFullUrl;
+   private final IBaseResource myResource;
+   private final IBase myEntry;
+
+   StreamedEntry(int theIndex, String theFullUrl, IBaseResource theResource, IBase theEntry) {
+      myIndex = theIndex;
+      myFullUrl = theFullUrl;
+      myResource = theResource;
+      myEntry = theEntry;
+   }
+
+   /**
+    * Returns the position of this entry in the Bundle, starting at 0
+    */
+   public int getIndex() {
+      return myIndex;
+   }
+
+   /**
+    * Returns <code>entry.fullUrl</code>, or null if the entry has none
+    */
+   public String getFullUrl() {
+      return myFullUrl;
+   }
+
+   /**
+    * Returns <code>entry.resource</code>, or null if the entry has none (e.g. a DELETE in a transaction)
+    */
+   public IBaseResource getResource() {
+      return myResource;
+   }
+
+   /**
+    * Returns the whole entry, including <code>search</code>, <code>request</code> and <code>response</code>.
+    * This is the entry type of the Bundle's FHIR version, e.g. <code>org.hl7.fhir.r4.model.Bundle.BundleEntryComponent</code>.
+    */
+   public IBase getEntry() {
+      return myEntry;
+   }
+
+}
@@ -0,0 +1,424 @@
+package ca.uhn.fhir.example.stream;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.bundle.BundleEntryParts;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+
+import javax.xml.stream.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads a Bundle from a stream one entry at a time.
+ * <p>
+ * <code>IParser#parseResource</code> has to read the whole Bundle and build
+ * every entry before returning, so a very large Bundle needs enough heap to
+ * hold all of it at once. This class instead reads the JSON or XML
+ * incrementally, and only builds the entry currently being returned. Each entry
+ * is parsed with a normal HAPI FHIR parser, so the resources are exactly the
+ * same as those produced by parsing the whole Bundle.
+ * </p>
+ * <pre>
+ * try (StreamingBundleReader reader = StreamingBundleReader.open(ctx, inputStream)) {
+ *    while (reader.hasNext()) {
+ *       IBaseResource resource = reader.next().getResource();
+ *       ...
+ *    }
+ *    IBaseBundle metadata = reader.getBundleMetadata();
+ * }
+ * </pre>
+ * <p>
+ * The Bundle's other elements (<code>type</code>, <code>total</code>,
+ * <code>link</code>, etc.) are available from {@link #getBundleMetadata()}.
+ * Elements which come before the first entry (which is where FHIR puts all of
+ * them except <code>signature</code>) are available as soon as the reader has
+ * been created. Elements after the entries are only available once all of the
+ * entries have been read.
+ * </p>
+ * <p>
+ * Instances are not thread safe, and must be closed in order to close the
+ * underlying stream.
+ * </p>
+ */
+public class StreamingBundleReader implements Iterator<StreamedEntry>, AutoCloseable {
+
+   private static final String FHIR_NS = "http://hl7.org/fhir";
+   private static final JsonFactory ourJsonFactory = new JsonFactory();
+
+   private final FhirContext myCtx;
+   private final IParser myParser;
+   private final BaseRuntimeChildDefinition myEntryChild;
+   private final EntrySource mySource;
+   private StreamedEntry myNext;
+   private int myNextIndex;
+   private boolean myFinished;
+
+   /**
+    * Constructor
+    *
+    * @param theCtx      The context for the FHIR version of the Bundle
+    * @param theInput    The stream to read, which is closed when the reader is closed
+    * @param theEncoding Either {@link EncodingEnum#JSON} or {@link EncodingEnum#XML}
+    * @throws DataFormatException If the stream does not contain a Bundle
+    */
+   public StreamingBundleReader(FhirContext theCtx, InputStream theInput, EncodingEnum theEncoding) throws IOException {
+      myCtx = theCtx;
+      myParser = theEncoding.newParser(theCtx);
+      myEntryChild = theCtx.getResourceDefinition("Bundle").getChildByName("entry");
+
+      switch (theEncoding) {
+         case JSON:
+            mySource = new JsonEntrySource(theInput);
+            break;
+         case XML:
+            mySource = new XmlEntrySource(theInput);
+            break;
+         default:
+            throw new IllegalArgumentException("Unsupported encoding: " + theEncoding);
+      }
+
+      // Reads up to and including the first entry, so that the metadata before it is available
+      hasNext();
+   }
+
+   /**
+    * Creates a reader, working out whether the stream contains JSON or XML
+    * from its first non-whitespace character
+    */
+   public static StreamingBundleReader open(FhirContext theCtx, InputStream theInput) throws IOException {
+      BufferedInputStream input = new BufferedInputStream(theInput);
+      input.mark(1024);
+      int next;
+      int count = 0;
+      do {
+         next = input.read();
+         count++;
+      } while (next != -1 && Character.isWhitespace(next) && count < 1024);
+      input.reset();
+
+      EncodingEnum encoding = next == '<' ? EncodingEnum.XML : EncodingEnum.JSON;
+      return new StreamingBundleReader(theCtx, input, encoding);
+   }
+
+   /**
+    * Reads a whole Bundle, passing each entry to a callback as soon as it has
+    * been read
+    *
+    * @return The Bundle's metadata, as returned by {@link #getBundleMetadata()}
+    */
+   public static IBaseBundle read(FhirContext theCtx, InputStream theInput, Consumer<StreamedEntry> theCallback) throws IOException {
+      try (StreamingBundleReader reader = open(theCtx, theInput)) {
+         reader.forEachRemaining(theCallback);
+         return reader.getBundleMetadata();
+      }
+   }
+
+   /**
+    * Returns a sequential stream of the remaining entries. Closing the stream
+    * closes this reader.
+    */
+   public Stream<StreamedEntry> stream() {
+      Spliterator<StreamedEntry> spliterator = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+      return StreamSupport.stream(spliterator, false).onClose(this::close);
+   }
+
+   /**
+    * Returns a Bundle containing every element read so far except the entries
+    */
+   public IBaseBundle getBundleMetadata() {
+      return (IBaseBundle) myParser.parseResource(mySource.getMetadata());
+   }
+
+   @Override
+   public boolean hasNext() {
+      if (myNext == null && !myFinished) {
+         String entry;
+         try {
+            entry = mySource.nextEntry();
+         } catch (IOException | XMLStreamException e) {
+            throw new DataFormatException("Failed to read Bundle entry " + myNextIndex + ": " + e.getMessage(), e);
+         }
+         if (entry == null) {
+            myFinished = true;
+         } else {
+            myNext = parseEntry(entry);
+         }
+      }
+      return myNext != null;
+   }
+
+   @Override
+   public StreamedEntry next() {
+      if (!hasNext()) {
+         throw new NoSuchElementException();
+      }
+      StreamedEntry retVal = myNext;
+      myNext = null;
+      return retVal;
+   }
+
+   /**
+    * Parses a Bundle wrapped around a single entry, and takes the entry back out
+    */
+   private StreamedEntry parseEntry(String theWrappedEntry) {
+      IBaseBundle bundle = (IBaseBundle) myParser.parseResource(theWrappedEntry);
+      List<BundleEntryParts> parts = BundleUtil.toListOfEntries(myCtx, bundle);
+      IBase entry = myEntryChild.getAccessor().getValues(bundle).get(0);
+      BundleEntryParts entryParts = parts.get(0);
+      return new StreamedEntry(myNextIndex++, entryParts.getFullUrl(), entryParts.getResource(), entry);
+   }
+
+   @Override
+   public void close() {
+      try {
+         mySource.close();
+      } catch (IOException | XMLStreamException e) {
+         throw new DataFormatException("Failed to close Bundle stream", e);
+      }
+   }
+
+   /**
+    * Splits an encoded Bundle into its entries and its other elements
+    */
+   private interface EntrySource {
+
+      /**
+       * Returns the next entry, wrapped in an otherwise empty Bundle, or null if there are no more
+       */
+      String nextEntry() throws IOException, XMLStreamException;
+
+      /**
+       * Returns a Bundle containing all of the non-entry elements read so far
+       */
+      String getMetadata();
+
+      void close() throws IOException, XMLStreamException;
+   }
+
+   private static class JsonEntrySource implements EntrySource {
+
+      private final JsonParser myJson;
+      private final List<String> myMetadata = new ArrayList<>();
+      private boolean myInEntries;
+
+      private JsonEntrySource(InputStream theInput) throws IOException {
+         myJson = ourJsonFactory.createParser(theInput);
+         if (myJson.nextToken() != JsonToken.START_OBJECT) {
+            throw new DataFormatException("Expected a JSON object");
+         }
+      }
+
+      @Override
+      public String nextEntry() throws IOException {
+         while (true) {
+            if (myInEntries) {
+               JsonToken token = myJson.nextToken();
+               if (token == JsonToken.START_OBJECT) {
+                  return "{\"resourceType\":\"Bundle\",\"entry\":[" + copyValue() + "]}";
+               }
+               if (token != JsonToken.END_ARRAY) {
+                  throw new DataFormatException("Expected Bundle.entry to contain objects, found " + token);
+               }
+               myInEntries = false;
+            }
+
+            JsonToken token = myJson.nextToken();
+            if (token == JsonToken.END_OBJECT || token == null) {
+               return null;
+            }
+            String name = myJson.getCurrentName();
+            JsonToken value = myJson.nextToken();
+            if ("entry".equals(name) && value == JsonToken.START_ARRAY) {
+               myInEntries = true;
+            } else {
+               myMetadata.add(quote(name) + ":" + copyValue());
+            }
+         }
+      }
+
+      /**
+       * Copies the value the parser is positioned on, including any children.
+       * Numbers are copied as the text they were written with, since Jackson's
+       * own copy reads them as doubles, which would turn a FHIR decimal such
+       * as <code>1.10</code> into <code>1.1</code> and lose precision.
+       */
+      private String copyValue() throws IOException {
+         StringWriter writer = new StringWriter();
+         try (JsonGenerator generator = ourJsonFactory.createGenerator(writer)) {
+            int depth = 0;
+            JsonToken token = myJson.getCurrentToken();
+            while (true) {
+               if (token == null) {
+                  throw new DataFormatException("Unexpected end of JSON");
+               }
+               switch (token) {
+                  case START_OBJECT:
+                  case START_ARRAY:
+                     depth++;
+                     generator.copyCurrentEvent(myJson);
+                     break;
+                  case END_OBJECT:
+                  case END_ARRAY:
+                     depth--;
+                     generator.copyCurrentEvent(myJson);
+                     break;
+                  case VALUE_NUMBER_INT:
+                  case VALUE_NUMBER_FLOAT:
+                     generator.writeNumber(myJson.getText());
+                     break;
+                  default:
+                     generator.copyCurrentEvent(myJson);
+                     break;
+               }
+               if (depth == 0) {
+                  break;
+               }
+               token = myJson.nextToken();
+            }
+         }
+         return writer.toString();
+      }
+
+      private static String quote(String theName) throws IOException {
+         StringWriter writer = new StringWriter();
+         try (JsonGenerator generator = ourJsonFactory.createGenerator(writer)) {
+            generator.writeString(theName);
+         }
+         return writer.toString();
+      }
+
+      @Override
+      public String getMetadata() {
+         return "{" + String.join(",", myMetadata) + "}";
+      }
+
+      @Override
+      public void close() throws IOException {
+         myJson.close();
+      }
+   }
+
+   private static class XmlEntrySource implements EntrySource {
+
+      private final XMLStreamReader myXml;
+      private final XMLOutputFactory myOutputFactory;
+      private final List<String> myMetadata = new ArrayList<>();
+      private final InputStream myInput;
+
+      private XmlEntrySource(InputStream theInput) throws IOException {
+         myInput = theInput;
+         XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+         // Bundles from untrusted sources must not be able to read local files
+         inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+         inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+         myOutputFactory = XMLOutputFactory.newInstance();
+         myOutputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+
+         try {
+            myXml = inputFactory.createXMLStreamReader(theInput);
+            if (myXml.nextTag() != XMLStreamConstants.START_ELEMENT || !"Bundle".equals(myXml.getLocalName()) || !FHIR_NS.equals(myXml.getNamespaceURI())) {
+               throw new DataFormatException("Expected a FHIR Bundle element");
+            }
+         } catch (XMLStreamException e) {
+            throw new DataFormatException("Failed to read Bundle: " + e.getMessage(), e);
+         }
+      }
+
+      @Override
+      public String nextEntry() throws XMLStreamException {
+         while (true) {
+            int event = myXml.nextTag();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+               // The end of the Bundle
+               return null;
+            }
+            boolean entry = "entry".equals(myXml.getLocalName()) && FHIR_NS.equals(myXml.getNamespaceURI());
+            String element = copyElement();
+            if (entry) {
+               return "<Bundle xmlns=\"" + FHIR_NS + "\">" + element + "</Bundle>";
+            }
+            myMetadata.add(element);
+         }
+      }
+
+      /**
+       * Copies the element the reader is positioned on, including any children,
+       * leaving the reader on its end tag
+       */
+      private String copyElement() throws XMLStreamException {
+         StringWriter buffer = new StringWriter();
+         XMLStreamWriter writer = myOutputFactory.createXMLStreamWriter(buffer);
+         int depth = 0;
+         do {
+            switch (myXml.getEventType()) {
+               case XMLStreamConstants.START_ELEMENT:
+                  depth++;
+                  writer.writeStartElement(prefix(myXml.getPrefix()), myXml.getLocalName(), nullToEmpty(myXml.getNamespaceURI()));
+                  for (int i = 0; i < myXml.getAttributeCount(); i++) {
+                     String namespace = myXml.getAttributeNamespace(i);
+                     if (namespace == null || namespace.isEmpty()) {
+                        writer.writeAttribute(myXml.getAttributeLocalName(i), myXml.getAttributeValue(i));
+                     } else {
+                        writer.writeAttribute(prefix(myXml.getAttributePrefix(i)), namespace, myXml.getAttributeLocalName(i), myXml.getAttributeValue(i));
+                     }
+                  }
+                  break;
+               case XMLStreamConstants.END_ELEMENT:
+                  depth--;
+                  writer.writeEndElement();
+                  break;
+               case XMLStreamConstants.CHARACTERS:
+               case XMLStreamConstants.SPACE:
+                  writer.writeCharacters(myXml.getText());
+                  break;
+               case XMLStreamConstants.CDATA:
+                  writer.writeCData(myXml.getText());
+                  break;
+               default:
+                  // Comments and processing instructions are dropped, as they are by the HAPI FHIR parser
+                  break;
+            }
+         } while (depth > 0 && myXml.next() != XMLStreamConstants.END_DOCUMENT);
+         writer.close();
+         return buffer.toString();
+      }
+
+      private static String prefix(String thePrefix) {
+         return thePrefix != null ? thePrefix : "";
+      }
+
+      private static String nullToEmpty(String theValue) {
+         return theValue != null ? theValue : "";
+      }
+
+      @Override
+      public String getMetadata() {
+         return "<Bundle xmlns=\"" + FHIR_NS + "\">" + String.join("", myMetadata) + "</Bundle>";
+      }
+
+      @Override
+      public void close() throws XMLStreamException, IOException {
+         myXml.close();
+         myInput.close();
+      }
+   }
+
+}
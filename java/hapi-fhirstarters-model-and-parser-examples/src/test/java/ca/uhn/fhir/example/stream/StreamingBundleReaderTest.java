@@ -0,0 +1,71 @@
+package ca.uhn.fhir.example.stream;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingBundleReaderTest {
+
+   private static final FhirContext ourCtx = FhirContext.forR4();
+
+   private static final String ourBundle = "{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"total\":3,\"entry\":["
+      + "{\"fullUrl\":\"Observation/1\",\"resource\":{\"resourceType\":\"Observation\",\"id\":\"1\",\"status\":\"final\",\"valueQuantity\":{\"value\":1.10,\"unit\":\"mg\"}}},"
+      + "{\"fullUrl\":\"Observation/2\",\"resource\":{\"resourceType\":\"Observation\",\"id\":\"2\",\"status\":\"final\",\"valueQuantity\":{\"value\":3.14159265358979323846264}}},"
+      + "{\"fullUrl\":\"Patient/3\",\"resource\":{\"resourceType\":\"Patient\",\"id\":\"3\",\"active\":true,\"multipleBirthInteger\":2,\"name\":[{\"family\":\"Smith\",\"given\":[\"John\",\"Jack\"]}]}}"
+      + "],\"signature\":{\"type\":[{\"code\":\"1.2.840.10065.1.12.1.1\"}],\"when\":\"2020-01-02T03:04:05Z\",\"who\":{\"display\":\"x\"}}}";
+
+   @Test
+   public void testDecimalsKeepTheirPrecision() throws IOException {
+      List<StreamedEntry> entries = readAll(ourBundle);
+      assertEquals("1.10", ((Observation) entries.get(0).getResource()).getValueQuantity().getValueElement().getValueAsString());
+      assertEquals("3.14159265358979323846264", ((Observation) entries.get(1).getResource()).getValueQuantity().getValueElement().getValueAsString());
+   }
+
+   @Test
+   public void testEntriesMatchAFullParse() throws IOException {
+      Bundle full = ourCtx.newJsonParser().parseResource(Bundle.class, ourBundle);
+      List<StreamedEntry> entries = readAll(ourBundle);
+      assertEquals(full.getEntry().size(), entries.size());
+      for (int i = 0; i < entries.size(); i++) {
+         assertEquals(i, entries.get(i).getIndex());
+         assertEquals(full.getEntry().get(i).getFullUrl(), entries.get(i).getFullUrl());
+         assertTrue(full.getEntry().get(i).getResource().equalsDeep((Base) entries.get(i).getResource()));
+         assertEquals(ourCtx.newJsonParser().encodeResourceToString(full.getEntry().get(i).getResource()), ourCtx.newJsonParser().encodeResourceToString(entries.get(i).getResource()));
+      }
+   }
+
+   @Test
+   public void testMetadataBeforeAndAfterTheEntries() throws IOException {
+      try (StreamingBundleReader reader = StreamingBundleReader.open(ourCtx, toStream(ourBundle))) {
+         Bundle before = (Bundle) reader.getBundleMetadata();
+         assertEquals(3, before.getTotal());
+         assertEquals(Bundle.BundleType.COLLECTION, before.getType());
+         reader.forEachRemaining(t -> {
+         });
+         Bundle after = (Bundle) reader.getBundleMetadata();
+         assertEquals("1.2.840.10065.1.12.1.1", after.getSignature().getTypeFirstRep().getCode());
+      }
+   }
+
+   private static List<StreamedEntry> readAll(String theBundle) throws IOException {
+      List<StreamedEntry> retVal = new ArrayList<>();
+      StreamingBundleReader.read(ourCtx, toStream(theBundle), retVal::add);
+      return retVal;
+   }
+
+   private static ByteArrayInputStream toStream(String theBundle) {
+      return new ByteArrayInputStream(theBundle.getBytes(StandardCharsets.UTF_8));
+   }
+
+}
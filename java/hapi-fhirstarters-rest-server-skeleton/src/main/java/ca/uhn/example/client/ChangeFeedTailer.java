@@ -0,0 +1,193 @@
+package ca.uhn.example.client;
+
+import ca.uhn.example.provider.ChangeFeedProvider;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.util.UrlUtil;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Follows the server's <code>$changes</code> feed (see
+ * {@link ChangeFeedProvider}) on a background thread, handing each change to
+ * a listener, so that a cache or a replica of the server's resources stays
+ * current without polling searches.
+ * <p>
+ * The tailer long polls: each request waits on the server until there is a
+ * change, so a change usually reaches the listener within one round trip, and
+ * an idle feed costs one request per wait period. Changes are handed over in
+ * the order the server stored them. If the tailer falls further behind than
+ * the server keeps, or the server restarts, the tailer finds the newest
+ * change, tells the listener to reset, and carries on from there, so a
+ * listener which reloads everything on a reset misses nothing. If a request
+ * fails, it is retried with a growing delay.
+ * </p>
+ * <p>
+ * {@link #getCursor()} can be saved, and passed to {@link #start(String)} to
+ * carry on from the same point later.
+ * </p>
+ */
+public class ChangeFeedTailer implements Closeable {
+
+   private static final Logger ourLog = LoggerFactory.getLogger(ChangeFeedTailer.class);
+
+   private static final long MIN_RETRY_MILLIS = 500;
+   private static final long MAX_RETRY_MILLIS = 30000;
+
+   private final IGenericClient myClient;
+   private final IChangeListener myListener;
+   private final int myBatchSize;
+   private final int myWaitSeconds;
+   private volatile String myCursor;
+   private volatile boolean myStopped;
+   private boolean myResetPending;
+   private Thread myThread;
+
+   /**
+    * Constructor
+    *
+    * @param theClient      The client to read the feed with. Its socket timeout must be longer than the wait.
+    * @param theBatchSize   The most changes to fetch in one request
+    * @param theWaitSeconds How long each request waits on the server for a change
+    * @param theListener    Receives the changes
+    */
+   public ChangeFeedTailer(IGenericClient theClient, int theBatchSize, int theWaitSeconds, IChangeListener theListener) {
+      myClient = theClient;
+      myBatchSize = theBatchSize;
+      myWaitSeconds = theWaitSeconds;
+      myListener = theListener;
+   }
+
+   /**
+    * Starts following the feed
+    *
+    * @param theCursor A cursor from {@link #getCursor()}, or <code>null</code> to start from the newest change
+    */
+   public synchronized void start(String theCursor) {
+      if (myThread != null) {
+         throw new IllegalStateException("Already started");
+      }
+      myCursor = theCursor;
+      myThread = new Thread(this::run, "change-feed-tailer");
+      myThread.setDaemon(true);
+      myThread.start();
+   }
+
+   /**
+    * Returns the cursor after the last change handed to the listener, or
+    * <code>null</code> if no page has been read yet
+    */
+   public String getCursor() {
+      return myCursor;
+   }
+
+   /**
+    * Stops following the feed. A request which is waiting on the server is
+    * abandoned, and no more changes are handed to the listener once this returns.
+    */
+   @Override
+   public void close() {
+      Thread thread;
+      synchronized (this) {
+         myStopped = true;
+         thread = myThread;
+      }
+      if (thread != null) {
+         thread.interrupt();
+      }
+   }
+
+   private void run() {
+      long retryMillis = MIN_RETRY_MILLIS;
+      while (!myStopped) {
+         try {
+            Bundle page = myClient
+               .search()
+               .byUrl(toUrl(myCursor))
+               .returnBundle(Bundle.class)
+               .execute();
+            synchronized (this) {
+               if (myStopped) {
+                  return;
+               }
+               handle(page);
+            }
+            retryMillis = MIN_RETRY_MILLIS;
+         } catch (ResourceGoneException e) {
+            // The listener is told once the newest cursor is known, so nothing is missed after it reloads
+            ourLog.warn("Changes were missed, resetting: {}", e.getMessage());
+            myCursor = null;
+            myResetPending = true;
+         } catch (RuntimeException e) {
+            if (myStopped) {
+               return;
+            }
+            ourLog.warn("Failed to read changes, retrying in {}ms: {}", retryMillis, e.toString());
+            try {
+               Thread.sleep(retryMillis);
+            } catch (InterruptedException e2) {
+               return;
+            }
+            retryMillis = Math.min(MAX_RETRY_MILLIS, retryMillis * 2);
+         }
+      }
+   }
+
+   /**
+    * Hands the changes of a page to the listener, and moves the cursor past them. Called with the lock held.
+    */
+   private void handle(Bundle thePage) {
+      List<BundleEntryComponent> entries = thePage.getEntry();
+      if (!entries.isEmpty()) {
+         myListener.onChanges(entries);
+      }
+      Bundle.BundleLinkComponent next = thePage.getLink(Bundle.LINK_NEXT);
+      if (next == null) {
+         throw new IllegalStateException("The server's change feed page has no next link");
+      }
+      Map<String, String[]> params = UrlUtil.parseQueryString(next.getUrl().substring(next.getUrl().indexOf('?') + 1));
+      myCursor = params.get("cursor")[0];
+      if (myResetPending) {
+         myResetPending = false;
+         myListener.onReset();
+      }
+   }
+
+   private String toUrl(String theCursor) {
+      StringBuilder retVal = new StringBuilder(myClient.getServerBase()).append('/').append(ChangeFeedProvider.OPERATION_NAME);
+      retVal.append("?count=").append(myBatchSize);
+      if (theCursor != null) {
+         retVal.append("&wait=").append(myWaitSeconds);
+         retVal.append("&cursor=").append(UrlUtil.escapeUrlParam(theCursor));
+      }
+      return retVal.toString();
+   }
+
+   /**
+    * Receives the changes read from the feed, on the tailer's thread
+    */
+   public interface IChangeListener {
+
+      /**
+       * Called with the next changes, oldest first. Each entry holds the new
+       * version of a resource, and its request method is <code>POST</code> for
+       * a create and <code>PUT</code> for an update.
+       */
+      void onChanges(List<BundleEntryComponent> theChanges);
+
+      /**
+       * Called when changes have been missed, because the tailer fell too far
+       * behind or the server restarted. Anything held from the server should be
+       * reloaded, or dropped so that it is fetched again.
+       */
+      void onReset();
+
+   }
+
+}
@@ -0,0 +1,187 @@
+package ca.uhn.example.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Computes the JSON Patch which turns one version of a resource into
+ * another, and sends it instead of the whole resource, so an update of a few
+ * elements costs a request of a few hundred bytes however large the resource
+ * is. The two versions are compared as JSON, element by element. Values of a
+ * list are compared by position, so a value inserted at the start of a long
+ * list makes a longer patch than one added at the end.
+ * <p>
+ * A change to an extension, to the narrative, or to contained resources
+ * can't be sent as a patch to the server (see {@link ca.uhn.example.patch.JsonPatch}),
+ * so {@link #send(IGenericClient, IBaseResource, IBaseResource)} sends the
+ * whole resource instead. The <code>id</code> and <code>meta</code> are never
+ * compared, nor is a narrative the server generated, since the server
+ * generates it again. This class is thread safe.
+ * </p>
+ */
+public class ResourceDiff {
+
+   private static final ObjectMapper ourMapper = new ObjectMapper();
+   private static final Set<String> ourIgnoredElements = new HashSet<>(Arrays.asList("resourceType", "id", "meta"));
+   private static final Set<String> ourUnpatchableElements = new HashSet<>(Arrays.asList("extension", "modifierExtension", "text", "contained"));
+
+   private final FhirContext myCtx;
+
+   public ResourceDiff(FhirContext theCtx) {
+      myCtx = theCtx;
+   }
+
+   /**
+    * Returns the JSON Patch which turns one version of a resource into
+    * another, which is an empty array if they are the same
+    *
+    * @return The patch, or <code>null</code> if the changes can't be sent as a patch
+    */
+   public String diff(IBaseResource theOld, IBaseResource theNew) {
+      ArrayNode retVal = ourMapper.createArrayNode();
+      JsonNode oldTree = toTree(theOld);
+      JsonNode newTree = toTree(theNew);
+      if (isGenerated(newTree.get("text")) || (!newTree.has("text") && isGenerated(oldTree.get("text")))) {
+         ((ObjectNode) oldTree).remove("text");
+         ((ObjectNode) newTree).remove("text");
+      }
+      for (Iterator<String> iter = oldTree.fieldNames(); iter.hasNext(); ) {
+         String next = iter.next();
+         if (!ourIgnoredElements.contains(next) && !newTree.has(next) && !addRemove(retVal, "/" + escape(next))) {
+            return null;
+         }
+      }
+      for (Iterator<String> iter = newTree.fieldNames(); iter.hasNext(); ) {
+         String next = iter.next();
+         if (!ourIgnoredElements.contains(next) && !diff(oldTree.get(next), newTree.get(next), "/" + escape(next), retVal)) {
+            return null;
+         }
+      }
+      return retVal.toString();
+   }
+
+   /**
+    * Sends the changes between two versions of a resource to the server, as
+    * a patch of the old version if possible, otherwise as an update
+    *
+    * @param theOld The version read from the server, whose ID is the one updated
+    * @param theNew The changed version
+    * @return The outcome, or <code>null</code> if nothing changed, so nothing was sent
+    */
+   public MethodOutcome send(IGenericClient theClient, IBaseResource theOld, IBaseResource theNew) {
+      String patch = diff(theOld, theNew);
+      if ("[]".equals(patch)) {
+         return null;
+      }
+      if (patch == null) {
+         return theClient.update().resource(theNew).withId(theOld.getIdElement().toUnqualifiedVersionless()).execute();
+      }
+      return theClient.patch().withBody(patch).withId(theOld.getIdElement().toUnqualifiedVersionless()).execute();
+   }
+
+   private JsonNode toTree(IBaseResource theResource) {
+      try {
+         return ourMapper.readTree(myCtx.newJsonParser().encodeResourceToString(theResource));
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   /**
+    * Adds the operations which turn one JSON value into another
+    *
+    * @param theOld The old value, or <code>null</code> if there was none
+    * @return <code>false</code> if the changes can't be sent as a patch
+    */
+   private static boolean diff(JsonNode theOld, JsonNode theNew, String thePath, ArrayNode theOperations) {
+      if (theNew.equals(theOld)) {
+         return true;
+      }
+      if (isUnpatchable(thePath)) {
+         return false;
+      }
+      if (theOld == null) {
+         theOperations.addObject().put("op", "add").put("path", thePath).set("value", theNew);
+         return true;
+      }
+
+      if (theOld.isObject() && theNew.isObject()) {
+         for (Iterator<String> iter = theOld.fieldNames(); iter.hasNext(); ) {
+            String next = iter.next();
+            if (!theNew.has(next) && !addRemove(theOperations, thePath + "/" + escape(next))) {
+               return false;
+            }
+         }
+         for (Iterator<String> iter = theNew.fieldNames(); iter.hasNext(); ) {
+            String next = iter.next();
+            if (!diff(theOld.get(next), theNew.get(next), thePath + "/" + escape(next), theOperations)) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      if (theOld.isArray() && theNew.isArray()) {
+         int common = Math.min(theOld.size(), theNew.size());
+         for (int i = 0; i < common; i++) {
+            if (!diff(theOld.get(i), theNew.get(i), thePath + "/" + i, theOperations)) {
+               return false;
+            }
+         }
+         for (int i = common; i < theNew.size(); i++) {
+            theOperations.addObject().put("op", "add").put("path", thePath + "/-").set("value", theNew.get(i));
+         }
+         // From the end, so the indexes of the values not yet removed stay the same
+         for (int i = theOld.size() - 1; i >= common; i--) {
+            theOperations.addObject().put("op", "remove").put("path", thePath + "/" + i);
+         }
+         return true;
+      }
+
+      ObjectNode replace = theOperations.addObject().put("op", "replace").put("path", thePath);
+      replace.set("value", theNew);
+      return true;
+   }
+
+   private static boolean isGenerated(JsonNode theNarrative) {
+      return theNarrative != null && "generated".equals(theNarrative.path("status").asText());
+   }
+
+   private static boolean addRemove(ArrayNode theOperations, String thePath) {
+      if (isUnpatchable(thePath)) {
+         return false;
+      }
+      theOperations.addObject().put("op", "remove").put("path", thePath);
+      return true;
+   }
+
+   /**
+    * Returns <code>true</code> if a path is within an element which can't be patched
+    */
+   private static boolean isUnpatchable(String thePath) {
+      for (String next : thePath.substring(1).split("/")) {
+         if (next.startsWith("_") || ourUnpatchableElements.contains(next)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static String escape(String theName) {
+      return theName.replace("~", "~0").replace("/", "~1");
+   }
+
+}
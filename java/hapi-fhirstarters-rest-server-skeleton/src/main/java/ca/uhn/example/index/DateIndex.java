@@ -0,0 +1,165 @@
+package ca.uhn.example.index;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sorted index of one date per resource, such as a Patient's birth date.
+ * <p>
+ * A date is held as the range of instants it covers, e.g. the whole of the
+ * day for <code>1970-01-02</code>, as epoch milliseconds. Entries are kept in
+ * a concurrent skip list ordered by the start of the range, so a search walks
+ * only the entries whose start is within the range it asks for, in order.
+ * Since no entry covers more than {@link #getMaxSpan()}, a condition on the
+ * end of a range can be turned into a range of starts too.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class DateIndex {
+
+   private static final Comparator<Entry> ourOrder = Comparator.<Entry>comparingLong(t -> t.myStart).thenComparingLong(t -> t.myId);
+
+   private final ConcurrentSkipListSet<Entry> myEntries = new ConcurrentSkipListSet<>(ourOrder);
+   private final ConcurrentHashMap<Long, Entry> myIdToEntry = new ConcurrentHashMap<>();
+   private final AtomicLong myMaxSpan = new AtomicLong();
+
+   /**
+    * Sets the date of a resource, replacing any it had before
+    *
+    * @param theId    The resource ID
+    * @param theStart The first millisecond of the date
+    * @param theEnd   The last millisecond of the date
+    */
+   public void put(long theId, long theStart, long theEnd) {
+      Entry entry = new Entry(theId, theStart, theEnd);
+      myMaxSpan.accumulateAndGet(theEnd - theStart, Math::max);
+      myIdToEntry.compute(theId, (theKey, theOld) -> {
+         if (theOld != null) {
+            myEntries.remove(theOld);
+         }
+         myEntries.add(entry);
+         return entry;
+      });
+   }
+
+   /**
+    * Removes the date of a resource, e.g. because it no longer has one
+    */
+   public void remove(long theId) {
+      myIdToEntry.computeIfPresent(theId, (theKey, theOld) -> {
+         myEntries.remove(theOld);
+         return null;
+      });
+   }
+
+   /**
+    * Returns the date of a resource, or <code>null</code> if it has none
+    */
+   public Entry get(long theId) {
+      return myIdToEntry.get(theId);
+   }
+
+   /**
+    * Returns the length of the longest date in the index, e.g. about a year if
+    * any date has only a year
+    */
+   public long getMaxSpan() {
+      return myMaxSpan.get();
+   }
+
+   public int size() {
+      return myIdToEntry.size();
+   }
+
+   /**
+    * Returns the entries whose date starts within a range, ordered by start
+    *
+    * @param theFrom       The earliest start, inclusive
+    * @param theTo         The latest start, inclusive
+    * @param theDescending Should the latest dates come first
+    * @param theFilter     Returns <code>true</code> for the entries to keep
+    */
+   public List<Entry> find(long theFrom, long theTo, boolean theDescending, EntryFilter theFilter) {
+      List<Entry> retVal = new ArrayList<>();
+      if (theFrom > theTo) {
+         return retVal;
+      }
+      NavigableSet<Entry> range = getRange(theFrom, theTo);
+      for (Entry next : theDescending ? range.descendingSet() : range) {
+         if (theFilter.test(next.getStart(), next.getEnd())) {
+            retVal.add(next);
+         }
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns the number of entries whose date starts within a range, counting
+    * up to a limit
+    *
+    * @param theFrom  The earliest start, inclusive
+    * @param theTo    The latest start, inclusive
+    * @param theLimit Stop counting once this many are found
+    */
+   public long count(long theFrom, long theTo, long theLimit) {
+      long retVal = 0;
+      if (theFrom > theTo) {
+         return retVal;
+      }
+      for (Iterator<Entry> iter = getRange(theFrom, theTo).iterator(); iter.hasNext() && retVal < theLimit; iter.next()) {
+         retVal++;
+      }
+      return retVal;
+   }
+
+   private NavigableSet<Entry> getRange(long theFrom, long theTo) {
+      return myEntries.subSet(new Entry(Long.MIN_VALUE, theFrom, 0), true, new Entry(Long.MAX_VALUE, theTo, 0), true);
+   }
+
+   /**
+    * Decides which entries a search keeps
+    */
+   public interface EntryFilter {
+
+      boolean test(long theStart, long theEnd);
+
+   }
+
+   /**
+    * The date of one resource
+    */
+   public static class Entry {
+
+      private final long myId;
+      private final long myStart;
+      private final long myEnd;
+
+      Entry(long theId, long theStart, long theEnd) {
+         myId = theId;
+         myStart = theStart;
+         myEnd = theEnd;
+      }
+
+      public long getId() {
+         return myId;
+      }
+
+      public long getStart() {
+         return myStart;
+      }
+
+      public long getEnd() {
+         return myEnd;
+      }
+
+   }
+
+}
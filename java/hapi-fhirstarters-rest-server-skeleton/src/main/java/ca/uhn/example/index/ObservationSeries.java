@@ -0,0 +1,177 @@
+package ca.uhn.example.index;
+
+import java.util.Arrays;
+
+/**
+ * The observations of one code for one subject (e.g. the heart rate of one
+ * patient), held as parallel primitive arrays sorted by effective time: one
+ * for the times, one for the numeric values and one for the observation IDs.
+ * <p>
+ * Compared with a list of Observation objects, this costs 24 bytes per
+ * observation, and a time range is found with two binary searches. The
+ * subject and code are the same for every entry, so they are held once, by
+ * whoever owns the series.
+ * </p>
+ * <p>
+ * This class is thread safe. Readers get copies of the entries they ask for,
+ * so they never see the arrays being changed.
+ * </p>
+ */
+public class ObservationSeries {
+
+   private static final int INITIAL_CAPACITY = 8;
+
+   private long[] myTimes = new long[INITIAL_CAPACITY];
+   private double[] myValues = new double[INITIAL_CAPACITY];
+   private long[] myIds = new long[INITIAL_CAPACITY];
+   private int mySize;
+
+   /**
+    * Adds an observation. Observations usually arrive in time order, in which
+    * case this is an append.
+    *
+    * @param theTime  The effective time, in epoch milliseconds
+    * @param theValue The numeric value, or {@link Double#NaN} if there isn't one
+    * @param theId    The observation ID
+    */
+   public synchronized void add(long theTime, double theValue, long theId) {
+      if (mySize == myTimes.length) {
+         int capacity = mySize + (mySize >> 1);
+         myTimes = Arrays.copyOf(myTimes, capacity);
+         myValues = Arrays.copyOf(myValues, capacity);
+         myIds = Arrays.copyOf(myIds, capacity);
+      }
+
+      int index = indexAfter(theTime);
+      int moved = mySize - index;
+      if (moved > 0) {
+         System.arraycopy(myTimes, index, myTimes, index + 1, moved);
+         System.arraycopy(myValues, index, myValues, index + 1, moved);
+         System.arraycopy(myIds, index, myIds, index + 1, moved);
+      }
+      myTimes[index] = theTime;
+      myValues[index] = theValue;
+      myIds[index] = theId;
+      mySize++;
+   }
+
+   /**
+    * Removes an observation
+    *
+    * @return Returns <code>false</code> if it was not in the series
+    */
+   public synchronized boolean remove(long theTime, long theId) {
+      for (int i = indexOf(theTime); i < mySize && myTimes[i] == theTime; i++) {
+         if (myIds[i] == theId) {
+            int moved = mySize - i - 1;
+            System.arraycopy(myTimes, i + 1, myTimes, i, moved);
+            System.arraycopy(myValues, i + 1, myValues, i, moved);
+            System.arraycopy(myIds, i + 1, myIds, i, moved);
+            mySize--;
+            return true;
+         }
+      }
+      return false;
+   }
+
+   public synchronized int size() {
+      return mySize;
+   }
+
+   /**
+    * Returns the observations whose time is within a range, oldest first
+    *
+    * @param theFrom The earliest time, inclusive
+    * @param theTo   The latest time, inclusive
+    */
+   public synchronized Entries find(long theFrom, long theTo) {
+      if (theFrom > theTo) {
+         return new Entries(new long[0], new double[0], new long[0]);
+      }
+      return copy(indexOf(theFrom), indexAfter(theTo));
+   }
+
+   /**
+    * Returns the most recent observations, oldest first
+    *
+    * @param theCount The maximum number to return
+    */
+   public synchronized Entries last(int theCount) {
+      return copy(Math.max(0, mySize - theCount), mySize);
+   }
+
+   private Entries copy(int theFrom, int theTo) {
+      return new Entries(
+         Arrays.copyOfRange(myTimes, theFrom, theTo),
+         Arrays.copyOfRange(myValues, theFrom, theTo),
+         Arrays.copyOfRange(myIds, theFrom, theTo));
+   }
+
+   /**
+    * Returns the index of the first entry at or after the given time
+    */
+   private int indexOf(long theTime) {
+      int low = 0;
+      int high = mySize;
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (myTimes[mid] < theTime) {
+            low = mid + 1;
+         } else {
+            high = mid;
+         }
+      }
+      return low;
+   }
+
+   /**
+    * Returns the index of the first entry after the given time
+    */
+   private int indexAfter(long theTime) {
+      int low = 0;
+      int high = mySize;
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (myTimes[mid] <= theTime) {
+            low = mid + 1;
+         } else {
+            high = mid;
+         }
+      }
+      return low;
+   }
+
+   /**
+    * A copy of some of the entries of a series, oldest first
+    */
+   public static class Entries {
+
+      private final long[] myTimes;
+      private final double[] myValues;
+      private final long[] myIds;
+
+      Entries(long[] theTimes, double[] theValues, long[] theIds) {
+         myTimes = theTimes;
+         myValues = theValues;
+         myIds = theIds;
+      }
+
+      public int size() {
+         return myIds.length;
+      }
+
+      public long getTime(int theIndex) {
+         return myTimes[theIndex];
+      }
+
+      public double getValue(int theIndex) {
+         return myValues[theIndex];
+      }
+
+      public long getId(int theIndex) {
+         return myIds[theIndex];
+      }
+
+   }
+
+}
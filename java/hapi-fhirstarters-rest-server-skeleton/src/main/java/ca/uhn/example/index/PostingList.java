@@ -0,0 +1,145 @@
+package ca.uhn.example.index;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The sorted IDs of the resources which have one indexed value, such as one
+ * identifier or one family name.
+ * <p>
+ * The IDs are kept in a concurrent skip list so they can be copied out in
+ * order, and the size is counted separately since a skip list has to walk
+ * every entry to count them. The static methods combine sorted ID arrays.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class PostingList {
+
+   private static final long[] EMPTY = new long[0];
+
+   private final ConcurrentSkipListSet<Long> myIds = new ConcurrentSkipListSet<>();
+   private final AtomicInteger mySize = new AtomicInteger();
+
+   public void add(long theId) {
+      if (myIds.add(theId)) {
+         mySize.incrementAndGet();
+      }
+   }
+
+   public void remove(long theId) {
+      if (myIds.remove(theId)) {
+         mySize.decrementAndGet();
+      }
+   }
+
+   public boolean contains(long theId) {
+      return myIds.contains(theId);
+   }
+
+   public int size() {
+      return mySize.get();
+   }
+
+   public boolean isEmpty() {
+      return myIds.isEmpty();
+   }
+
+   /**
+    * Returns the IDs in ascending order
+    */
+   public long[] toArray() {
+      long[] retVal = new long[Math.max(size(), 4)];
+      int count = 0;
+      for (Long next : myIds) {
+         if (count == retVal.length) {
+            retVal = Arrays.copyOf(retVal, count * 2);
+         }
+         retVal[count++] = next;
+      }
+      return count == retVal.length ? retVal : Arrays.copyOf(retVal, count);
+   }
+
+   /**
+    * Returns the IDs in all of some posting lists, in ascending order
+    */
+   public static long[] union(Collection<PostingList> theLists) {
+      long[] retVal = EMPTY;
+      for (PostingList next : theLists) {
+         retVal = union(retVal, next.toArray());
+      }
+      return retVal;
+   }
+
+   /**
+    * Merges two sorted ID arrays
+    */
+   public static long[] union(long[] theA, long[] theB) {
+      if (theA.length == 0) {
+         return theB;
+      }
+      if (theB.length == 0) {
+         return theA;
+      }
+      long[] retVal = new long[theA.length + theB.length];
+      int a = 0;
+      int b = 0;
+      int count = 0;
+      while (a < theA.length && b < theB.length) {
+         if (theA[a] < theB[b]) {
+            retVal[count++] = theA[a++];
+         } else if (theA[a] > theB[b]) {
+            retVal[count++] = theB[b++];
+         } else {
+            retVal[count++] = theA[a++];
+            b++;
+         }
+      }
+      while (a < theA.length) {
+         retVal[count++] = theA[a++];
+      }
+      while (b < theB.length) {
+         retVal[count++] = theB[b++];
+      }
+      return Arrays.copyOf(retVal, count);
+   }
+
+   /**
+    * Returns the IDs in both of two sorted ID arrays. Each ID of the shorter
+    * array is looked for in the longer one by galloping forward from the last
+    * match, so the cost is close to that of the shorter array when one is much
+    * shorter than the other.
+    */
+   public static long[] intersect(long[] theA, long[] theB) {
+      long[] small = theA.length <= theB.length ? theA : theB;
+      long[] large = small == theA ? theB : theA;
+      long[] retVal = new long[small.length];
+      int count = 0;
+      int low = 0;
+      for (long next : small) {
+         // Gallop to find a window of the large array which must hold the ID
+         int step = 1;
+         int high = low;
+         while (high < large.length && large[high] < next) {
+            low = high + 1;
+            high += step;
+            step <<= 1;
+         }
+         int index = Arrays.binarySearch(large, low, Math.min(high + 1, large.length), next);
+         if (index >= 0) {
+            retVal[count++] = next;
+            low = index + 1;
+         } else {
+            low = -index - 1;
+         }
+         if (low >= large.length) {
+            break;
+         }
+      }
+      return Arrays.copyOf(retVal, count);
+   }
+
+}
@@ -0,0 +1,234 @@
+package ca.uhn.example.index;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the references between stored resources, in both directions,
+ * so that <code>_include</code> and <code>_revinclude</code> can find related
+ * resources without scanning the store.
+ * <p>
+ * The references of a resource are found using the reference search parameters
+ * of its type, e.g. <code>Patient:organization</code> follows
+ * <code>Patient.managingOrganization</code>. Only relative references to other
+ * resources on this server (e.g. <code>Organization/1</code>) are indexed.
+ * Resources are identified by their unqualified, versionless ID, e.g.
+ * <code>Patient/123</code>.
+ * </p>
+ * <p>
+ * Resource providers must call {@link #indexReferences(IBaseResource)} each
+ * time they store a new version of a resource. This class is thread safe.
+ * </p>
+ */
+public class ReferenceIndex {
+
+   private final FhirContext myCtx;
+
+   /**
+    * Source ID to search parameter name to target IDs. The value for each source
+    * is replaced, never modified.
+    */
+   private final ConcurrentHashMap<String, Map<String, Set<String>>> mySourceToTargets = new ConcurrentHashMap<>();
+
+   /**
+    * Target ID to "SourceType:param" to source IDs
+    */
+   private final ConcurrentHashMap<String, ConcurrentHashMap<String, Set<String>>> myTargetToSources = new ConcurrentHashMap<>();
+
+   /**
+    * Resource type to the paths of each of its reference search parameters
+    */
+   private final ConcurrentHashMap<String, Map<String, List<String>>> myReferencePaths = new ConcurrentHashMap<>();
+
+   /**
+    * Constructor
+    */
+   public ReferenceIndex(FhirContext theCtx) {
+      myCtx = theCtx;
+   }
+
+   /**
+    * Replaces the indexed references of a resource with the references it
+    * contains now. The resource must have an ID, and the versions of one
+    * resource must be indexed one at a time, as they are stored.
+    */
+   public void indexReferences(IBaseResource theResource) {
+      String resourceType = myCtx.getResourceType(theResource);
+      String sourceId = resourceType + "/" + theResource.getIdElement().getIdPart();
+      Map<String, Set<String>> newTargets = extractReferences(resourceType, theResource);
+      if (newTargets.isEmpty() && !mySourceToTargets.containsKey(sourceId)) {
+         // Nothing to change, and computing an absent entry would lock its bin, which other resources share
+         return;
+      }
+
+      mySourceToTargets.compute(sourceId, (theSourceId, theOldTargets) -> {
+         Map<String, Set<String>> oldTargets = theOldTargets != null ? theOldTargets : Collections.emptyMap();
+         for (Map.Entry<String, Set<String>> next : oldTargets.entrySet()) {
+            Set<String> stillReferenced = newTargets.getOrDefault(next.getKey(), Collections.emptySet());
+            for (String nextTarget : next.getValue()) {
+               if (!stillReferenced.contains(nextTarget)) {
+                  removeSource(nextTarget, resourceType + ":" + next.getKey(), sourceId);
+               }
+            }
+         }
+         for (Map.Entry<String, Set<String>> next : newTargets.entrySet()) {
+            Set<String> previouslyReferenced = oldTargets.getOrDefault(next.getKey(), Collections.emptySet());
+            for (String nextTarget : next.getValue()) {
+               if (!previouslyReferenced.contains(nextTarget)) {
+                  addSource(nextTarget, resourceType + ":" + next.getKey(), sourceId);
+               }
+            }
+         }
+         return newTargets.isEmpty() ? null : newTargets;
+      });
+   }
+
+   /**
+    * Removes the references of a resource which no longer exists, e.g. because
+    * it has been deleted
+    *
+    * @param theSourceId The unqualified, versionless ID, e.g. <code>Patient/123</code>
+    */
+   public void removeReferences(String theSourceId) {
+      String resourceType = theSourceId.substring(0, theSourceId.indexOf('/'));
+      mySourceToTargets.computeIfPresent(theSourceId, (theId, theOldTargets) -> {
+         for (Map.Entry<String, Set<String>> next : theOldTargets.entrySet()) {
+            for (String nextTarget : next.getValue()) {
+               removeSource(nextTarget, resourceType + ":" + next.getKey(), theSourceId);
+            }
+         }
+         return null;
+      });
+   }
+
+   /**
+    * Returns the IDs of the resources a resource refers to through a search
+    * parameter, or through any reference search parameter if the name is
+    * <code>null</code>
+    *
+    * @param theSourceId  The unqualified, versionless ID, e.g. <code>Patient/123</code>
+    * @param theParamName The search parameter name, e.g. <code>organization</code>
+    */
+   public Set<String> getTargets(String theSourceId, String theParamName) {
+      Map<String, Set<String>> targets = mySourceToTargets.get(theSourceId);
+      if (targets == null) {
+         return Collections.emptySet();
+      }
+      if (theParamName != null) {
+         return targets.getOrDefault(theParamName, Collections.emptySet());
+      }
+      Set<String> retVal = new LinkedHashSet<>();
+      targets.values().forEach(retVal::addAll);
+      return retVal;
+   }
+
+   /**
+    * Returns the IDs of the resources which refer to a resource through a search
+    * parameter, or through any reference search parameter if the parameter is
+    * <code>null</code>
+    *
+    * @param theTargetId    The unqualified, versionless ID, e.g. <code>Organization/1</code>
+    * @param theSourceParam The source type and search parameter name, e.g. <code>Patient:organization</code>
+    */
+   public Set<String> getSources(String theTargetId, String theSourceParam) {
+      Map<String, Set<String>> sources = myTargetToSources.get(theTargetId);
+      if (sources == null) {
+         return Collections.emptySet();
+      }
+      if (theSourceParam != null) {
+         return sources.getOrDefault(theSourceParam, Collections.emptySet());
+      }
+      Set<String> retVal = new LinkedHashSet<>();
+      sources.values().forEach(retVal::addAll);
+      return retVal;
+   }
+
+   private void addSource(String theTargetId, String theSourceParam, String theSourceId) {
+      myTargetToSources.compute(theTargetId, (theId, theSources) -> {
+         ConcurrentHashMap<String, Set<String>> retVal = theSources != null ? theSources : new ConcurrentHashMap<>();
+         retVal.computeIfAbsent(theSourceParam, t -> ConcurrentHashMap.newKeySet()).add(theSourceId);
+         return retVal;
+      });
+   }
+
+   private void removeSource(String theTargetId, String theSourceParam, String theSourceId) {
+      myTargetToSources.computeIfPresent(theTargetId, (theId, theSources) -> {
+         theSources.computeIfPresent(theSourceParam, (theParam, theIds) -> {
+            theIds.remove(theSourceId);
+            return theIds.isEmpty() ? null : theIds;
+         });
+         return theSources.isEmpty() ? null : theSources;
+      });
+   }
+
+   private Map<String, Set<String>> extractReferences(String theResourceType, IBaseResource theResource) {
+      FhirTerser terser = myCtx.newTerser();
+      Map<String, Set<String>> retVal = new HashMap<>();
+      for (Map.Entry<String, List<String>> nextParam : getReferencePaths(theResourceType).entrySet()) {
+         for (String nextPath : nextParam.getValue()) {
+            for (IBase nextValue : terser.getValues(theResource, nextPath)) {
+               String targetId = toLocalId(nextValue);
+               if (targetId != null) {
+                  retVal.computeIfAbsent(nextParam.getKey(), t -> new LinkedHashSet<>()).add(targetId);
+               }
+            }
+         }
+      }
+      return retVal;
+   }
+
+   private static String toLocalId(IBase theValue) {
+      if (!(theValue instanceof IBaseReference)) {
+         return null;
+      }
+      IIdType id = ((IBaseReference) theValue).getReferenceElement();
+      if (id == null || id.isEmpty() || id.isLocal() || id.isAbsolute() || !id.hasResourceType() || !id.hasIdPart()) {
+         return null;
+      }
+      return id.getResourceType() + "/" + id.getIdPart();
+   }
+
+   /**
+    * Returns the paths of the reference search parameters of a resource type,
+    * leaving out any which use FHIRPath functions since the terser can't follow
+    * those
+    */
+   private Map<String, List<String>> getReferencePaths(String theResourceType) {
+      return myReferencePaths.computeIfAbsent(theResourceType, theType -> {
+         RuntimeResourceDefinition definition = myCtx.getResourceDefinition(theType);
+         Map<String, List<String>> retVal = new HashMap<>();
+         for (RuntimeSearchParam next : definition.getSearchParams()) {
+            if (next.getParamType() != RestSearchParameterTypeEnum.REFERENCE) {
+               continue;
+            }
+            List<String> paths = new ArrayList<>();
+            for (String nextPath : next.getPathsSplit()) {
+               if (nextPath.startsWith(theType + ".") && !nextPath.contains("(") && !nextPath.contains(" ")) {
+                  paths.add(nextPath);
+               }
+            }
+            if (!paths.isEmpty()) {
+               retVal.put(next.getName(), paths);
+            }
+         }
+         return retVal;
+      });
+   }
+
+}
@@ -0,0 +1,147 @@
+package ca.uhn.example.index;
+
+import ca.uhn.fhir.util.StringUtil;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An index of string values, such as family names, for FHIR string searches.
+ * <p>
+ * A string search matches values which start with the search value, ignoring
+ * case and accents, so values are held normalized (<code>M&uuml;ller</code> as
+ * <code>MULLER</code>) in a sorted map, and a search walks the normalized
+ * values which start with its own. The original values of each resource are
+ * kept too, for <code>:exact</code> and <code>:contains</code> searches.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class StringIndex {
+
+   private final ConcurrentSkipListMap<String, PostingList> myNormalizedToIds = new ConcurrentSkipListMap<>();
+   private final ConcurrentHashMap<Long, Set<String>> myIdToValues = new ConcurrentHashMap<>();
+
+   /**
+    * Sets the values of a resource, replacing any it had before
+    *
+    * @param theId     The resource ID
+    * @param theValues The values, which may be empty
+    */
+   public void put(long theId, Collection<String> theValues) {
+      Set<String> values = new HashSet<>(theValues);
+      myIdToValues.compute(theId, (theKey, theOld) -> {
+         Set<String> oldNormalized = normalizeAll(theOld != null ? theOld : Collections.emptySet());
+         Set<String> newNormalized = normalizeAll(values);
+         // Empty posting lists are left in place, since a skip list can't remove one atomically with respect to another thread adding to it
+         for (String next : oldNormalized) {
+            if (!newNormalized.contains(next)) {
+               PostingList ids = myNormalizedToIds.get(next);
+               if (ids != null) {
+                  ids.remove(theId);
+               }
+            }
+         }
+         for (String next : newNormalized) {
+            if (!oldNormalized.contains(next)) {
+               myNormalizedToIds.computeIfAbsent(next, t -> new PostingList()).add(theId);
+            }
+         }
+         return values.isEmpty() ? null : values;
+      });
+   }
+
+   /**
+    * Removes the values of a resource
+    */
+   public void remove(long theId) {
+      put(theId, Collections.emptySet());
+   }
+
+   /**
+    * Returns the IDs of the resources with a value starting with the given
+    * one, ignoring case and accents, in ascending order
+    */
+   public long[] findStartingWith(String theValue) {
+      return PostingList.union(getStartingWith(normalize(theValue)).values());
+   }
+
+   /**
+    * Returns the IDs of the resources with a value equal to the given one,
+    * ignoring case and accents, in ascending order. This is a superset of the
+    * resources for an <code>:exact</code> search.
+    */
+   public long[] findNormalized(String theValue) {
+      PostingList ids = myNormalizedToIds.get(normalize(theValue));
+      return ids != null ? ids.toArray() : new long[0];
+   }
+
+   /**
+    * Returns the number of resources with a value starting with the given one,
+    * counting up to a limit. A resource with several such values may be
+    * counted more than once.
+    *
+    * @param theValue The value
+    * @param theLimit Stop counting once this many are found
+    */
+   public long countStartingWith(String theValue, long theLimit) {
+      long retVal = 0;
+      for (PostingList next : getStartingWith(normalize(theValue)).values()) {
+         retVal += next.size();
+         if (retVal >= theLimit) {
+            break;
+         }
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns the number of resources with a value equal to the given one,
+    * ignoring case and accents
+    */
+   public int countNormalized(String theValue) {
+      PostingList ids = myNormalizedToIds.get(normalize(theValue));
+      return ids != null ? ids.size() : 0;
+   }
+
+   /**
+    * Returns the values of a resource, as they were given
+    */
+   public Set<String> getValues(long theId) {
+      Set<String> retVal = myIdToValues.get(theId);
+      return retVal != null ? retVal : Collections.emptySet();
+   }
+
+   public int size() {
+      return myIdToValues.size();
+   }
+
+   private ConcurrentNavigableMap<String, PostingList> getStartingWith(String theNormalized) {
+      if (theNormalized.isEmpty()) {
+         return myNormalizedToIds;
+      }
+      return myNormalizedToIds.subMap(theNormalized, true, theNormalized + Character.MAX_VALUE, false);
+   }
+
+   /**
+    * Removes accents and changes to upper case, the same way HAPI FHIR's JPA server does
+    */
+   public static String normalize(String theValue) {
+      return StringUtil.normalizeStringForSearchIndexing(theValue);
+   }
+
+   private static Set<String> normalizeAll(Set<String> theValues) {
+      Set<String> retVal = new HashSet<>();
+      for (String next : theValues) {
+         retVal.add(normalize(next));
+      }
+      return retVal;
+   }
+
+}
@@ -0,0 +1,58 @@
+package ca.uhn.example.index;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+/**
+ * Locks on string values, such as identifier values, for actions which must
+ * check an index and then change it atomically, such as conditional create.
+ * <p>
+ * Every caller which holds the lock of a value sees the changes made by the
+ * others while they held it. Locks are striped, so two values may share a
+ * lock, and are taken in a fixed order so that actions with overlapping
+ * values cannot deadlock. This class is thread safe.
+ * </p>
+ */
+public class StripedLocks {
+
+   private final Object[] myLocks;
+
+   /**
+    * Constructor
+    *
+    * @param theCount The number of locks which values are spread over
+    */
+   public StripedLocks(int theCount) {
+      myLocks = new Object[theCount];
+      for (int i = 0; i < myLocks.length; i++) {
+         myLocks[i] = new Object();
+      }
+   }
+
+   /**
+    * Runs an action while holding the locks of some values
+    *
+    * @param theValues The values
+    * @param theAction The action
+    * @return The action's result
+    */
+   public <T> T locked(Collection<String> theValues, Supplier<T> theAction) {
+      TreeSet<Integer> lockIndexes = new TreeSet<>();
+      for (String next : theValues) {
+         lockIndexes.add((next.hashCode() & Integer.MAX_VALUE) % myLocks.length);
+      }
+      return locked(lockIndexes.iterator(), theAction);
+   }
+
+   private <T> T locked(Iterator<Integer> theLockIndexes, Supplier<T> theAction) {
+      if (!theLockIndexes.hasNext()) {
+         return theAction.get();
+      }
+      synchronized (myLocks[theLockIndexes.next()]) {
+         return locked(theLockIndexes, theAction);
+      }
+   }
+
+}
@@ -0,0 +1,180 @@
+package ca.uhn.example.index;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of token values, such as a Patient's identifiers, from
+ * <code>system|value</code> to the IDs of the resources which have it.
+ * <p>
+ * Each token is held under its system and value, and under its value alone,
+ * so a search with or without a system is a single hash lookup. A token
+ * without a system is held under the system <code>""</code>, which is what
+ * a search for <code>|value</code> asks for.
+ * </p>
+ * <p>
+ * This class is thread safe. Checking for an existing token and then storing
+ * a resource with it is not atomic on its own, so callers which need that,
+ * such as conditional create, do both while holding a {@link StripedLocks}
+ * lock on the token's value.
+ * </p>
+ */
+public class TokenIndex {
+
+   private final ConcurrentHashMap<Token, PostingList> mySystemAndValueToIds = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<String, PostingList> myValueToIds = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<Long, Set<Token>> myIdToTokens = new ConcurrentHashMap<>();
+
+   /**
+    * Sets the tokens of a resource, replacing any it had before
+    *
+    * @param theId     The resource ID
+    * @param theTokens The tokens, which may be empty
+    */
+   public void put(long theId, Collection<Token> theTokens) {
+      Set<Token> tokens = new HashSet<>(theTokens);
+      Set<String> values = new HashSet<>();
+      for (Token next : tokens) {
+         values.add(next.getValue());
+      }
+      myIdToTokens.compute(theId, (theKey, theOld) -> {
+         Set<Token> old = theOld != null ? theOld : Collections.emptySet();
+         for (Token next : old) {
+            if (!tokens.contains(next)) {
+               removeId(mySystemAndValueToIds, next, theId);
+               // The value may still be held under another system, e.g. going from {a|123, b|123} to {b|123}
+               if (!values.contains(next.getValue())) {
+                  removeId(myValueToIds, next.getValue(), theId);
+               }
+            }
+         }
+         for (Token next : tokens) {
+            if (!old.contains(next)) {
+               mySystemAndValueToIds.computeIfAbsent(next, t -> new PostingList()).add(theId);
+               myValueToIds.computeIfAbsent(next.getValue(), t -> new PostingList()).add(theId);
+            }
+         }
+         return tokens.isEmpty() ? null : tokens;
+      });
+   }
+
+   /**
+    * Removes the tokens of a resource
+    */
+   public void remove(long theId) {
+      put(theId, Collections.emptySet());
+   }
+
+   /**
+    * Returns the IDs of the resources with a token, in ascending order
+    *
+    * @param theSystem The system, <code>""</code> for tokens without one, or <code>null</code> for any system
+    * @param theValue  The value
+    */
+   public long[] find(String theSystem, String theValue) {
+      PostingList ids = getPostingList(theSystem, theValue);
+      return ids != null ? ids.toArray() : new long[0];
+   }
+
+   /**
+    * Returns the number of resources with a token, without copying their IDs
+    *
+    * @param theSystem The system, <code>""</code> for tokens without one, or <code>null</code> for any system
+    * @param theValue  The value
+    */
+   public int count(String theSystem, String theValue) {
+      PostingList ids = getPostingList(theSystem, theValue);
+      return ids != null ? ids.size() : 0;
+   }
+
+   /**
+    * Returns <code>true</code> if a resource has a token
+    *
+    * @param theId     The resource ID
+    * @param theSystem The system, <code>""</code> for tokens without one, or <code>null</code> for any system
+    * @param theValue  The value
+    */
+   public boolean contains(long theId, String theSystem, String theValue) {
+      Set<Token> tokens = myIdToTokens.get(theId);
+      if (tokens == null) {
+         return false;
+      }
+      if (theSystem != null) {
+         return tokens.contains(new Token(theSystem, theValue));
+      }
+      for (Token next : tokens) {
+         if (next.getValue().equals(theValue)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private PostingList getPostingList(String theSystem, String theValue) {
+      if (theSystem == null) {
+         return myValueToIds.get(theValue);
+      }
+      return mySystemAndValueToIds.get(new Token(theSystem, theValue));
+   }
+
+   public int size() {
+      return myIdToTokens.size();
+   }
+
+   private static <K> void removeId(ConcurrentHashMap<K, PostingList> theMap, K theKey, long theId) {
+      theMap.computeIfPresent(theKey, (theK, theIds) -> {
+         theIds.remove(theId);
+         return theIds.isEmpty() ? null : theIds;
+      });
+   }
+
+   /**
+    * One token, such as an identifier
+    */
+   public static class Token {
+
+      private final String mySystem;
+      private final String myValue;
+
+      /**
+       * @param theSystem The system, or <code>null</code> or <code>""</code> if it has none
+       * @param theValue  The value
+       */
+      public Token(String theSystem, String theValue) {
+         mySystem = theSystem != null ? theSystem : "";
+         myValue = theValue;
+      }
+
+      public String getSystem() {
+         return mySystem;
+      }
+
+      public String getValue() {
+         return myValue;
+      }
+
+      @Override
+      public boolean equals(Object theO) {
+         if (!(theO instanceof Token)) {
+            return false;
+         }
+         Token other = (Token) theO;
+         return mySystem.equals(other.mySystem) && myValue.equals(other.myValue);
+      }
+
+      @Override
+      public int hashCode() {
+         return mySystem.hashCode() * 31 + myValue.hashCode();
+      }
+
+      @Override
+      public String toString() {
+         return mySystem + "|" + myValue;
+      }
+
+   }
+
+}
@@ -0,0 +1,169 @@
+package ca.uhn.example.interceptor;
+
+import ca.uhn.fhir.example.binary.BinaryEncoding;
+import ca.uhn.fhir.example.binary.BinaryParser;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.ETagSupportEnum;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.DateUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Lets clients exchange resources with the server in a binary format
+ * (CBOR or Smile, see {@link BinaryEncoding}) instead of JSON or XML.
+ * <p>
+ * Responses are encoded in a binary format when the <code>Accept</code>
+ * header prefers one, e.g. <code>Accept: application/fhir+cbor</code>, or when
+ * it is named by the <code>_format</code> parameter, e.g. <code>_format=smile</code>.
+ * The resource is encoded straight to the response stream, so no JSON text
+ * is produced at all. The <code>_summary</code> and <code>_elements</code>
+ * parameters work as they do for JSON.
+ * </p>
+ * <p>
+ * Create, update, patch and delete responses are left to the server, and so
+ * are returned as JSON or XML, because their <code>Location</code> and
+ * <code>ETag</code> headers come from the method outcome, which interceptors
+ * can't see. Errors are also returned as JSON or XML.
+ * </p>
+ * <p>
+ * Request bodies in a binary format (i.e. with a binary
+ * <code>Content-Type</code>) are accepted too. HAPI FHIR can only parse
+ * request bodies as JSON or XML, so these are copied to JSON token by token
+ * before the server sees them. This is much cheaper than parsing the resource,
+ * but it means a binary request saves bandwidth rather than server CPU.
+ * </p>
+ */
+public class BinaryEncodingInterceptor {
+
+   private static final Set<RestOperationTypeEnum> ourOperationsWithOutcomeHeaders = EnumSet.of(
+      RestOperationTypeEnum.CREATE,
+      RestOperationTypeEnum.UPDATE,
+      RestOperationTypeEnum.PATCH,
+      RestOperationTypeEnum.DELETE);
+
+   @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+   public boolean transcodeRequestBody(ServletRequestDetails theRequestDetails) throws IOException {
+      HttpServletRequest request = theRequestDetails.getServletRequest();
+      BinaryEncoding encoding = BinaryEncoding.forContentType(request.getContentType());
+      if (encoding == null) {
+         return true;
+      }
+
+      ByteArrayOutputStream json = new ByteArrayOutputStream();
+      try {
+         encoding.transcodeToJson(request.getInputStream(), json);
+      } catch (IOException e) {
+         throw new InvalidRequestException("Failed to parse " + encoding.name() + " request body: " + e.getMessage());
+      }
+
+      theRequestDetails.setServletRequest(new JsonRequestWrapper(request));
+      theRequestDetails.setRequestContents(json.toByteArray());
+      return true;
+   }
+
+   @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+   public boolean encodeResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails, HttpServletResponse theServletResponse) throws IOException {
+      IBaseResource resource = theResponseDetails.getResponseResource();
+      if (resource == null || ourOperationsWithOutcomeHeaders.contains(theRequestDetails.getRestOperationType())) {
+         return true;
+      }
+
+      BinaryEncoding encoding = determineResponseEncoding(theRequestDetails);
+      if (encoding == null) {
+         return true;
+      }
+
+      BinaryParser parser = encoding.newParser(theRequestDetails.getFhirContext());
+      RestfulServerUtils.configureResponseParser(theRequestDetails, parser.getJsonParser());
+      parser.getJsonParser().setServerBaseUrl(theRequestDetails.getFhirServerBase());
+
+      theServletResponse.setStatus(theResponseDetails.getResponseCode());
+      theServletResponse.setContentType(encoding.getContentType());
+      addVersionHeaders(theRequestDetails, resource, theServletResponse);
+
+      OutputStream output = theServletResponse.getOutputStream();
+      parser.encodeResourceToOutputStream(resource, output);
+      output.flush();
+
+      return false; // The response has been written
+   }
+
+   private static BinaryEncoding determineResponseEncoding(RequestDetails theRequestDetails) {
+      String[] format = theRequestDetails.getParameters().get(Constants.PARAM_FORMAT);
+      if (format != null && format.length > 0) {
+         return BinaryEncoding.forFormatParameter(format[0]);
+      }
+      return BinaryEncoding.forAcceptHeader(theRequestDetails.getHeader(Constants.HEADER_ACCEPT));
+   }
+
+   /**
+    * Adds the headers the server adds to read and vread responses
+    */
+   private static void addVersionHeaders(RequestDetails theRequestDetails, IBaseResource theResource, HttpServletResponse theServletResponse) {
+      RestOperationTypeEnum operation = theRequestDetails.getRestOperationType();
+      if (operation != RestOperationTypeEnum.READ && operation != RestOperationTypeEnum.VREAD) {
+         return;
+      }
+
+      String versionId = theResource.getIdElement().getVersionIdPart();
+      if (versionId != null && theRequestDetails.getServer().getETagSupport() == ETagSupportEnum.ENABLED) {
+         theServletResponse.setHeader(Constants.HEADER_ETAG, RestfulServerUtils.createEtag(versionId));
+      }
+      IPrimitiveType<Date> lastUpdated = RestfulServerUtils.extractLastUpdatedFromResource(theResource);
+      if (lastUpdated != null && lastUpdated.getValue() != null) {
+         theServletResponse.setHeader(Constants.HEADER_LAST_MODIFIED, DateUtils.formatDate(lastUpdated.getValue()));
+      }
+   }
+
+   /**
+    * Presents a request whose body has been transcoded as a JSON request
+    */
+   private static class JsonRequestWrapper extends HttpServletRequestWrapper {
+
+      private JsonRequestWrapper(HttpServletRequest theRequest) {
+         super(theRequest);
+      }
+
+      @Override
+      public String getContentType() {
+         return Constants.CT_FHIR_JSON_NEW;
+      }
+
+      @Override
+      public String getHeader(String theName) {
+         if (Constants.HEADER_CONTENT_TYPE.equalsIgnoreCase(theName)) {
+            return getContentType();
+         }
+         return super.getHeader(theName);
+      }
+
+      @Override
+      public Enumeration<String> getHeaders(String theName) {
+         if (Constants.HEADER_CONTENT_TYPE.equalsIgnoreCase(theName)) {
+            return Collections.enumeration(Collections.singletonList(getContentType()));
+         }
+         return super.getHeaders(theName);
+      }
+   }
+
+}
@@ -0,0 +1,34 @@
+package ca.uhn.example.interceptor;
+
+import ca.uhn.example.intern.ResourceInterner;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * Interns the strings of each resource a client sends (see
+ * {@link ResourceInterner}) once the server has parsed it and before it is
+ * handed to a resource provider, so that the resources the providers keep
+ * share one instance of each code system, code and extension URL.
+ * <p>
+ * Only resources sent as the body of a request, as for create and update,
+ * are interned. The values a patch adds are not.
+ * </p>
+ */
+public class InterningInterceptor {
+
+   private final ResourceInterner myInterner;
+
+   /**
+    * Constructor
+    */
+   public InterningInterceptor(ResourceInterner theInterner) {
+      myInterner = theInterner;
+   }
+
+   @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
+   public void internRequestResource(RequestDetails theRequestDetails) {
+      myInterner.intern(theRequestDetails.getResource());
+   }
+
+}
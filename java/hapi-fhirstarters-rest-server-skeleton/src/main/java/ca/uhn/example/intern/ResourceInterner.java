@@ -0,0 +1,145 @@
+package ca.uhn.example.intern;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.dstu3.model.CodeType;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.PrimitiveType;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.dstu3.model.UriType;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replaces the strings of a parsed resource which are likely to repeat across
+ * many resources with shared instances from a {@link StringInterner}, so that
+ * resources kept in memory for a long time take less of it.
+ * <p>
+ * A parser creates a new string for every value it reads, so e.g. 100,000
+ * Patients with an identifier in <code>urn:hapitest:mrns</code> hold 100,000
+ * copies of it. The values interned are those of URIs (e.g. code systems,
+ * identifier systems, profiles and extension URLs, but not IDs), codes, and
+ * the display, version and unit which accompany a code. Enumerated codes,
+ * such as <code>Patient.gender</code>, need nothing, since HAPI FHIR already
+ * keeps them as constants. Other strings, such as names, are left alone, as
+ * most are different in each resource.
+ * </p>
+ * <p>
+ * Resources are changed in place. This class is thread safe, but a resource
+ * must not be used by another thread while it is being interned.
+ * </p>
+ */
+public class ResourceInterner {
+
+   private final FhirContext myCtx;
+   private final StringInterner myInterner;
+
+   /**
+    * The children of each type which can hold a string to intern, so that
+    * e.g. the names, dates and flags of a Patient aren't looked at
+    */
+   private final ConcurrentHashMap<BaseRuntimeElementCompositeDefinition<?>, List<BaseRuntimeChildDefinition>> myInternedChildren = new ConcurrentHashMap<>();
+
+   /**
+    * Constructor
+    *
+    * @param theInterner The table of strings, which may be shared with other interners
+    */
+   public ResourceInterner(FhirContext theCtx, StringInterner theInterner) {
+      myCtx = theCtx;
+      myInterner = theInterner;
+   }
+
+   public StringInterner getInterner() {
+      return myInterner;
+   }
+
+   /**
+    * Interns the strings of a resource and of the resources it contains
+    *
+    * @return The resource
+    */
+   public <T extends IBaseResource> T intern(T theResource) {
+      if (theResource != null) {
+         internChildren(theResource, myCtx.getResourceDefinition(theResource));
+      }
+      return theResource;
+   }
+
+   /**
+    * Interns the children of an element, and their children. This is a
+    * plain walk of the model, since the terser's builds a path to each
+    * element, which costs more than the interning.
+    */
+   private void internChildren(IBase theElement, BaseRuntimeElementCompositeDefinition<?> theDefinition) {
+      List<BaseRuntimeChildDefinition> children = myInternedChildren.computeIfAbsent(theDefinition, ResourceInterner::findInternedChildren);
+      for (BaseRuntimeChildDefinition nextChild : children) {
+         for (IBase next : nextChild.getAccessor().getValues(theElement)) {
+            if (next instanceof IPrimitiveType) {
+               if ((next instanceof UriType && !(next instanceof IdType)) || next instanceof CodeType) {
+                  intern((PrimitiveType<?>) next);
+               }
+               continue;
+            }
+            if (next instanceof Coding) {
+               Coding coding = (Coding) next;
+               if (coding.hasDisplayElement()) {
+                  intern(coding.getDisplayElement());
+               }
+               if (coding.hasVersionElement()) {
+                  intern(coding.getVersionElement());
+               }
+            } else if (next instanceof Quantity && ((Quantity) next).hasUnitElement()) {
+               intern(((Quantity) next).getUnitElement());
+            }
+            BaseRuntimeElementDefinition<?> definition = next instanceof IBaseResource ? myCtx.getResourceDefinition((IBaseResource) next) : myCtx.getElementDefinition(next.getClass());
+            if (definition instanceof BaseRuntimeElementCompositeDefinition) {
+               internChildren(next, (BaseRuntimeElementCompositeDefinition<?>) definition);
+            }
+         }
+      }
+   }
+
+   /**
+    * Returns the children of a type which aren't only ever primitives other
+    * than URIs and codes
+    */
+   private static List<BaseRuntimeChildDefinition> findInternedChildren(BaseRuntimeElementCompositeDefinition<?> theDefinition) {
+      List<BaseRuntimeChildDefinition> retVal = new ArrayList<>();
+      for (BaseRuntimeChildDefinition nextChild : theDefinition.getChildrenAndExtension()) {
+         boolean interned = nextChild.getValidChildNames().isEmpty();
+         for (String nextName : nextChild.getValidChildNames()) {
+            BaseRuntimeElementDefinition<?> definition = nextChild.getChildByName(nextName);
+            Class<?> type = definition != null ? definition.getImplementingClass() : null;
+            if (type == null || !IPrimitiveType.class.isAssignableFrom(type) || ((UriType.class.isAssignableFrom(type) && !IdType.class.isAssignableFrom(type)) || CodeType.class.isAssignableFrom(type))) {
+               interned = true;
+            }
+         }
+         if (interned) {
+            retVal.add(nextChild);
+         }
+      }
+      return retVal;
+   }
+
+   /**
+    * Interns the value of a string-valued primitive, which keeps the string it
+    * is given as both its value and its text
+    */
+   private void intern(PrimitiveType<?> theValue) {
+      String value = theValue.getValueAsString();
+      String interned = myInterner.intern(value);
+      if (interned != value) {
+         theValue.setValueAsString(interned);
+      }
+   }
+
+}
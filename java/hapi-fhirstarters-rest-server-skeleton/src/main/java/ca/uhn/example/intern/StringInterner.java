@@ -0,0 +1,90 @@
+package ca.uhn.example.intern;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A table of strings, so that equal strings held by many resources, such as
+ * code systems and codes, can be one instance rather than one per resource.
+ * <p>
+ * The table has a fixed number of slots, and each string can only be in one
+ * of two, chosen by its hash, so it never grows however many different
+ * strings are looked up. A string which finds both its slots taken by others
+ * replaces one of them, so the table suits values with few distinct strings;
+ * strings longer than a maximum are never added. Strings are held weakly, so
+ * one is dropped once no resource uses it. Lookups take no lock, and two
+ * threads adding the same string at once may both keep their own instance,
+ * which only costs memory. This class is thread safe.
+ * </p>
+ */
+public class StringInterner {
+
+   private final AtomicReferenceArray<WeakReference<String>> mySlots;
+   private final int myMask;
+   private final int myMaxLength;
+
+   /**
+    * Constructor
+    *
+    * @param theCapacity  The number of slots, which is rounded up to a power of two
+    * @param theMaxLength The length of the longest string to add
+    */
+   public StringInterner(int theCapacity, int theMaxLength) {
+      int capacity = Integer.highestOneBit(Math.max(2, theCapacity - 1)) << 1;
+      mySlots = new AtomicReferenceArray<>(capacity);
+      myMask = capacity - 1;
+      myMaxLength = theMaxLength;
+   }
+
+   /**
+    * Returns the instance in the table which is equal to a string, or adds
+    * the string and returns it if there is none
+    *
+    * @param theValue The string, or <code>null</code>
+    */
+   public String intern(String theValue) {
+      if (theValue == null || theValue.length() > myMaxLength) {
+         return theValue;
+      }
+      int hash = theValue.hashCode();
+      int first = (hash ^ (hash >>> 16)) & myMask;
+      int second = (first + 1) & myMask;
+
+      String existing = get(first);
+      if (theValue.equals(existing)) {
+         return existing;
+      }
+      String other = get(second);
+      if (theValue.equals(other)) {
+         return other;
+      }
+      mySlots.set(existing == null || other != null ? first : second, new WeakReference<>(theValue));
+      return theValue;
+   }
+
+   /**
+    * Returns the number of slots
+    */
+   public int getCapacity() {
+      return mySlots.length();
+   }
+
+   /**
+    * Returns the number of strings in the table, which takes a scan of every slot
+    */
+   public int size() {
+      int retVal = 0;
+      for (int i = 0; i < mySlots.length(); i++) {
+         if (get(i) != null) {
+            retVal++;
+         }
+      }
+      return retVal;
+   }
+
+   private String get(int theSlot) {
+      WeakReference<String> retVal = mySlots.get(theSlot);
+      return retVal != null ? retVal.get() : null;
+   }
+
+}
@@ -1,10 +1,8 @@
 package ca.uhn.example.model;
 
-import ca.uhn.fhir.model.api.BaseIdentifiableElement;
-import ca.uhn.fhir.model.api.IElement;
-import ca.uhn.fhir.model.api.IExtension;
 import ca.uhn.fhir.model.api.annotation.*;
 import ca.uhn.fhir.util.ElementUtil;
+import org.hl7.fhir.dstu3.model.BackboneElement;
 import org.hl7.fhir.dstu3.model.BooleanType;
 import org.hl7.fhir.dstu3.model.CodeType;
 import org.hl7.fhir.dstu3.model.ContactPoint;
@@ -80,12 +78,44 @@ public class MyOrganization extends Organization {
       return super.isEmpty() && ElementUtil.isEmpty(myBillingCode, myEmergencyContact);
    }
 
+   /**
+    * The copy method of Organization would return a plain Organization, without
+    * the extensions, so this copies the Organization fields across itself.
+    */
+   @Override
+   public MyOrganization copy() {
+      Organization base = super.copy();
+      MyOrganization retVal = new MyOrganization();
+      base.copyValues(retVal);
+      retVal.identifier = base.getIdentifier();
+      retVal.active = base.getActiveElement();
+      retVal.type = base.getType();
+      retVal.name = base.getNameElement();
+      retVal.alias = base.getAlias();
+      retVal.telecom = base.getTelecom();
+      retVal.address = base.getAddress();
+      retVal.partOf = base.getPartOf();
+      retVal.contact = base.getContact();
+      retVal.endpoint = base.getEndpoint();
+      retVal.myBillingCode = myBillingCode == null ? null : myBillingCode.copy();
+      if (myEmergencyContact != null) {
+         retVal.myEmergencyContact = new ArrayList<EmergencyContact>();
+         for (EmergencyContact next : myEmergencyContact) {
+            retVal.myEmergencyContact.add(next.copy());
+         }
+      }
+      return retVal;
+   }
+
    /**
     * This "block definition" defines an extension type with multiple child extensions.
     * It is referenced by the field myEmergencyContact above.
     */
    @Block
-   public static class EmergencyContact extends BaseIdentifiableElement implements IExtension {
+   public static class EmergencyContact extends BackboneElement {
+
+      private static final long serialVersionUID = 1L;
+
 		/* *****************************
 		 * Fields
 		 * *****************************/
@@ -121,11 +151,6 @@ public class MyOrganization extends Organization {
          myActive = theActive;
       }
 
-      @Override
-      public <T extends IElement> List<T> getAllPopulatedChildElementsOfType(Class<T> theType) {
-         return ElementUtil.allPopulatedChildElements(theType, myActive, myContact);
-      }
-
       public ContactPoint getContact() {
          if (myContact == null) {
             myContact = new ContactPoint();
@@ -144,9 +169,18 @@ public class MyOrganization extends Organization {
          myContact = theContact;
       }
 
+      @Override
+      public EmergencyContact copy() {
+         EmergencyContact retVal = new EmergencyContact();
+         copyValues(retVal);
+         retVal.myActive = myActive == null ? null : myActive.copy();
+         retVal.myContact = myContact == null ? null : myContact.copy();
+         return retVal;
+      }
+
       @Override
       public boolean isEmpty() {
-         return ElementUtil.isEmpty(myActive, myContact);
+         return super.isEmpty() && ElementUtil.isEmpty(myActive, myContact);
       }
 
 
@@ -0,0 +1,169 @@
+package ca.uhn.example.patch;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeChildChoiceDefinition;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.dstu3.model.DomainResource;
+import org.hl7.fhir.dstu3.model.Element;
+import org.hl7.fhir.dstu3.model.Narrative.NarrativeStatus;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and changes the children of elements by name, using the model
+ * definitions of the context, so that patches change the parsed resource in
+ * place rather than an encoded copy of it.
+ */
+class ElementEditor {
+
+   private final FhirContext myCtx;
+
+   ElementEditor(FhirContext theCtx) {
+      myCtx = theCtx;
+   }
+
+   /**
+    * Returns a copy of a resource to patch, without its narrative if that was generated
+    */
+   static IBaseResource copy(IBaseResource theResource) {
+      Resource retVal = ((Resource) theResource).copy();
+      if (retVal instanceof DomainResource && ((DomainResource) retVal).hasText() && ((DomainResource) retVal).getText().getStatus() == NarrativeStatus.GENERATED) {
+         ((DomainResource) retVal).setText(null);
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns a deep copy of a value
+    */
+   static IBase copyValue(IBase theValue) {
+      if (theValue instanceof Element) {
+         return ((Element) theValue).copy();
+      }
+      if (theValue instanceof Resource) {
+         return ((Resource) theValue).copy();
+      }
+      return theValue;
+   }
+
+   /**
+    * Returns a child of an element, by its JSON name, e.g.
+    * <code>deceasedBoolean</code>, or by its element name, e.g.
+    * <code>deceased</code>
+    *
+    * @throws InvalidRequestException If the element has no such child
+    */
+   BaseRuntimeChildDefinition getChild(IBase theParent, String theName) {
+      BaseRuntimeElementCompositeDefinition<?> definition = getDefinition(theParent);
+      BaseRuntimeChildDefinition retVal = definition.getChildByName(theName);
+      if (retVal == null) {
+         for (BaseRuntimeChildDefinition next : definition.getChildren()) {
+            if (next.getElementName().equals(theName)) {
+               return next;
+            }
+         }
+         throw new InvalidRequestException("Unknown element " + definition.getName() + "." + theName);
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns a copy of the values of a child. If it is a choice named with
+    * its type, e.g. <code>deceasedBoolean</code>, only a value of that type
+    * is returned.
+    */
+   List<IBase> getValues(IBase theParent, BaseRuntimeChildDefinition theChild, String theName) {
+      List<IBase> retVal = new ArrayList<>(theChild.getAccessor().getValues(theParent));
+      if (theChild instanceof RuntimeChildChoiceDefinition && !theName.equals(theChild.getElementName())) {
+         Class<?> type = theChild.getChildByName(theName).getImplementingClass();
+         retVal.removeIf(theValue -> !type.isInstance(theValue));
+      }
+      return retVal;
+   }
+
+   /**
+    * Replaces the values of a child
+    */
+   void setValues(IBase theParent, BaseRuntimeChildDefinition theChild, String theName, List<IBase> theValues) {
+      if (theChild.getMax() == 1 && theValues.size() > 1) {
+         throw new InvalidRequestException("Element " + theName + " can only have one value");
+      }
+      theChild.getMutator().setValue(theParent, null);
+      for (IBase next : theValues) {
+         theChild.getMutator().addValue(theParent, next);
+      }
+   }
+
+   /**
+    * Returns the type of the values of a child
+    *
+    * @param theValue A value, which picks the type of a choice named without its type, or <code>null</code>
+    */
+   BaseRuntimeElementDefinition<?> getType(BaseRuntimeChildDefinition theChild, String theName, IBase theValue) {
+      BaseRuntimeElementDefinition<?> retVal = theChild.getChildByName(theName);
+      if (retVal == null && theValue != null) {
+         String typedName = theChild.getChildNameByDatatype(theValue.getClass());
+         retVal = typedName != null ? theChild.getChildByName(typedName) : null;
+      }
+      if (retVal == null) {
+         throw new InvalidRequestException("Element " + theName + " can't have a value of " + (theValue != null ? "type " + myCtx.getElementDefinition(theValue.getClass()).getName() : "unknown type"));
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns a value as the type of a child, converting a primitive from
+    * another primitive type, e.g. a string to a code
+    *
+    * @throws InvalidRequestException If the value can't be converted
+    */
+   IBase convert(BaseRuntimeChildDefinition theChild, String theName, IBase theValue) {
+      BaseRuntimeElementDefinition<?> type = getType(theChild, theName, theValue);
+      if (type.getImplementingClass().isInstance(theValue)) {
+         return theValue;
+      }
+      if (theValue instanceof IPrimitiveType) {
+         return newPrimitive(theChild, type, theName, ((IPrimitiveType<?>) theValue).getValueAsString());
+      }
+      throw new InvalidRequestException("Element " + theName + " can't have a value of type " + myCtx.getElementDefinition(theValue.getClass()).getName());
+   }
+
+   /**
+    * Returns a new primitive of the type of a child
+    *
+    * @throws InvalidRequestException If the type is not primitive, or the value is not valid for it
+    */
+   IBase newPrimitive(BaseRuntimeChildDefinition theChild, BaseRuntimeElementDefinition<?> theType, String theName, String theValue) {
+      IBase retVal = theType.newInstance(theChild.getInstanceConstructorArguments());
+      if (!(retVal instanceof IPrimitiveType)) {
+         throw new InvalidRequestException("Element " + theName + " needs a value of type " + theType.getName());
+      }
+      try {
+         ((IPrimitiveType<?>) retVal).setValueAsString(theValue);
+      } catch (DataFormatException | IllegalArgumentException e) {
+         throw new InvalidRequestException("Invalid value for " + theName + ": " + theValue);
+      }
+      return retVal;
+   }
+
+   private BaseRuntimeElementCompositeDefinition<?> getDefinition(IBase theElement) {
+      if (theElement instanceof IBaseResource) {
+         return myCtx.getResourceDefinition((IBaseResource) theElement);
+      }
+      BaseRuntimeElementDefinition<?> retVal = myCtx.getElementDefinition(theElement.getClass());
+      if (!(retVal instanceof BaseRuntimeElementCompositeDefinition)) {
+         throw new InvalidRequestException("A " + (retVal != null ? retVal.getName() : "primitive") + " has no child elements");
+      }
+      return (BaseRuntimeElementCompositeDefinition<?>) retVal;
+   }
+
+}
@@ -0,0 +1,334 @@
+package ca.uhn.example.patch;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.dstu3.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.dstu3.model.PrimitiveType;
+import org.hl7.fhir.dstu3.model.Type;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A FHIRPath Patch: a <code>Parameters</code> resource with an
+ * <code>operation</code> parameter for each change, of type
+ * <code>add</code>, <code>insert</code>, <code>delete</code>,
+ * <code>replace</code> or <code>move</code>. A path must select at most one
+ * element, except that a <code>delete</code> of nothing does nothing, and
+ * must end with the name of the element changed, optionally followed by
+ * an index or functions selecting one of its values, e.g.
+ * <code>Patient.name.where(use = 'official').given[0]</code>. Values are
+ * given as the <code>value</code> part, or for an element which is not a
+ * datatype, e.g. a <code>Patient.contact</code>, as a <code>value</code>
+ * part with a part for each child. The <code>id</code> and
+ * <code>meta</code> of a resource can't be patched.
+ */
+public class FhirPathPatch implements IResourcePatch {
+
+   private final ElementEditor myEditor;
+   private final IFhirPath myFhirPath;
+   private final List<Operation> myOperations = new ArrayList<>();
+   private final Set<String> myChangedElements = new LinkedHashSet<>();
+
+   /**
+    * Constructor
+    *
+    * @param theCtx   The context of the resources patched
+    * @param thePatch The parsed patch
+    * @throws InvalidRequestException If the patch, or a path in it, is not valid
+    */
+   public FhirPathPatch(FhirContext theCtx, Parameters thePatch) {
+      myEditor = new ElementEditor(theCtx);
+      myFhirPath = theCtx.newFhirPath();
+      for (ParametersParameterComponent next : thePatch.getParameter()) {
+         if (!"operation".equals(next.getName())) {
+            throw new InvalidRequestException("Unknown FHIRPath Patch parameter: " + next.getName());
+         }
+         Operation operation = new Operation(next);
+         try {
+            myFhirPath.parse(operation.myPath);
+         } catch (Exception e) {
+            throw new InvalidRequestException("Invalid FHIRPath " + operation.myPath + ": " + e.getMessage());
+         }
+         myOperations.add(operation);
+         myChangedElements.add(operation.myChangedElement);
+      }
+   }
+
+   @Override
+   public IBaseResource apply(IBaseResource theResource) {
+      IBaseResource retVal = ElementEditor.copy(theResource);
+      try {
+         for (Operation next : myOperations) {
+            apply(retVal, next);
+         }
+      } catch (FhirPathExecutionException e) {
+         throw new InvalidRequestException("Invalid FHIRPath: " + e.getMessage());
+      }
+      return retVal;
+   }
+
+   @Override
+   public Set<String> getChangedElements() {
+      return Collections.unmodifiableSet(myChangedElements);
+   }
+
+   private void apply(IBaseResource theResource, Operation theOperation) {
+      IBase parent;
+      BaseRuntimeChildDefinition child;
+      List<IBase> values;
+      switch (theOperation.myType) {
+         case "add":
+            parent = evaluateOne(theResource, theOperation.myPath);
+            child = myEditor.getChild(parent, theOperation.myName);
+            values = child.getMax() == 1 ? new ArrayList<>() : new ArrayList<>(child.getAccessor().getValues(parent));
+            values.add(newValue(parent, child, theOperation.myName, theOperation.myValue));
+            myEditor.setValues(parent, child, theOperation.myName, values);
+            break;
+         case "insert":
+            parent = evaluateOne(theResource, theOperation.myParentPath);
+            child = myEditor.getChild(parent, theOperation.myName);
+            values = new ArrayList<>(child.getAccessor().getValues(parent));
+            if (theOperation.myIndex < 0 || theOperation.myIndex > values.size()) {
+               throw new InvalidRequestException("No value " + theOperation.myIndex + " of " + theOperation.myPath);
+            }
+            values.add(theOperation.myIndex, newValue(parent, child, theOperation.myName, theOperation.myValue));
+            myEditor.setValues(parent, child, theOperation.myName, values);
+            break;
+         case "delete":
+         case "replace":
+            IBase target = evaluateAtMostOne(theResource, theOperation.myPath);
+            if (target == null) {
+               if (theOperation.myType.equals("delete")) {
+                  return;
+               }
+               throw new InvalidRequestException("No element at " + theOperation.myPath);
+            }
+            for (IBase next : myFhirPath.evaluate(theResource, theOperation.myParentPath, IBase.class)) {
+               child = myEditor.getChild(next, theOperation.myName);
+               values = new ArrayList<>(child.getAccessor().getValues(next));
+               int index = indexOf(values, target);
+               if (index != -1) {
+                  if (theOperation.myType.equals("delete")) {
+                     values.remove(index);
+                  } else {
+                     values.set(index, newValue(next, child, theOperation.myName, theOperation.myValue));
+                  }
+                  myEditor.setValues(next, child, theOperation.myName, values);
+                  return;
+               }
+            }
+            throw new InvalidRequestException("Path " + theOperation.myPath + " doesn't select a value of " + theOperation.myName);
+         case "move":
+            parent = evaluateOne(theResource, theOperation.myParentPath);
+            child = myEditor.getChild(parent, theOperation.myName);
+            values = new ArrayList<>(child.getAccessor().getValues(parent));
+            if (theOperation.mySource < 0 || theOperation.mySource >= values.size() || theOperation.myDestination < 0 || theOperation.myDestination >= values.size()) {
+               throw new InvalidRequestException("Invalid source or destination for " + theOperation.myPath);
+            }
+            values.add(theOperation.myDestination, values.remove(theOperation.mySource));
+            myEditor.setValues(parent, child, theOperation.myName, values);
+            break;
+         default:
+            throw new IllegalStateException(theOperation.myType);
+      }
+   }
+
+   private IBase evaluateOne(IBaseResource theResource, String thePath) {
+      IBase retVal = evaluateAtMostOne(theResource, thePath);
+      if (retVal == null) {
+         throw new InvalidRequestException("No element at " + thePath);
+      }
+      return retVal;
+   }
+
+   private IBase evaluateAtMostOne(IBaseResource theResource, String thePath) {
+      List<IBase> retVal = myFhirPath.evaluate(theResource, thePath, IBase.class);
+      if (retVal.size() > 1) {
+         throw new InvalidRequestException("Path " + thePath + " selects " + retVal.size() + " elements");
+      }
+      return retVal.isEmpty() ? null : retVal.get(0);
+   }
+
+   private static int indexOf(List<IBase> theValues, IBase theValue) {
+      for (int i = 0; i < theValues.size(); i++) {
+         if (theValues.get(i) == theValue) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Returns a new value for a child from the <code>value</code> part of an
+    * operation, which is copied since the operation may be applied again
+    */
+   private IBase newValue(IBase theParent, BaseRuntimeChildDefinition theChild, String theName, ParametersParameterComponent theValue) {
+      if (theValue.hasValue()) {
+         return myEditor.convert(theChild, theName, ElementEditor.copyValue(theValue.getValue()));
+      }
+      BaseRuntimeElementDefinition<?> type = myEditor.getType(theChild, theName, null);
+      IBase retVal = type.newInstance(theChild.getInstanceConstructorArguments());
+      if (retVal instanceof PrimitiveType || theValue.getPart().isEmpty()) {
+         throw new InvalidRequestException("No value for " + theName);
+      }
+      for (ParametersParameterComponent next : theValue.getPart()) {
+         BaseRuntimeChildDefinition child = myEditor.getChild(retVal, next.getName());
+         List<IBase> values = new ArrayList<>(child.getAccessor().getValues(retVal));
+         values.add(newValue(retVal, child, next.getName(), next));
+         myEditor.setValues(retVal, child, next.getName(), values);
+      }
+      return retVal;
+   }
+
+   /**
+    * Splits a path into the path of the parent of the element it ends with,
+    * and the name of that element, leaving out an index and functions after
+    * the name
+    */
+   private static String[] splitPath(String thePath) {
+      List<String> segments = new ArrayList<>();
+      int depth = 0;
+      boolean quoted = false;
+      int start = 0;
+      for (int i = 0; i < thePath.length(); i++) {
+         char next = thePath.charAt(i);
+         if (next == '\'' || next == '`') {
+            quoted = !quoted;
+         } else if (!quoted && (next == '(' || next == '[')) {
+            depth++;
+         } else if (!quoted && (next == ')' || next == ']')) {
+            depth--;
+         } else if (!quoted && depth == 0 && next == '.') {
+            segments.add(thePath.substring(start, i).trim());
+            start = i + 1;
+         }
+      }
+      segments.add(thePath.substring(start).trim());
+
+      int last = segments.size() - 1;
+      while (last > 0 && segments.get(last).contains("(")) {
+         last--;
+      }
+      String name = segments.get(last);
+      if (name.contains("[")) {
+         name = name.substring(0, name.indexOf('[')).trim();
+      }
+      if (last == 0 || name.isEmpty() || name.contains("(")) {
+         throw new InvalidRequestException("Path " + thePath + " must end with the name of an element");
+      }
+      return new String[]{String.join(".", segments.subList(0, last)), name};
+   }
+
+   /**
+    * Returns the top level element a path changes, e.g. <code>name</code>
+    * for <code>Patient.name.given</code>
+    */
+   private static String getChangedElement(String thePath) {
+      String[] segments = thePath.split("\\.", 3);
+      String retVal = segments[0];
+      if (Character.isUpperCase(retVal.charAt(0)) && segments.length > 1) {
+         retVal = segments[1];
+      }
+      retVal = retVal.replaceAll("\\[.*$", "").trim();
+      if (retVal.isEmpty() || !Character.isLowerCase(retVal.charAt(0)) || retVal.contains("(") || retVal.contains(" ")) {
+         throw new InvalidRequestException("Path " + thePath + " must start with the element it changes");
+      }
+      if (retVal.equals("id") || retVal.equals("meta")) {
+         throw new InvalidRequestException("Element " + retVal + " can't be patched");
+      }
+      return retVal;
+   }
+
+   /**
+    * An operation of the patch
+    */
+   private static class Operation {
+
+      private final String myType;
+      private final String myPath;
+      private final String myParentPath;
+      private final String myName;
+      private final ParametersParameterComponent myValue;
+      private final int myIndex;
+      private final int mySource;
+      private final int myDestination;
+      private final String myChangedElement;
+
+      Operation(ParametersParameterComponent theOperation) {
+         myType = getString(theOperation, "type");
+         myPath = getString(theOperation, "path");
+         if (myType == null || myPath == null) {
+            throw new InvalidRequestException("A FHIRPath Patch operation needs a type and a path");
+         }
+         myValue = getPart(theOperation, "value");
+         myIndex = getInteger(theOperation, "index");
+         mySource = getInteger(theOperation, "source");
+         myDestination = getInteger(theOperation, "destination");
+         if ((myType.equals("insert") || myType.equals("replace")) && myValue == null) {
+            throw new InvalidRequestException("Operation " + myType + " needs a value");
+         }
+
+         switch (myType) {
+            case "add":
+               myName = getString(theOperation, "name");
+               if (myName == null || myValue == null) {
+                  throw new InvalidRequestException("Operation add needs a name and a value");
+               }
+               myParentPath = myPath;
+               myChangedElement = getChangedElement(myPath + "." + myName);
+               break;
+            case "insert":
+            case "replace":
+            case "delete":
+            case "move":
+               String[] split = splitPath(myPath);
+               myParentPath = split[0];
+               myName = split[1];
+               myChangedElement = getChangedElement(myPath);
+               break;
+            default:
+               throw new InvalidRequestException("Unknown FHIRPath Patch operation: " + myType);
+         }
+         if ((myType.equals("insert") && myIndex == -1) || (myType.equals("move") && (mySource == -1 || myDestination == -1))) {
+            throw new InvalidRequestException("Operation " + myType + " needs " + (myType.equals("insert") ? "an index" : "a source and a destination"));
+         }
+      }
+
+      private static ParametersParameterComponent getPart(ParametersParameterComponent theOperation, String theName) {
+         for (ParametersParameterComponent next : theOperation.getPart()) {
+            if (theName.equals(next.getName())) {
+               return next;
+            }
+         }
+         return null;
+      }
+
+      private static String getString(ParametersParameterComponent theOperation, String theName) {
+         ParametersParameterComponent part = getPart(theOperation, theName);
+         Type value = part != null ? part.getValue() : null;
+         return value instanceof PrimitiveType ? ((PrimitiveType<?>) value).getValueAsString() : null;
+      }
+
+      private static int getInteger(ParametersParameterComponent theOperation, String theName) {
+         String value = getString(theOperation, theName);
+         try {
+            return value != null ? Integer.parseInt(value) : -1;
+         } catch (NumberFormatException e) {
+            throw new InvalidRequestException("Invalid " + theName + ": " + value);
+         }
+      }
+
+   }
+
+}
@@ -0,0 +1,32 @@
+package ca.uhn.example.patch;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Set;
+
+/**
+ * A parsed patch, which can be applied to any version of a resource, e.g.
+ * again to a newer version if the one it was first applied to has been
+ * replaced meanwhile. Patches are created by {@link Patches}.
+ */
+public interface IResourcePatch {
+
+   /**
+    * Applies the patch to a copy of a resource, leaving the resource itself
+    * unchanged, since it may be a stored version. A generated narrative is
+    * left out of the copy, since it may no longer match.
+    *
+    * @return The patched copy
+    * @throws ca.uhn.fhir.rest.server.exceptions.InvalidRequestException If the patch can't be applied to the resource
+    * @throws ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException If a test in the patch fails
+    */
+   IBaseResource apply(IBaseResource theResource);
+
+   /**
+    * Returns the names of the top level elements which the patch may change,
+    * e.g. <code>name</code>, so that only the rules about those need to be
+    * checked again
+    */
+   Set<String> getChangedElements();
+
+}
@@ -0,0 +1,394 @@
+package ca.uhn.example.patch;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition.ChildTypeEnum;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.hl7.fhir.dstu3.model.Base;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A JSON Patch (RFC 6902), applied to the parsed resource rather than to its
+ * JSON encoding. Paths are JSON pointers to elements by their JSON names,
+ * e.g. <code>/name/0/family</code>. A value is parsed as the type of the
+ * element it is put in, so a patch can't put an invalid value in a
+ * resource. A value which is neither a primitive nor a datatype, e.g. a
+ * <code>Patient.contact</code>, can only be put directly in the resource.
+ * The <code>id</code> and <code>meta</code> of a resource can't be patched.
+ */
+public class JsonPatch implements IResourcePatch {
+
+   private static final ObjectMapper ourMapper = new ObjectMapper();
+   private static final Set<String> ourProtectedElements = new HashSet<>(Arrays.asList("resourceType", "id", "meta"));
+
+   private final FhirContext myCtx;
+   private final ElementEditor myEditor;
+   private final List<Operation> myOperations = new ArrayList<>();
+   private final Set<String> myChangedElements = new LinkedHashSet<>();
+
+   /**
+    * Constructor
+    *
+    * @param theCtx   The context of the resources patched
+    * @param thePatch The JSON array of operations
+    * @throws InvalidRequestException If the patch is not valid
+    */
+   public JsonPatch(FhirContext theCtx, String thePatch) {
+      myCtx = theCtx;
+      myEditor = new ElementEditor(theCtx);
+
+      JsonNode operations;
+      try {
+         operations = ourMapper.readTree(thePatch);
+      } catch (IOException e) {
+         throw new InvalidRequestException("Invalid JSON Patch: " + e.getMessage());
+      }
+      if (operations == null || !operations.isArray()) {
+         throw new InvalidRequestException("A JSON Patch must be an array of operations");
+      }
+      for (JsonNode next : operations) {
+         Operation operation = new Operation(next);
+         myOperations.add(operation);
+         if (!operation.myOp.equals("test")) {
+            myChangedElements.add(operation.myPath.get(0));
+         }
+         if (operation.myOp.equals("move")) {
+            myChangedElements.add(operation.myFrom.get(0));
+         }
+      }
+   }
+
+   @Override
+   public IBaseResource apply(IBaseResource theResource) {
+      IBaseResource retVal = ElementEditor.copy(theResource);
+      for (Operation next : myOperations) {
+         apply(retVal, next);
+      }
+      return retVal;
+   }
+
+   @Override
+   public Set<String> getChangedElements() {
+      return Collections.unmodifiableSet(myChangedElements);
+   }
+
+   private void apply(IBaseResource theResource, Operation theOperation) {
+      Location location;
+      switch (theOperation.myOp) {
+         case "add":
+            location = resolve(theResource, theOperation.myPath, true);
+            add(location, parseValues(theResource, location, theOperation.myValue));
+            break;
+         case "remove":
+            remove(resolve(theResource, theOperation.myPath, false));
+            break;
+         case "replace":
+            location = resolve(theResource, theOperation.myPath, false);
+            List<IBase> values = parseValues(theResource, location, theOperation.myValue);
+            remove(location);
+            add(location, values);
+            break;
+         case "move":
+            if (isPrefix(theOperation.myFrom, theOperation.myPath)) {
+               throw new InvalidRequestException("Can't move " + theOperation.myFromPointer + " into itself");
+            }
+            Location from = resolve(theResource, theOperation.myFrom, false);
+            List<IBase> moved = get(from);
+            remove(from);
+            location = resolve(theResource, theOperation.myPath, true);
+            add(location, convert(location, moved));
+            break;
+         case "copy":
+            List<IBase> copies = new ArrayList<>();
+            for (IBase next : get(resolve(theResource, theOperation.myFrom, false))) {
+               copies.add(ElementEditor.copyValue(next));
+            }
+            location = resolve(theResource, theOperation.myPath, true);
+            add(location, convert(location, copies));
+            break;
+         case "test":
+            location = resolve(theResource, theOperation.myPath, false);
+            if (!equalsDeep(get(location), parseValues(theResource, location, theOperation.myValue))) {
+               throw new UnprocessableEntityException("Test failed at " + theOperation.myPathPointer);
+            }
+            break;
+         default:
+            throw new IllegalStateException(theOperation.myOp);
+      }
+   }
+
+   /**
+    * Finds the element a path points to, which need not exist yet, following
+    * the first value of each element on the way
+    *
+    * @param theAppend Whether the path may end with <code>-</code>, meaning after the last value of a list
+    */
+   private Location resolve(IBaseResource theResource, List<String> thePath, boolean theAppend) {
+      IBase parent = theResource;
+      for (int i = 0; i < thePath.size(); i++) {
+         String name = thePath.get(i);
+         BaseRuntimeChildDefinition child = myEditor.getChild(parent, name);
+         List<IBase> values = myEditor.getValues(parent, child, name);
+         if (child.getMax() != 1 && i + 1 < thePath.size()) {
+            String index = thePath.get(++i);
+            boolean last = i + 1 == thePath.size();
+            if (index.equals("-")) {
+               if (!last || !theAppend) {
+                  throw new InvalidRequestException("Invalid use of - in the path of " + name);
+               }
+               return new Location(parent, child, name, values.size());
+            }
+            int position = parseIndex(name, index);
+            if (last) {
+               return new Location(parent, child, name, position);
+            }
+            if (position >= values.size()) {
+               throw new InvalidRequestException("No value " + position + " of " + name);
+            }
+            parent = values.get(position);
+         } else if (i + 1 == thePath.size()) {
+            return new Location(parent, child, name, null);
+         } else if (values.isEmpty()) {
+            throw new InvalidRequestException("No value of " + name);
+         } else {
+            parent = values.get(0);
+         }
+      }
+      throw new IllegalStateException();
+   }
+
+   private static int parseIndex(String theName, String theIndex) {
+      try {
+         int retVal = Integer.parseInt(theIndex);
+         if (retVal >= 0 && !theIndex.startsWith("+") && (theIndex.length() == 1 || !theIndex.startsWith("0"))) {
+            return retVal;
+         }
+      } catch (NumberFormatException e) {
+         // Reported below
+      }
+      throw new InvalidRequestException("Invalid index of " + theName + ": " + theIndex);
+   }
+
+   /**
+    * Returns the values at a location, which must exist
+    */
+   private List<IBase> get(Location theLocation) {
+      List<IBase> values = myEditor.getValues(theLocation.myParent, theLocation.myChild, theLocation.myName);
+      if (theLocation.myIndex == null) {
+         if (values.isEmpty()) {
+            throw new InvalidRequestException("No value of " + theLocation.myName);
+         }
+         return values;
+      }
+      if (theLocation.myIndex >= values.size()) {
+         throw new InvalidRequestException("No value " + theLocation.myIndex + " of " + theLocation.myName);
+      }
+      return Collections.singletonList(values.get(theLocation.myIndex));
+   }
+
+   private void remove(Location theLocation) {
+      get(theLocation);
+      List<IBase> remaining = new ArrayList<>();
+      if (theLocation.myIndex != null) {
+         remaining.addAll(theLocation.myChild.getAccessor().getValues(theLocation.myParent));
+         remaining.remove(theLocation.myIndex.intValue());
+      }
+      myEditor.setValues(theLocation.myParent, theLocation.myChild, theLocation.myName, remaining);
+   }
+
+   private void add(Location theLocation, List<IBase> theValues) {
+      if (theLocation.myIndex == null) {
+         myEditor.setValues(theLocation.myParent, theLocation.myChild, theLocation.myName, theValues);
+         return;
+      }
+      List<IBase> values = new ArrayList<>(theLocation.myChild.getAccessor().getValues(theLocation.myParent));
+      if (theLocation.myIndex > values.size()) {
+         throw new InvalidRequestException("No value " + theLocation.myIndex + " of " + theLocation.myName);
+      }
+      values.addAll(theLocation.myIndex, theValues);
+      myEditor.setValues(theLocation.myParent, theLocation.myChild, theLocation.myName, values);
+   }
+
+   private List<IBase> convert(Location theLocation, List<IBase> theValues) {
+      List<IBase> retVal = new ArrayList<>(theValues.size());
+      for (IBase next : theValues) {
+         retVal.add(myEditor.convert(theLocation.myChild, theLocation.myName, next));
+      }
+      return retVal;
+   }
+
+   /**
+    * Parses a JSON value as the values of a location: an array for a whole
+    * list, otherwise a single value
+    */
+   private List<IBase> parseValues(IBaseResource theResource, Location theLocation, JsonNode theValue) {
+      if (theLocation.myIndex == null && theLocation.myChild.getMax() != 1) {
+         if (!theValue.isArray()) {
+            throw new InvalidRequestException("Element " + theLocation.myName + " needs an array");
+         }
+         List<IBase> retVal = new ArrayList<>();
+         for (JsonNode next : theValue) {
+            retVal.add(parseValue(theResource, theLocation, next));
+         }
+         return retVal;
+      }
+      return Collections.singletonList(parseValue(theResource, theLocation, theValue));
+   }
+
+   private IBase parseValue(IBaseResource theResource, Location theLocation, JsonNode theValue) {
+      BaseRuntimeElementDefinition<?> type = myEditor.getType(theLocation.myChild, theLocation.myName, null);
+      try {
+         if (type.getChildType() == ChildTypeEnum.PRIMITIVE_DATATYPE) {
+            if (theValue.isContainerNode() || theValue.isNull()) {
+               throw new InvalidRequestException("Element " + theLocation.myName + " needs a primitive value");
+            }
+            return myEditor.newPrimitive(theLocation.myChild, type, theLocation.myName, theValue.asText());
+         }
+         if (!theValue.isObject()) {
+            throw new InvalidRequestException("Element " + theLocation.myName + " needs an object");
+         }
+
+         if (theLocation.myParent == theResource) {
+            // Any element of a resource can be parsed as part of one
+            ObjectNode wrapper = ourMapper.createObjectNode();
+            wrapper.put("resourceType", myCtx.getResourceType(theResource));
+            if (theLocation.myChild.getMax() != 1) {
+               wrapper.putArray(theLocation.myName).add(theValue);
+            } else {
+               wrapper.set(theLocation.myName, theValue);
+            }
+            IBaseResource parsed = myCtx.newJsonParser().parseResource(theResource.getClass(), wrapper.toString());
+            return myEditor.getValues(parsed, theLocation.myChild, theLocation.myName).get(0);
+         }
+
+         if (type.getChildType() == ChildTypeEnum.COMPOSITE_DATATYPE) {
+            // Any datatype can be parsed as the value of a parameter
+            ObjectNode wrapper = ourMapper.createObjectNode();
+            wrapper.put("resourceType", "Parameters");
+            ArrayNode parameters = wrapper.putArray("parameter");
+            parameters.addObject().put("name", "value").set("value" + Character.toUpperCase(type.getName().charAt(0)) + type.getName().substring(1), theValue);
+            Parameters parsed = myCtx.newJsonParser().parseResource(Parameters.class, wrapper.toString());
+            return parsed.getParameterFirstRep().getValue();
+         }
+      } catch (DataFormatException e) {
+         throw new InvalidRequestException("Invalid value for " + theLocation.myName + ": " + e.getMessage());
+      }
+      throw new InvalidRequestException("Element " + theLocation.myName + " can only be patched as part of its parent");
+   }
+
+   private static boolean equalsDeep(List<IBase> theActual, List<IBase> theExpected) {
+      if (theActual.size() != theExpected.size()) {
+         return false;
+      }
+      for (int i = 0; i < theActual.size(); i++) {
+         if (!((Base) theActual.get(i)).equalsDeep((Base) theExpected.get(i))) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static boolean isPrefix(List<String> thePrefix, List<String> thePath) {
+      return thePrefix.size() < thePath.size() && thePath.subList(0, thePrefix.size()).equals(thePrefix);
+   }
+
+   /**
+    * Parses a JSON pointer into the names and indexes it is made of
+    */
+   private static List<String> parsePointer(String thePointer) {
+      if (thePointer == null || !thePointer.startsWith("/") || thePointer.length() == 1) {
+         throw new InvalidRequestException("Invalid path: " + thePointer);
+      }
+      List<String> retVal = new ArrayList<>();
+      for (String next : thePointer.substring(1).split("/", -1)) {
+         retVal.add(next.replace("~1", "/").replace("~0", "~"));
+      }
+      if (ourProtectedElements.contains(retVal.get(0))) {
+         throw new InvalidRequestException("Element " + retVal.get(0) + " can't be patched");
+      }
+      return retVal;
+   }
+
+   /**
+    * An operation of the patch
+    */
+   private static class Operation {
+
+      private final String myOp;
+      private final String myPathPointer;
+      private final List<String> myPath;
+      private final String myFromPointer;
+      private final List<String> myFrom;
+      private final JsonNode myValue;
+
+      Operation(JsonNode theOperation) {
+         if (!theOperation.isObject()) {
+            throw new InvalidRequestException("A JSON Patch operation must be an object");
+         }
+         myOp = theOperation.path("op").asText();
+         myPathPointer = theOperation.path("path").asText(null);
+         myPath = parsePointer(myPathPointer);
+         myFromPointer = theOperation.path("from").asText(null);
+         myValue = theOperation.get("value");
+         switch (myOp) {
+            case "add":
+            case "replace":
+            case "test":
+               if (myValue == null) {
+                  throw new InvalidRequestException("Operation " + myOp + " needs a value");
+               }
+               myFrom = null;
+               break;
+            case "remove":
+               myFrom = null;
+               break;
+            case "move":
+            case "copy":
+               myFrom = parsePointer(myFromPointer);
+               break;
+            default:
+               throw new InvalidRequestException("Unknown JSON Patch operation: " + myOp);
+         }
+      }
+
+   }
+
+   /**
+    * Where in a resource an operation applies: a child of an element, and
+    * an index if it is one value of a list
+    */
+   private static class Location {
+
+      private final IBase myParent;
+      private final BaseRuntimeChildDefinition myChild;
+      private final String myName;
+      private final Integer myIndex;
+
+      Location(IBase theParent, BaseRuntimeChildDefinition theChild, String theName, Integer theIndex) {
+         myParent = theParent;
+         myChild = theChild;
+         myName = theName;
+         myIndex = theIndex;
+      }
+
+   }
+
+}
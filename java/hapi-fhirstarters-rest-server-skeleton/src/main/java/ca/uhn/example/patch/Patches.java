@@ -0,0 +1,47 @@
+package ca.uhn.example.patch;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.PatchTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.dstu3.model.Parameters;
+
+/**
+ * Parses the body of a patch request into an {@link IResourcePatch}, by
+ * its type. JSON Patch and FHIRPath Patch, in JSON or XML, are supported.
+ */
+public class Patches {
+
+   private Patches() {
+      // Static methods only
+   }
+
+   /**
+    * Parses a patch
+    *
+    * @param theCtx  The context of the resources patched
+    * @param theType The type of the patch, from its content type
+    * @param theBody The body of the request
+    * @throws InvalidRequestException If the type is not supported, or the patch is not valid
+    */
+   public static IResourcePatch parse(FhirContext theCtx, PatchTypeEnum theType, String theBody) {
+      if (theType == null) {
+         throw new InvalidRequestException("Unknown patch content type");
+      }
+      try {
+         switch (theType) {
+            case JSON_PATCH:
+               return new JsonPatch(theCtx, theBody);
+            case FHIR_PATCH_JSON:
+               return new FhirPathPatch(theCtx, theCtx.newJsonParser().parseResource(Parameters.class, theBody));
+            case FHIR_PATCH_XML:
+               return new FhirPathPatch(theCtx, theCtx.newXmlParser().parseResource(Parameters.class, theBody));
+            default:
+               throw new InvalidRequestException("Unsupported patch type: " + theType.getContentType());
+         }
+      } catch (DataFormatException e) {
+         throw new InvalidRequestException("Invalid patch: " + e.getMessage());
+      }
+   }
+
+}
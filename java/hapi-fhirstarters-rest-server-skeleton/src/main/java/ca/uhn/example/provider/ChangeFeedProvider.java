@@ -0,0 +1,160 @@
+package ca.uhn.example.provider;
+
+import ca.uhn.example.store.ChangeLog;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.Bundle.HTTPVerb;
+import org.hl7.fhir.dstu3.model.IntegerType;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import java.util.List;
+
+/**
+ * A feed of every new version stored by the server, for clients which keep a
+ * cache or a replica current without polling searches:
+ * <pre>
+ * GET [base]/$changes                          An empty page, whose next link starts at the newest change
+ * GET [base]/$changes?cursor=...&amp;wait=20      The changes after the cursor, waiting up to 20 seconds for one
+ * </pre>
+ * <p>
+ * Each page is a <code>history</code> Bundle of the versions stored after
+ * the cursor, oldest first, with a <code>next</code> link carrying the
+ * cursor to read from next. A client reads the feed by following
+ * <code>next</code> links. Cursors are opaque. If there are no changes after
+ * the cursor yet, the request waits for one for up to <code>wait</code>
+ * seconds (long polling), and then returns an empty page. The feed is read
+ * from a {@link ChangeLog}, which only keeps the most recent changes, so a
+ * cursor which has fallen further behind than that, or which is from before
+ * the server restarted, gets <code>410 Gone</code>. The client must then
+ * reload what it holds, and start again without a cursor.
+ * </p>
+ */
+public class ChangeFeedProvider {
+
+   public static final String OPERATION_NAME = "$changes";
+
+   private static final int DEFAULT_COUNT = 100;
+   private static final int MAX_COUNT = 1000;
+   private static final int MAX_WAIT_SECONDS = 30;
+
+   private final ChangeLog myChangeLog;
+
+   /**
+    * Constructor
+    *
+    * @param theChangeLog The log which the stores append to
+    */
+   public ChangeFeedProvider(ChangeLog theChangeLog) {
+      myChangeLog = theChangeLog;
+   }
+
+   /**
+    * Returns the changes after a cursor
+    *
+    * @param theCursor The cursor from the <code>next</code> link of the last page, or <code>null</code> to start from the newest change
+    * @param theCount  The most changes to return (100, and at most 1000)
+    * @param theWait   How many seconds to wait for a change if there are none yet (0, and at most 30)
+    */
+   @Operation(name = OPERATION_NAME, idempotent = true)
+   public Bundle changes(@OperationParam(name = "cursor") StringType theCursor,
+                         @OperationParam(name = "count") IntegerType theCount,
+                         @OperationParam(name = "wait") IntegerType theWait,
+                         RequestDetails theRequestDetails) {
+      int count = theCount != null && theCount.getValue() != null ? Math.max(1, Math.min(MAX_COUNT, theCount.getValue())) : DEFAULT_COUNT;
+      int waitSeconds = theWait != null && theWait.getValue() != null ? Math.max(0, Math.min(MAX_WAIT_SECONDS, theWait.getValue())) : 0;
+
+      String base = theRequestDetails.getFhirServerBase();
+      Bundle retVal = new Bundle();
+      retVal.setType(Bundle.BundleType.HISTORY);
+      retVal.addLink().setRelation("self").setUrl(theRequestDetails.getCompleteUrl());
+
+      long after;
+      if (theCursor == null || theCursor.isEmpty()) {
+         after = myChangeLog.getLastSequence();
+      } else {
+         after = parseCursor(theCursor.getValue());
+         List<ChangeLog.Change> changes;
+         try {
+            changes = myChangeLog.read(after, count, waitSeconds * 1000L);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalErrorException("Interrupted while waiting for changes");
+         }
+         if (changes == null) {
+            throw new ResourceGoneException("The changes after cursor " + theCursor.getValue() + " are no longer available, reload and read the feed again without a cursor");
+         }
+         for (ChangeLog.Change next : changes) {
+            retVal.addEntry(toEntry(base, next.getResource(), next.getType()));
+            after = next.getSequence();
+         }
+      }
+
+      String nextUrl = base + "/" + OPERATION_NAME + "?cursor=" + formatCursor(after) + "&count=" + count + "&wait=" + waitSeconds;
+      retVal.addLink().setRelation("next").setUrl(nextUrl);
+      return retVal;
+   }
+
+   private String formatCursor(long theSequence) {
+      return Long.toString(myChangeLog.getEpoch(), 36) + "-" + theSequence;
+   }
+
+   /**
+    * Returns the sequence number of a cursor
+    *
+    * @throws ResourceGoneException If the cursor is from another change log, i.e. from before the server restarted
+    */
+   private long parseCursor(String theCursor) {
+      int dash = theCursor.indexOf('-');
+      long epoch;
+      long retVal;
+      try {
+         epoch = Long.parseLong(theCursor.substring(0, Math.max(0, dash)), 36);
+         retVal = Long.parseLong(theCursor.substring(dash + 1));
+      } catch (NumberFormatException e) {
+         throw new InvalidRequestException("Invalid cursor: " + theCursor);
+      }
+      if (epoch != myChangeLog.getEpoch()) {
+         throw new ResourceGoneException("Cursor " + theCursor + " is from before the server restarted, reload and read the feed again without a cursor");
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns the <code>history</code> Bundle entry of a new version, which
+    * Subscription notifications use too
+    *
+    * @param theBase     The server's base URL
+    * @param theResource The version, or the tombstone of a delete, which is left out of the entry
+    * @param theType     Whether the version created, updated or deleted the resource
+    */
+   public static BundleEntryComponent toEntry(String theBase, IBaseResource theResource, ChangeLog.ChangeType theType) {
+      IIdType id = theResource.getIdElement();
+      BundleEntryComponent retVal = new BundleEntryComponent();
+      retVal.setFullUrl(theBase + "/" + id.getResourceType() + "/" + id.getIdPart());
+      if (theType == ChangeLog.ChangeType.CREATE) {
+         retVal.setResource((Resource) theResource);
+         retVal.getRequest().setMethod(HTTPVerb.POST).setUrl(id.getResourceType());
+         retVal.getResponse().setStatus("201 Created");
+      } else if (theType == ChangeLog.ChangeType.DELETE) {
+         retVal.getRequest().setMethod(HTTPVerb.DELETE).setUrl(id.getResourceType() + "/" + id.getIdPart());
+         retVal.getResponse().setStatus("204 No Content");
+      } else {
+         retVal.setResource((Resource) theResource);
+         retVal.getRequest().setMethod(HTTPVerb.PUT).setUrl(id.getResourceType() + "/" + id.getIdPart());
+         retVal.getResponse().setStatus("200 OK");
+      }
+      retVal.getResponse().setEtag("W/\"" + id.getVersionIdPart() + "\"");
+      retVal.getResponse().setLastModified(theResource.getMeta().getLastUpdated());
+      return retVal;
+   }
+
+}
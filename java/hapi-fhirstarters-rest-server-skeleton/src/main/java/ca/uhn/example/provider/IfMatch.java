@@ -0,0 +1,34 @@
+package ca.uhn.example.provider;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * Reads the version a client expects from the <code>If-Match</code> header of
+ * an update or a patch. HAPI FHIR only puts it in the version of the ID for a
+ * plain update, not for a conditional update or a patch, so the providers read
+ * the header the same way for all three.
+ */
+class IfMatch {
+
+   private IfMatch() {
+      // Static methods only
+   }
+
+   /**
+    * Returns the version in the <code>If-Match</code> header of a request, e.g. <code>3</code> for <code>W/"3"</code>,
+    * or <code>null</code> if there is none
+    */
+   static String getVersion(RequestDetails theRequestDetails) {
+      String retVal = theRequestDetails.getHeader(Constants.HEADER_IF_MATCH);
+      if (retVal == null || retVal.trim().isEmpty()) {
+         return null;
+      }
+      retVal = retVal.trim();
+      if (retVal.startsWith("W/")) {
+         retVal = retVal.substring(2);
+      }
+      return retVal.replace("\"", "");
+   }
+
+}
@@ -0,0 +1,215 @@
+package ca.uhn.example.provider;
+
+import ca.uhn.example.intern.ResourceInterner;
+import ca.uhn.example.search.DateRanges;
+import ca.uhn.example.search.IResourceLookup;
+import ca.uhn.example.search.IncludeResolver;
+import ca.uhn.example.search.LookupBundleProvider;
+import ca.uhn.example.search.Projection;
+import ca.uhn.example.store.ChangeLog;
+import ca.uhn.example.store.ObservationStore;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.annotation.*;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.IntegerType;
+import org.hl7.fhir.dstu3.model.Observation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This is a resource provider for Observations, such as vital signs, which are
+ * created in large numbers and mostly searched by subject, code and date. The
+ * Observations are held in an {@link ObservationStore}, which keeps the
+ * effective times and values of each subject and code in arrays, and the
+ * resources themselves encoded.
+ * <p>
+ * Searches by subject, code and date range, and the <code>$lastn</code>
+ * operation, find the matching Observations by binary searching those arrays,
+ * and only the Observations in the page being returned are decoded. Only the
+ * current version of each Observation is kept.
+ * </p>
+ * <p>
+ * With <code>_summary</code> or <code>_elements</code>, only the requested
+ * elements are decoded, e.g. <code>_elements=subject,effective,value</code>
+ * skips the code, the reference ranges and any components.
+ * </p>
+ */
+public class ObservationResourceProvider implements IResourceProvider, IResourceLookup {
+
+   private final ObservationStore myStore;
+   private final IncludeResolver myIncludeResolver;
+   private final RuntimeResourceDefinition myDefinition;
+
+   /**
+    * Constructor
+    *
+    * @param theCtx             The server's context
+    * @param theIncludeResolver Resolves includes, and holds the reference index which this provider keeps up to date
+    */
+   public ObservationResourceProvider(FhirContext theCtx, IncludeResolver theIncludeResolver) {
+      this(theCtx, theIncludeResolver, null);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param theCtx             The server's context
+    * @param theIncludeResolver Resolves includes, and holds the reference index which this provider keeps up to date
+    * @param theChangeLog       The log which every new version is appended to, or <code>null</code>
+    */
+   public ObservationResourceProvider(FhirContext theCtx, IncludeResolver theIncludeResolver, ChangeLog theChangeLog) {
+      this(theCtx, theIncludeResolver, theChangeLog, null);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param theCtx             The server's context
+    * @param theIncludeResolver Resolves includes, and holds the reference index which this provider keeps up to date
+    * @param theChangeLog       The log which every new version is appended to, or <code>null</code>
+    * @param theInterner        Interns the Observations decoded from the store, or <code>null</code>
+    */
+   public ObservationResourceProvider(FhirContext theCtx, IncludeResolver theIncludeResolver, ChangeLog theChangeLog, ResourceInterner theInterner) {
+      myStore = new ObservationStore(theCtx, theChangeLog, theInterner);
+      myIncludeResolver = theIncludeResolver;
+      myDefinition = theCtx.getResourceDefinition(Observation.class);
+   }
+
+   /**
+    * The getResourceType method comes from IResourceProvider, and must be overridden to indicate what type of resource this provider supplies.
+    */
+   @Override
+   public Class<Observation> getResourceType() {
+      return Observation.class;
+   }
+
+   /**
+    * Reads an Observation, decoding only the elements asked for with
+    * <code>_summary</code> or <code>_elements</code>
+    */
+   @Read()
+   public Observation readObservation(@IdParam IdType theId, Set<SummaryEnum> theSummary, @Elements Set<String> theElements) {
+      Observation retVal = null;
+      if (theId.isIdPartValidLong()) {
+         retVal = myStore.read(theId.getIdPartAsLong(), Projection.forRequest(myDefinition, theSummary, theElements));
+      }
+      if (retVal == null) {
+         throw new ResourceNotFoundException(theId);
+      }
+      return retVal;
+   }
+
+   @Create()
+   public MethodOutcome createObservation(@ResourceParam Observation theObservation) {
+      myStore.create(theObservation);
+      myIncludeResolver.getReferenceIndex().indexReferences(theObservation);
+      return new MethodOutcome(theObservation.getIdElement());
+   }
+
+   @Update()
+   public MethodOutcome updateObservation(@IdParam IdType theId, @ResourceParam Observation theObservation) {
+      if (!theId.isIdPartValidLong() || myStore.update(theId.getIdPartAsLong(), theObservation) == null) {
+         throw new ResourceNotFoundException(theId);
+      }
+      myIncludeResolver.getReferenceIndex().indexReferences(theObservation);
+      return new MethodOutcome(theObservation.getIdElement());
+   }
+
+   /**
+    * Searches a subject's Observations by code, and optionally by date, e.g.
+    * <code>Observation?subject=Patient/1&amp;code=http://loinc.org|8867-4&amp;date=ge2020-01-01&amp;date=lt2020-02-01</code>.
+    * The results are in date order, oldest first.
+    *
+    * @param theSubject  The subject, e.g. Patient/1
+    * @param theCode     One or more codes, as system|code or just code
+    * @param theDate     The range of effective times, which may be open at either end
+    * @param theSummary  The "_summary" parameter
+    * @param theElements The "_elements" parameter
+    */
+   @Search()
+   public IBundleProvider findObservations(@RequiredParam(name = Observation.SP_SUBJECT) ReferenceParam theSubject,
+                                           @RequiredParam(name = Observation.SP_CODE) TokenOrListParam theCode,
+                                           @OptionalParam(name = Observation.SP_DATE) DateRangeParam theDate,
+                                           @IncludeParam(allow = {"Observation:patient", "Observation:subject", "*"}) Set<Include> theIncludes,
+                                           @IncludeParam(reverse = true) Set<Include> theRevIncludes,
+                                           Set<SummaryEnum> theSummary,
+                                           @Elements Set<String> theElements) {
+      long[] range = DateRanges.toInstantRange(theDate);
+      List<String> ids = myStore.findIds(toSubject(theSubject), toCodes(theCode), range[0], range[1]);
+      Projection projection = Projection.forRequest(myDefinition, theSummary, theElements);
+      return myIncludeResolver.newBundleProvider(new LookupBundleProvider(ids, myStore, projection), theIncludes, theRevIncludes);
+   }
+
+   /**
+    * The "$lastn" operation returns the most recent Observations of each code
+    * for a subject, e.g. <code>Observation/$lastn?subject=Patient/1&amp;max=3</code>.
+    * The results are grouped by code, newest first.
+    *
+    * @param theSubject  The subject, e.g. Patient/1
+    * @param theCode     The codes to return, or every code the subject has if not given
+    * @param theMax      The number of Observations to return for each code, which defaults to 1
+    * @param theSummary  The "_summary" parameter
+    * @param theElements The "_elements" parameter
+    */
+   @Operation(name = "$lastn", idempotent = true)
+   public IBundleProvider lastN(@OperationParam(name = Observation.SP_SUBJECT) ReferenceParam theSubject,
+                                @OperationParam(name = Observation.SP_PATIENT) ReferenceParam thePatient,
+                                @OperationParam(name = Observation.SP_CODE) TokenOrListParam theCode,
+                                @OperationParam(name = "max") IntegerType theMax,
+                                Set<SummaryEnum> theSummary,
+                                @Elements Set<String> theElements) {
+      ReferenceParam subject = theSubject != null ? theSubject : thePatient;
+      if (subject == null) {
+         throw new InvalidRequestException("$lastn requires a subject or patient");
+      }
+      int max = theMax != null && theMax.getValue() != null ? theMax.getValue() : 1;
+      if (max < 1) {
+         throw new InvalidRequestException("max must be at least 1");
+      }
+
+      List<String> ids = myStore.findLastIds(toSubject(subject), toCodes(theCode), max);
+      return new LookupBundleProvider(ids, myStore, Projection.forRequest(myDefinition, theSummary, theElements));
+   }
+
+   /**
+    * Returns the current version of each of the given Observations, for includes
+    */
+   @Override
+   public List<Observation> readLatest(Collection<String> theIdParts) {
+      return myStore.readLatest(theIdParts);
+   }
+
+   /**
+    * Subjects are assumed to be Patients unless the reference says otherwise
+    */
+   private static String toSubject(ReferenceParam theSubject) {
+      String resourceType = theSubject.getResourceType() != null ? theSubject.getResourceType() : "Patient";
+      return resourceType + "/" + theSubject.getIdPart();
+   }
+
+   private static List<String> toCodes(TokenOrListParam theCodes) {
+      List<String> retVal = new ArrayList<>();
+      if (theCodes != null) {
+         for (TokenParam next : theCodes.getValuesAsQueryTokens()) {
+            retVal.add(next.getSystem() != null ? next.getSystem() + "|" + next.getValue() : next.getValue());
+         }
+      }
+      return retVal;
+   }
+
+}
@@ -1,28 +1,105 @@
 package ca.uhn.example.provider;
 
-import ca.uhn.fhir.model.primitive.BooleanDt;
-import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.example.patch.IResourcePatch;
+import ca.uhn.example.patch.Patches;
+import ca.uhn.example.search.IResourceLookup;
+import ca.uhn.example.search.IncludeResolver;
+import ca.uhn.example.store.ChangeLog;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.annotation.*;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.PatchTypeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import org.hl7.fhir.dstu3.model.BooleanType;
 import org.hl7.fhir.dstu3.model.CodeType;
 import org.hl7.fhir.dstu3.model.ContactPoint;
 import org.hl7.fhir.dstu3.model.ContactPoint.ContactPointUse;
 
 import ca.uhn.example.model.MyOrganization;
-import ca.uhn.fhir.rest.annotation.IdParam;
-import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.StringType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
 
 /**
- * This is a simple resource provider which only implements "read/GET" methods, but
- * which uses a custom subclassed resource definition to add statically bound
- * extensions.
- * 
- * See the MyOrganization definition to see how the custom resource 
+ * This is a simple resource provider which uses a custom subclassed resource
+ * definition to add statically bound extensions. Organizations are kept in
+ * memory, and only the current version of each one is stored.
+ *
+ * See the MyOrganization definition to see how the custom resource
  * definition works.
+ * <p>
+ * Searches support <code>_revinclude</code>, so that e.g. an Organization
+ * can be fetched along with its Patients using
+ * <code>_revinclude=Patient:organization</code>.
+ * </p>
+ * <p>
+ * Patches are applied to the current version while it is being replaced,
+ * so no other update can come between. The extensions declared by
+ * MyOrganization have no JSON name of their own, so they can't be patched.
+ * </p>
  */
-public class OrganizationResourceProvider implements IResourceProvider {
+public class OrganizationResourceProvider implements IResourceProvider, IResourceLookup {
+
+	private final Map<String, MyOrganization> myIdToOrganization = new ConcurrentHashMap<>();
+
+	/**
+	 * This is used to generate new IDs
+	 */
+	private final AtomicLong myNextId = new AtomicLong(1);
+
+	private final IncludeResolver myIncludeResolver;
+
+	private final ChangeLog myChangeLog;
+
+	/**
+	 * Constructor, which pre-populates the provider with one organization.
+	 *
+	 * @param theIncludeResolver Resolves includes, and holds the reference index which this provider keeps up to date
+	 */
+	public OrganizationResourceProvider(IncludeResolver theIncludeResolver) {
+		this(theIncludeResolver, null);
+	}
+
+	/**
+	 * Constructor, which pre-populates the provider with one organization.
+	 *
+	 * @param theIncludeResolver Resolves includes, and holds the reference index which this provider keeps up to date
+	 * @param theChangeLog The log which every new version is appended to, or <code>null</code>
+	 */
+	public OrganizationResourceProvider(IncludeResolver theIncludeResolver, ChangeLog theChangeLog) {
+		myIncludeResolver = theIncludeResolver;
+		myChangeLog = theChangeLog;
+
+		MyOrganization organization = new MyOrganization();
+		organization.setName("Foo Organization");
+		organization.addIdentifier().setSystem("urn:example:orgs").setValue("FooOrganization");
+		organization.addAddress().addLine("123 Fake Street").setCity("Toronto");
+		organization.addTelecom().setUse(ContactPointUse.WORK).setValue("1-888-123-4567");
+
+		// Populate the first, primitive extension
+		organization.setBillingCode(new CodeType("00102-1"));
+
+		// The second extension is repeatable and takes a block type
+		MyOrganization.EmergencyContact contact = new MyOrganization.EmergencyContact();
+		contact.setActive(new BooleanType(true));
+		contact.setContact(new ContactPoint());
+		organization.getEmergencyContact().add(contact);
+
+		store(Long.toString(myNextId.getAndIncrement()), organization);
+	}
 
 	/**
 	 * The getResourceType method comes from IResourceProvider, and must be overridden to indicate what type of resource this provider supplies.
@@ -34,40 +111,128 @@ public class OrganizationResourceProvider implements IResourceProvider {
 
 	/**
 	 * The "@Read" annotation indicates that this method supports the read operation. It takes one argument, the Resource type being returned.
-	 * 
+	 *
 	 * @param theId
 	 *            The read operation takes one parameter, which must be of type IdDt and must be annotated with the "@Read.IdParam" annotation.
 	 * @return Returns a resource matching this identifier, or null if none exists.
 	 */
 	@Read()
 	public MyOrganization getResourceById(@IdParam IdType theId) {
-		
-		/*
-		 * We only support one organization, so the follwing
-		 * exception causes an HTTP 404 response if the 
-		 * ID of "1" isn't used.
-		 */
-		if (!"1".equals(theId.getValue())) {
+		MyOrganization retVal = myIdToOrganization.get(theId.getIdPart());
+		if (retVal == null) {
 			throw new ResourceNotFoundException(theId);
 		}
-		
-		MyOrganization retVal = new MyOrganization();
-		retVal.setId("1");
-		retVal.addIdentifier().setSystem("urn:example:orgs").setValue("FooOrganization");
-		retVal.addAddress().addLine("123 Fake Street").setCity("Toronto");
-		retVal.addTelecom().setUse(ContactPointUse.WORK).setValue("1-888-123-4567");
-		
-		// Populate the first, primitive extension
-		retVal.setBillingCode(new CodeType("00102-1"));
-		
-		// The second extension is repeatable and takes a block type
-		MyOrganization.EmergencyContact contact = new MyOrganization.EmergencyContact();
-		contact.setActive(new BooleanType(true));
-		contact.setContact(new ContactPoint());
-		retVal.getEmergencyContact().add(contact);
-		
 		return retVal;
 	}
 
+	/**
+	 * Searches by name (a case-insensitive "starts with" match, as for FHIR string
+	 * parameters), or returns every organization if no name is given.
+	 */
+	@Search()
+	public IBundleProvider findOrganizations(@OptionalParam(name = MyOrganization.SP_NAME) StringType theName,
+			@IncludeParam(allow = {"Organization:partof", "*"}) Set<Include> theIncludes,
+			@IncludeParam(reverse = true, allow = {"Organization:partof", "Patient:general-practitioner", "Patient:organization", "*"}) Set<Include> theRevIncludes) {
+		List<MyOrganization> retVal = new ArrayList<>();
+		for (MyOrganization next : myIdToOrganization.values()) {
+			if (theName == null || (next.hasName() && next.getName().toLowerCase().startsWith(theName.getValue().toLowerCase()))) {
+				retVal.add(next);
+			}
+		}
+		return myIncludeResolver.newBundleProvider(retVal, theIncludes, theRevIncludes);
+	}
+
+	@Create()
+	public MethodOutcome createOrganization(@ResourceParam MyOrganization theOrganization) {
+		String id = Long.toString(myNextId.getAndIncrement());
+		store(id, theOrganization);
+		return new MethodOutcome(theOrganization.getIdElement());
+	}
+
+	/**
+	 * Replaces an organization. With <code>If-Match</code>, the version is
+	 * checked as the new one is stored, so the update fails (HTTP 412) if
+	 * another one has been stored since.
+	 */
+	@Update()
+	public MethodOutcome updateOrganization(@IdParam IdType theId, @ResourceParam MyOrganization theOrganization, RequestDetails theRequestDetails) {
+		String ifMatchVersion = IfMatch.getVersion(theRequestDetails);
+		store(theId.getIdPart(), thePrevious -> {
+			checkVersion(theId, thePrevious, ifMatchVersion);
+			return theOrganization;
+		});
+		return new MethodOutcome(theOrganization.getIdElement());
+	}
+
+	/**
+	 * Patches an organization. As for an update, <code>If-Match</code> is
+	 * checked as the new version is stored.
+	 */
+	@Patch()
+	public MethodOutcome patchOrganization(@IdParam IdType theId, PatchTypeEnum thePatchType, @ResourceParam String theBody, RequestDetails theRequestDetails) {
+		IResourcePatch patch = Patches.parse(myIncludeResolver.getFhirContext(), thePatchType, theBody);
+		String ifMatchVersion = IfMatch.getVersion(theRequestDetails);
+		MyOrganization retVal = store(theId.getIdPart(), thePrevious -> {
+			checkVersion(theId, thePrevious, ifMatchVersion);
+			return (MyOrganization) patch.apply(thePrevious);
+		});
+		return new MethodOutcome(retVal.getIdElement());
+	}
+
+	/**
+	 * Checks that an organization exists and, if the client expects a version,
+	 * that it is the current one
+	 */
+	private static void checkVersion(IdType theId, MyOrganization thePrevious, String theExpectedVersion) {
+		if (thePrevious == null) {
+			throw new ResourceNotFoundException(theId);
+		}
+		String currentVersion = thePrevious.getIdElement().getVersionIdPart();
+		if (theExpectedVersion != null && !theExpectedVersion.equals(currentVersion)) {
+			throw new PreconditionFailedException("Organization/" + theId.getIdPart() + " is at version " + currentVersion + ", not " + theExpectedVersion);
+		}
+	}
+
+	/**
+	 * Returns the current version of each of the given organizations, for includes
+	 */
+	@Override
+	public List<MyOrganization> readLatest(Collection<String> theIdParts) {
+		List<MyOrganization> retVal = new ArrayList<>(theIdParts.size());
+		for (String nextIdPart : theIdParts) {
+			MyOrganization next = myIdToOrganization.get(nextIdPart);
+			if (next != null) {
+				retVal.add(next);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Stores an organization, replacing the current version if there is one
+	 */
+	private void store(String theId, MyOrganization theOrganization) {
+		store(theId, thePrevious -> theOrganization);
+	}
+
+	/**
+	 * Stores an organization made from the current version, or from <code>null</code>
+	 * if there is none, while no other version of it can be stored
+	 *
+	 * @return The organization stored
+	 */
+	private MyOrganization store(String theId, UnaryOperator<MyOrganization> theUpdate) {
+		return myIdToOrganization.compute(theId, (theKey, thePrevious) -> {
+			MyOrganization organization = theUpdate.apply(thePrevious);
+			long version = thePrevious != null ? thePrevious.getIdElement().getVersionIdPartAsLong() + 1 : 1;
+			organization.setId(new IdType("Organization", theKey, Long.toString(version)));
+			organization.getMeta().setLastUpdatedElement(InstantType.withCurrentTime());
+			myIncludeResolver.getReferenceIndex().indexReferences(organization);
+			if (myChangeLog != null) {
+				myChangeLog.append(organization, thePrevious == null ? ChangeLog.ChangeType.CREATE : ChangeLog.ChangeType.UPDATE);
+			}
+			return organization;
+		});
+	}
 
 }
@@ -1,139 +1,373 @@
 package ca.uhn.example.provider;
 
+import ca.uhn.example.index.StripedLocks;
+import ca.uhn.example.patch.IResourcePatch;
+import ca.uhn.example.patch.Patches;
+import ca.uhn.example.search.Criteria;
+import ca.uhn.example.search.ICriteriaCompiler;
+import ca.uhn.example.search.IResourceLookup;
+import ca.uhn.example.search.IncludeResolver;
+import ca.uhn.example.search.LookupBundleProvider;
+import ca.uhn.example.search.Projection;
+import ca.uhn.example.search.SearchPlanner;
+import ca.uhn.example.store.ChangeLog;
+import ca.uhn.example.store.PatientStore;
+import ca.uhn.example.store.RetentionPolicy;
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.rest.annotation.*;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.PatchTypeEnum;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.DateAndListParam;
+import ca.uhn.fhir.rest.param.StringAndListParam;
+import ca.uhn.fhir.rest.param.TokenAndListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.fhir.util.UrlUtil;
 import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
 import org.hl7.fhir.dstu3.model.*;
 import org.hl7.fhir.dstu3.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 /**
- * This is a resource provider which stores Patient resources in memory using a HashMap. This is obviously not a production-ready solution for many reasons,
- * but it is useful to help illustrate how to build a fully-functional server.
+ * This is a resource provider which stores Patient resources in memory using a {@link PatientStore}. This is obviously not a production-ready
+ * solution for many reasons, but it is useful to help illustrate how to build a fully-functional server.
+ * <p>
+ * Searches support <code>_include</code> and <code>_revinclude</code>. The references of each new version are recorded in a
+ * {@link ca.uhn.example.index.ReferenceIndex}, and the {@link IncludeResolver} uses it to fetch the related resources of a page
+ * of results in one batch.
+ * </p>
+ * <p>
+ * The store is split into partitions by Patient ID, each with its own indexes, and searches run in every partition at once.
+ * Birth dates are kept in a {@link ca.uhn.example.index.DateIndex}, sorted by date, so that <code>birthdate</code> searches only visit the Patients
+ * within the requested range, and <code>_sort=birthdate</code> costs nothing extra.
+ * </p>
+ * <p>
+ * Identifiers are kept in a {@link ca.uhn.example.index.TokenIndex}, so <code>identifier</code> searches are a hash lookup. Family and given names
+ * and gender have indexes of their own, and searches combining several parameters are planned by the {@link SearchPlanner}. Conditional create
+ * (<code>If-None-Exist: identifier=system|value</code>) and conditional update (<code>PUT Patient?identifier=system|value</code>)
+ * check the indexes and store the Patient while holding a {@link StripedLocks} lock for that identifier, so two clients creating the same
+ * Patient at once cannot both succeed.
+ * </p>
+ * <p>
+ * Reads and searches with <code>_summary</code> or <code>_elements</code> return copies of the stored Patients holding only
+ * the requested elements (see {@link Projection}), so the server never walks, or generates a narrative for, the elements it
+ * would leave out. Only the Patients on the page being returned are copied. The copies keep the version and last updated
+ * time, so a client can revalidate a projected read with <code>If-None-Match</code> as it would a full one.
+ * </p>
+ * <p>
+ * Subscription criteria on the indexed parameters are compiled into predicates on the same indexes, which check each new
+ * version of a Patient as it is stored.
+ * </p>
+ * <p>
+ * A delete stores a tombstone as the Patient's new version, so reads of it get HTTP 410 and searches leave it out, and an
+ * update creates it again. Old versions are kept as the {@link RetentionPolicy} says, and pruned in the background by a
+ * {@link ca.uhn.example.store.HistoryCompactor}, which also collapses each deleted Patient to its tombstone.
+ * </p>
+ * <p>
+ * Updates and patches are stored with a compare-and-set on the Patient's current version, which holds the lock on that
+ * Patient's bin of the store's map, so no lock is shared by all writers. An update or patch with <code>If-Match</code> fails with HTTP 412 if another version was stored
+ * since the one the client read. A patch without it is applied again to the newer version, so two clients patching
+ * different elements at once both keep their change. Only a patch which changes the name is validated again.
+ * </p>
  */
-public class PatientResourceProvider implements IResourceProvider {
+public class PatientResourceProvider implements IResourceProvider, IResourceLookup, ICriteriaCompiler {
+
+   private final FhirContext myCtx;
+
+   private final PatientStore myStore;
+
+   private final IncludeResolver myIncludeResolver;
+
+   private final RuntimeResourceDefinition myDefinition;
 
    /**
-    * This map has a resource ID as a key, and each key maps to a Deque list containing all versions of the resource with that ID.
+    * Locks on identifier values, held by conditional creates and updates and by every write which adds an identifier to a Patient
     */
-   private Map<Long, Deque<Patient>> myIdToPatientVersions = new HashMap<Long, Deque<Patient>>();
+   private final StripedLocks myIdentifierLocks = new StripedLocks(64);
 
    /**
-    * This is used to generate new IDs
+    * Constructor, which pre-populates the provider with one resource instance, and partitions the store with one partition
+    * for each processor.
+    *
+    * @param theCtx             The server's context
+    * @param theIncludeResolver Resolves includes, and holds the reference index which this provider keeps up to date
     */
-   private long myNextId = 1;
+   public PatientResourceProvider(FhirContext theCtx, IncludeResolver theIncludeResolver) {
+      this(theCtx, theIncludeResolver, Runtime.getRuntime().availableProcessors());
+   }
 
    /**
     * Constructor, which pre-populates the provider with one resource instance.
+    *
+    * @param theCtx             The server's context
+    * @param theIncludeResolver Resolves includes, and holds the reference index which this provider keeps up to date
+    * @param thePartitions      The number of partitions of the store
     */
-   public PatientResourceProvider() {
-      long resourceId = myNextId++;
+   public PatientResourceProvider(FhirContext theCtx, IncludeResolver theIncludeResolver, int thePartitions) {
+      this(theCtx, theIncludeResolver, thePartitions, null);
+   }
+
+   /**
+    * Constructor, which pre-populates the provider with one resource instance.
+    *
+    * @param theCtx             The server's context
+    * @param theIncludeResolver Resolves includes, and holds the reference index which this provider keeps up to date
+    * @param thePartitions      The number of partitions of the store
+    * @param theChangeLog       The log which every new version is appended to, or <code>null</code>
+    */
+   public PatientResourceProvider(FhirContext theCtx, IncludeResolver theIncludeResolver, int thePartitions, ChangeLog theChangeLog) {
+      this(theCtx, theIncludeResolver, thePartitions, theChangeLog, RetentionPolicy.keepAll());
+   }
+
+   /**
+    * Constructor, which pre-populates the provider with one resource instance.
+    *
+    * @param theCtx             The server's context
+    * @param theIncludeResolver Resolves includes, and holds the reference index which this provider keeps up to date
+    * @param thePartitions      The number of partitions of the store
+    * @param theChangeLog       The log which every new version is appended to, or <code>null</code>
+    * @param theRetentionPolicy Which old versions are kept
+    */
+   public PatientResourceProvider(FhirContext theCtx, IncludeResolver theIncludeResolver, int thePartitions, ChangeLog theChangeLog, RetentionPolicy theRetentionPolicy) {
+      myCtx = theCtx;
+      myIncludeResolver = theIncludeResolver;
+      myDefinition = theCtx.getResourceDefinition(Patient.class);
+      myStore = new PatientStore(theIncludeResolver.getReferenceIndex(), thePartitions, ForkJoinPool.commonPool(), theChangeLog, theRetentionPolicy);
 
       Patient patient = new Patient();
-      patient.setId(Long.toString(resourceId));
       patient.addIdentifier();
       patient.getIdentifier().get(0).setSystem("urn:hapitest:mrns");
       patient.getIdentifier().get(0).setValue("00002");
       patient.addName().setFamily("Test");
       patient.getName().get(0).addGiven("PatientOne");
       patient.setGender(AdministrativeGender.FEMALE);
+      patient.setManagingOrganization(new Reference("Organization/1"));
 
-      LinkedList<Patient> list = new LinkedList<>();
-      list.add(patient);
-
-
-      myIdToPatientVersions.put(resourceId, list);
+      myStore.addNewVersion(patient, myStore.newId());
+   }
 
+   /**
+    * Returns the store, for a {@link ca.uhn.example.store.HistoryCompactor} to compact
+    */
+   public PatientStore getStore() {
+      return myStore;
    }
 
    /**
-    * Stores a new version of the patient in memory so that it can be retrieved later.
-    *
-    * @param thePatient The patient resource to store
-    * @param theId      The ID of the patient to retrieve
+    * Returns the identifier values of a Patient, which are the locks its creation or update must hold
     */
-   private void addNewVersion(Patient thePatient, Long theId) {
-      if (!myIdToPatientVersions.containsKey(theId)) {
-         myIdToPatientVersions.put(theId, new LinkedList<>());
+   private static List<String> getIdentifierValues(Patient thePatient) {
+      List<String> retVal = new ArrayList<>();
+      for (Identifier next : thePatient.getIdentifier()) {
+         if (next.hasValue()) {
+            retVal.add(next.getValue());
+         }
       }
-
-      thePatient.getMeta().setLastUpdatedElement(InstantType.withCurrentTime());
-
-      Deque<Patient> existingVersions = myIdToPatientVersions.get(theId);
-
-      // We just use the current number of versions as the next version number
-      String newVersion = Integer.toString(existingVersions.size());
-
-      // Create an ID with the new version and assign it back to the resource
-      IdType newId = new IdType("Patient", Long.toString(theId), newVersion);
-      thePatient.setId(newId);
-
-      existingVersions.add(thePatient);
+      return retVal;
    }
 
    /**
     * The "@Create" annotation indicates that this method implements "create=type", which adds a
     * new instance of a resource to the server.
+    * <p>
+    * If the request has an <code>If-None-Exist: identifier=system|value</code> header, the Patient is only created if no
+    * Patient has that identifier. Otherwise the existing Patient is returned, with HTTP 200 rather than 201.
+    * </p>
+    *
+    * @param theConditionalUrl The "If-None-Exist" criteria, or <code>null</code>
     */
    @Create()
-   public MethodOutcome createPatient(@ResourceParam Patient thePatient) {
+   public MethodOutcome createPatient(@ResourceParam Patient thePatient, @ConditionalUrlParam String theConditionalUrl) {
       validateResource(thePatient);
 
-      // Here we are just generating IDs sequentially
-      long id = myNextId++;
+      TokenParam condition = theConditionalUrl != null ? parseConditionalUrl(theConditionalUrl) : null;
+      List<String> lockValues = getIdentifierValues(thePatient);
+      if (condition != null) {
+         lockValues.add(condition.getValue());
+      }
+
+      return myIdentifierLocks.locked(lockValues, () -> {
+         if (condition != null) {
+            Long existingId = findSingleMatch(condition, theConditionalUrl);
+            if (existingId != null) {
+               MethodOutcome retVal = new MethodOutcome(myStore.getLatest(existingId).getIdElement());
+               retVal.setCreated(false);
+               return retVal;
+            }
+         }
 
-      addNewVersion(thePatient, id);
+         // Here we are just generating IDs sequentially
+         long id = myStore.newId();
 
-      // Let the caller know the ID of the newly created resource
-      return new MethodOutcome(new IdType(id));
+         myStore.addNewVersion(thePatient, id);
+
+         // Let the caller know the ID of the newly created resource
+         return new MethodOutcome(new IdType(id), true);
+      });
    }
 
    /**
     * The "@Search" annotation indicates that this method supports the search operation. You may have many different method annotated with this annotation, to support many different search criteria.
-    * This example searches by family name.
+    * This example searches by family name, and optionally by the other indexed parameters.
     *
     * @param theFamilyName This operation takes one parameter which is the search criteria. It is annotated with the "@Required" annotation. This annotation takes one argument, a string containing the name of
-    *                      the search criteria. The datatype here is StringDt, but there are other possible parameter types depending on the specific search criteria.
-    * @return This method returns a list of Patients. This list may contain multiple matching resources, or it may also be empty.
+    *                      the search criteria. The datatype here is StringAndListParam, but there are other possible parameter types depending on the specific search criteria.
+    * @param theGiven       The "given" parameter
+    * @param theIdentifier  The "identifier" parameter, e.g. urn:hapitest:mrns|00002
+    * @param theGender      The "gender" parameter
+    * @param theBirthDate   The "birthdate" parameter, with any prefixes, e.g. ge1970-01-01
+    * @param theSort        The "_sort" parameter, which may only sort by birthdate
+    * @param theIncludes    The "_include" parameters, e.g. Patient:organization
+    * @param theRevIncludes The "_revinclude" parameters, e.g. Patient:link
+    * @param theSummary     The "_summary" parameter
+    * @param theElements    The "_elements" parameter
+    * @return This method returns the matching Patients, which may be empty, along with any included resources.
     */
    @Search()
-   public List<Patient> findPatientsByName(@RequiredParam(name = Patient.SP_FAMILY) StringType theFamilyName) {
-      LinkedList<Patient> retVal = new LinkedList<Patient>();
+   public IBundleProvider findPatientsByName(@RequiredParam(name = Patient.SP_FAMILY) StringAndListParam theFamilyName,
+                                             @OptionalParam(name = Patient.SP_GIVEN) StringAndListParam theGiven,
+                                             @OptionalParam(name = Patient.SP_IDENTIFIER) TokenAndListParam theIdentifier,
+                                             @OptionalParam(name = Patient.SP_GENDER) TokenAndListParam theGender,
+                                             @OptionalParam(name = Patient.SP_BIRTHDATE) DateAndListParam theBirthDate,
+                                             @Sort SortSpec theSort,
+                                             @IncludeParam(allow = {"Patient:general-practitioner", "Patient:link", "Patient:organization", "*"}) Set<Include> theIncludes,
+                                             @IncludeParam(reverse = true, allow = {"Observation:patient", "Observation:subject", "Patient:link", "*"}) Set<Include> theRevIncludes,
+                                             Set<SummaryEnum> theSummary,
+                                             @Elements Set<String> theElements) {
+      return findPatientsUsingArbitraryCtriteria(theFamilyName, theGiven, theIdentifier, theGender, theBirthDate, theSort, theIncludes, theRevIncludes, theSummary, theElements);
+   }
 
-      /*
-       * Look for all patients matching the name
-       */
-      for (Deque<Patient> nextPatientList : myIdToPatientVersions.values()) {
-         Patient nextPatient = nextPatientList.getLast();
-         NAMELOOP:
-         for (HumanName nextName : nextPatient.getName()) {
-            String nextFamily = nextName.getFamily();
-            if (theFamilyName.equals(nextFamily)) {
-               retVal.add(nextPatient);
-               break NAMELOOP;
-            }
-         }
+   /**
+    * Returns every Patient, or the Patients matching any combination of
+    * family, given, identifier, gender and birthdate. Each of these has its
+    * own index in each partition of the store, and the {@link SearchPlanner}
+    * evaluates them starting from the most selective. A search by birthdate
+    * alone, or by nothing but _sort=birthdate, walks the birth date index in
+    * date order so the results come out sorted. Patients without a birth date
+    * come last. The sorted results of the partitions are merged as pages are
+    * fetched, and with _summary or _elements, only the requested elements of
+    * the Patients on each page are copied.
+    */
+   @Search
+   public IBundleProvider findPatientsUsingArbitraryCtriteria(@OptionalParam(name = Patient.SP_FAMILY) StringAndListParam theFamily,
+                                                              @OptionalParam(name = Patient.SP_GIVEN) StringAndListParam theGiven,
+                                                              @OptionalParam(name = Patient.SP_IDENTIFIER) TokenAndListParam theIdentifier,
+                                                              @OptionalParam(name = Patient.SP_GENDER) TokenAndListParam theGender,
+                                                              @OptionalParam(name = Patient.SP_BIRTHDATE) DateAndListParam theBirthDate,
+                                                              @Sort SortSpec theSort,
+                                                              @IncludeParam(allow = {"Patient:general-practitioner", "Patient:link", "Patient:organization", "*"}) Set<Include> theIncludes,
+                                                              @IncludeParam(reverse = true, allow = {"Observation:patient", "Observation:subject", "Patient:link", "*"}) Set<Include> theRevIncludes,
+                                                              Set<SummaryEnum> theSummary,
+                                                              @Elements Set<String> theElements) {
+      SortOrderEnum sortOrder = getBirthDateSortOrder(theSort);
+      Projection projection = Projection.forRequest(myDefinition, theSummary, theElements);
+      List<String> idParts = myStore.search(theFamily, theGiven, theIdentifier, theGender, theBirthDate, sortOrder);
+      return myIncludeResolver.newBundleProvider(new LookupBundleProvider(idParts, this, projection), theIncludes, theRevIncludes);
+   }
+
+   /**
+    * Returns the ID of the only Patient matching the criteria of a conditional create or update, or <code>null</code> if
+    * there is none
+    *
+    * @throws PreconditionFailedException If more than one Patient matches
+    */
+   private Long findSingleMatch(TokenParam theIdentifier, String theConditionalUrl) {
+      long[] matches = myStore.findByIdentifier(theIdentifier.getSystem(), theIdentifier.getValue());
+      if (matches.length > 1) {
+         throw new PreconditionFailedException("Multiple Patients match " + theConditionalUrl);
       }
+      return matches.length == 0 ? null : matches[0];
+   }
 
+   /**
+    * Parses the criteria of a conditional create or update, which must be one identifier,
+    * e.g. <code>Patient?identifier=urn:hapitest:mrns|00002</code>
+    */
+   private static TokenParam parseConditionalUrl(String theConditionalUrl) {
+      String query = theConditionalUrl.substring(theConditionalUrl.indexOf('?') + 1);
+      Map<String, String[]> params = UrlUtil.parseQueryString(query);
+      String[] values = params.get(Patient.SP_IDENTIFIER);
+      if (params.size() != 1 || values == null || values.length != 1 || values[0].contains(",")) {
+         throw new InvalidRequestException("Conditional operations on Patient only support a single " + Patient.SP_IDENTIFIER + ", e.g. " + Patient.SP_IDENTIFIER + "=system|value: " + theConditionalUrl);
+      }
+      String value = values[0];
+      int bar = value.indexOf('|');
+      TokenParam retVal = bar == -1 ? new TokenParam(null, value) : new TokenParam(value.substring(0, bar), value.substring(bar + 1));
+      if (retVal.getValue() == null || retVal.getValue().isEmpty()) {
+         throw new InvalidRequestException("The " + Patient.SP_IDENTIFIER + " in a conditional operation must have a value: " + theConditionalUrl);
+      }
       return retVal;
    }
 
-   @Search
-   public List<Patient> findPatientsUsingArbitraryCtriteria() {
-      LinkedList<Patient> retVal = new LinkedList<Patient>();
-
-      for (Deque<Patient> nextPatientList : myIdToPatientVersions.values()) {
-         Patient nextPatient = nextPatientList.getLast();
-         retVal.add(nextPatient);
+   /**
+    * Returns the order of a sort by birth date, or <code>null</code> if there is no sort
+    */
+   private static SortOrderEnum getBirthDateSortOrder(SortSpec theSort) {
+      if (theSort == null) {
+         return null;
+      }
+      if (!Patient.SP_BIRTHDATE.equals(theSort.getParamName()) || theSort.getChain() != null) {
+         throw new InvalidRequestException("Patients can only be sorted by " + Patient.SP_BIRTHDATE);
       }
+      return theSort.getOrder() == SortOrderEnum.DESC ? SortOrderEnum.DESC : SortOrderEnum.ASC;
+   }
 
+   /**
+    * Compiles Subscription criteria, which may use any of the indexed parameters, e.g. <code>Patient?family=Smith&amp;gender=female</code>
+    */
+   @Override
+   public Predicate<IBaseResource> compileCriteria(Criteria theCriteria) {
+      theCriteria.checkSupported(Patient.SP_FAMILY, Patient.SP_GIVEN, Patient.SP_IDENTIFIER, Patient.SP_GENDER, Patient.SP_BIRTHDATE);
+      Predicate<Patient> retVal = myStore.compile(
+         theCriteria.get(myCtx, Patient.SP_FAMILY, new StringAndListParam()),
+         theCriteria.get(myCtx, Patient.SP_GIVEN, new StringAndListParam()),
+         theCriteria.get(myCtx, Patient.SP_IDENTIFIER, new TokenAndListParam()),
+         theCriteria.get(myCtx, Patient.SP_GENDER, new TokenAndListParam()),
+         theCriteria.get(myCtx, Patient.SP_BIRTHDATE, new DateAndListParam()));
+      return theResource -> retVal.test((Patient) theResource);
+   }
+
+   /**
+    * Returns the current version of each of the given Patients, for includes
+    */
+   @Override
+   public List<Patient> readLatest(Collection<String> theIdParts) {
+      return readLatest(theIdParts, Projection.ALL);
+   }
+
+   /**
+    * Returns the current version of each of the given Patients, copied with only the elements of a projection
+    */
+   @Override
+   public List<Patient> readLatest(Collection<String> theIdParts, Projection theProjection) {
+      List<Patient> retVal = new ArrayList<>(theIdParts.size());
+      for (String nextIdPart : theIdParts) {
+         try {
+            Patient patient = myStore.getLatest(Long.parseLong(nextIdPart));
+            if (patient != null && !PatientStore.isDeleted(patient)) {
+               retVal.add(theProjection.apply(patient));
+            }
+         } catch (NumberFormatException e) {
+            // Not one of ours
+         }
+      }
       return retVal;
    }
 
@@ -152,65 +386,205 @@ public class PatientResourceProvider implements IResourceProvider {
     * Read operations take a single parameter annotated with the {@link IdParam} paramater, and should return a single resource instance.
     * </p>
     *
-    * @param theId The read operation takes one parameter, which must be of type IdDt and must be annotated with the "@Read.IdParam" annotation.
+    * @param theId       The read operation takes one parameter, which must be of type IdDt and must be annotated with the "@Read.IdParam" annotation.
+    * @param theSummary  The "_summary" parameter
+    * @param theElements The "_elements" parameter
     * @return Returns a resource matching this identifier, or null if none exists.
     */
    @Read(version = true)
-   public Patient readPatient(@IdParam IdType theId) {
+   public Patient readPatient(@IdParam IdType theId, Set<SummaryEnum> theSummary, @Elements Set<String> theElements) {
+      Projection projection = Projection.forRequest(myDefinition, theSummary, theElements);
       Deque<Patient> retVal;
       try {
-         retVal = myIdToPatientVersions.get(theId.getIdPartAsLong());
+         retVal = myStore.getVersions(theId.getIdPartAsLong());
       } catch (NumberFormatException e) {
          /*
           * If we can't parse the ID as a long, it's not valid so this is an unknown resource
           */
          throw new ResourceNotFoundException(theId);
       }
+      if (retVal == null) {
+         throw new ResourceNotFoundException(theId);
+      }
 
       if (theId.hasVersionIdPart() == false) {
-         return retVal.getLast();
+         return projection.apply(checkNotDeleted(retVal.getLast()));
       } else {
-         for (Patient nextVersion : retVal) {
+         // Newest first, since recent versions are the ones most often read
+         for (Iterator<Patient> iter = retVal.descendingIterator(); iter.hasNext(); ) {
+            Patient nextVersion = iter.next();
             String nextVersionId = nextVersion.getIdElement().getVersionIdPart();
             if (theId.getVersionIdPart().equals(nextVersionId)) {
-               return nextVersion;
+               return projection.apply(checkNotDeleted(nextVersion));
             }
          }
-         // No matching version
+         // No matching version, or it has been pruned
          throw new ResourceNotFoundException("Unknown version: " + theId.getValue());
       }
 
    }
 
+   /**
+    * Returns a version, or throws an exception (HTTP 410) if it is a tombstone
+    */
+   private static Patient checkNotDeleted(Patient theVersion) {
+      if (PatientStore.isDeleted(theVersion)) {
+         throw new ResourceGoneException(theVersion.getIdElement());
+      }
+      return theVersion;
+   }
+
+   /**
+    * The "@Delete" annotation indicates that this method supports deleting a resource by ID. Deleting a Patient which is
+    * already deleted succeeds, and changes nothing.
+    *
+    * @param theId The ID of the Patient to delete
+    * @return The ID of the tombstone, whose version is the one after the deleted version
+    */
+   @Delete()
+   public MethodOutcome deletePatient(@IdParam IdType theId) {
+      long id;
+      try {
+         id = theId.getIdPartAsLong();
+      } catch (NumberFormatException e) {
+         throw new ResourceNotFoundException(theId);
+      }
+      Patient latest = myStore.getLatest(id);
+      if (latest == null) {
+         throw new ResourceNotFoundException(theId);
+      }
+
+      // Holds the locks of the identifiers leaving the index, as an update would
+      Patient tombstone = myIdentifierLocks.locked(getIdentifierValues(latest), () -> myStore.delete(id));
+      return new MethodOutcome(tombstone.getIdElement());
+   }
+
    /**
     * The "@Update" annotation indicates that this method supports replacing an existing
     * resource (by ID) with a new instance of that resource.
+    * <p>
+    * A conditional update, <code>PUT Patient?identifier=system|value</code>, updates the Patient with that identifier, or
+    * creates one if there is none.
+    * </p>
+    * <p>
+    * With <code>If-Match: W/"3"</code>, the Patient is only updated if version 3 is still the current one, otherwise the
+    * update fails with HTTP 412, so a client never overwrites a change it hasn't seen. This applies to a conditional
+    * update too, which then fails if no Patient matches.
+    * </p>
     *
-    * @param theId      This is the ID of the patient to update
-    * @param thePatient This is the actual resource to save
-    * @return This method returns a "MethodOutcome"
+    * @param theId             This is the ID of the patient to update, or <code>null</code> for a conditional update
+    * @param thePatient        This is the actual resource to save
+    * @param theConditionalUrl The criteria of a conditional update, or <code>null</code>
+    * @param theRequestDetails The request, whose <code>If-Match</code> header is checked
+    * @return The ID of the new version
     */
    @Update()
-   public MethodOutcome updatePatient(@IdParam IdType theId, @ResourceParam Patient thePatient) {
+   public MethodOutcome updatePatient(@IdParam IdType theId, @ResourceParam Patient thePatient, @ConditionalUrlParam String theConditionalUrl, RequestDetails theRequestDetails) {
       validateResource(thePatient);
+      String ifMatchVersion = IfMatch.getVersion(theRequestDetails);
+
+      if (theConditionalUrl != null) {
+         TokenParam condition = parseConditionalUrl(theConditionalUrl);
+         List<String> lockValues = getIdentifierValues(thePatient);
+         lockValues.add(condition.getValue());
+         return myIdentifierLocks.locked(lockValues, () -> {
+            Long existingId = findSingleMatch(condition, theConditionalUrl);
+            if (existingId == null) {
+               if (ifMatchVersion != null) {
+                  throw new PreconditionFailedException("No Patient matches " + theConditionalUrl + ", so it can't be at version " + ifMatchVersion);
+               }
+               myStore.addNewVersion(thePatient, myStore.newId());
+               return new MethodOutcome(thePatient.getIdElement(), true);
+            }
+            // The locks of the new identifiers are held already, and are reentrant
+            Patient retVal = storeNewVersion(new IdType("Patient", existingId), existingId, ifMatchVersion, theCurrent -> thePatient);
+            return new MethodOutcome(retVal.getIdElement(), false);
+         });
+      }
 
-      Long id;
+      long id;
       try {
          id = theId.getIdPartAsLong();
-      } catch (DataFormatException e) {
+      } catch (NumberFormatException e) {
          throw new InvalidRequestException("Invalid ID " + theId.getValue() + " - Must be numeric");
       }
 
-      /*
-       * Throw an exception (HTTP 404) if the ID is not known
-       */
-      if (!myIdToPatientVersions.containsKey(id)) {
+      // A deleted Patient is known, and the update creates it again
+      Patient retVal = storeNewVersion(theId, id, ifMatchVersion, theCurrent -> thePatient);
+      return new MethodOutcome(retVal.getIdElement());
+   }
+
+   /**
+    * The "@Patch" annotation indicates that this method supports changing part of an existing resource, with a JSON Patch
+    * or a FHIRPath Patch (see {@link Patches}), so the client only sends what changed.
+    * <p>
+    * The patch is applied to the current version, and if another request stores a version first, it is applied again to
+    * that one, so concurrent patches of different elements all keep their change. With <code>If-Match</code>, the patch
+    * is only applied to that version.
+    * </p>
+    *
+    * @param theId             The ID of the Patient to patch
+    * @param thePatchType      The type of the patch, from the content type of the request
+    * @param theBody           The patch
+    * @param theRequestDetails The request, whose <code>If-Match</code> header is checked
+    * @return The ID of the new version
+    */
+   @Patch()
+   public MethodOutcome patchPatient(@IdParam IdType theId, PatchTypeEnum thePatchType, @ResourceParam String theBody, RequestDetails theRequestDetails) {
+      IResourcePatch patch = Patches.parse(myCtx, thePatchType, theBody);
+      boolean validate = patch.getChangedElements().contains("name");
+
+      long id;
+      try {
+         id = theId.getIdPartAsLong();
+      } catch (NumberFormatException e) {
          throw new ResourceNotFoundException(theId);
       }
+      Patient retVal = storeNewVersion(theId, id, IfMatch.getVersion(theRequestDetails), theCurrent -> {
+         Patient patched = (Patient) patch.apply(checkNotDeleted(theCurrent));
+         if (validate) {
+            validateResource(patched);
+         }
+         return patched;
+      });
+      return new MethodOutcome(retVal.getIdElement());
+   }
 
-      addNewVersion(thePatient, id);
+   /**
+    * Stores a new version of a Patient, made from its current version, with a compare-and-set on the current version
+    * (see {@link PatientStore#compareAndAddNewVersion(long, Patient, Patient)}). If another request stores a version
+    * first, the new version is made again from that one, unless the client asked for a particular version. The only locks
+    * are those of the identifiers the new version adds, and the store's lock on the Patient's map bin while the version is
+    * indexed and logged, so writers of different Patients only wait for each other when they add identifiers which share a
+    * lock, or their IDs share a bin.
+    *
+    * @param theId              The ID, for errors
+    * @param theIdPart          The ID of the Patient
+    * @param theExpectedVersion The version the client based the change on, from <code>If-Match</code>, or <code>null</code> for the current one
+    * @param theChange          Makes the new version from the current one, and may be called more than once
+    * @return The new version
+    * @throws ResourceNotFoundException   If the ID is not known (HTTP 404)
+    * @throws PreconditionFailedException If the current version is not the expected one (HTTP 412)
+    */
+   private Patient storeNewVersion(IdType theId, long theIdPart, String theExpectedVersion, UnaryOperator<Patient> theChange) {
+      while (true) {
+         Patient current = myStore.getLatest(theIdPart);
+         if (current == null) {
+            throw new ResourceNotFoundException(theId);
+         }
+         String currentVersion = current.getIdElement().getVersionIdPart();
+         if (theExpectedVersion != null && !theExpectedVersion.equals(currentVersion)) {
+            throw new PreconditionFailedException("Patient/" + theIdPart + " is at version " + currentVersion + ", not " + theExpectedVersion);
+         }
 
-      return new MethodOutcome();
+         Patient next = theChange.apply(current);
+         List<String> addedIdentifierValues = getIdentifierValues(next);
+         addedIdentifierValues.removeAll(getIdentifierValues(current));
+         Patient retVal = myIdentifierLocks.locked(addedIdentifierValues, () -> myStore.compareAndAddNewVersion(theIdPart, current, next));
+         if (retVal != null) {
+            return retVal;
+         }
+      }
    }
 
    /**
@@ -222,7 +596,7 @@ public class PatientResourceProvider implements IResourceProvider {
       /*
        * Our server will have a rule that patients must have a family name or we will reject them
        */
-      if (thePatient.getNameFirstRep().getFamily().isEmpty()) {
+      if (!thePatient.hasName() || !thePatient.getName().get(0).hasFamily()) {
          OperationOutcome outcome = new OperationOutcome();
          outcome.addIssue().setSeverity(IssueSeverity.FATAL).setDiagnostics("No family name provided, Patient resources must have at least one family name.");
          throw new UnprocessableEntityException(FhirContext.forDstu3(), outcome);
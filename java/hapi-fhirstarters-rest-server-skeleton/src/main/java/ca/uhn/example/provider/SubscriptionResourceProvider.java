@@ -0,0 +1,126 @@
+package ca.uhn.example.provider;
+
+import ca.uhn.example.subscription.SubscriptionRegistry;
+import ca.uhn.fhir.rest.annotation.Create;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Read;
+import ca.uhn.fhir.rest.annotation.ResourceParam;
+import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.annotation.Update;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.Subscription;
+import org.hl7.fhir.dstu3.model.Subscription.SubscriptionStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores Subscriptions, and notifies each one whose status is
+ * <code>requested</code> or <code>active</code> of the new versions matching
+ * its criteria, through a {@link SubscriptionRegistry}:
+ * <pre>
+ * {
+ *   "resourceType": "Subscription",
+ *   "status": "requested",
+ *   "criteria": "Patient?family=Smith&amp;gender=female",
+ *   "channel": { "type": "rest-hook", "endpoint": "http://example.com/notify", "payload": "application/fhir+json" }
+ * }
+ * </pre>
+ * <p>
+ * A Subscription is refused if its criteria can't be matched without a
+ * search or its channel is not a <code>rest-hook</code>, and is
+ * <code>active</code> once stored. Setting its status to <code>off</code>
+ * stops its notifications. Notifications are POSTed to the endpoint in
+ * batches, as <code>history</code> Bundles holding the latest version of each
+ * matching resource, or only its URL if there is no payload. Only the current
+ * version of each Subscription is kept.
+ * </p>
+ */
+public class SubscriptionResourceProvider implements IResourceProvider {
+
+   private final Map<String, Subscription> myIdToSubscription = new ConcurrentHashMap<>();
+
+   /**
+    * This is used to generate new IDs
+    */
+   private final AtomicLong myNextId = new AtomicLong(1);
+
+   private final SubscriptionRegistry myRegistry;
+
+   /**
+    * Constructor
+    *
+    * @param theRegistry Notifies the active Subscriptions
+    */
+   public SubscriptionResourceProvider(SubscriptionRegistry theRegistry) {
+      myRegistry = theRegistry;
+   }
+
+   @Override
+   public Class<Subscription> getResourceType() {
+      return Subscription.class;
+   }
+
+   @Read()
+   public Subscription getResourceById(@IdParam IdType theId) {
+      Subscription retVal = myIdToSubscription.get(theId.getIdPart());
+      if (retVal == null) {
+         throw new ResourceNotFoundException(theId);
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns every Subscription
+    */
+   @Search()
+   public List<Subscription> findSubscriptions() {
+      return new ArrayList<>(myIdToSubscription.values());
+   }
+
+   @Create()
+   public MethodOutcome createSubscription(@ResourceParam Subscription theSubscription, RequestDetails theRequestDetails) {
+      String id = Long.toString(myNextId.getAndIncrement());
+      store(id, theSubscription, theRequestDetails.getFhirServerBase());
+      return new MethodOutcome(theSubscription.getIdElement(), true);
+   }
+
+   @Update()
+   public MethodOutcome updateSubscription(@IdParam IdType theId, @ResourceParam Subscription theSubscription, RequestDetails theRequestDetails) {
+      if (!myIdToSubscription.containsKey(theId.getIdPart())) {
+         throw new ResourceNotFoundException(theId);
+      }
+      store(theId.getIdPart(), theSubscription, theRequestDetails.getFhirServerBase());
+      return new MethodOutcome(theSubscription.getIdElement());
+   }
+
+   /**
+    * Stores a Subscription, replacing the current version if there is one,
+    * and starts or stops its notifications
+    */
+   private void store(String theId, Subscription theSubscription, String theBase) {
+      boolean active = theSubscription.getStatus() != SubscriptionStatus.OFF && theSubscription.getStatus() != SubscriptionStatus.ERROR;
+      // Compiled first, so that a Subscription which can't be matched is never stored
+      SubscriptionRegistry.ActiveSubscription compiled = myRegistry.compile(theSubscription, theBase);
+
+      myIdToSubscription.compute(theId, (theKey, thePrevious) -> {
+         long version = thePrevious != null ? thePrevious.getIdElement().getVersionIdPartAsLong() + 1 : 1;
+         theSubscription.setId(new IdType("Subscription", theKey, Long.toString(version)));
+         theSubscription.getMeta().setLastUpdatedElement(InstantType.withCurrentTime());
+         if (active) {
+            theSubscription.setStatus(SubscriptionStatus.ACTIVE);
+         }
+         myRegistry.put(theKey, active ? compiled : null);
+         return theSubscription;
+      });
+   }
+
+}
@@ -0,0 +1,116 @@
+package ca.uhn.example.search;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterAnd;
+import ca.uhn.fhir.rest.api.QualifiedParamList;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.util.UrlUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Search criteria given as a URL, such as the criteria of a Subscription,
+ * e.g. <code>Patient?family=Smith&amp;gender=female</code>. The parameters are
+ * parsed into the same types a search method receives, so that a
+ * {@link ICriteriaCompiler} can check them with the same indexes.
+ */
+public class Criteria {
+
+   private final String myResourceType;
+   private final Map<String, String[]> myParameters;
+
+   private Criteria(String theResourceType, Map<String, String[]> theParameters) {
+      myResourceType = theResourceType;
+      myParameters = theParameters;
+   }
+
+   /**
+    * Parses criteria
+    *
+    * @param theCtx      The context, which must know the resource type
+    * @param theCriteria The criteria, e.g. <code>Patient?family=Smith</code>, or just <code>Patient</code>
+    * @throws InvalidRequestException If the resource type is not known
+    */
+   public static Criteria parse(FhirContext theCtx, String theCriteria) {
+      if (theCriteria == null || theCriteria.isEmpty()) {
+         throw new InvalidRequestException("No criteria given");
+      }
+      int question = theCriteria.indexOf('?');
+      String resourceType = question == -1 ? theCriteria : theCriteria.substring(0, question);
+      if (!theCtx.getResourceTypes().contains(resourceType)) {
+         throw new InvalidRequestException("Unknown resource type in criteria: " + theCriteria);
+      }
+      String query = question == -1 ? "" : theCriteria.substring(question + 1);
+      return new Criteria(resourceType, query.isEmpty() ? Collections.emptyMap() : UrlUtil.parseQueryString(query));
+   }
+
+   public String getResourceType() {
+      return myResourceType;
+   }
+
+   /**
+    * Returns <code>true</code> if there are no parameters, so every resource of the type matches
+    */
+   public boolean isEmpty() {
+      return myParameters.isEmpty();
+   }
+
+   /**
+    * Checks that every parameter is one of the given ones, with or without a modifier
+    *
+    * @throws InvalidRequestException If one is not
+    */
+   public void checkSupported(String... theNames) {
+      Set<String> names = new HashSet<>(Arrays.asList(theNames));
+      for (String next : myParameters.keySet()) {
+         if (!names.contains(getName(next))) {
+            throw new InvalidRequestException("Unsupported parameter in " + myResourceType + " criteria: " + next + " (supported: " + String.join(", ", theNames) + ")");
+         }
+      }
+   }
+
+   /**
+    * Returns the values of a parameter, or <code>null</code> if it is not given
+    *
+    * @param theCtx   The context
+    * @param theName  The parameter name, e.g. <code>family</code>
+    * @param theParam A new, empty parameter of the right type, which is filled in and returned
+    * @throws InvalidRequestException If a value is not valid
+    */
+   public <T extends IQueryParameterAnd<?>> T get(FhirContext theCtx, String theName, T theParam) {
+      List<QualifiedParamList> values = new ArrayList<>();
+      for (Map.Entry<String, String[]> next : myParameters.entrySet()) {
+         if (getName(next.getKey()).equals(theName)) {
+            String qualifier = next.getKey().substring(theName.length());
+            for (String nextValue : next.getValue()) {
+               values.add(QualifiedParamList.splitQueryStringByCommasIgnoreEscape(qualifier.isEmpty() ? null : qualifier, nextValue));
+            }
+         }
+      }
+      if (values.isEmpty()) {
+         return null;
+      }
+      theParam.setValuesAsQueryTokens(theCtx, theName, values);
+      return theParam;
+   }
+
+   /**
+    * Returns the name of a parameter without its modifier, e.g. <code>family</code> for <code>family:exact</code>
+    */
+   private static String getName(String theParameter) {
+      int colon = theParameter.indexOf(':');
+      return colon == -1 ? theParameter : theParameter.substring(0, colon);
+   }
+
+   @Override
+   public String toString() {
+      return myResourceType + (myParameters.isEmpty() ? "" : "?" + myParameters.keySet());
+   }
+
+}
@@ -0,0 +1,213 @@
+package ca.uhn.example.search;
+
+import ca.uhn.example.index.DateIndex;
+import ca.uhn.fhir.rest.param.DateAndListParam;
+import ca.uhn.fhir.rest.param.DateOrListParam;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Matches the dates of resources, which are ranges such as a whole day,
+ * against a date search parameter, following the FHIR rules for each prefix.
+ * For a search value covering <code>[ps, pe]</code> and a resource date
+ * covering <code>[s, e]</code>:
+ * <ul>
+ * <li><code>eq</code> - the resource date is within the search value: <code>ps &lt;= s</code> and <code>e &lt;= pe</code></li>
+ * <li><code>ne</code> - the opposite of <code>eq</code></li>
+ * <li><code>gt</code> - the resource date extends after the search value: <code>e &gt; pe</code></li>
+ * <li><code>lt</code> - the resource date extends before the search value: <code>s &lt; ps</code></li>
+ * <li><code>ge</code> / <code>le</code> - <code>gt</code> / <code>lt</code>, or <code>eq</code></li>
+ * <li><code>sa</code> - the resource date starts after the search value: <code>s &gt; pe</code></li>
+ * <li><code>eb</code> - the resource date ends before the search value: <code>e &lt; ps</code></li>
+ * <li><code>ap</code> - the resource date overlaps the search value widened by 10% of its distance from now</li>
+ * </ul>
+ * <p>
+ * Values in one parameter (<code>birthdate=1970,1971</code>) are ORed, and
+ * repeated parameters (<code>birthdate=ge1970&amp;birthdate=lt1980</code>) are
+ * ANDed.
+ * </p>
+ */
+public class DateMatcher implements DateIndex.EntryFilter {
+
+   private final List<List<Bound>> myAndOfOrs;
+
+   private DateMatcher(List<List<Bound>> theAndOfOrs) {
+      myAndOfOrs = theAndOfOrs;
+   }
+
+   /**
+    * Creates a matcher for a search parameter
+    */
+   public static DateMatcher forParam(DateAndListParam theParam) {
+      List<List<Bound>> andOfOrs = new ArrayList<>();
+      if (theParam != null) {
+         for (DateOrListParam nextOr : theParam.getValuesAsQueryTokens()) {
+            List<Bound> ors = new ArrayList<>();
+            for (DateParam next : nextOr.getValuesAsQueryTokens()) {
+               if (next.getValue() != null) {
+                  ors.add(new Bound(next));
+               }
+            }
+            if (!ors.isEmpty()) {
+               andOfOrs.add(ors);
+            }
+         }
+      }
+      return new DateMatcher(andOfOrs);
+   }
+
+   @Override
+   public boolean test(long theStart, long theEnd) {
+      for (List<Bound> nextOr : myAndOfOrs) {
+         boolean matched = false;
+         for (Bound next : nextOr) {
+            if (next.test(theStart, theEnd)) {
+               matched = true;
+               break;
+            }
+         }
+         if (!matched) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Returns the matching entries of an index, ordered by date. Only the
+    * entries whose start could match are visited.
+    */
+   public List<DateIndex.Entry> find(DateIndex theIndex, boolean theDescending) {
+      long[] range = getStartRange(theIndex.getMaxSpan());
+      return theIndex.find(range[0], range[1], theDescending, this);
+   }
+
+   /**
+    * Returns the number of entries of an index which would be visited by
+    * {@link #find(DateIndex, boolean)}, counting up to a limit. This is an
+    * upper bound of the number which match.
+    */
+   public long estimate(DateIndex theIndex, long theLimit) {
+      long[] range = getStartRange(theIndex.getMaxSpan());
+      return theIndex.count(range[0], range[1], theLimit);
+   }
+
+   /**
+    * Returns the range of starts, <code>{from, to}</code>, which a matching
+    * date can have
+    */
+   private long[] getStartRange(long theMaxSpan) {
+      long from = Long.MIN_VALUE;
+      long to = Long.MAX_VALUE;
+      for (List<Bound> nextOr : myAndOfOrs) {
+         long orFrom = Long.MAX_VALUE;
+         long orTo = Long.MIN_VALUE;
+         for (Bound next : nextOr) {
+            orFrom = Math.min(orFrom, next.getFirstStart(theMaxSpan));
+            orTo = Math.max(orTo, next.getLastStart());
+         }
+         from = Math.max(from, orFrom);
+         to = Math.min(to, orTo);
+      }
+      return new long[]{from, to};
+   }
+
+   private static long minus(long theValue, long theAmount) {
+      return theValue < Long.MIN_VALUE + theAmount ? Long.MIN_VALUE : theValue - theAmount;
+   }
+
+   private static long plus(long theValue, long theAmount) {
+      return theValue > Long.MAX_VALUE - theAmount ? Long.MAX_VALUE : theValue + theAmount;
+   }
+
+   /**
+    * One prefixed search value
+    */
+   private static class Bound {
+
+      private final ParamPrefixEnum myPrefix;
+      private final long myStart;
+      private final long myEnd;
+
+      Bound(DateParam theParam) {
+         myPrefix = theParam.getPrefix() != null ? theParam.getPrefix() : ParamPrefixEnum.EQUAL;
+         long start = DateRanges.getStart(theParam.getValue());
+         long end = DateRanges.getEnd(theParam.getValue(), theParam.getPrecision());
+         if (myPrefix == ParamPrefixEnum.APPROXIMATE) {
+            long margin = Math.abs(System.currentTimeMillis() - start) / 10;
+            start = minus(start, margin);
+            end = plus(end, margin);
+         }
+         myStart = start;
+         myEnd = end;
+      }
+
+      boolean test(long theStart, long theEnd) {
+         boolean within = theStart >= myStart && theEnd <= myEnd;
+         switch (myPrefix) {
+            case NOT_EQUAL:
+               return !within;
+            case GREATERTHAN:
+               return theEnd > myEnd;
+            case LESSTHAN:
+               return theStart < myStart;
+            case GREATERTHAN_OR_EQUALS:
+               return theEnd > myEnd || within;
+            case LESSTHAN_OR_EQUALS:
+               return theStart < myStart || within;
+            case STARTS_AFTER:
+               return theStart > myEnd;
+            case ENDS_BEFORE:
+               return theEnd < myStart;
+            case APPROXIMATE:
+               return theStart <= myEnd && theEnd >= myStart;
+            case EQUAL:
+            default:
+               return within;
+         }
+      }
+
+      /**
+       * Returns the earliest start a matching date can have, given that no
+       * date covers more than the given span
+       */
+      long getFirstStart(long theMaxSpan) {
+         switch (myPrefix) {
+            case EQUAL:
+               return myStart;
+            case GREATERTHAN:
+               return plus(minus(myEnd, theMaxSpan), 1);
+            case GREATERTHAN_OR_EQUALS:
+               return Math.min(myStart, plus(minus(myEnd, theMaxSpan), 1));
+            case STARTS_AFTER:
+               return plus(myEnd, 1);
+            case APPROXIMATE:
+               return minus(myStart, theMaxSpan);
+            default:
+               return Long.MIN_VALUE;
+         }
+      }
+
+      /**
+       * Returns the latest start a matching date can have
+       */
+      long getLastStart() {
+         switch (myPrefix) {
+            case EQUAL:
+            case LESSTHAN_OR_EQUALS:
+            case APPROXIMATE:
+               return myEnd;
+            case LESSTHAN:
+            case ENDS_BEFORE:
+               return minus(myStart, 1);
+            default:
+               return Long.MAX_VALUE;
+         }
+      }
+
+   }
+
+}
@@ -0,0 +1,100 @@
+package ca.uhn.example.search;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+import java.util.Date;
+
+/**
+ * Turns date search parameters into ranges of epoch milliseconds.
+ * <p>
+ * A date stands for every instant within its precision, so
+ * <code>2020-01-02</code> is the whole of that day, in the server's time zone
+ * unless the value has its own. <code>date=2020-01-02</code> matches any
+ * time on that day, <code>date=gt2020-01-02</code> any time after the end of
+ * that day, and so on.
+ * </p>
+ */
+public class DateRanges {
+
+   private DateRanges() {
+      // Static methods only
+   }
+
+   /**
+    * Returns the first millisecond of a date at its precision
+    */
+   public static long getStart(Date theValue) {
+      return theValue.getTime();
+   }
+
+   /**
+    * Returns the last millisecond of a date at its precision, e.g. 23:59:59.999
+    * for a day
+    */
+   public static long getEnd(Date theValue, TemporalPrecisionEnum thePrecision) {
+      if (thePrecision == null || thePrecision == TemporalPrecisionEnum.MILLI) {
+         return theValue.getTime();
+      }
+      return thePrecision.add(theValue, 1).getTime() - 1;
+   }
+
+   /**
+    * Returns the range of instants matched by a date search, as
+    * <code>{from, to}</code>, both inclusive. The range is empty if
+    * <code>from &gt; to</code>, and is open at either end if the search is.
+    * The <code>ap</code> prefix is treated as <code>eq</code>, and
+    * <code>ne</code> is not supported.
+    */
+   public static long[] toInstantRange(DateRangeParam theRange) {
+      long[] retVal = {Long.MIN_VALUE, Long.MAX_VALUE};
+      if (theRange == null) {
+         return retVal;
+      }
+      apply(theRange.getLowerBound(), retVal);
+      if (theRange.getUpperBound() != theRange.getLowerBound()) {
+         apply(theRange.getUpperBound(), retVal);
+      }
+      return retVal;
+   }
+
+   private static void apply(DateParam theParam, long[] theRange) {
+      if (theParam == null || theParam.getValue() == null) {
+         return;
+      }
+      long start = getStart(theParam.getValue());
+      long end = getEnd(theParam.getValue(), theParam.getPrecision());
+      ParamPrefixEnum prefix = theParam.getPrefix() != null ? theParam.getPrefix() : ParamPrefixEnum.EQUAL;
+      switch (prefix) {
+         case EQUAL:
+         case APPROXIMATE:
+            intersect(theRange, start, end);
+            break;
+         case GREATERTHAN:
+         case STARTS_AFTER:
+            intersect(theRange, end + 1, Long.MAX_VALUE);
+            break;
+         case GREATERTHAN_OR_EQUALS:
+            intersect(theRange, start, Long.MAX_VALUE);
+            break;
+         case LESSTHAN:
+         case ENDS_BEFORE:
+            intersect(theRange, Long.MIN_VALUE, start - 1);
+            break;
+         case LESSTHAN_OR_EQUALS:
+            intersect(theRange, Long.MIN_VALUE, end);
+            break;
+         default:
+            throw new InvalidRequestException("Date prefix not supported: " + prefix.getValue());
+      }
+   }
+
+   private static void intersect(long[] theRange, long theFrom, long theTo) {
+      theRange[0] = Math.max(theRange[0], theFrom);
+      theRange[1] = Math.min(theRange[1], theTo);
+   }
+
+}
@@ -0,0 +1,25 @@
+package ca.uhn.example.search;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.function.Predicate;
+
+/**
+ * Implemented by resource providers whose search parameters can be checked
+ * against each new version of a resource, so that Subscriptions with
+ * criteria on them are matched without running a search.
+ */
+public interface ICriteriaCompiler {
+
+   /**
+    * Compiles criteria once, into a check of one resource against the
+    * indexes the searches use. The check must be made while the version
+    * being checked is the one in the indexes, i.e. from a
+    * {@link ca.uhn.example.store.ChangeLog.IListener}.
+    *
+    * @param theCriteria The criteria, for the provider's resource type
+    * @throws ca.uhn.fhir.rest.server.exceptions.InvalidRequestException If a parameter or value is not supported
+    */
+   Predicate<IBaseResource> compileCriteria(Criteria theCriteria);
+
+}
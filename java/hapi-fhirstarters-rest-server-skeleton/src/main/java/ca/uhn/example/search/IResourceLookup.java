@@ -0,0 +1,35 @@
+package ca.uhn.example.search;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Implemented by resource providers so that the resources of their type can be
+ * fetched by an {@link IncludeResolver}
+ */
+public interface IResourceLookup {
+
+   /**
+    * Returns the current version of each of the given resources, in one pass
+    * over the store. IDs which are not known are skipped.
+    *
+    * @param theIdParts The ID parts, e.g. <code>123</code> for <code>Patient/123</code>
+    */
+   List<? extends IBaseResource> readLatest(Collection<String> theIdParts);
+
+   /**
+    * Returns the current version of each of the given resources, holding at
+    * least the elements of a projection. Lookups which can't materialize only
+    * some elements return whole resources, which the server filters as it
+    * encodes them.
+    *
+    * @param theIdParts    The ID parts, e.g. <code>123</code> for <code>Patient/123</code>
+    * @param theProjection The elements wanted
+    */
+   default List<? extends IBaseResource> readLatest(Collection<String> theIdParts, Projection theProjection) {
+      return readLatest(theIdParts);
+   }
+
+}
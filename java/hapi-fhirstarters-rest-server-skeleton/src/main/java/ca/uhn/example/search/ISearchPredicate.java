@@ -0,0 +1,39 @@
+package ca.uhn.example.search;
+
+/**
+ * One condition of a search, such as <code>family=Smith</code>, which the
+ * {@link SearchPlanner} combines with the others. All of a search's
+ * predicates must match.
+ * <p>
+ * An indexed predicate can list the IDs which match it, and estimate how many
+ * there are, from an index. Every predicate can check a single ID, which is
+ * how unindexed predicates are evaluated, and how an indexed one is checked
+ * against a few candidates when listing its own IDs would cost more.
+ * </p>
+ */
+public interface ISearchPredicate {
+
+   /**
+    * Returns <code>true</code> if {@link #estimate(long)} and {@link #find()} can be used
+    */
+   boolean isIndexed();
+
+   /**
+    * Returns the number of resources which may match, from the index, counting
+    * up to a limit. This may be more than the number which do.
+    *
+    * @param theLimit Counting may stop once this many are found
+    */
+   long estimate(long theLimit);
+
+   /**
+    * Returns the IDs of the matching resources, in ascending order
+    */
+   long[] find();
+
+   /**
+    * Returns <code>true</code> if a resource matches
+    */
+   boolean matches(long theId);
+
+}
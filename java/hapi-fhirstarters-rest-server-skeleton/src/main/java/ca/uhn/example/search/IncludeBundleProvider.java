@@ -0,0 +1,59 @@
+package ca.uhn.example.search;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Search results whose included resources are resolved one page at a time,
+ * so that only the pages actually returned to the client cost any lookups.
+ * Created by {@link IncludeResolver#newBundleProvider(IBundleProvider, Set, Set)}.
+ */
+class IncludeBundleProvider implements IBundleProvider {
+
+   private final IncludeResolver myResolver;
+   private final IBundleProvider myMatches;
+   private final Set<Include> myIncludes;
+   private final Set<Include> myRevIncludes;
+
+   IncludeBundleProvider(IncludeResolver theResolver, IBundleProvider theMatches, Set<Include> theIncludes, Set<Include> theRevIncludes) {
+      myResolver = theResolver;
+      myMatches = theMatches;
+      myIncludes = theIncludes;
+      myRevIncludes = theRevIncludes;
+   }
+
+   @Override
+   public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+      List<IBaseResource> retVal = new ArrayList<>(myMatches.getResources(theFromIndex, theToIndex));
+      retVal.addAll(myResolver.resolve(retVal, myIncludes, myRevIncludes));
+      return retVal;
+   }
+
+   @Override
+   public IPrimitiveType<Date> getPublished() {
+      return myMatches.getPublished();
+   }
+
+   @Override
+   public String getUuid() {
+      return myMatches.getUuid();
+   }
+
+   @Override
+   public Integer preferredPageSize() {
+      return myMatches.preferredPageSize();
+   }
+
+   @Override
+   public Integer size() {
+      return myMatches.size();
+   }
+
+}
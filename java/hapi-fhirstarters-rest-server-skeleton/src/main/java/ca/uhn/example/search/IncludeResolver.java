@@ -0,0 +1,234 @@
+package ca.uhn.example.search;
+
+import ca.uhn.example.index.ReferenceIndex;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the resources requested by the <code>_include</code> and
+ * <code>_revinclude</code> parameters of a search, using a
+ * {@link ReferenceIndex} to find the IDs and the {@link IResourceLookup} of
+ * each resource type to fetch them.
+ * <p>
+ * For each page of results, the IDs of all included resources are collected
+ * first, and then each resource type is fetched with one call. A resource
+ * which is referred to by several results, or which is itself a result, is
+ * only returned once. <code>:iterate</code> (or <code>:recurse</code>) includes
+ * are followed from the included resources too, one batch per level, until
+ * nothing new is found.
+ * </p>
+ * <p>
+ * Included resources are returned as copies, marked with the
+ * <code>include</code> search mode, so that the stored instances are never
+ * modified. Custom resource classes must therefore override
+ * <code>copy()</code>, as {@link ca.uhn.example.model.MyOrganization} does. References to resource types with no registered lookup are
+ * ignored.
+ * </p>
+ */
+public class IncludeResolver {
+
+   private final FhirContext myCtx;
+   private final ReferenceIndex myReferenceIndex;
+   private final Map<String, IResourceLookup> myLookups = new ConcurrentHashMap<>();
+
+   /**
+    * Constructor
+    */
+   public IncludeResolver(FhirContext theCtx, ReferenceIndex theReferenceIndex) {
+      myCtx = theCtx;
+      myReferenceIndex = theReferenceIndex;
+   }
+
+   public ReferenceIndex getReferenceIndex() {
+      return myReferenceIndex;
+   }
+
+   public FhirContext getFhirContext() {
+      return myCtx;
+   }
+
+   /**
+    * Makes the resources of a type available to includes
+    *
+    * @param theResourceType The resource type, e.g. <code>Patient</code>
+    */
+   public void registerLookup(String theResourceType, IResourceLookup theLookup) {
+      myLookups.put(theResourceType, theLookup);
+   }
+
+   /**
+    * Returns a bundle provider for the given search results, which adds the
+    * included resources to each page as it is requested
+    */
+   public IBundleProvider newBundleProvider(List<? extends IBaseResource> theMatches, Set<Include> theIncludes, Set<Include> theRevIncludes) {
+      return newBundleProvider(new SimpleBundleProvider(theMatches), theIncludes, theRevIncludes);
+   }
+
+   /**
+    * Returns a bundle provider which adds the included resources to each page
+    * of the given search results as it is requested
+    */
+   public IBundleProvider newBundleProvider(IBundleProvider theMatches, Set<Include> theIncludes, Set<Include> theRevIncludes) {
+      validate(theIncludes);
+      validate(theRevIncludes);
+      return new IncludeBundleProvider(this, theMatches, theIncludes, theRevIncludes);
+   }
+
+   /**
+    * Rejects includes which don't name a known reference search parameter, which
+    * would otherwise fail later, when the server builds the Bundle
+    */
+   private void validate(Set<Include> theIncludes) {
+      if (theIncludes == null) {
+         return;
+      }
+      for (Include next : theIncludes) {
+         if ("*".equals(next.getValue())) {
+            continue;
+         }
+         RuntimeSearchParam param = null;
+         if (next.getParamType() != null && next.getParamName() != null && myCtx.getResourceTypes().contains(next.getParamType())) {
+            param = myCtx.getResourceDefinition(next.getParamType()).getSearchParam(next.getParamName());
+         }
+         if (param == null || param.getParamType() != RestSearchParameterTypeEnum.REFERENCE) {
+            throw new InvalidRequestException("Invalid include, not a reference search parameter: " + next.getValue());
+         }
+         if (next.getParamTargetType() != null && !myCtx.getResourceTypes().contains(next.getParamTargetType())) {
+            throw new InvalidRequestException("Invalid include, unknown target type: " + next.getValue());
+         }
+      }
+   }
+
+   /**
+    * Returns the resources to include along with a page of search results
+    */
+   public List<IBaseResource> resolve(List<? extends IBaseResource> theMatches, Set<Include> theIncludes, Set<Include> theRevIncludes) {
+      Set<Include> includes = theIncludes != null ? theIncludes : Collections.emptySet();
+      Set<Include> revIncludes = theRevIncludes != null ? theRevIncludes : Collections.emptySet();
+      if (theMatches.isEmpty() || (includes.isEmpty() && revIncludes.isEmpty())) {
+         return Collections.emptyList();
+      }
+
+      Set<String> seen = new HashSet<>();
+      for (IBaseResource next : theMatches) {
+         seen.add(toId(next));
+      }
+
+      List<IBaseResource> retVal = new ArrayList<>();
+      Collection<? extends IBaseResource> sources = theMatches;
+      boolean firstLevel = true;
+      while (!sources.isEmpty()) {
+         Map<String, Set<String>> wanted = new LinkedHashMap<>();
+         for (IBaseResource nextSource : sources) {
+            String sourceType = myCtx.getResourceType(nextSource);
+            String sourceId = sourceType + "/" + nextSource.getIdElement().getIdPart();
+            for (Include nextInclude : includes) {
+               if (firstLevel || nextInclude.isRecurse()) {
+                  addTargets(sourceType, sourceId, nextInclude, seen, wanted);
+               }
+            }
+            for (Include nextInclude : revIncludes) {
+               if (firstLevel || nextInclude.isRecurse()) {
+                  addSources(sourceType, sourceId, nextInclude, seen, wanted);
+               }
+            }
+         }
+
+         sources = fetch(wanted);
+         retVal.addAll(sources);
+         firstLevel = false;
+      }
+      return retVal;
+   }
+
+   /**
+    * Adds the IDs of the resources the source refers to, e.g. the
+    * Organization of a Patient for <code>Patient:organization</code>
+    */
+   private void addTargets(String theSourceType, String theSourceId, Include theInclude, Set<String> theSeen, Map<String, Set<String>> theWanted) {
+      String paramName = null;
+      if (!"*".equals(theInclude.getValue())) {
+         if (!theSourceType.equals(theInclude.getParamType())) {
+            return;
+         }
+         paramName = theInclude.getParamName();
+      }
+      for (String nextTarget : myReferenceIndex.getTargets(theSourceId, paramName)) {
+         if (theInclude.getParamTargetType() == null || nextTarget.startsWith(theInclude.getParamTargetType() + "/")) {
+            addWanted(nextTarget, theSeen, theWanted);
+         }
+      }
+   }
+
+   /**
+    * Adds the IDs of the resources which refer to the source, e.g. the
+    * Patients of an Organization for <code>Patient:organization</code>
+    */
+   private void addSources(String theSourceType, String theSourceId, Include theInclude, Set<String> theSeen, Map<String, Set<String>> theWanted) {
+      String sourceParam = null;
+      if (!"*".equals(theInclude.getValue())) {
+         if (theInclude.getParamTargetType() != null && !theSourceType.equals(theInclude.getParamTargetType())) {
+            return;
+         }
+         sourceParam = theInclude.getParamType() + ":" + theInclude.getParamName();
+      }
+      for (String nextSource : myReferenceIndex.getSources(theSourceId, sourceParam)) {
+         addWanted(nextSource, theSeen, theWanted);
+      }
+   }
+
+   private void addWanted(String theId, Set<String> theSeen, Map<String, Set<String>> theWanted) {
+      if (theSeen.add(theId)) {
+         int slash = theId.indexOf('/');
+         theWanted.computeIfAbsent(theId.substring(0, slash), t -> new LinkedHashSet<>()).add(theId.substring(slash + 1));
+      }
+   }
+
+   /**
+    * Fetches the wanted resources with one lookup per resource type
+    */
+   private List<IBaseResource> fetch(Map<String, Set<String>> theWanted) {
+      List<IBaseResource> retVal = new ArrayList<>();
+      for (Map.Entry<String, Set<String>> next : theWanted.entrySet()) {
+         IResourceLookup lookup = myLookups.get(next.getKey());
+         if (lookup == null) {
+            continue;
+         }
+         for (IBaseResource nextResource : lookup.readLatest(next.getValue())) {
+            retVal.add(copyAsInclude(nextResource));
+         }
+      }
+      return retVal;
+   }
+
+   private IBaseResource copyAsInclude(IBaseResource theResource) {
+      Resource retVal = ((Resource) theResource).copy();
+      ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put(retVal, BundleEntrySearchModeEnum.INCLUDE.getCode());
+      return retVal;
+   }
+
+   private String toId(IBaseResource theResource) {
+      return myCtx.getResourceType(theResource) + "/" + theResource.getIdElement().getIdPart();
+   }
+
+}
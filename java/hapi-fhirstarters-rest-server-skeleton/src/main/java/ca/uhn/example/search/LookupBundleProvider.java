@@ -0,0 +1,77 @@
+package ca.uhn.example.search;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Search results held as a list of IDs, which are only fetched from the
+ * {@link IResourceLookup} one page at a time. This suits stores which keep
+ * resources encoded, since only the pages returned to the client are decoded,
+ * and only the elements of the request's {@link Projection}.
+ */
+public class LookupBundleProvider implements IBundleProvider {
+
+   private final List<String> myIdParts;
+   private final IResourceLookup myLookup;
+   private final Projection myProjection;
+   private final InstantType myPublished = InstantType.withCurrentTime();
+
+   /**
+    * Constructor
+    *
+    * @param theIdParts The ID parts of the results, in order
+    * @param theLookup  Fetches the results
+    */
+   public LookupBundleProvider(List<String> theIdParts, IResourceLookup theLookup) {
+      this(theIdParts, theLookup, Projection.ALL);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param theIdParts    The ID parts of the results, in order
+    * @param theLookup     Fetches the results
+    * @param theProjection The elements of the results which are wanted
+    */
+   public LookupBundleProvider(List<String> theIdParts, IResourceLookup theLookup, Projection theProjection) {
+      myIdParts = theIdParts;
+      myLookup = theLookup;
+      myProjection = theProjection;
+   }
+
+   @Override
+   public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+      int to = Math.min(theToIndex, myIdParts.size());
+      if (theFromIndex >= to) {
+         return new ArrayList<>();
+      }
+      return new ArrayList<>(myLookup.readLatest(myIdParts.subList(theFromIndex, to), myProjection));
+   }
+
+   @Override
+   public IPrimitiveType<Date> getPublished() {
+      return myPublished;
+   }
+
+   @Override
+   public String getUuid() {
+      return null;
+   }
+
+   @Override
+   public Integer preferredPageSize() {
+      return null;
+   }
+
+   @Override
+   public Integer size() {
+      return myIdParts.size();
+   }
+
+}
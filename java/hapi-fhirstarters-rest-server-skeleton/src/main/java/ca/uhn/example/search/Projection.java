@@ -0,0 +1,200 @@
+package ca.uhn.example.search;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The top-level elements of a resource type which a request asks for with
+ * <code>_summary</code> or <code>_elements</code>, so that providers only
+ * materialize those elements: a copy of a stored resource holding just them,
+ * or, for a store which keeps resources encoded, a decode which skips the
+ * rest.
+ * <p>
+ * A projection is a superset of what the server will encode. It always keeps
+ * <code>id</code>, <code>meta</code>, the mandatory elements and those which
+ * change the meaning of the rest (<code>implicitRules</code>,
+ * <code>modifierExtension</code> and <code>contained</code>), and the server
+ * still applies <code>_summary</code> and <code>_elements</code> itself when it
+ * encodes the response, which also adds the <code>SUBSETTED</code> tag. A
+ * nested path such as <code>name.family</code> keeps the whole of
+ * <code>name</code>. Unknown element names are ignored.
+ * </p>
+ * <p>
+ * The narrative is only kept if it was asked for (<code>_summary=text</code>,
+ * or <code>_elements=text</code>), so a projected resource never has one
+ * generated for it otherwise.
+ * </p>
+ */
+public class Projection {
+
+   /**
+    * Every element, for a request with neither parameter
+    */
+   public static final Projection ALL = new Projection(null, null);
+
+   private static final Set<String> ALWAYS = new HashSet<>(Arrays.asList("id", "meta", "implicitRules", "modifierExtension", "contained"));
+
+   private final RuntimeResourceDefinition myDefinition;
+   private final List<BaseRuntimeChildDefinition> myChildren;
+   private final Set<String> myElementNames;
+   private final Set<String> myPropertyNames;
+   private final String myKey;
+
+   private Projection(RuntimeResourceDefinition theDefinition, List<BaseRuntimeChildDefinition> theChildren) {
+      myDefinition = theDefinition;
+      myChildren = theChildren;
+      if (theChildren == null) {
+         myElementNames = null;
+         myPropertyNames = null;
+         myKey = "*";
+      } else {
+         myElementNames = new LinkedHashSet<>();
+         myPropertyNames = new HashSet<>();
+         for (BaseRuntimeChildDefinition next : theChildren) {
+            myElementNames.add(next.getElementName());
+            myPropertyNames.addAll(next.getValidChildNames());
+         }
+         myKey = String.join(",", myElementNames);
+      }
+   }
+
+   /**
+    * Returns the projection for a request
+    *
+    * @param theDefinition The resource type
+    * @param theSummary    The values of <code>_summary</code>, or <code>null</code>
+    * @param theElements   The values of <code>_elements</code>, or <code>null</code>
+    */
+   public static Projection forRequest(RuntimeResourceDefinition theDefinition, Set<SummaryEnum> theSummary, Set<String> theElements) {
+      Set<SummaryEnum> summary = theSummary != null ? theSummary : Collections.emptySet();
+      boolean hasElements = theElements != null && !theElements.isEmpty();
+      boolean hasSummary = !summary.isEmpty() && !summary.contains(SummaryEnum.FALSE);
+      if (!hasElements && !hasSummary) {
+         return ALL;
+      }
+
+      TreeMap<String, BaseRuntimeChildDefinition> retVal = new TreeMap<>();
+      for (BaseRuntimeChildDefinition next : theDefinition.getChildren()) {
+         String name = next.getElementName();
+         boolean keep = ALWAYS.contains(name) || next.getMin() > 0;
+         keep |= summary.contains(SummaryEnum.TRUE) && next.isSummary();
+         keep |= summary.contains(SummaryEnum.TEXT) && "text".equals(name);
+         keep |= summary.contains(SummaryEnum.DATA) && !"text".equals(name);
+         if (keep) {
+            retVal.put(name, next);
+         }
+      }
+      if (hasElements) {
+         for (String next : theElements) {
+            BaseRuntimeChildDefinition child = findChild(theDefinition, next);
+            if (child != null) {
+               retVal.put(child.getElementName(), child);
+            }
+         }
+      }
+
+      if (retVal.size() == theDefinition.getChildren().size()) {
+         return ALL;
+      }
+      return new Projection(theDefinition, new ArrayList<>(retVal.values()));
+   }
+
+   /**
+    * Finds the top-level element of a value of <code>_elements</code>, which
+    * may be prefixed by the resource type (<code>Patient.name</code>), name a
+    * nested element (<code>name.family</code>), or name a choice element by
+    * one of its types (<code>valueQuantity</code>)
+    */
+   private static BaseRuntimeChildDefinition findChild(RuntimeResourceDefinition theDefinition, String theElement) {
+      String name = theElement.trim();
+      if (name.startsWith(theDefinition.getName() + ".") || name.startsWith("*.")) {
+         name = name.substring(name.indexOf('.') + 1);
+      }
+      if (name.contains(".")) {
+         name = name.substring(0, name.indexOf('.'));
+      }
+      if (name.endsWith("[x]")) {
+         name = name.substring(0, name.length() - 3);
+      }
+      for (BaseRuntimeChildDefinition next : theDefinition.getChildren()) {
+         if (next.getElementName().equals(name) || next.getValidChildNames().contains(name)) {
+            return next;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Returns <code>true</code> if every element is wanted
+    */
+   public boolean isAll() {
+      return myElementNames == null;
+   }
+
+   /**
+    * Returns <code>true</code> if the narrative is wanted
+    */
+   public boolean includesNarrative() {
+      return includesElement("text");
+   }
+
+   /**
+    * Returns <code>true</code> if a top-level element is wanted
+    *
+    * @param theElementName The element name, e.g. <code>value</code> for <code>Observation.value[x]</code>
+    */
+   public boolean includesElement(String theElementName) {
+      return myElementNames == null || myElementNames.contains(theElementName);
+   }
+
+   /**
+    * Returns <code>true</code> if a top-level property of the FHIR JSON
+    * form of the resource is wanted
+    *
+    * @param thePropertyName The property name, e.g. <code>valueQuantity</code>
+    */
+   public boolean includesProperty(String thePropertyName) {
+      return myPropertyNames == null || myPropertyNames.contains(thePropertyName);
+   }
+
+   /**
+    * Returns a copy of a resource holding only the wanted elements, or the
+    * resource itself if every element is wanted. The copy shares its element
+    * values with the original, so neither should be modified.
+    */
+   @SuppressWarnings("unchecked")
+   public <T extends IBaseResource> T apply(T theResource) {
+      if (isAll()) {
+         return theResource;
+      }
+      T retVal = (T) myDefinition.newInstance();
+      for (BaseRuntimeChildDefinition nextChild : myChildren) {
+         for (IBase nextValue : nextChild.getAccessor().getValues(theResource)) {
+            // Empty values, such as a narrative which has not been generated yet, are not shared
+            if (!nextValue.isEmpty()) {
+               nextChild.getMutator().addValue(retVal, nextValue);
+            }
+         }
+      }
+      retVal.setId(theResource.getIdElement());
+      return retVal;
+   }
+
+   @Override
+   public String toString() {
+      return myKey;
+   }
+
+}
@@ -0,0 +1,154 @@
+package ca.uhn.example.search;
+
+import ca.uhn.example.index.PostingList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Finds the resources matching all of a search's predicates, doing as little
+ * work as the most selective predicate allows.
+ * <p>
+ * The indexed predicates are estimated from their indexes, and evaluated
+ * from the most selective. The first one lists its IDs, and each of the
+ * others either lists its own and is intersected with the candidates so far,
+ * or, if its list would be much longer than the candidates, checks each
+ * candidate instead. Unindexed predicates check the candidates at the end,
+ * and only a search with no indexed predicate at all scans every resource.
+ * </p>
+ * <p>
+ * Estimates are counted with a limit which starts small and doubles until
+ * one predicate has been counted fully, so a predicate matching most of the
+ * store is never counted to the end when another matches a few resources.
+ * </p>
+ */
+public class SearchPlanner {
+
+   private static final Logger ourLog = LoggerFactory.getLogger(SearchPlanner.class);
+
+   /**
+    * A predicate whose estimate is more than this many times the number of
+    * candidates checks the candidates rather than listing its IDs
+    */
+   private static final long PROBE_RATIO = 8;
+   private static final long FIRST_LIMIT = 64;
+
+   private SearchPlanner() {
+      // Static methods only
+   }
+
+   /**
+    * Returns the IDs of the resources which match all of the predicates
+    *
+    * @param thePredicates The predicates
+    * @param theAllIds     Supplies the IDs of every resource, in ascending order, for a search with no indexed predicate
+    * @return The matching IDs, in ascending order
+    */
+   public static long[] execute(List<ISearchPredicate> thePredicates, Supplier<long[]> theAllIds) {
+      List<ISearchPredicate> indexed = new ArrayList<>();
+      List<ISearchPredicate> unindexed = new ArrayList<>();
+      for (ISearchPredicate next : thePredicates) {
+         (next.isIndexed() ? indexed : unindexed).add(next);
+      }
+
+      Map<ISearchPredicate, Long> estimates = estimate(indexed);
+      indexed.sort(Comparator.comparing(estimates::get));
+
+      StringBuilder plan = ourLog.isDebugEnabled() ? new StringBuilder() : null;
+      long[] candidates;
+      if (indexed.isEmpty()) {
+         candidates = theAllIds.get();
+         describe(plan, "scan", candidates.length);
+      } else {
+         candidates = indexed.get(0).find();
+         describe(plan, indexed.get(0) + " find", candidates.length);
+         for (ISearchPredicate next : indexed.subList(1, indexed.size())) {
+            if (candidates.length == 0) {
+               break;
+            }
+            if (estimates.get(next) > candidates.length * PROBE_RATIO) {
+               candidates = filter(candidates, next);
+               describe(plan, next + " check", candidates.length);
+            } else {
+               candidates = PostingList.intersect(candidates, next.find());
+               describe(plan, next + " intersect", candidates.length);
+            }
+         }
+      }
+      for (ISearchPredicate next : unindexed) {
+         if (candidates.length == 0) {
+            break;
+         }
+         candidates = filter(candidates, next);
+         describe(plan, next + " check", candidates.length);
+      }
+
+      if (plan != null) {
+         ourLog.debug("Search plan: {}", plan);
+      }
+      return candidates;
+   }
+
+   /**
+    * Estimates each predicate, with limits doubling until at least one has
+    * been counted fully. The others are then counted up to the point where
+    * they would be checked rather than listed, so a predicate whose estimate
+    * is that limit matches at least that many.
+    */
+   private static Map<ISearchPredicate, Long> estimate(List<ISearchPredicate> thePredicates) {
+      Map<ISearchPredicate, Long> retVal = new IdentityHashMap<>();
+      long limit = FIRST_LIMIT;
+      long best = Long.MAX_VALUE;
+      while (!thePredicates.isEmpty()) {
+         best = Long.MAX_VALUE;
+         for (ISearchPredicate next : thePredicates) {
+            long estimate = next.estimate(limit);
+            retVal.put(next, estimate);
+            best = Math.min(best, estimate);
+         }
+         if (best < limit) {
+            break;
+         }
+         limit = multiply(limit, 2);
+      }
+
+      long checkLimit = multiply(best, PROBE_RATIO) + 1;
+      if (checkLimit > limit) {
+         for (ISearchPredicate next : thePredicates) {
+            if (retVal.get(next) >= limit) {
+               retVal.put(next, next.estimate(checkLimit));
+            }
+         }
+      }
+      return retVal;
+   }
+
+   private static long multiply(long theValue, long theFactor) {
+      return theValue > (Long.MAX_VALUE - 1) / theFactor ? Long.MAX_VALUE - 1 : theValue * theFactor;
+   }
+
+   private static long[] filter(long[] theCandidates, ISearchPredicate thePredicate) {
+      long[] retVal = new long[theCandidates.length];
+      int count = 0;
+      for (long next : theCandidates) {
+         if (thePredicate.matches(next)) {
+            retVal[count++] = next;
+         }
+      }
+      return Arrays.copyOf(retVal, count);
+   }
+
+   private static void describe(StringBuilder thePlan, String theStep, int theCount) {
+      if (thePlan != null) {
+         thePlan.append(thePlan.length() > 0 ? " -> " : "").append(theStep).append(" (").append(theCount).append(")");
+      }
+   }
+
+}
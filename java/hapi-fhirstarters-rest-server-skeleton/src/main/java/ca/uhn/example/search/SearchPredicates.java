@@ -0,0 +1,272 @@
+package ca.uhn.example.search;
+
+import ca.uhn.example.index.DateIndex;
+import ca.uhn.example.index.PostingList;
+import ca.uhn.example.index.StringIndex;
+import ca.uhn.example.index.TokenIndex;
+import ca.uhn.fhir.rest.param.DateAndListParam;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Creates the {@link ISearchPredicate search predicates} for search
+ * parameters, each backed by the index of that parameter. Values within one
+ * parameter (<code>family=Smith,Jones</code>) are ORed within one predicate.
+ */
+public class SearchPredicates {
+
+   private SearchPredicates() {
+      // Static methods only
+   }
+
+   /**
+    * Creates a predicate for a token parameter, such as <code>identifier</code>
+    * or <code>gender</code>. The <code>:not</code> modifier is supported, but
+    * is not indexed.
+    *
+    * @param theName  The parameter name, for logging
+    * @param theIndex The index of the parameter
+    * @param theOrs   The values, any of which may match
+    */
+   public static ISearchPredicate forTokens(String theName, TokenIndex theIndex, TokenOrListParam theOrs) {
+      List<TokenParam> values = theOrs.getValuesAsQueryTokens();
+      boolean indexed = true;
+      for (TokenParam next : values) {
+         if (next.getValue() == null || next.getValue().isEmpty()) {
+            throw new InvalidRequestException("The " + theName + " parameter must have a value");
+         }
+         if (next.getModifier() == TokenParamModifier.NOT) {
+            indexed = false;
+         } else if (next.getModifier() != null) {
+            throw new InvalidRequestException("Unsupported modifier on " + theName + ": " + next.getModifier().getValue());
+         }
+      }
+      return new TokenPredicate(theName, theIndex, values, indexed);
+   }
+
+   /**
+    * Creates a predicate for a string parameter, such as <code>family</code>.
+    * Values match the start of a string ignoring case and accents, or the
+    * whole of it with <code>:exact</code>. The <code>:contains</code>
+    * modifier is supported, but is not indexed.
+    *
+    * @param theName  The parameter name, for logging
+    * @param theIndex The index of the parameter
+    * @param theOrs   The values, any of which may match
+    */
+   public static ISearchPredicate forStrings(String theName, StringIndex theIndex, StringOrListParam theOrs) {
+      List<StringParam> values = theOrs.getValuesAsQueryTokens();
+      boolean indexed = true;
+      for (StringParam next : values) {
+         if (next.getValue() == null || next.getValue().isEmpty()) {
+            throw new InvalidRequestException("The " + theName + " parameter must have a value");
+         }
+         indexed &= !next.isContains();
+      }
+      return new StringPredicate(theName, theIndex, values, indexed);
+   }
+
+   /**
+    * Creates a predicate for a date parameter, such as <code>birthdate</code>
+    *
+    * @param theName  The parameter name, for logging
+    * @param theIndex The index of the parameter
+    * @param theParam The values, which are ANDed and ORed as given
+    */
+   public static ISearchPredicate forDates(String theName, DateIndex theIndex, DateAndListParam theParam) {
+      return new DatePredicate(theName, theIndex, DateMatcher.forParam(theParam));
+   }
+
+   private static class TokenPredicate implements ISearchPredicate {
+
+      private final String myName;
+      private final TokenIndex myIndex;
+      private final List<TokenParam> myValues;
+      private final boolean myIndexed;
+
+      TokenPredicate(String theName, TokenIndex theIndex, List<TokenParam> theValues, boolean theIndexed) {
+         myName = theName;
+         myIndex = theIndex;
+         myValues = theValues;
+         myIndexed = theIndexed;
+      }
+
+      @Override
+      public boolean isIndexed() {
+         return myIndexed;
+      }
+
+      @Override
+      public long estimate(long theLimit) {
+         long retVal = 0;
+         for (TokenParam next : myValues) {
+            retVal += myIndex.count(next.getSystem(), next.getValue());
+         }
+         return retVal;
+      }
+
+      @Override
+      public long[] find() {
+         long[] retVal = new long[0];
+         for (TokenParam next : myValues) {
+            retVal = PostingList.union(retVal, myIndex.find(next.getSystem(), next.getValue()));
+         }
+         return retVal;
+      }
+
+      @Override
+      public boolean matches(long theId) {
+         for (TokenParam next : myValues) {
+            boolean contains = myIndex.contains(theId, next.getSystem(), next.getValue());
+            if (contains != (next.getModifier() == TokenParamModifier.NOT)) {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      @Override
+      public String toString() {
+         return myName;
+      }
+
+   }
+
+   private static class StringPredicate implements ISearchPredicate {
+
+      private final String myName;
+      private final StringIndex myIndex;
+      private final List<StringParam> myValues;
+      private final boolean myIndexed;
+
+      StringPredicate(String theName, StringIndex theIndex, List<StringParam> theValues, boolean theIndexed) {
+         myName = theName;
+         myIndex = theIndex;
+         myValues = theValues;
+         myIndexed = theIndexed;
+      }
+
+      @Override
+      public boolean isIndexed() {
+         return myIndexed;
+      }
+
+      @Override
+      public long estimate(long theLimit) {
+         long retVal = 0;
+         for (StringParam next : myValues) {
+            if (next.isExact()) {
+               retVal += myIndex.countNormalized(next.getValue());
+            } else {
+               retVal += myIndex.countStartingWith(next.getValue(), theLimit - retVal);
+            }
+            if (retVal >= theLimit) {
+               break;
+            }
+         }
+         return retVal;
+      }
+
+      @Override
+      public long[] find() {
+         long[] retVal = new long[0];
+         for (StringParam next : myValues) {
+            if (next.isExact()) {
+               // The index ignores case and accents, so check the original values
+               long[] ids = myIndex.findNormalized(next.getValue());
+               int count = 0;
+               for (long nextId : ids) {
+                  if (myIndex.getValues(nextId).contains(next.getValue())) {
+                     ids[count++] = nextId;
+                  }
+               }
+               retVal = PostingList.union(retVal, Arrays.copyOf(ids, count));
+            } else {
+               retVal = PostingList.union(retVal, myIndex.findStartingWith(next.getValue()));
+            }
+         }
+         return retVal;
+      }
+
+      @Override
+      public boolean matches(long theId) {
+         for (String nextValue : myIndex.getValues(theId)) {
+            String normalizedValue = StringIndex.normalize(nextValue);
+            for (StringParam next : myValues) {
+               if (next.isExact()) {
+                  if (nextValue.equals(next.getValue())) {
+                     return true;
+                  }
+               } else if (next.isContains()) {
+                  if (normalizedValue.contains(StringIndex.normalize(next.getValue()))) {
+                     return true;
+                  }
+               } else if (normalizedValue.startsWith(StringIndex.normalize(next.getValue()))) {
+                  return true;
+               }
+            }
+         }
+         return false;
+      }
+
+      @Override
+      public String toString() {
+         return myName;
+      }
+
+   }
+
+   private static class DatePredicate implements ISearchPredicate {
+
+      private final String myName;
+      private final DateIndex myIndex;
+      private final DateMatcher myMatcher;
+
+      DatePredicate(String theName, DateIndex theIndex, DateMatcher theMatcher) {
+         myName = theName;
+         myIndex = theIndex;
+         myMatcher = theMatcher;
+      }
+
+      @Override
+      public boolean isIndexed() {
+         return true;
+      }
+
+      @Override
+      public long estimate(long theLimit) {
+         return myMatcher.estimate(myIndex, theLimit);
+      }
+
+      @Override
+      public long[] find() {
+         List<DateIndex.Entry> entries = myMatcher.find(myIndex, false);
+         long[] retVal = new long[entries.size()];
+         for (int i = 0; i < retVal.length; i++) {
+            retVal[i] = entries.get(i).getId();
+         }
+         Arrays.sort(retVal);
+         return retVal;
+      }
+
+      @Override
+      public boolean matches(long theId) {
+         DateIndex.Entry entry = myIndex.get(theId);
+         return entry != null && myMatcher.test(entry.getStart(), entry.getEnd());
+      }
+
+      @Override
+      public String toString() {
+         return myName;
+      }
+
+   }
+
+}
@@ -0,0 +1,263 @@
+package ca.uhn.example.server;
+
+import ca.uhn.example.servlet.ExampleRestfulServlet;
+import org.ebaysf.web.cors.CORSFilter;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Servlet;
+import java.lang.management.ManagementFactory;
+import java.util.EnumSet;
+
+/**
+ * This class runs the FHIR server in an embedded Jetty instance instead of
+ * through the "jetty-maven-plugin" or a WAR deployment.
+ * <p>
+ * Unlike the plugin, the connector and thread pool are tuned explicitly, and
+ * the connector speaks both HTTP/1.1 and cleartext HTTP/2 (h2c) so that clients
+ * which support multiplexing can share a single connection for many requests.
+ * </p>
+ * <p>
+ * All settings can be supplied as system properties, e.g.
+ * <code>-Dfhir.port=8080 -Dfhir.acceptors=2 -Dfhir.selectors=4 -Dfhir.maxThreads=200</code>.
+ * See {@link #fromSystemProperties()} for the full list.
+ * </p>
+ */
+public class EmbeddedJettyServer {
+
+   private static final Logger ourLog = LoggerFactory.getLogger(EmbeddedJettyServer.class);
+
+   private int myPort = 8080;
+   private int myAcceptors = 1;
+   private int mySelectors = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+   private int myMinThreads = 16;
+   private int myMaxThreads = 200;
+   private int myThreadIdleTimeoutMillis = 60000;
+   private int myAcceptQueueSize = 1024;
+   private long myIdleTimeoutMillis = 30000;
+   private int myOutputBufferSize = 32 * 1024;
+   private int myMaxConcurrentStreams = 128;
+   private boolean myHttp2Enabled = true;
+   private long myStopTimeoutMillis = 30000;
+   private String myContextPath = "/";
+   private String myServletPath = "/fhir/*";
+   private Servlet myServlet;
+
+   private Server myServer;
+
+   /**
+    * Creates a launcher with settings read from system properties. The following
+    * properties are supported (defaults in brackets):
+    * <ul>
+    * <li><code>fhir.port</code> - Listen port, 0 for an ephemeral port (8080)</li>
+    * <li><code>fhir.acceptors</code> - Acceptor threads (1)</li>
+    * <li><code>fhir.selectors</code> - Selector threads (half the available processors)</li>
+    * <li><code>fhir.minThreads</code> / <code>fhir.maxThreads</code> - Request thread pool bounds (16 / 200)</li>
+    * <li><code>fhir.threadIdleTimeoutMillis</code> - Idle time before a pooled thread is released (60000)</li>
+    * <li><code>fhir.acceptQueueSize</code> - OS accept backlog (1024)</li>
+    * <li><code>fhir.idleTimeoutMillis</code> - Keep-alive idle timeout for connections (30000)</li>
+    * <li><code>fhir.outputBufferSize</code> - Response buffer size in bytes (32768)</li>
+    * <li><code>fhir.http2</code> - Enable h2c alongside HTTP/1.1 (true)</li>
+    * <li><code>fhir.maxConcurrentStreams</code> - HTTP/2 streams per connection (128)</li>
+    * <li><code>fhir.stopTimeoutMillis</code> - How long shutdown waits for in-flight requests (30000)</li>
+    * </ul>
+    */
+   public static EmbeddedJettyServer fromSystemProperties() {
+      EmbeddedJettyServer retVal = new EmbeddedJettyServer();
+      retVal.setPort(Integer.getInteger("fhir.port", retVal.myPort));
+      retVal.setAcceptors(Integer.getInteger("fhir.acceptors", retVal.myAcceptors));
+      retVal.setSelectors(Integer.getInteger("fhir.selectors", retVal.mySelectors));
+      retVal.setMinThreads(Integer.getInteger("fhir.minThreads", retVal.myMinThreads));
+      retVal.setMaxThreads(Integer.getInteger("fhir.maxThreads", retVal.myMaxThreads));
+      retVal.setThreadIdleTimeoutMillis(Integer.getInteger("fhir.threadIdleTimeoutMillis", retVal.myThreadIdleTimeoutMillis));
+      retVal.setAcceptQueueSize(Integer.getInteger("fhir.acceptQueueSize", retVal.myAcceptQueueSize));
+      retVal.setIdleTimeoutMillis(Long.getLong("fhir.idleTimeoutMillis", retVal.myIdleTimeoutMillis));
+      retVal.setOutputBufferSize(Integer.getInteger("fhir.outputBufferSize", retVal.myOutputBufferSize));
+      retVal.setHttp2Enabled(Boolean.parseBoolean(System.getProperty("fhir.http2", Boolean.toString(retVal.myHttp2Enabled))));
+      retVal.setMaxConcurrentStreams(Integer.getInteger("fhir.maxConcurrentStreams", retVal.myMaxConcurrentStreams));
+      retVal.setStopTimeoutMillis(Long.getLong("fhir.stopTimeoutMillis", retVal.myStopTimeoutMillis));
+      return retVal;
+   }
+
+   /**
+    * Starts the server and blocks until the JVM is shut down. Shutdown (e.g. Ctrl-C)
+    * stops accepting new connections and waits for in-flight requests to complete.
+    */
+   public static void main(String[] theArgs) throws Exception {
+      EmbeddedJettyServer server = fromSystemProperties();
+      server.start();
+      server.join();
+   }
+
+   /**
+    * Builds and starts the server. When this method returns the FHIR servlet
+    * has been initialized and the connector is accepting requests.
+    */
+   public void start() throws Exception {
+      long startNanos = System.nanoTime();
+
+      QueuedThreadPool threadPool = new QueuedThreadPool(myMaxThreads, myMinThreads, myThreadIdleTimeoutMillis);
+      threadPool.setName("fhir-http");
+      myServer = new Server(threadPool);
+
+      HttpConfiguration httpConfig = new HttpConfiguration();
+      httpConfig.setSendServerVersion(false);
+      httpConfig.setSendDateHeader(false);
+      httpConfig.setOutputBufferSize(myOutputBufferSize);
+
+      ServerConnector connector;
+      if (myHttp2Enabled) {
+         HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfig);
+         h2c.setMaxConcurrentStreams(myMaxConcurrentStreams);
+         connector = new ServerConnector(myServer, myAcceptors, mySelectors, new HttpConnectionFactory(httpConfig), h2c);
+      } else {
+         connector = new ServerConnector(myServer, myAcceptors, mySelectors, new HttpConnectionFactory(httpConfig));
+      }
+      connector.setPort(myPort);
+      connector.setIdleTimeout(myIdleTimeoutMillis);
+      connector.setAcceptQueueSize(myAcceptQueueSize);
+      myServer.addConnector(connector);
+
+      ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+      context.setContextPath(myContextPath);
+
+      Servlet servlet = myServlet != null ? myServlet : new ExampleRestfulServlet();
+      ServletHolder servletHolder = new ServletHolder("fhirServlet", servlet);
+      servletHolder.setInitOrder(1);
+      context.addServlet(servletHolder, myServletPath);
+      context.addFilter(newCorsFilter(), "/*", EnumSet.of(DispatcherType.REQUEST));
+
+      /*
+       * The statistics handler tracks in-flight requests, which is what allows
+       * Jetty to drain them before the connector is closed on shutdown.
+       */
+      StatisticsHandler statisticsHandler = new StatisticsHandler();
+      statisticsHandler.setHandler(context);
+      myServer.setHandler(statisticsHandler);
+      myServer.setStopTimeout(myStopTimeoutMillis);
+      myServer.setStopAtShutdown(true);
+
+      myServer.start();
+
+      long startMillis = (System.nanoTime() - startNanos) / 1000000L;
+      long sinceJvmStartMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+      ourLog.info("FHIR server listening on port {} (http2={}, acceptors={}, selectors={}, threads={}-{}) - started in {}ms, {}ms since JVM start",
+         getPort(), myHttp2Enabled, myAcceptors, mySelectors, myMinThreads, myMaxThreads, startMillis, sinceJvmStartMillis);
+   }
+
+   /**
+    * Gracefully stops the server, waiting up to the configured stop timeout
+    * for in-flight requests to complete
+    */
+   public void stop() throws Exception {
+      if (myServer != null) {
+         myServer.stop();
+      }
+   }
+
+   /**
+    * Blocks until the server has stopped
+    */
+   public void join() throws InterruptedException {
+      myServer.join();
+   }
+
+   /**
+    * Returns the port the server is actually listening on, which is useful
+    * when the configured port is 0 (ephemeral)
+    */
+   public int getPort() {
+      return ((ServerConnector) myServer.getConnectors()[0]).getLocalPort();
+   }
+
+   /**
+    * Returns the base URL of the FHIR endpoint, e.g. <code>http://localhost:8080/fhir</code>
+    */
+   public String getBaseUrl() {
+      String contextPath = "/".equals(myContextPath) ? "" : myContextPath;
+      String servletPath = myServletPath.endsWith("/*") ? myServletPath.substring(0, myServletPath.length() - 2) : myServletPath;
+      return "http://localhost:" + getPort() + contextPath + servletPath;
+   }
+
+   /**
+    * Same settings as the CORS filter declared in web.xml
+    */
+   private FilterHolder newCorsFilter() {
+      FilterHolder retVal = new FilterHolder(new CORSFilter());
+      retVal.setInitParameter("cors.allowed.origins", "*");
+      retVal.setInitParameter("cors.allowed.methods", "GET,POST,PUT,DELETE,OPTIONS");
+      retVal.setInitParameter("cors.allowed.headers", "X-FHIR-Starter,Origin,Accept,X-Requested-With,Content-Type,Access-Control-Request-Method,Access-Control-Request-Headers");
+      retVal.setInitParameter("cors.exposed.headers", "Location,Content-Location");
+      retVal.setInitParameter("cors.support.credentials", "true");
+      retVal.setInitParameter("cors.logging.enabled", "false");
+      retVal.setInitParameter("cors.preflight.maxage", "300");
+      return retVal;
+   }
+
+   public void setPort(int thePort) {
+      myPort = thePort;
+   }
+
+   public void setAcceptors(int theAcceptors) {
+      myAcceptors = theAcceptors;
+   }
+
+   public void setSelectors(int theSelectors) {
+      mySelectors = theSelectors;
+   }
+
+   public void setMinThreads(int theMinThreads) {
+      myMinThreads = theMinThreads;
+   }
+
+   public void setMaxThreads(int theMaxThreads) {
+      myMaxThreads = theMaxThreads;
+   }
+
+   public void setThreadIdleTimeoutMillis(int theThreadIdleTimeoutMillis) {
+      myThreadIdleTimeoutMillis = theThreadIdleTimeoutMillis;
+   }
+
+   public void setAcceptQueueSize(int theAcceptQueueSize) {
+      myAcceptQueueSize = theAcceptQueueSize;
+   }
+
+   public void setIdleTimeoutMillis(long theIdleTimeoutMillis) {
+      myIdleTimeoutMillis = theIdleTimeoutMillis;
+   }
+
+   public void setOutputBufferSize(int theOutputBufferSize) {
+      myOutputBufferSize = theOutputBufferSize;
+   }
+
+   public void setHttp2Enabled(boolean theHttp2Enabled) {
+      myHttp2Enabled = theHttp2Enabled;
+   }
+
+   public void setMaxConcurrentStreams(int theMaxConcurrentStreams) {
+      myMaxConcurrentStreams = theMaxConcurrentStreams;
+   }
+
+   public void setStopTimeoutMillis(long theStopTimeoutMillis) {
+      myStopTimeoutMillis = theStopTimeoutMillis;
+   }
+
+   /**
+    * Sets the servlet to host. Defaults to a new {@link ExampleRestfulServlet}.
+    */
+   public void setServlet(Servlet theServlet) {
+      myServlet = theServlet;
+   }
+
+}
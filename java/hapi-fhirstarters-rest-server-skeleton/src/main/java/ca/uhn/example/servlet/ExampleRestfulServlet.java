@@ -3,8 +3,22 @@ package ca.uhn.example.servlet;
 import java.util.ArrayList;
 import java.util.List;
 
+import ca.uhn.example.index.ReferenceIndex;
+import ca.uhn.example.intern.ResourceInterner;
+import ca.uhn.example.intern.StringInterner;
+import ca.uhn.example.interceptor.BinaryEncodingInterceptor;
+import ca.uhn.example.interceptor.InterningInterceptor;
+import ca.uhn.example.provider.ChangeFeedProvider;
+import ca.uhn.example.provider.ObservationResourceProvider;
 import ca.uhn.example.provider.OrganizationResourceProvider;
 import ca.uhn.example.provider.PatientResourceProvider;
+import ca.uhn.example.provider.SubscriptionResourceProvider;
+import ca.uhn.example.search.IncludeResolver;
+import ca.uhn.example.store.ChangeLog;
+import ca.uhn.example.store.HistoryCompactor;
+import ca.uhn.example.store.RetentionPolicy;
+import ca.uhn.example.subscription.SubscriptionDispatcher;
+import ca.uhn.example.subscription.SubscriptionRegistry;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
 import ca.uhn.fhir.narrative.INarrativeGenerator;
@@ -19,6 +33,9 @@ public class ExampleRestfulServlet extends RestfulServer {
 
 	private static final long serialVersionUID = 1L;
 
+	private transient SubscriptionDispatcher mySubscriptionDispatcher;
+	private transient HistoryCompactor myHistoryCompactor;
+
 	/**
 	 * Constructor
 	 */
@@ -33,13 +50,64 @@ public class ExampleRestfulServlet extends RestfulServer {
 	@Override
 	public void initialize() {
 		/*
-		 * Two resource providers are defined. Each one handles a specific
+		 * Four resource providers are defined. Each one handles a specific
 		 * type of resource.
 		 */
+		IncludeResolver includeResolver = new IncludeResolver(getFhirContext(), new ReferenceIndex(getFhirContext()));
+		ChangeLog changeLog = new ChangeLog(Integer.getInteger("fhir.changeLogSize", 10000));
+		int patientPartitions = Integer.getInteger("fhir.patientPartitions", Runtime.getRuntime().availableProcessors());
+		/*
+		 * Every Patient version is kept unless a limit is set, and versions
+		 * beyond it are pruned in the background
+		 */
+		RetentionPolicy retentionPolicy = new RetentionPolicy(Integer.getInteger("fhir.retainVersions", 0), Long.getLong("fhir.retainSeconds", 0) * 1000);
+		PatientResourceProvider patientProvider = new PatientResourceProvider(getFhirContext(), includeResolver, patientPartitions, changeLog, retentionPolicy);
+		if (!retentionPolicy.isKeepAll()) {
+			myHistoryCompactor = new HistoryCompactor(patientProvider.getStore(), Long.getLong("fhir.compactMillis", 1000));
+		}
+		OrganizationResourceProvider organizationProvider = new OrganizationResourceProvider(includeResolver, changeLog);
+		/*
+		 * Code systems, codes and other repeated strings of the resources
+		 * clients send, and of the Observations decoded from their store,
+		 * can be interned, if a size is set for the table of strings
+		 */
+		int internSize = Integer.getInteger("fhir.internSize", 0);
+		ResourceInterner interner = null;
+		if (internSize > 0) {
+			interner = new ResourceInterner(getFhirContext(), new StringInterner(internSize, Integer.getInteger("fhir.internMaxLength", 256)));
+			registerInterceptor(new InterningInterceptor(interner));
+		}
+		ObservationResourceProvider observationProvider = new ObservationResourceProvider(getFhirContext(), includeResolver, changeLog, interner);
+
+		/*
+		 * Subscriptions are matched against every new version as it is
+		 * logged, and notified in the background
+		 */
+		mySubscriptionDispatcher = new SubscriptionDispatcher(getFhirContext(), Integer.getInteger("fhir.subscriptionQueueSize", 10000));
+		SubscriptionRegistry subscriptionRegistry = new SubscriptionRegistry(getFhirContext(), mySubscriptionDispatcher);
+		subscriptionRegistry.registerCompiler("Patient", patientProvider);
+		changeLog.addListener(subscriptionRegistry);
+
 		List<IResourceProvider> providers = new ArrayList<IResourceProvider>();
-		providers.add(new PatientResourceProvider());
-		providers.add(new OrganizationResourceProvider());
+		providers.add(patientProvider);
+		providers.add(organizationProvider);
+		providers.add(observationProvider);
+		providers.add(new SubscriptionResourceProvider(subscriptionRegistry));
 		setResourceProviders(providers);
+
+		/*
+		 * Every new version is logged, and clients can follow the log
+		 * with the $changes operation
+		 */
+		registerProvider(new ChangeFeedProvider(changeLog));
+
+		/*
+		 * The providers share one reference index, and can be asked for
+		 * each other's resources by _include and _revinclude
+		 */
+		includeResolver.registerLookup("Patient", patientProvider);
+		includeResolver.registerLookup("Organization", organizationProvider);
+		includeResolver.registerLookup("Observation", observationProvider);
 		
 		/*
 		 * Use a narrative generator. This is a completely optional step, 
@@ -53,7 +121,24 @@ public class ExampleRestfulServlet extends RestfulServer {
 		 * Use nice coloured HTML when a browser is used to request the content
 		 */
 		registerInterceptor(new ResponseHighlighterInterceptor());
+
+		/*
+		 * Accept and return resources in a binary format (CBOR or Smile) when
+		 * the client asks for one
+		 */
+		registerInterceptor(new BinaryEncodingInterceptor());
 		
 	}
 
+	@Override
+	public void destroy() {
+		super.destroy();
+		if (mySubscriptionDispatcher != null) {
+			mySubscriptionDispatcher.close();
+		}
+		if (myHistoryCompactor != null) {
+			myHistoryCompactor.close();
+		}
+	}
+
 }
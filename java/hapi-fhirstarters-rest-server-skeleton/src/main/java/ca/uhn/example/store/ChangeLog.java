@@ -0,0 +1,239 @@
+package ca.uhn.example.store;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded log of every new version stored, numbered in the order they were
+ * stored, for clients which keep a cache or a replica of the server current.
+ * <p>
+ * The log keeps the most recent changes in a ring buffer, and a reader asks
+ * for the changes after the sequence number of the last one it has seen,
+ * waiting for more if there are none yet. A reader which falls further
+ * behind than the log's capacity has missed changes, and must start again
+ * from a full copy. Sequence numbers are only meaningful within one log, so
+ * each log has a random epoch, which cursors handed to clients include.
+ * </p>
+ * <p>
+ * Stores append to the log while they hold the lock on the resource ID, so
+ * the versions of one resource are always logged in order. Appending takes
+ * no lock, so writers of different resources never wait for each other
+ * here: each claims a sequence number and then fills its slot, and readers
+ * only return changes up to the first slot not yet filled, so they never
+ * skip one. The log keeps the stored versions themselves, so it holds on
+ * to at most its capacity of resources which have since been replaced.
+ * </p>
+ * <p>
+ * {@link IListener Listeners} are told of each change as it is appended,
+ * on the writer's thread and still under the store's lock on the resource ID,
+ * so they see the store's indexes as they were for that version. A delete is
+ * logged before the resource leaves the indexes, so they see its last
+ * version. This class is thread safe.
+ * </p>
+ */
+public class ChangeLog {
+
+   private final AtomicReferenceArray<Change> myChanges;
+   private final long myEpoch = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+   private final List<IListener> myListeners = new CopyOnWriteArrayList<>();
+
+   /**
+    * The sequence number of the last change claimed, or 0 if there is none. Its slot may not be filled yet.
+    */
+   private final AtomicLong myLastSequence = new AtomicLong();
+
+   /**
+    * The number of readers waiting for a change, which appends only take the lock to wake if there are any
+    */
+   private final AtomicInteger myWaitingReaders = new AtomicInteger();
+
+   /**
+    * Constructor
+    *
+    * @param theCapacity The number of changes kept
+    */
+   public ChangeLog(int theCapacity) {
+      if (theCapacity < 1) {
+         throw new IllegalArgumentException("The capacity must be at least 1");
+      }
+      myChanges = new AtomicReferenceArray<>(theCapacity);
+   }
+
+   /**
+    * Records a new version
+    *
+    * @param theResource The version, with its ID and last updated time set, or a tombstone
+    * @param theType     Whether the version created, updated or deleted the resource
+    * @return The sequence number of the change
+    */
+   public long append(IBaseResource theResource, ChangeType theType) {
+      Change change = new Change(myLastSequence.incrementAndGet(), theType, theResource);
+      int index = index(change.getSequence());
+      for (Change existing = myChanges.get(index); existing == null || existing.getSequence() < change.getSequence(); existing = myChanges.get(index)) {
+         // A writer a whole lap ahead may have filled the slot already, and must not be overwritten
+         if (myChanges.compareAndSet(index, existing, change)) {
+            break;
+         }
+      }
+      if (myWaitingReaders.get() > 0) {
+         synchronized (this) {
+            notifyAll();
+         }
+      }
+
+      for (IListener next : myListeners) {
+         next.onChange(change);
+      }
+      return change.getSequence();
+   }
+
+   /**
+    * Tells a listener of every change appended from now on
+    */
+   public void addListener(IListener theListener) {
+      myListeners.add(theListener);
+   }
+
+   /**
+    * Returns the changes after a sequence number, waiting for one if there
+    * are none yet
+    *
+    * @param theAfter      The sequence number of the last change the reader has seen, or 0 for every change
+    * @param theMax        The most changes to return
+    * @param theWaitMillis How long to wait for a change if there are none yet
+    * @return The changes, oldest first, which is empty if none came while waiting, or <code>null</code> if changes after
+    * that sequence number are no longer kept, or it is not one of this log's
+    */
+   public List<Change> read(long theAfter, int theMax, long theWaitMillis) throws InterruptedException {
+      if (theAfter > myLastSequence.get()) {
+         return null;
+      }
+      if (!isFilled(theAfter + 1) && theWaitMillis > 0) {
+         long deadline = System.currentTimeMillis() + theWaitMillis;
+         synchronized (this) {
+            myWaitingReaders.incrementAndGet();
+            try {
+               for (long remaining = theWaitMillis; !isFilled(theAfter + 1) && remaining > 0; remaining = deadline - System.currentTimeMillis()) {
+                  wait(remaining);
+               }
+            } finally {
+               myWaitingReaders.decrementAndGet();
+            }
+         }
+      }
+
+      long last = myLastSequence.get();
+      long first = Math.max(1, last - myChanges.length() + 1);
+      if (theAfter < first - 1) {
+         return null;
+      }
+      List<Change> retVal = new ArrayList<>();
+      for (long next = theAfter + 1; next <= last && retVal.size() < theMax; next++) {
+         Change change = myChanges.get(index(next));
+         if (change == null || change.getSequence() < next) {
+            // Claimed but not filled yet, so the changes after it wait for the next read
+            break;
+         }
+         if (change.getSequence() > next) {
+            // Overwritten while reading, so the reader has fallen behind
+            return retVal.isEmpty() ? null : retVal;
+         }
+         retVal.add(change);
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns the sequence number of the last change, or 0 if there is none
+    */
+   public long getLastSequence() {
+      return myLastSequence.get();
+   }
+
+   /**
+    * Returns a number which is different for every log, so that a reader can
+    * tell that the server has restarted since its last read
+    */
+   public long getEpoch() {
+      return myEpoch;
+   }
+
+   public int getCapacity() {
+      return myChanges.length();
+   }
+
+   /**
+    * Returns <code>true</code> if the change with a sequence number, or a later one in its slot, has been appended
+    */
+   private boolean isFilled(long theSequence) {
+      Change change = myChanges.get(index(theSequence));
+      return change != null && change.getSequence() >= theSequence;
+   }
+
+   private int index(long theSequence) {
+      return (int) ((theSequence - 1) % myChanges.length());
+   }
+
+   /**
+    * Told of each change as it is appended
+    */
+   public interface IListener {
+
+      /**
+       * Called on the writer's thread, after the change is in the log. The
+       * store still holds the lock on the resource's bin of its map, which
+       * blocks other writes to that bin, so this should be quick, must not
+       * write to the store, and must not throw, since the write has already
+       * happened.
+       */
+      void onChange(Change theChange);
+
+   }
+
+   /**
+    * The kinds of change
+    */
+   public enum ChangeType {
+      CREATE, UPDATE, DELETE
+   }
+
+   /**
+    * One new version
+    */
+   public static class Change {
+
+      private final long mySequence;
+      private final ChangeType myType;
+      private final IBaseResource myResource;
+
+      Change(long theSequence, ChangeType theType, IBaseResource theResource) {
+         mySequence = theSequence;
+         myType = theType;
+         myResource = theResource;
+      }
+
+      public long getSequence() {
+         return mySequence;
+      }
+
+      public ChangeType getType() {
+         return myType;
+      }
+
+      /**
+       * Returns the version which was stored, which must not be modified
+       */
+      public IBaseResource getResource() {
+         return myResource;
+      }
+
+   }
+
+}
@@ -0,0 +1,61 @@
+package ca.uhn.example.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compacts a {@link PatientStore} on a background thread at a fixed
+ * interval, so that writes never pay for pruning old versions. Between runs
+ * a store holds at most the versions written since the last one beyond
+ * what its {@link RetentionPolicy} keeps. This class is thread safe.
+ */
+public class HistoryCompactor implements Closeable {
+
+   private static final Logger ourLog = LoggerFactory.getLogger(HistoryCompactor.class);
+
+   private final PatientStore myStore;
+   private final ScheduledExecutorService myExecutor;
+
+   /**
+    * Constructor, which starts compacting
+    *
+    * @param theStore          The store to compact
+    * @param theIntervalMillis The time between the end of one run and the start of the next
+    */
+   public HistoryCompactor(PatientStore theStore, long theIntervalMillis) {
+      myStore = theStore;
+      myExecutor = Executors.newSingleThreadScheduledExecutor(theRunnable -> {
+         Thread retVal = new Thread(theRunnable, "history-compactor");
+         retVal.setDaemon(true);
+         return retVal;
+      });
+      myExecutor.scheduleWithFixedDelay(this::compact, theIntervalMillis, theIntervalMillis, TimeUnit.MILLISECONDS);
+   }
+
+   private void compact() {
+      try {
+         long start = System.nanoTime();
+         int pruned = myStore.compact();
+         if (pruned > 0) {
+            ourLog.debug("Pruned {} versions in {}ms", pruned, (System.nanoTime() - start) / 1000000);
+         }
+      } catch (RuntimeException e) {
+         // A failed run must not stop the next one
+         ourLog.error("Failed to compact the history", e);
+      }
+   }
+
+   /**
+    * Stops compacting
+    */
+   @Override
+   public void close() {
+      myExecutor.shutdownNow();
+   }
+
+}
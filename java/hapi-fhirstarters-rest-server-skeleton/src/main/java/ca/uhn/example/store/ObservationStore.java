@@ -0,0 +1,371 @@
+package ca.uhn.example.store;
+
+import ca.uhn.example.index.ObservationSeries;
+import ca.uhn.example.intern.ResourceInterner;
+import ca.uhn.example.search.IResourceLookup;
+import ca.uhn.example.search.Projection;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.example.binary.BinaryEncoding;
+import ca.uhn.fhir.example.binary.BinaryParser;
+import ca.uhn.fhir.parser.DataFormatException;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.DateTimeType;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Period;
+import org.hl7.fhir.dstu3.model.Quantity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory store for large numbers of Observations such as vital signs,
+ * which are mostly searched by subject, code and date.
+ * <p>
+ * Each Observation is kept in two forms:
+ * </p>
+ * <ul>
+ * <li>The full resource, encoded as Smile (see {@link BinaryEncoding}), which
+ * is several times smaller than the resource objects. It is only decoded when
+ * the resource is returned to a client.</li>
+ * <li>An entry in an {@link ObservationSeries} for each coding of its code,
+ * with its effective time and numeric value. There is one series per subject
+ * and code, so subjects and codes are held once per series rather than once
+ * per observation.</li>
+ * </ul>
+ * <p>
+ * Searches and <code>$lastn</code> are answered from the series, and only the
+ * matching resources are decoded. Observations without a subject reference, a
+ * code or an effective time can be stored and read, but aren't in any series.
+ * </p>
+ * <p>
+ * When only some elements are wanted (see {@link Projection}), the others are
+ * skipped over in the encoded form rather than decoded. With a
+ * {@link ResourceInterner}, the Observations read share the instances of
+ * their code systems and codes with each other.
+ * </p>
+ * <p>
+ * Codes are given as <code>system|code</code>, or as just <code>code</code> to
+ * match that code in any system. Every new version is appended to the
+ * {@link ChangeLog}, if there is one. This class is thread safe.
+ * </p>
+ */
+public class ObservationStore implements IResourceLookup {
+
+   private final ThreadLocal<BinaryParser> myParsers;
+   private final ChangeLog myChangeLog;
+   private final ResourceInterner myInterner;
+   private final AtomicLong myNextId = new AtomicLong(1);
+   private final ConcurrentHashMap<Long, byte[]> myIdToBody = new ConcurrentHashMap<>();
+
+   /*
+    * Subjects and codes are numbered, so that a series can be found by a
+    * single long key
+    */
+   private final AtomicInteger myNextNumber = new AtomicInteger();
+   private final ConcurrentHashMap<String, Integer> mySubjectNumbers = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<String, Integer> myCodeNumbers = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<String, Set<Integer>> myCodeToNumbersInAnySystem = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<Integer, Set<Integer>> mySubjectToCodeNumbers = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<Long, ObservationSeries> mySeries = new ConcurrentHashMap<>();
+
+   /**
+    * Constructor
+    */
+   public ObservationStore(FhirContext theCtx) {
+      this(theCtx, null);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param theChangeLog The log which every new version is appended to, or <code>null</code>
+    */
+   public ObservationStore(FhirContext theCtx, ChangeLog theChangeLog) {
+      this(theCtx, theChangeLog, null);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param theChangeLog The log which every new version is appended to, or <code>null</code>
+    * @param theInterner  Interns the Observations as they are decoded to be read, or <code>null</code>
+    */
+   public ObservationStore(FhirContext theCtx, ChangeLog theChangeLog, ResourceInterner theInterner) {
+      myParsers = ThreadLocal.withInitial(() -> BinaryEncoding.SMILE.newParser(theCtx));
+      myChangeLog = theChangeLog;
+      myInterner = theInterner;
+   }
+
+   /**
+    * Stores a new Observation, assigning its ID
+    */
+   public Observation create(Observation theObservation) {
+      long id = myNextId.getAndIncrement();
+      myIdToBody.compute(id, (theId, theOldBody) -> write(theId, null, theObservation));
+      return theObservation;
+   }
+
+   /**
+    * Replaces an Observation
+    *
+    * @return Returns <code>null</code> if there is no Observation with the given ID
+    */
+   public Observation update(long theId, Observation theObservation) {
+      byte[] body = myIdToBody.computeIfPresent(theId, (theKey, theOldBody) -> write(theKey, theOldBody, theObservation));
+      return body != null ? theObservation : null;
+   }
+
+   /**
+    * Returns an Observation, or <code>null</code> if the ID is not known
+    */
+   public Observation read(long theId) {
+      return read(theId, Projection.ALL);
+   }
+
+   /**
+    * Returns an Observation holding at least the elements of a projection, or
+    * <code>null</code> if the ID is not known
+    */
+   public Observation read(long theId, Projection theProjection) {
+      byte[] body = myIdToBody.get(theId);
+      return body != null ? decode(body, theProjection) : null;
+   }
+
+   @Override
+   public List<Observation> readLatest(Collection<String> theIdParts) {
+      return readLatest(theIdParts, Projection.ALL);
+   }
+
+   @Override
+   public List<Observation> readLatest(Collection<String> theIdParts, Projection theProjection) {
+      List<Observation> retVal = new ArrayList<>(theIdParts.size());
+      for (String nextIdPart : theIdParts) {
+         try {
+            byte[] body = myIdToBody.get(Long.parseLong(nextIdPart));
+            if (body != null) {
+               retVal.add(decode(body, theProjection));
+            }
+         } catch (NumberFormatException e) {
+            // Not one of ours
+         }
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns the IDs of a subject's observations with any of the given codes,
+    * whose effective time is within a range, oldest first
+    *
+    * @param theSubject The subject reference, e.g. <code>Patient/123</code>
+    * @param theCodes   The codes
+    * @param theFrom    The earliest time in epoch milliseconds, inclusive
+    * @param theTo      The latest time in epoch milliseconds, inclusive
+    */
+   public List<String> findIds(String theSubject, Collection<String> theCodes, long theFrom, long theTo) {
+      List<ObservationSeries.Entries> found = new ArrayList<>();
+      for (ObservationSeries next : findSeries(theSubject, theCodes)) {
+         ObservationSeries.Entries entries = next.find(theFrom, theTo);
+         if (entries.size() > 0) {
+            found.add(entries);
+         }
+      }
+      return mergeByTime(found);
+   }
+
+   /**
+    * Returns the IDs of a subject's most recent observations of each code,
+    * grouped by code and newest first within each code
+    *
+    * @param theSubject The subject reference, e.g. <code>Patient/123</code>
+    * @param theCodes   The codes, or an empty collection for every code the subject has
+    * @param theMax     The number of observations to return for each code
+    */
+   public List<String> findLastIds(String theSubject, Collection<String> theCodes, int theMax) {
+      Set<String> retVal = new LinkedHashSet<>();
+      for (ObservationSeries next : findSeries(theSubject, theCodes)) {
+         ObservationSeries.Entries entries = next.last(theMax);
+         for (int i = entries.size() - 1; i >= 0; i--) {
+            retVal.add(Long.toString(entries.getId(i)));
+         }
+      }
+      return new ArrayList<>(retVal);
+   }
+
+   /**
+    * Returns the number of Observations stored
+    */
+   public int size() {
+      return myIdToBody.size();
+   }
+
+   /**
+    * Returns the number of (subject, code) series
+    */
+   public int getSeriesCount() {
+      return mySeries.size();
+   }
+
+   private List<ObservationSeries> findSeries(String theSubject, Collection<String> theCodes) {
+      Integer subject = mySubjectNumbers.get(theSubject);
+      if (subject == null) {
+         return Collections.emptyList();
+      }
+
+      Set<Integer> codes = new LinkedHashSet<>();
+      if (theCodes.isEmpty()) {
+         codes.addAll(mySubjectToCodeNumbers.getOrDefault(subject, Collections.emptySet()));
+      }
+      for (String next : theCodes) {
+         if (next.contains("|")) {
+            Integer code = myCodeNumbers.get(next);
+            if (code != null) {
+               codes.add(code);
+            }
+         } else {
+            codes.addAll(myCodeToNumbersInAnySystem.getOrDefault(next, Collections.emptySet()));
+         }
+      }
+
+      List<ObservationSeries> retVal = new ArrayList<>(codes.size());
+      for (Integer next : codes) {
+         ObservationSeries series = mySeries.get(seriesKey(subject, next));
+         if (series != null) {
+            retVal.add(series);
+         }
+      }
+      return retVal;
+   }
+
+   /**
+    * Merges entries from several series into one list of IDs in time order,
+    * leaving out observations found in more than one series
+    */
+   private static List<String> mergeByTime(List<ObservationSeries.Entries> theEntries) {
+      int[] positions = new int[theEntries.size()];
+      Set<String> retVal = new LinkedHashSet<>();
+      while (true) {
+         int next = -1;
+         for (int i = 0; i < theEntries.size(); i++) {
+            if (positions[i] < theEntries.get(i).size()
+               && (next == -1 || theEntries.get(i).getTime(positions[i]) < theEntries.get(next).getTime(positions[next]))) {
+               next = i;
+            }
+         }
+         if (next == -1) {
+            return new ArrayList<>(retVal);
+         }
+         retVal.add(Long.toString(theEntries.get(next).getId(positions[next]++)));
+      }
+   }
+
+   /**
+    * Called with the lock on the ID held, so writes to the same Observation
+    * happen one at a time
+    */
+   private byte[] write(long theId, byte[] theOldBody, Observation theObservation) {
+      long version = 1;
+      if (theOldBody != null) {
+         Observation old = decode(theOldBody);
+         version = old.getIdElement().getVersionIdPartAsLong() + 1;
+         forEachSeries(old, (theSeries, theTime, theValue) -> theSeries.remove(theTime, theId));
+      }
+
+      theObservation.setId(new IdType("Observation", Long.toString(theId), Long.toString(version)));
+      theObservation.getMeta().setLastUpdatedElement(InstantType.withCurrentTime());
+      forEachSeries(theObservation, (theSeries, theTime, theValue) -> theSeries.add(theTime, theValue, theId));
+
+      byte[] retVal;
+      try {
+         retVal = myParsers.get().encodeResourceToBytes(theObservation);
+      } catch (IOException e) {
+         throw new DataFormatException("Failed to encode Observation: " + e.getMessage(), e);
+      }
+      if (myChangeLog != null) {
+         myChangeLog.append(theObservation, theOldBody == null ? ChangeLog.ChangeType.CREATE : ChangeLog.ChangeType.UPDATE);
+      }
+      return retVal;
+   }
+
+   private void forEachSeries(Observation theObservation, SeriesCallback theCallback) {
+      Date time = getEffectiveTime(theObservation);
+      if (!theObservation.getSubject().hasReference() || time == null) {
+         return;
+      }
+      String subject = theObservation.getSubject().getReferenceElement().toUnqualifiedVersionless().getValue();
+
+      double value = Double.NaN;
+      if (theObservation.hasValueQuantity() && theObservation.getValueQuantity().hasValue()) {
+         Quantity quantity = theObservation.getValueQuantity();
+         value = quantity.getValue().doubleValue();
+      }
+
+      int subjectNumber = number(mySubjectNumbers, subject);
+      for (Coding next : theObservation.getCode().getCoding()) {
+         if (!next.hasCode()) {
+            continue;
+         }
+         String system = next.hasSystem() ? next.getSystem() : "";
+         int codeNumber = number(myCodeNumbers, system + "|" + next.getCode());
+         myCodeToNumbersInAnySystem.computeIfAbsent(next.getCode(), t -> ConcurrentHashMap.newKeySet()).add(codeNumber);
+         mySubjectToCodeNumbers.computeIfAbsent(subjectNumber, t -> ConcurrentHashMap.newKeySet()).add(codeNumber);
+
+         ObservationSeries series = mySeries.computeIfAbsent(seriesKey(subjectNumber, codeNumber), t -> new ObservationSeries());
+         theCallback.accept(series, time.getTime(), value);
+      }
+   }
+
+   private int number(Map<String, Integer> theNumbers, String theValue) {
+      return theNumbers.computeIfAbsent(theValue, t -> myNextNumber.getAndIncrement());
+   }
+
+   private static long seriesKey(int theSubjectNumber, int theCodeNumber) {
+      return ((long) theSubjectNumber << 32) | (theCodeNumber & 0xffffffffL);
+   }
+
+   /**
+    * Returns the effective time, or the start of the effective period
+    */
+   private static Date getEffectiveTime(Observation theObservation) {
+      if (theObservation.getEffective() instanceof DateTimeType) {
+         return ((DateTimeType) theObservation.getEffective()).getValue();
+      }
+      if (theObservation.getEffective() instanceof Period) {
+         return ((Period) theObservation.getEffective()).getStart();
+      }
+      return null;
+   }
+
+   private Observation decode(byte[] theBody) {
+      return myParsers.get().parseResource(Observation.class, theBody);
+   }
+
+   /**
+    * Decodes an Observation to be read, interning it if there is an interner
+    */
+   private Observation decode(byte[] theBody, Projection theProjection) {
+      Observation retVal;
+      if (theProjection.isAll()) {
+         retVal = decode(theBody);
+      } else {
+         retVal = myParsers.get().parseResource(Observation.class, theBody, theProjection::includesProperty);
+      }
+      return myInterner != null ? myInterner.intern(retVal) : retVal;
+   }
+
+   private interface SeriesCallback {
+      void accept(ObservationSeries theSeries, long theTime, double theValue);
+   }
+
+}
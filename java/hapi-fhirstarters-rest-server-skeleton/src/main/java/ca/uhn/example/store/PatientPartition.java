@@ -0,0 +1,488 @@
+package ca.uhn.example.store;
+
+import ca.uhn.example.index.DateIndex;
+import ca.uhn.example.index.ReferenceIndex;
+import ca.uhn.example.index.StringIndex;
+import ca.uhn.example.index.TokenIndex;
+import ca.uhn.example.search.DateMatcher;
+import ca.uhn.example.search.DateRanges;
+import ca.uhn.example.search.ISearchPredicate;
+import ca.uhn.example.search.SearchPlanner;
+import ca.uhn.example.search.SearchPredicates;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.param.DateAndListParam;
+import ca.uhn.fhir.rest.param.StringAndListParam;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.TokenAndListParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.HumanName;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Identifier;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.StringType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+/**
+ * One partition of a {@link PatientStore}: the versions of the Patients whose
+ * IDs hash to it, and indexes of their current versions. A deleted Patient
+ * keeps its versions, the last of which is a tombstone, and is left out of
+ * the indexes. This class is thread safe.
+ */
+class PatientPartition {
+
+   /**
+    * This map has a resource ID as a key, and each key maps to a Deque list containing all versions of the resource with that ID.
+    */
+   private final ConcurrentHashMap<Long, Deque<Patient>> myIdToPatientVersions = new ConcurrentHashMap<>();
+
+   private final ReferenceIndex myReferenceIndex;
+   private final ChangeLog myChangeLog;
+   private final RetentionPolicy myRetentionPolicy;
+
+   /**
+    * The IDs of the Patients which may have versions to prune
+    */
+   private final Set<Long> myCompactionCandidates = ConcurrentHashMap.newKeySet();
+
+   /**
+    * The number of deleted Patients
+    */
+   private final AtomicInteger myDeletedCount = new AtomicInteger();
+
+   /**
+    * The birth date of the current version of each Patient
+    */
+   private final DateIndex myBirthDateIndex = new DateIndex();
+
+   /**
+    * The identifiers of the current version of each Patient
+    */
+   private final TokenIndex myIdentifierIndex = new TokenIndex();
+
+   /**
+    * The family names, given names and gender of the current version of each Patient
+    */
+   private final StringIndex myFamilyIndex = new StringIndex();
+   private final StringIndex myGivenIndex = new StringIndex();
+   private final TokenIndex myGenderIndex = new TokenIndex();
+
+   PatientPartition(ReferenceIndex theReferenceIndex, ChangeLog theChangeLog, RetentionPolicy theRetentionPolicy) {
+      myReferenceIndex = theReferenceIndex;
+      myChangeLog = theChangeLog;
+      myRetentionPolicy = theRetentionPolicy;
+   }
+
+   /**
+    * Stores a new version of a Patient, assigning its version ID and last
+    * updated time. A new version of a deleted Patient creates it again.
+    */
+   void addNewVersion(Patient thePatient, long theId) {
+      addNewVersion(theId, theLatest -> thePatient);
+   }
+
+   /**
+    * Stores a new version of a Patient, made from its current version while
+    * no other version of it can be added, e.g. by applying a patch. This runs
+    * inside {@link ConcurrentHashMap#compute}, so the update, the indexing, the
+    * change log append and its listeners all run holding the lock on the map
+    * bin of the ID, and block any other write to an ID in that bin.
+    *
+    * @param theUpdate Returns the new version, or <code>null</code> to store nothing, given the current version, or
+    *                  <code>null</code> if the ID is not known. Anything it throws is thrown to the caller, and nothing is stored.
+    * @return The new version, or <code>null</code> if nothing was stored
+    */
+   Patient addNewVersion(long theId, UnaryOperator<Patient> theUpdate) {
+      Patient[] retVal = new Patient[1];
+
+      // Versions of one Patient are added one at a time, so that version numbers and the indexes agree
+      myIdToPatientVersions.compute(theId, (theKey, theExistingVersions) -> {
+         Deque<Patient> existingVersions = theExistingVersions != null ? theExistingVersions : new ConcurrentLinkedDeque<>();
+         Patient previous = existingVersions.peekLast();
+         Patient patient = theUpdate.apply(previous);
+         if (patient == null) {
+            return theExistingVersions;
+         }
+         if (PatientStore.isDeleted(previous)) {
+            myDeletedCount.decrementAndGet();
+         }
+
+         // Create an ID with the new version and assign it back to the resource
+         IdType newId = new IdType("Patient", Long.toString(theId), Long.toString(nextVersion(previous)));
+         patient.setId(newId);
+         patient.getMeta().setLastUpdatedElement(InstantType.withCurrentTime());
+
+         existingVersions.add(patient);
+         indexPatient(theId, patient);
+         if (myChangeLog != null) {
+            myChangeLog.append(patient, previous == null ? ChangeLog.ChangeType.CREATE : ChangeLog.ChangeType.UPDATE);
+         }
+         if (previous != null && !myRetentionPolicy.isKeepAll()) {
+            myCompactionCandidates.add(theId);
+         }
+         retVal[0] = patient;
+         return existingVersions;
+      });
+      return retVal[0];
+   }
+
+   /**
+    * Deletes a Patient, by storing a tombstone as its new version and
+    * removing it from the indexes. The change is logged before the indexes
+    * are updated, so that Subscriptions the Patient matched are told.
+    *
+    * @return The tombstone, which is the existing one if the Patient was already deleted, or <code>null</code> if the ID is not known
+    */
+   Patient delete(long theId) {
+      Patient[] retVal = new Patient[1];
+      myIdToPatientVersions.computeIfPresent(theId, (theKey, theExistingVersions) -> {
+         Patient previous = theExistingVersions.getLast();
+         if (PatientStore.isDeleted(previous)) {
+            retVal[0] = previous;
+            return theExistingVersions;
+         }
+
+         Patient tombstone = new Patient();
+         tombstone.setId(new IdType("Patient", Long.toString(theId), Long.toString(nextVersion(previous))));
+         tombstone.getMeta().setLastUpdatedElement(InstantType.withCurrentTime());
+         ResourceMetadataKeyEnum.DELETED_AT.put(tombstone, tombstone.getMeta().getLastUpdatedElement());
+         theExistingVersions.add(tombstone);
+         myDeletedCount.incrementAndGet();
+
+         if (myChangeLog != null) {
+            myChangeLog.append(tombstone, ChangeLog.ChangeType.DELETE);
+         }
+         unindexPatient(theId);
+         if (!myRetentionPolicy.isKeepAll()) {
+            myCompactionCandidates.add(theId);
+         }
+         retVal[0] = tombstone;
+         return theExistingVersions;
+      });
+      return retVal[0];
+   }
+
+   /**
+    * Prunes the old versions which the retention policy no longer keeps,
+    * and collapses each deleted Patient to its tombstone. Only the Patients
+    * written since they were last compacted, or with old versions still to
+    * age, are visited. Readers are never blocked, since versions are only
+    * removed from the head of a concurrent deque, and a vread racing with
+    * the compaction finds the version or not.
+    *
+    * @return The number of versions pruned
+    */
+   int compact(long theNowMillis) {
+      int retVal = 0;
+      for (Long next : new ArrayList<>(myCompactionCandidates)) {
+         // Removed before compacting, so that a write racing with the compaction adds it back
+         myCompactionCandidates.remove(next);
+         int[] pruned = new int[1];
+         myIdToPatientVersions.computeIfPresent(next, (theKey, theVersions) -> {
+            int count = theVersions.size();
+            boolean deleted = PatientStore.isDeleted(theVersions.getLast());
+            while (count > 1) {
+               Patient oldest = theVersions.getFirst();
+               if (!deleted && !myRetentionPolicy.isExpired(count - 1, oldest.getMeta().getLastUpdated().getTime(), theNowMillis)) {
+                  break;
+               }
+               theVersions.removeFirst();
+               count--;
+               pruned[0]++;
+            }
+            if (count > 1 && myRetentionPolicy.hasMaxAge()) {
+               myCompactionCandidates.add(theKey);
+            }
+            return theVersions;
+         });
+         retVal += pruned[0];
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns the version number after that of a version, or 0 for the first
+    */
+   private static long nextVersion(Patient thePrevious) {
+      return thePrevious != null ? thePrevious.getIdElement().getVersionIdPartAsLong() + 1 : 0;
+   }
+
+   /**
+    * Returns every version of a Patient, oldest first, or <code>null</code> if the ID is not known
+    */
+   Deque<Patient> getVersions(long theId) {
+      return myIdToPatientVersions.get(theId);
+   }
+
+   /**
+    * Returns the IDs of the Patients with an identifier
+    */
+   long[] findIdentifier(String theSystem, String theValue) {
+      return myIdentifierIndex.find(theSystem, theValue);
+   }
+
+   /**
+    * Returns the number of Patients, not counting deleted ones
+    */
+   int size() {
+      return myIdToPatientVersions.size() - myDeletedCount.get();
+   }
+
+   /**
+    * Returns the number of versions kept, including tombstones, which counts every version so is slow
+    */
+   long countVersions() {
+      long retVal = 0;
+      for (Deque<Patient> next : myIdToPatientVersions.values()) {
+         retVal += next.size();
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns the Patients matching any combination of the indexed parameters,
+    * in the order of {@link Matches}. A search by birthdate alone, or by
+    * nothing but a sort, walks the birth date index, so its results come out
+    * in order.
+    */
+   Matches search(StringAndListParam theFamily, StringAndListParam theGiven, TokenAndListParam theIdentifier, TokenAndListParam theGender, DateAndListParam theBirthDate, SortOrderEnum theSortOrder) {
+      List<ISearchPredicate> predicates = createPredicates(theFamily, theGiven, theIdentifier, theGender, null);
+
+      if (!predicates.isEmpty()) {
+         if (theBirthDate != null) {
+            predicates.add(SearchPredicates.forDates(Patient.SP_BIRTHDATE, myBirthDateIndex, theBirthDate));
+         }
+         long[] ids = SearchPlanner.execute(predicates, this::getAllIds);
+         return theSortOrder != null ? sortByBirthDate(ids, theSortOrder) : new Matches(ids, new long[ids.length]);
+      }
+
+      if (theBirthDate == null && theSortOrder == null) {
+         long[] ids = getAllIds();
+         return new Matches(ids, new long[ids.length]);
+      }
+
+      boolean descending = theSortOrder == SortOrderEnum.DESC;
+      List<DateIndex.Entry> entries = DateMatcher.forParam(theBirthDate).find(myBirthDateIndex, descending);
+      long[] withoutBirthDate = new long[0];
+      if (theBirthDate == null) {
+         withoutBirthDate = getAllIds();
+         int count = 0;
+         for (long next : withoutBirthDate) {
+            if (myBirthDateIndex.get(next) == null) {
+               withoutBirthDate[count++] = next;
+            }
+         }
+         withoutBirthDate = Arrays.copyOf(withoutBirthDate, count);
+      }
+
+      long[] ids = new long[entries.size() + withoutBirthDate.length];
+      long[] keys = new long[ids.length];
+      for (int i = 0; i < entries.size(); i++) {
+         ids[i] = entries.get(i).getId();
+         keys[i] = sortKey(entries.get(i), descending);
+      }
+      for (int i = 0; i < withoutBirthDate.length; i++) {
+         // After the Patients with a birth date, in the same order of IDs
+         int index = descending ? ids.length - 1 - i : entries.size() + i;
+         ids[index] = withoutBirthDate[i];
+         keys[index] = Long.MAX_VALUE;
+      }
+      return new Matches(ids, keys);
+   }
+
+   /**
+    * Returns a predicate for each of the given parameters, backed by this
+    * partition's indexes, so that all of them match the Patients the
+    * parameters do
+    */
+   List<ISearchPredicate> createPredicates(StringAndListParam theFamily, StringAndListParam theGiven, TokenAndListParam theIdentifier, TokenAndListParam theGender, DateAndListParam theBirthDate) {
+      List<ISearchPredicate> retVal = new ArrayList<>();
+      if (theFamily != null) {
+         for (StringOrListParam next : theFamily.getValuesAsQueryTokens()) {
+            retVal.add(SearchPredicates.forStrings(Patient.SP_FAMILY, myFamilyIndex, next));
+         }
+      }
+      if (theGiven != null) {
+         for (StringOrListParam next : theGiven.getValuesAsQueryTokens()) {
+            retVal.add(SearchPredicates.forStrings(Patient.SP_GIVEN, myGivenIndex, next));
+         }
+      }
+      if (theIdentifier != null) {
+         for (TokenOrListParam next : theIdentifier.getValuesAsQueryTokens()) {
+            retVal.add(SearchPredicates.forTokens(Patient.SP_IDENTIFIER, myIdentifierIndex, next));
+         }
+      }
+      if (theGender != null) {
+         for (TokenOrListParam next : theGender.getValuesAsQueryTokens()) {
+            retVal.add(SearchPredicates.forTokens(Patient.SP_GENDER, myGenderIndex, next));
+         }
+      }
+      if (theBirthDate != null) {
+         retVal.add(SearchPredicates.forDates(Patient.SP_BIRTHDATE, myBirthDateIndex, theBirthDate));
+      }
+      return retVal;
+   }
+
+   /**
+    * Sorts the results of a planned search by the birth dates in the index
+    */
+   private Matches sortByBirthDate(long[] theIds, SortOrderEnum theOrder) {
+      boolean descending = theOrder == SortOrderEnum.DESC;
+      Integer[] order = new Integer[theIds.length];
+      long[] keys = new long[theIds.length];
+      for (int i = 0; i < theIds.length; i++) {
+         order[i] = i;
+         keys[i] = sortKey(myBirthDateIndex.get(theIds[i]), descending);
+      }
+      Comparator<Integer> comparator = Comparator.comparingLong(t -> keys[t]);
+      Arrays.sort(order, comparator.thenComparingLong(t -> Matches.tieBreak(theIds[t], descending)));
+
+      long[] sortedIds = new long[theIds.length];
+      long[] sortedKeys = new long[theIds.length];
+      for (int i = 0; i < order.length; i++) {
+         sortedIds[i] = theIds[order[i]];
+         sortedKeys[i] = keys[order[i]];
+      }
+      return new Matches(sortedIds, sortedKeys);
+   }
+
+   /**
+    * Returns the key a Patient is sorted on: its birth date, negated when
+    * the latest come first, and Patients without one last
+    */
+   private static long sortKey(DateIndex.Entry theEntry, boolean theDescending) {
+      if (theEntry == null) {
+         return Long.MAX_VALUE;
+      }
+      return theDescending ? -theEntry.getStart() : theEntry.getStart();
+   }
+
+   /**
+    * Returns the ID of every Patient which is not deleted, in ascending order, for searches with no indexed parameter
+    */
+   private long[] getAllIds() {
+      long[] retVal = new long[myIdToPatientVersions.size()];
+      int count = 0;
+      for (Map.Entry<Long, Deque<Patient>> next : myIdToPatientVersions.entrySet()) {
+         if (PatientStore.isDeleted(next.getValue().peekLast())) {
+            continue;
+         }
+         if (count == retVal.length) {
+            retVal = Arrays.copyOf(retVal, count * 2 + 1);
+         }
+         retVal[count++] = next.getKey();
+      }
+      retVal = Arrays.copyOf(retVal, count);
+      Arrays.sort(retVal);
+      return retVal;
+   }
+
+   /**
+    * Updates every index with the current version of a Patient
+    */
+   private void indexPatient(long theId, Patient thePatient) {
+      myReferenceIndex.indexReferences(thePatient);
+      indexBirthDate(theId, thePatient);
+
+      List<TokenIndex.Token> identifiers = new ArrayList<>();
+      for (Identifier next : thePatient.getIdentifier()) {
+         if (next.hasValue()) {
+            identifiers.add(new TokenIndex.Token(next.getSystem(), next.getValue()));
+         }
+      }
+      myIdentifierIndex.put(theId, identifiers);
+
+      List<String> families = new ArrayList<>();
+      List<String> givens = new ArrayList<>();
+      for (HumanName next : thePatient.getName()) {
+         if (next.hasFamily()) {
+            families.add(next.getFamily());
+         }
+         for (StringType nextGiven : next.getGiven()) {
+            if (nextGiven.hasValue()) {
+               givens.add(nextGiven.getValue());
+            }
+         }
+      }
+      myFamilyIndex.put(theId, families);
+      myGivenIndex.put(theId, givens);
+
+      if (thePatient.hasGender()) {
+         myGenderIndex.put(theId, Collections.singletonList(new TokenIndex.Token(thePatient.getGender().getSystem(), thePatient.getGender().toCode())));
+      } else {
+         myGenderIndex.remove(theId);
+      }
+   }
+
+   /**
+    * Removes a deleted Patient from every index
+    */
+   private void unindexPatient(long theId) {
+      myReferenceIndex.removeReferences("Patient/" + theId);
+      myBirthDateIndex.remove(theId);
+      myIdentifierIndex.remove(theId);
+      myFamilyIndex.remove(theId);
+      myGivenIndex.remove(theId);
+      myGenderIndex.remove(theId);
+   }
+
+   private void indexBirthDate(long theId, Patient thePatient) {
+      DateType birthDate = thePatient.getBirthDateElement();
+      if (birthDate.getValue() != null) {
+         myBirthDateIndex.put(theId, DateRanges.getStart(birthDate.getValue()), DateRanges.getEnd(birthDate.getValue(), birthDate.getPrecision()));
+      } else {
+         myBirthDateIndex.remove(theId);
+      }
+   }
+
+   /**
+    * The IDs found in one partition, with the key each is sorted on. IDs are
+    * ordered by key, and then by ID, descending if the sort is. Without a
+    * sort, every key is zero, so they are ordered by ID.
+    */
+   static class Matches {
+
+      private final long[] myIds;
+      private final long[] myKeys;
+
+      Matches(long[] theIds, long[] theKeys) {
+         myIds = theIds;
+         myKeys = theKeys;
+      }
+
+      int size() {
+         return myIds.length;
+      }
+
+      long getId(int theIndex) {
+         return myIds[theIndex];
+      }
+
+      long getKey(int theIndex) {
+         return myKeys[theIndex];
+      }
+
+      /**
+       * Returns the value which orders IDs with equal keys
+       */
+      static long tieBreak(long theId, boolean theDescending) {
+         return theDescending ? -theId : theId;
+      }
+
+   }
+
+}
@@ -0,0 +1,449 @@
+package ca.uhn.example.store;
+
+import ca.uhn.example.index.ReferenceIndex;
+import ca.uhn.example.search.ISearchPredicate;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.param.DateAndListParam;
+import ca.uhn.fhir.rest.param.StringAndListParam;
+import ca.uhn.fhir.rest.param.TokenAndListParam;
+import org.hl7.fhir.dstu3.model.Patient;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.RandomAccess;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * An in-memory store of Patients, split into partitions by a hash of the
+ * Patient ID.
+ * <p>
+ * Each partition holds the versions of its Patients and its own indexes of
+ * them, so a read or write only touches one partition, and writes to
+ * different partitions never contend on the same index. IDs are still
+ * assigned from one counter, and the {@link ReferenceIndex} is shared, since
+ * references point across partitions. So is the {@link ChangeLog}, if there
+ * is one, which every new version is appended to.
+ * </p>
+ * <p>
+ * Old versions are kept as long as the {@link RetentionPolicy} says, and a
+ * deleted Patient is replaced by a tombstone. Neither is done by the writer:
+ * each partition remembers which Patients have versions to prune, and
+ * {@link #compact()} prunes them, which a {@link HistoryCompactor} calls in
+ * the background.
+ * </p>
+ * <p>
+ * A search runs in every partition at once on a {@link ForkJoinPool}, and
+ * each partition returns its matches sorted. The results are merged with a
+ * k-way merge, lazily: only as many results as have been asked for are
+ * merged, so fetching the first page of a search which matches most
+ * Patients costs one partition search each plus the page, rather than
+ * sorting every match.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class PatientStore {
+
+   private final PatientPartition[] myPartitions;
+   private final ForkJoinPool myPool;
+
+   /**
+    * This is used to generate new IDs
+    */
+   private final AtomicLong myNextId = new AtomicLong(1);
+
+   /**
+    * Constructor, which searches on the common fork-join pool
+    *
+    * @param theReferenceIndex The index which the references of every new version are added to
+    * @param thePartitions     The number of partitions
+    */
+   public PatientStore(ReferenceIndex theReferenceIndex, int thePartitions) {
+      this(theReferenceIndex, thePartitions, ForkJoinPool.commonPool(), null);
+   }
+
+   /**
+    * Constructor, which keeps every version
+    *
+    * @param theReferenceIndex The index which the references of every new version are added to
+    * @param thePartitions     The number of partitions
+    * @param thePool           The pool which searches run on
+    * @param theChangeLog      The log which every new version is appended to, or <code>null</code>
+    */
+   public PatientStore(ReferenceIndex theReferenceIndex, int thePartitions, ForkJoinPool thePool, ChangeLog theChangeLog) {
+      this(theReferenceIndex, thePartitions, thePool, theChangeLog, RetentionPolicy.keepAll());
+   }
+
+   /**
+    * Constructor
+    *
+    * @param theReferenceIndex  The index which the references of every new version are added to
+    * @param thePartitions      The number of partitions
+    * @param thePool            The pool which searches run on
+    * @param theChangeLog       The log which every new version is appended to, or <code>null</code>
+    * @param theRetentionPolicy Which old versions {@link #compact()} keeps
+    */
+   public PatientStore(ReferenceIndex theReferenceIndex, int thePartitions, ForkJoinPool thePool, ChangeLog theChangeLog, RetentionPolicy theRetentionPolicy) {
+      if (thePartitions < 1) {
+         throw new IllegalArgumentException("There must be at least one partition");
+      }
+      myPartitions = new PatientPartition[thePartitions];
+      for (int i = 0; i < myPartitions.length; i++) {
+         myPartitions[i] = new PatientPartition(theReferenceIndex, theChangeLog, theRetentionPolicy);
+      }
+      myPool = thePool;
+   }
+
+   /**
+    * Returns a new Patient ID, which has no versions yet
+    */
+   public long newId() {
+      return myNextId.getAndIncrement();
+   }
+
+   /**
+    * Stores a new version of a Patient, assigning its version ID and last
+    * updated time. Versions of one Patient are added one at a time.
+    */
+   public void addNewVersion(Patient thePatient, long theId) {
+      partition(theId).addNewVersion(thePatient, theId);
+   }
+
+   /**
+    * Stores a new version of a Patient, made from its current version while
+    * no other version of it can be added, e.g. by applying a patch. This is
+    * how a change based on the current version is made atomically.
+    *
+    * @param theUpdate Returns the new version, or <code>null</code> to store nothing, given the current version, or
+    *                  <code>null</code> if the ID is not known. Anything it throws is thrown to the caller, and nothing is stored.
+    * @return The new version, or <code>null</code> if nothing was stored
+    */
+   public Patient addNewVersion(long theId, UnaryOperator<Patient> theUpdate) {
+      return partition(theId).addNewVersion(theId, theUpdate);
+   }
+
+   /**
+    * Stores a new version of a Patient only if its current version is still
+    * the one the new version was made from. The check and the append are one
+    * atomic step on that Patient's versions, so writers of one Patient can't
+    * overwrite each other's changes unseen, and readers never wait.
+    * <p>
+    * The step is not lock-free: it runs inside the <code>compute</code> of the
+    * partition's map, which holds the lock on the map bin of the ID while the
+    * Patient is indexed and the change is logged, including while the change
+    * log's listeners, such as Subscription matching, run. Writers of different
+    * Patients only wait for each other when their IDs share a bin.
+    * </p>
+    *
+    * @param theExpected The current version which the new one was made from, or <code>null</code> if the ID has no versions yet
+    * @return The new version, or <code>null</code> if another version was stored first, in which case nothing is stored
+    */
+   public Patient compareAndAddNewVersion(long theId, Patient theExpected, Patient thePatient) {
+      return addNewVersion(theId, theLatest -> theLatest == theExpected ? thePatient : null);
+   }
+
+   /**
+    * Deletes a Patient, storing a tombstone as its new version
+    *
+    * @return The tombstone, which is the existing one if the Patient was already deleted, or <code>null</code> if the ID is not known
+    */
+   public Patient delete(long theId) {
+      return partition(theId).delete(theId);
+   }
+
+   /**
+    * Returns the versions of a Patient which are kept, oldest first, or
+    * <code>null</code> if the ID is not known. The last is a tombstone if the
+    * Patient is deleted.
+    */
+   public Deque<Patient> getVersions(long theId) {
+      return partition(theId).getVersions(theId);
+   }
+
+   /**
+    * Returns the current version of a Patient, which is a tombstone if it is deleted, or <code>null</code> if the ID is not known
+    */
+   public Patient getLatest(long theId) {
+      Deque<Patient> versions = getVersions(theId);
+      return versions != null ? versions.getLast() : null;
+   }
+
+   /**
+    * Returns the IDs of the Patients with an identifier, in ascending order
+    *
+    * @param theSystem The identifier system, or <code>null</code> for any system
+    * @param theValue  The identifier value
+    */
+   public long[] findByIdentifier(String theSystem, String theValue) {
+      long[] retVal = new long[0];
+      for (PatientPartition next : myPartitions) {
+         long[] found = next.findIdentifier(theSystem, theValue);
+         if (found.length > 0) {
+            int start = retVal.length;
+            retVal = Arrays.copyOf(retVal, start + found.length);
+            System.arraycopy(found, 0, retVal, start, found.length);
+         }
+      }
+      Arrays.sort(retVal);
+      return retVal;
+   }
+
+   /**
+    * Returns the number of Patients, not counting deleted ones
+    */
+   public int size() {
+      int retVal = 0;
+      for (PatientPartition next : myPartitions) {
+         retVal += next.size();
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns the number of versions kept, including tombstones. This visits every Patient.
+    */
+   public long countVersions() {
+      long retVal = 0;
+      for (PatientPartition next : myPartitions) {
+         retVal += next.countVersions();
+      }
+      return retVal;
+   }
+
+   /**
+    * Prunes the old versions which the retention policy no longer keeps, and
+    * collapses each deleted Patient to its tombstone, one partition at a
+    * time. Reads and searches carry on meanwhile, and a write only waits for
+    * the compaction of its own Patient.
+    *
+    * @return The number of versions pruned
+    */
+   public int compact() {
+      long now = System.currentTimeMillis();
+      int retVal = 0;
+      for (PatientPartition next : myPartitions) {
+         retVal += next.compact(now);
+      }
+      return retVal;
+   }
+
+   /**
+    * Returns <code>true</code> if a version is a tombstone
+    */
+   public static boolean isDeleted(Patient theVersion) {
+      return theVersion != null && ResourceMetadataKeyEnum.DELETED_AT.get(theVersion) != null;
+   }
+
+   public int getPartitionCount() {
+      return myPartitions.length;
+   }
+
+   /**
+    * Returns the ID parts of the Patients matching any combination of the
+    * indexed parameters. Results are sorted by birth date if there is a sort
+    * order, or if there is a birthdate parameter and no other, with Patients
+    * without a birth date last, and are otherwise in order of ID.
+    *
+    * @param theSortOrder The order of a sort by birth date, or <code>null</code>
+    * @return The ID parts, which are merged from the partitions as they are read
+    */
+   public List<String> search(StringAndListParam theFamily, StringAndListParam theGiven, TokenAndListParam theIdentifier, TokenAndListParam theGender, DateAndListParam theBirthDate, SortOrderEnum theSortOrder) {
+      List<PartitionSearch> searches = new ArrayList<>(myPartitions.length);
+      for (PatientPartition next : myPartitions) {
+         searches.add(new PartitionSearch(() -> next.search(theFamily, theGiven, theIdentifier, theGender, theBirthDate, theSortOrder)));
+      }
+      for (PartitionSearch next : searches.subList(1, searches.size())) {
+         myPool.execute(next);
+      }
+
+      /*
+       * The calling thread runs every search which no worker has started yet,
+       * from the last, while the workers take them from the first. So it
+       * never waits idle, and with no idle workers the searches simply run
+       * one after another.
+       */
+      for (int i = searches.size() - 1; i >= 0; i--) {
+         searches.get(i).run();
+      }
+
+      List<PatientPartition.Matches> matches = new ArrayList<>(myPartitions.length);
+      for (PartitionSearch next : searches) {
+         try {
+            matches.add(next.getResult().join());
+         } catch (CompletionException e) {
+            // Rethrow what the partition threw, e.g. an InvalidRequestException for a bad parameter
+            if (e.getCause() instanceof RuntimeException) {
+               throw (RuntimeException) e.getCause();
+            }
+            throw e;
+         }
+      }
+
+      return new MergedIds(matches, theSortOrder == SortOrderEnum.DESC);
+   }
+
+   /**
+    * Compiles criteria on the indexed parameters into a check of one Patient
+    * against the indexes of its partition, so that Subscriptions are matched
+    * without searching. The predicates of each partition are created once,
+    * here. A Patient is checked as the indexes hold it, so the check must be
+    * made while that version is the current one, e.g. from a
+    * {@link ChangeLog.IListener}.
+    */
+   public Predicate<Patient> compile(StringAndListParam theFamily, StringAndListParam theGiven, TokenAndListParam theIdentifier, TokenAndListParam theGender, DateAndListParam theBirthDate) {
+      List<List<ISearchPredicate>> predicates = new ArrayList<>(myPartitions.length);
+      for (PatientPartition next : myPartitions) {
+         predicates.add(next.createPredicates(theFamily, theGiven, theIdentifier, theGender, theBirthDate));
+      }
+      return thePatient -> {
+         long id = thePatient.getIdElement().getIdPartAsLong();
+         for (ISearchPredicate next : predicates.get(partitionIndex(id))) {
+            if (!next.matches(id)) {
+               return false;
+            }
+         }
+         return true;
+      };
+   }
+
+   private PatientPartition partition(long theId) {
+      return myPartitions[partitionIndex(theId)];
+   }
+
+   private int partitionIndex(long theId) {
+      // Mixes the bits of the ID, so that the partitions stay balanced whatever pattern IDs follow
+      long hash = theId * 0x9E3779B97F4A7C15L;
+      return (int) ((hash >>> 32) % myPartitions.length);
+   }
+
+   /**
+    * The search of one partition, which is run by whichever thread gets to it first
+    */
+   private static class PartitionSearch implements Runnable {
+
+      private final Supplier<PatientPartition.Matches> mySearch;
+      private final AtomicBoolean myStarted = new AtomicBoolean();
+      private final CompletableFuture<PatientPartition.Matches> myResult = new CompletableFuture<>();
+
+      PartitionSearch(Supplier<PatientPartition.Matches> theSearch) {
+         mySearch = theSearch;
+      }
+
+      @Override
+      public void run() {
+         if (!myStarted.compareAndSet(false, true)) {
+            return;
+         }
+         try {
+            myResult.complete(mySearch.get());
+         } catch (Throwable t) {
+            myResult.completeExceptionally(t);
+         }
+      }
+
+      CompletableFuture<PatientPartition.Matches> getResult() {
+         return myResult;
+      }
+
+   }
+
+   /**
+    * The results of a search, merged from the matches of each partition in
+    * order as they are read. Reads are synchronized, since a bundle provider
+    * may be read by several requests at once.
+    */
+   private static class MergedIds extends AbstractList<String> implements RandomAccess {
+
+      private final boolean myDescending;
+      private final PriorityQueue<Cursor> myHeads;
+      private final int mySize;
+      private String[] myMerged = new String[16];
+      private int myMergedCount;
+
+      MergedIds(List<PatientPartition.Matches> theMatches, boolean theDescending) {
+         myDescending = theDescending;
+         Comparator<Cursor> order = Comparator.comparingLong(Cursor::getKey);
+         myHeads = new PriorityQueue<>(Math.max(1, theMatches.size()), order.thenComparingLong(Cursor::getTieBreak));
+         int size = 0;
+         for (PatientPartition.Matches next : theMatches) {
+            size += next.size();
+            if (next.size() > 0) {
+               myHeads.add(new Cursor(next));
+            }
+         }
+         mySize = size;
+      }
+
+      @Override
+      public synchronized String get(int theIndex) {
+         if (theIndex < 0 || theIndex >= mySize) {
+            throw new IndexOutOfBoundsException("Index " + theIndex + " of " + mySize);
+         }
+         while (myMergedCount <= theIndex) {
+            Cursor head = myHeads.poll();
+            if (myMergedCount == myMerged.length) {
+               myMerged = Arrays.copyOf(myMerged, Math.min(mySize, myMerged.length * 2));
+            }
+            myMerged[myMergedCount++] = Long.toString(head.getId());
+            if (head.advance()) {
+               myHeads.add(head);
+            }
+         }
+         return myMerged[theIndex];
+      }
+
+      @Override
+      public int size() {
+         return mySize;
+      }
+
+      /**
+       * The next unmerged match of one partition
+       */
+      private class Cursor {
+
+         private final PatientPartition.Matches myPartitionMatches;
+         private int myIndex;
+
+         Cursor(PatientPartition.Matches thePartitionMatches) {
+            myPartitionMatches = thePartitionMatches;
+         }
+
+         long getId() {
+            return myPartitionMatches.getId(myIndex);
+         }
+
+         long getKey() {
+            return myPartitionMatches.getKey(myIndex);
+         }
+
+         long getTieBreak() {
+            return PatientPartition.Matches.tieBreak(getId(), myDescending);
+         }
+
+         /**
+          * Moves to the next match, returning <code>false</code> if there are no more
+          */
+         boolean advance() {
+            return ++myIndex < myPartitionMatches.size();
+         }
+
+      }
+
+   }
+
+}
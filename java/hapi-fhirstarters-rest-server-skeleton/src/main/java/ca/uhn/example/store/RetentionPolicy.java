@@ -0,0 +1,111 @@
+package ca.uhn.example.store;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Which old versions of a resource a store keeps: every version, the last
+ * few, those stored recently, or the versions within both limits. The current
+ * version of a resource is always kept, however old it is. Old versions are
+ * pruned oldest first, by a {@link HistoryCompactor}, so a store may hold
+ * more than the policy allows until the compactor next runs. This class is
+ * immutable.
+ */
+public class RetentionPolicy {
+
+   private static final RetentionPolicy KEEP_ALL = new RetentionPolicy(0, 0);
+
+   private final int myMaxVersions;
+   private final long myMaxAgeMillis;
+
+   /**
+    * Constructor
+    *
+    * @param theMaxVersions  The most versions of a resource kept, including the current one, or 0 for no limit
+    * @param theMaxAgeMillis How long after it was stored an old version is kept, or 0 for no limit
+    */
+   public RetentionPolicy(int theMaxVersions, long theMaxAgeMillis) {
+      if (theMaxVersions < 0 || theMaxAgeMillis < 0) {
+         throw new IllegalArgumentException("Limits can't be negative");
+      }
+      myMaxVersions = theMaxVersions;
+      myMaxAgeMillis = theMaxAgeMillis;
+   }
+
+   /**
+    * Returns a policy which keeps every version
+    */
+   public static RetentionPolicy keepAll() {
+      return KEEP_ALL;
+   }
+
+   /**
+    * Returns a policy which keeps the last versions of each resource
+    *
+    * @param theVersions The number of versions kept, including the current one
+    */
+   public static RetentionPolicy keepLast(int theVersions) {
+      if (theVersions < 1) {
+         throw new IllegalArgumentException("At least one version must be kept");
+      }
+      return new RetentionPolicy(theVersions, 0);
+   }
+
+   /**
+    * Returns a policy which keeps the old versions stored within a time
+    */
+   public static RetentionPolicy keepNewerThan(long theAge, TimeUnit theUnit) {
+      if (theAge < 1) {
+         throw new IllegalArgumentException("The age must be positive");
+      }
+      return new RetentionPolicy(0, theUnit.toMillis(theAge));
+   }
+
+   /**
+    * Returns <code>true</code> if no version is ever pruned
+    */
+   public boolean isKeepAll() {
+      return myMaxVersions == 0 && myMaxAgeMillis == 0;
+   }
+
+   /**
+    * Returns <code>true</code> if old versions are pruned as they age, so a
+    * resource with old versions must be checked again later even if it is
+    * not updated
+    */
+   public boolean hasMaxAge() {
+      return myMaxAgeMillis > 0;
+   }
+
+   /**
+    * Returns <code>true</code> if an old version must be pruned
+    *
+    * @param theNewerVersions     The number of versions stored after it
+    * @param theLastUpdatedMillis When it was stored
+    * @param theNowMillis         The current time
+    */
+   public boolean isExpired(int theNewerVersions, long theLastUpdatedMillis, long theNowMillis) {
+      if (theNewerVersions < 1) {
+         return false;
+      }
+      if (myMaxVersions > 0 && theNewerVersions >= myMaxVersions) {
+         return true;
+      }
+      return myMaxAgeMillis > 0 && theNowMillis - theLastUpdatedMillis > myMaxAgeMillis;
+   }
+
+   @Override
+   public String toString() {
+      if (isKeepAll()) {
+         return "all versions";
+      }
+      StringBuilder retVal = new StringBuilder();
+      if (myMaxVersions > 0) {
+         retVal.append("last ").append(myMaxVersions).append(" versions");
+      }
+      if (myMaxAgeMillis > 0) {
+         retVal.append(retVal.length() > 0 ? ", " : "").append("versions newer than ").append(myMaxAgeMillis).append("ms");
+      }
+      return retVal.toString();
+   }
+
+}
@@ -0,0 +1,397 @@
+package ca.uhn.example.subscription;
+
+import ca.uhn.example.provider.ChangeFeedProvider;
+import ca.uhn.example.store.ChangeLog;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.api.Header;
+import ca.uhn.fhir.rest.client.api.IHttpClient;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers Subscription notifications in the background, so that a write
+ * never waits for a subscriber.
+ * <p>
+ * Notifications are queued per {@link Channel}: an endpoint, with its
+ * headers and payload type. A queued notification is replaced by one for a
+ * newer version of the same resource, so a subscriber which falls behind gets
+ * each resource's latest version once, rather than every version in between.
+ * A queue is delivered a batch at a time, as a <code>history</code> Bundle
+ * POSTed to the endpoint, once its first notification has waited a short
+ * while for others to join it. Only one batch per channel is in flight at a
+ * time, so the versions of a resource arrive in order. A batch which fails is
+ * retried, along with anything queued since, after a delay which doubles with
+ * each failure in a row.
+ * </p>
+ * <p>
+ * Each queue holds a bounded number of resources. Once it is full, e.g.
+ * while its endpoint is down, notifications for other resources are dropped
+ * and counted, and the subscriber must catch up with the
+ * <code>$changes</code> feed or a search. This class is thread safe.
+ * </p>
+ */
+public class SubscriptionDispatcher implements Closeable {
+
+   private static final Logger ourLog = LoggerFactory.getLogger(SubscriptionDispatcher.class);
+
+   private final FhirContext myCtx;
+   private final ScheduledExecutorService myExecutor;
+   private final Map<Channel, ChannelQueue> myQueues = new ConcurrentHashMap<>();
+   private final int myMaxPending;
+   private final int myMaxBatchSize;
+   private final long myLingerMillis;
+   private final long myMinRetryMillis;
+   private final long myMaxRetryMillis;
+   private final AtomicLong myDelivered = new AtomicLong();
+   private final AtomicLong myRequests = new AtomicLong();
+   private final AtomicLong myFailures = new AtomicLong();
+   private final AtomicLong myCoalesced = new AtomicLong();
+   private final AtomicLong myDropped = new AtomicLong();
+   private volatile boolean myClosed;
+
+   /**
+    * Constructor, which batches up to 100 notifications after a 100ms wait, and retries after 1 second up to a minute
+    *
+    * @param theCtx        The context to encode notifications with
+    * @param theMaxPending The most resources queued for one channel
+    */
+   public SubscriptionDispatcher(FhirContext theCtx, int theMaxPending) {
+      this(theCtx, theMaxPending, 100, 100, 1000, 60000);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param theCtx             The context to encode notifications with
+    * @param theMaxPending      The most resources queued for one channel
+    * @param theMaxBatchSize    The most notifications delivered in one request
+    * @param theLingerMillis    How long a notification waits for others to join its batch
+    * @param theMinRetryMillis  The delay before retrying after a failure
+    * @param theMaxRetryMillis  The longest delay before retrying, after many failures in a row
+    */
+   public SubscriptionDispatcher(FhirContext theCtx, int theMaxPending, int theMaxBatchSize, long theLingerMillis, long theMinRetryMillis, long theMaxRetryMillis) {
+      myCtx = theCtx;
+      myMaxPending = theMaxPending;
+      myMaxBatchSize = theMaxBatchSize;
+      myLingerMillis = theLingerMillis;
+      myMinRetryMillis = theMinRetryMillis;
+      myMaxRetryMillis = theMaxRetryMillis;
+
+      AtomicInteger threadCount = new AtomicInteger();
+      myExecutor = Executors.newScheduledThreadPool(2, theRunnable -> {
+         Thread retVal = new Thread(theRunnable, "subscription-delivery-" + threadCount.incrementAndGet());
+         retVal.setDaemon(true);
+         return retVal;
+      });
+   }
+
+   /**
+    * Queues a notification of a new version
+    *
+    * @param theChannel  Where to deliver it
+    * @param theBase     The server's base URL, for the <code>fullUrl</code> of the entry
+    * @param theResource The version
+    * @param theType     Whether the version created, updated or deleted the resource
+    */
+   public void enqueue(Channel theChannel, String theBase, IBaseResource theResource, ChangeLog.ChangeType theType) {
+      if (myClosed) {
+         return;
+      }
+      myQueues.computeIfAbsent(theChannel, ChannelQueue::new).add(new Notification(theBase, theResource, theType));
+   }
+
+   /**
+    * Returns the number of notifications delivered
+    */
+   public long getDelivered() {
+      return myDelivered.get();
+   }
+
+   /**
+    * Returns the number of requests made to endpoints, including those which failed
+    */
+   public long getRequests() {
+      return myRequests.get();
+   }
+
+   /**
+    * Returns the number of requests which failed, and were retried
+    */
+   public long getFailures() {
+      return myFailures.get();
+   }
+
+   /**
+    * Returns the number of notifications which replaced a queued one for an older version of the same resource
+    */
+   public long getCoalesced() {
+      return myCoalesced.get();
+   }
+
+   /**
+    * Returns the number of notifications dropped because their queue was full
+    */
+   public long getDropped() {
+      return myDropped.get();
+   }
+
+   /**
+    * Stops delivering. Queued notifications are dropped.
+    */
+   @Override
+   public void close() {
+      myClosed = true;
+      myExecutor.shutdownNow();
+   }
+
+   /**
+    * Sends a batch to an endpoint
+    *
+    * @return <code>true</code> if the endpoint accepted it
+    */
+   private boolean deliver(Channel theChannel, List<Notification> theBatch) {
+      Bundle bundle = new Bundle();
+      bundle.setType(Bundle.BundleType.HISTORY);
+      for (Notification next : theBatch) {
+         BundleEntryComponent entry = ChangeFeedProvider.toEntry(next.myBase, next.myResource, next.myType);
+         if (theChannel.myPayload == null) {
+            // Without a payload, subscribers are only told what changed, and read it themselves
+            entry.setResource(null);
+         }
+         bundle.addEntry(entry);
+      }
+
+      EncodingEnum encoding = theChannel.myPayload != null && theChannel.myPayload.contains("xml") ? EncodingEnum.XML : EncodingEnum.JSON;
+      myRequests.incrementAndGet();
+      try {
+         String body = encoding.newParser(myCtx).encodeResourceToString(bundle);
+         IHttpClient client = myCtx.getRestfulClientFactory().getHttpClient(new StringBuilder(theChannel.myEndpoint), null, null, RequestTypeEnum.POST, theChannel.myHeaders);
+         IHttpResponse response = client.createByteRequest(myCtx, body, encoding.getResourceContentTypeNonLegacy(), encoding).execute();
+         try {
+            if (response.getStatus() / 100 == 2) {
+               myDelivered.addAndGet(theBatch.size());
+               return true;
+            }
+            ourLog.warn("Endpoint {} refused {} notifications: HTTP {}", theChannel.myEndpoint, theBatch.size(), response.getStatus());
+         } finally {
+            response.close();
+         }
+      } catch (Exception e) {
+         ourLog.warn("Failed to deliver {} notifications to {}: {}", theBatch.size(), theChannel.myEndpoint, e.toString());
+      }
+      myFailures.incrementAndGet();
+      return false;
+   }
+
+   /**
+    * Returns how long to wait before retrying, after a number of failures in a row
+    */
+   private long getRetryMillis(int theFailures) {
+      long retVal = myMinRetryMillis << Math.min(20, theFailures - 1);
+      retVal = Math.min(myMaxRetryMillis, retVal);
+      // Jitter, so that retries to an endpoint shared by several channels spread out
+      return retVal / 2 + ThreadLocalRandom.current().nextLong(retVal / 2 + 1);
+   }
+
+   /**
+    * Where notifications go. Subscriptions with the same channel share one
+    * queue, so a resource which matches several of them is delivered once.
+    */
+   public static class Channel {
+
+      private final String myEndpoint;
+      private final String myPayload;
+      private final List<Header> myHeaders;
+
+      /**
+       * Constructor
+       *
+       * @param theEndpoint The URL which batches are POSTed to
+       * @param thePayload  The MIME type of the payload, or <code>null</code> to send entries without resources
+       * @param theHeaders  Headers to add to each request
+       */
+      public Channel(String theEndpoint, String thePayload, List<Header> theHeaders) {
+         myEndpoint = theEndpoint;
+         myPayload = thePayload;
+         myHeaders = theHeaders;
+      }
+
+      @Override
+      public boolean equals(Object theOther) {
+         if (!(theOther instanceof Channel)) {
+            return false;
+         }
+         Channel other = (Channel) theOther;
+         return myEndpoint.equals(other.myEndpoint) && Objects.equals(myPayload, other.myPayload) && toStrings(myHeaders).equals(toStrings(other.myHeaders));
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hash(myEndpoint, myPayload, toStrings(myHeaders));
+      }
+
+      private static List<String> toStrings(List<Header> theHeaders) {
+         List<String> retVal = new ArrayList<>(theHeaders.size());
+         for (Header next : theHeaders) {
+            retVal.add(next.getName() + ": " + next.getValue());
+         }
+         return retVal;
+      }
+
+   }
+
+   /**
+    * A new version waiting to be delivered
+    */
+   private static class Notification {
+
+      private final String myBase;
+      private final IBaseResource myResource;
+      private final ChangeLog.ChangeType myType;
+
+      Notification(String theBase, IBaseResource theResource, ChangeLog.ChangeType theType) {
+         myBase = theBase;
+         myResource = theResource;
+         myType = theType;
+      }
+
+      String getKey() {
+         return myResource.getIdElement().getResourceType() + "/" + myResource.getIdElement().getIdPart();
+      }
+
+      /**
+       * Returns the notification which replaces this one and a newer one for
+       * the same resource: the newer version, but still a create if this one
+       * was, since the subscriber has not been told of the resource yet,
+       * unless the newer one deleted it
+       */
+      Notification coalesce(Notification theNewer) {
+         boolean created = myType == ChangeLog.ChangeType.CREATE && theNewer.myType != ChangeLog.ChangeType.DELETE;
+         return new Notification(theNewer.myBase, theNewer.myResource, created ? myType : theNewer.myType);
+      }
+
+   }
+
+   /**
+    * The notifications waiting for one channel, which is also the task that delivers them
+    */
+   private class ChannelQueue implements Runnable {
+
+      private final Channel myChannel;
+
+      /**
+       * The waiting notifications, oldest first, by resource. Guarded by this.
+       */
+      private final LinkedHashMap<String, Notification> myPending = new LinkedHashMap<>();
+
+      /**
+       * Whether a delivery is scheduled or running. Guarded by this.
+       */
+      private boolean myScheduled;
+
+      /**
+       * The number of failed deliveries in a row. Guarded by this.
+       */
+      private int myFailuresInARow;
+
+      ChannelQueue(Channel theChannel) {
+         myChannel = theChannel;
+      }
+
+      synchronized void add(Notification theNotification) {
+         String key = theNotification.getKey();
+         Notification existing = myPending.get(key);
+         if (existing != null) {
+            // Replacing a value keeps its place, so the resource is delivered when it would have been
+            myPending.put(key, existing.coalesce(theNotification));
+            myCoalesced.incrementAndGet();
+         } else if (myPending.size() >= myMaxPending) {
+            if (myDropped.getAndIncrement() % 1000 == 0) {
+               ourLog.warn("The queue for {} is full, dropping notifications", myChannel.myEndpoint);
+            }
+            return;
+         } else {
+            myPending.put(key, theNotification);
+         }
+         if (!myScheduled) {
+            myScheduled = true;
+            schedule(myLingerMillis);
+         }
+      }
+
+      @Override
+      public void run() {
+         List<Notification> batch = new ArrayList<>();
+         synchronized (this) {
+            Iterator<Notification> iterator = myPending.values().iterator();
+            while (iterator.hasNext() && batch.size() < myMaxBatchSize) {
+               batch.add(iterator.next());
+               iterator.remove();
+            }
+         }
+
+         boolean delivered = deliver(myChannel, batch);
+
+         synchronized (this) {
+            if (delivered) {
+               myFailuresInARow = 0;
+            } else {
+               myFailuresInARow++;
+               requeue(batch);
+            }
+            if (myPending.isEmpty()) {
+               myScheduled = false;
+            } else {
+               schedule(delivered ? 0 : getRetryMillis(myFailuresInARow));
+            }
+         }
+      }
+
+      /**
+       * Puts a failed batch back at the front of the queue, merged with any
+       * newer versions queued since. Called with the lock held.
+       */
+      private void requeue(List<Notification> theBatch) {
+         LinkedHashMap<String, Notification> pending = new LinkedHashMap<>();
+         for (Notification next : theBatch) {
+            Notification newer = myPending.remove(next.getKey());
+            pending.put(next.getKey(), newer != null ? next.coalesce(newer) : next);
+         }
+         pending.putAll(myPending);
+         myPending.clear();
+         myPending.putAll(pending);
+      }
+
+      private void schedule(long theDelayMillis) {
+         try {
+            myExecutor.schedule(this, theDelayMillis, TimeUnit.MILLISECONDS);
+         } catch (RejectedExecutionException e) {
+            // Closed
+         }
+      }
+
+   }
+
+}
@@ -0,0 +1,190 @@
+package ca.uhn.example.subscription;
+
+import ca.uhn.example.search.Criteria;
+import ca.uhn.example.search.ICriteriaCompiler;
+import ca.uhn.example.store.ChangeLog;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.Header;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.Subscription;
+import org.hl7.fhir.dstu3.model.Subscription.SubscriptionChannelComponent;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The active Subscriptions, which every new version is matched against as
+ * it is stored.
+ * <p>
+ * The registry listens to the {@link ChangeLog}. The criteria of each
+ * Subscription are compiled once, when it is stored, by the
+ * {@link ICriteriaCompiler} of the resource type, into predicates on the
+ * indexes the searches use. Each new version is checked against the
+ * Subscriptions on its type while the writer still holds the resource,
+ * which costs a few index lookups per Subscription rather than a search,
+ * and the matches are handed to a {@link SubscriptionDispatcher}, so the
+ * writer never waits for a delivery. Criteria without parameters, e.g.
+ * <code>Organization</code>, match every version of their type.
+ * </p>
+ * <p>
+ * Only <code>rest-hook</code> channels are supported. This class is thread safe.
+ * </p>
+ */
+public class SubscriptionRegistry implements ChangeLog.IListener {
+
+   private static final Logger ourLog = LoggerFactory.getLogger(SubscriptionRegistry.class);
+
+   private final FhirContext myCtx;
+   private final SubscriptionDispatcher myDispatcher;
+   private final Map<String, ICriteriaCompiler> myCompilers = new ConcurrentHashMap<>();
+
+   /**
+    * The active Subscriptions, by ID part. Guarded by this.
+    */
+   private final Map<String, ActiveSubscription> myIdToSubscription = new HashMap<>();
+
+   /**
+    * The active Subscriptions on each resource type, which is replaced rather
+    * than changed, so that writers read it without locking
+    */
+   private volatile Map<String, List<ActiveSubscription>> myTypeToSubscriptions = Collections.emptyMap();
+
+   /**
+    * Constructor
+    *
+    * @param theCtx        The server's context
+    * @param theDispatcher Delivers the notifications
+    */
+   public SubscriptionRegistry(FhirContext theCtx, SubscriptionDispatcher theDispatcher) {
+      myCtx = theCtx;
+      myDispatcher = theDispatcher;
+   }
+
+   /**
+    * Allows criteria with parameters on a resource type
+    *
+    * @param theResourceType The resource type, e.g. <code>Patient</code>
+    */
+   public void registerCompiler(String theResourceType, ICriteriaCompiler theCompiler) {
+      myCompilers.put(theResourceType, theCompiler);
+   }
+
+   /**
+    * Compiles the criteria and checks the channel of a Subscription, so that
+    * one which can't be matched or delivered is refused before it is stored
+    *
+    * @param theSubscription The Subscription
+    * @param theBase         The server's base URL, for the notifications
+    * @throws InvalidRequestException If the Subscription is not supported
+    */
+   public ActiveSubscription compile(Subscription theSubscription, String theBase) {
+      Criteria criteria = Criteria.parse(myCtx, theSubscription.getCriteria());
+      Predicate<IBaseResource> predicate;
+      if (criteria.isEmpty()) {
+         predicate = theResource -> true;
+      } else {
+         ICriteriaCompiler compiler = myCompilers.get(criteria.getResourceType());
+         if (compiler == null) {
+            throw new InvalidRequestException("Subscriptions on " + criteria.getResourceType() + " can't have search parameters: " + theSubscription.getCriteria());
+         }
+         predicate = compiler.compileCriteria(criteria);
+      }
+
+      SubscriptionChannelComponent channel = theSubscription.getChannel();
+      if (channel.getType() != Subscription.SubscriptionChannelType.RESTHOOK) {
+         throw new InvalidRequestException("Only rest-hook Subscriptions are supported");
+      }
+      String endpoint = channel.getEndpoint();
+      if (endpoint == null || !(endpoint.startsWith("http://") || endpoint.startsWith("https://"))) {
+         throw new InvalidRequestException("A rest-hook Subscription needs an http or https endpoint");
+      }
+      String payload = channel.hasPayload() ? channel.getPayload() : null;
+      if (payload != null && !payload.contains("json") && !payload.contains("xml")) {
+         throw new InvalidRequestException("Unsupported payload, which must be JSON or XML: " + payload);
+      }
+      List<Header> headers = new ArrayList<>();
+      for (StringType next : channel.getHeader()) {
+         int colon = next.getValue() != null ? next.getValue().indexOf(':') : -1;
+         if (colon < 1) {
+            throw new InvalidRequestException("Invalid header, which must be \"Name: value\": " + next.getValue());
+         }
+         headers.add(new Header(next.getValue().substring(0, colon).trim(), next.getValue().substring(colon + 1).trim()));
+      }
+
+      return new ActiveSubscription(criteria.getResourceType(), predicate, new SubscriptionDispatcher.Channel(endpoint, payload, headers), theBase);
+   }
+
+   /**
+    * Starts or stops notifying a Subscription
+    *
+    * @param theIdPart       The ID part of the Subscription
+    * @param theSubscription The compiled Subscription, or <code>null</code> to stop notifying it
+    */
+   public synchronized void put(String theIdPart, ActiveSubscription theSubscription) {
+      if (theSubscription != null) {
+         myIdToSubscription.put(theIdPart, theSubscription);
+      } else {
+         myIdToSubscription.remove(theIdPart);
+      }
+
+      Map<String, List<ActiveSubscription>> typeToSubscriptions = new HashMap<>();
+      for (ActiveSubscription next : myIdToSubscription.values()) {
+         typeToSubscriptions.computeIfAbsent(next.myResourceType, t -> new ArrayList<>()).add(next);
+      }
+      myTypeToSubscriptions = typeToSubscriptions;
+   }
+
+   /**
+    * Returns the number of active Subscriptions
+    */
+   public synchronized int size() {
+      return myIdToSubscription.size();
+   }
+
+   @Override
+   public void onChange(ChangeLog.Change theChange) {
+      IBaseResource resource = theChange.getResource();
+      List<ActiveSubscription> subscriptions = myTypeToSubscriptions.get(resource.getIdElement().getResourceType());
+      if (subscriptions == null) {
+         return;
+      }
+      for (ActiveSubscription next : subscriptions) {
+         try {
+            if (next.myPredicate.test(resource)) {
+               myDispatcher.enqueue(next.myChannel, next.myBase, resource, theChange.getType());
+            }
+         } catch (RuntimeException e) {
+            ourLog.error("Failed to match " + resource.getIdElement().getValue() + " against a Subscription", e);
+         }
+      }
+   }
+
+   /**
+    * A Subscription whose criteria have been compiled
+    */
+   public static class ActiveSubscription {
+
+      private final String myResourceType;
+      private final Predicate<IBaseResource> myPredicate;
+      private final SubscriptionDispatcher.Channel myChannel;
+      private final String myBase;
+
+      ActiveSubscription(String theResourceType, Predicate<IBaseResource> thePredicate, SubscriptionDispatcher.Channel theChannel, String theBase) {
+         myResourceType = theResourceType;
+         myPredicate = thePredicate;
+         myChannel = theChannel;
+         myBase = theBase;
+      }
+
+   }
+
+}
@@ -0,0 +1,327 @@
+package ca.uhn.example.benchmark;
+
+import ca.uhn.example.client.ChangeFeedTailer;
+import ca.uhn.example.server.EmbeddedJettyServer;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.Patient;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares two ways for a client to keep a replica of the server's Patients
+ * current: following the <code>$changes</code> feed with a
+ * {@link ChangeFeedTailer}, and polling a search of every Patient at a fixed
+ * interval, which is what clients without a feed do.
+ * <p>
+ * The server is started in-process, loaded with Patients, and then a writer
+ * updates random Patients at a fixed rate while the replica follows, once to
+ * warm up and once measured. Each update carries a token in the family name,
+ * so the replica can tell how long each one took to reach it. For each way,
+ * the propagation latency, the requests the replica made, the resources it
+ * downloaded, and the CPU used beyond a run with the writer alone are
+ * printed. The CPU is that of the whole process, server and replica together.
+ * </p>
+ * <p>
+ * The benchmark is configured with system properties (defaults in brackets):
+ * </p>
+ * <ul>
+ * <li><code>bench.patients</code> - Number of Patients (2000)</li>
+ * <li><code>bench.updatesPerSecond</code> - Rate of updates (20)</li>
+ * <li><code>bench.durationSeconds</code> - Time each way runs for (15)</li>
+ * <li><code>bench.pollMillis</code> - Comma separated polling intervals to compare (1000,250)</li>
+ * <li><code>bench.waitSeconds</code> - How long each feed request waits on the server (20)</li>
+ * </ul>
+ */
+public class ChangeFeedBenchmark {
+
+   private static final String TOKEN_PREFIX = "Update";
+
+   private final FhirContext myCtx = FhirContext.forDstu3();
+   private final int myPatients;
+   private final int myUpdatesPerSecond;
+   private final int myDurationSeconds;
+   private final List<String> myIds = new ArrayList<>();
+   private final Map<String, Long> myTokenToIssuedNanos = new ConcurrentHashMap<>();
+   private final AtomicLong myNextToken = new AtomicLong();
+   private IGenericClient myWriterClient;
+
+   public ChangeFeedBenchmark(int thePatients, int theUpdatesPerSecond, int theDurationSeconds) {
+      myPatients = thePatients;
+      myUpdatesPerSecond = theUpdatesPerSecond;
+      myDurationSeconds = theDurationSeconds;
+   }
+
+   public static void main(String[] theArgs) throws Exception {
+      ChangeFeedBenchmark benchmark = new ChangeFeedBenchmark(
+         Integer.getInteger("bench.patients", 2000),
+         Integer.getInteger("bench.updatesPerSecond", 20),
+         Integer.getInteger("bench.durationSeconds", 15));
+      int waitSeconds = Integer.getInteger("bench.waitSeconds", 20);
+
+      EmbeddedJettyServer server = EmbeddedJettyServer.fromSystemProperties();
+      server.setPort(0);
+      server.start();
+      try {
+         benchmark.myCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+         benchmark.myCtx.getRestfulClientFactory().setSocketTimeout((waitSeconds + 30) * 1000);
+         benchmark.myWriterClient = benchmark.myCtx.newRestfulGenericClient(server.getBaseUrl());
+         benchmark.preload();
+
+         System.out.println("Patients: " + benchmark.myPatients + ", updates/s: " + benchmark.myUpdatesPerSecond + ", seconds: " + benchmark.myDurationSeconds);
+         System.out.println();
+         System.out.println(String.format("%-16s %8s %10s %10s %10s %10s %12s %12s", "replica", "seen", "p50 ms", "p99 ms", "max ms", "requests", "downloaded", "cpu ms/s"));
+
+         // Warm up, then measure each way
+         for (int pass = 0; pass < 2; pass++) {
+            double baselineCpu = benchmark.run(null, server.getBaseUrl()).myCpuMillisPerSecond;
+            List<Replica> replicas = new ArrayList<>();
+            replicas.add(new FeedReplica(waitSeconds));
+            for (String next : System.getProperty("bench.pollMillis", "1000,250").split(",")) {
+               replicas.add(new PollingReplica(Long.parseLong(next.trim())));
+            }
+            for (Replica next : replicas) {
+               Result result = benchmark.run(next, server.getBaseUrl());
+               if (pass == 1) {
+                  System.out.println(String.format("%-16s %8d %10d %10d %10d %10d %12d %12.1f",
+                     next,
+                     result.myLatencies.getTotalCount(),
+                     result.myLatencies.getValueAtPercentile(50),
+                     result.myLatencies.getValueAtPercentile(99),
+                     result.myLatencies.getMaxValue(),
+                     result.myRequests,
+                     result.myDownloaded,
+                     result.myCpuMillisPerSecond - baselineCpu));
+               }
+            }
+         }
+      } finally {
+         server.stop();
+      }
+   }
+
+   private void preload() {
+      for (int i = 0; i < myPatients; i++) {
+         Patient patient = new Patient();
+         patient.addName().setFamily("Family" + i).addGiven("Given" + i);
+         myIds.add(myWriterClient.create().resource(patient).execute().getId().getIdPart());
+      }
+   }
+
+   /**
+    * Runs the writer for the benchmark's duration, with a replica following it
+    *
+    * @param theReplica The replica, or <code>null</code> to measure the writer alone
+    */
+   private Result run(Replica theReplica, String theBaseUrl) throws Exception {
+      Result retVal = new Result();
+      AtomicLong requests = new AtomicLong();
+      IGenericClient replicaClient = myCtx.newRestfulGenericClient(theBaseUrl);
+      replicaClient.registerInterceptor(new IClientInterceptor() {
+         @Override
+         public void interceptRequest(IHttpRequest theRequest) {
+            requests.incrementAndGet();
+         }
+
+         @Override
+         public void interceptResponse(IHttpResponse theResponse) {
+            // nothing
+         }
+      });
+      if (theReplica != null) {
+         theReplica.start(replicaClient, this, retVal);
+      }
+
+      long cpuStart = getProcessCpuNanos();
+      long start = System.nanoTime();
+      Random random = new Random(0);
+      long intervalNanos = 1000000000L / myUpdatesPerSecond;
+      for (long next = start; next - start < myDurationSeconds * 1000000000L; next += intervalNanos) {
+         long sleep = next - System.nanoTime();
+         if (sleep > 0) {
+            Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+         }
+         String token = TOKEN_PREFIX + myNextToken.incrementAndGet();
+         Patient patient = new Patient();
+         patient.setId(myIds.get(random.nextInt(myIds.size())));
+         patient.addName().setFamily(token);
+         myTokenToIssuedNanos.put(token, System.nanoTime());
+         myWriterClient.update().resource(patient).execute();
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      retVal.myCpuMillisPerSecond = (getProcessCpuNanos() - cpuStart) / 1e6 / seconds;
+
+      // Give the replica a last chance to catch up
+      Thread.sleep(theReplica != null ? theReplica.getCatchUpMillis() : 0);
+
+      if (theReplica != null) {
+         theReplica.stop();
+      }
+      retVal.myRequests = requests.get();
+      myTokenToIssuedNanos.clear();
+      return retVal;
+   }
+
+   /**
+    * Records the propagation latency of an update seen by a replica, if it carries a token which has not been seen yet
+    */
+   private void seen(Patient thePatient, Result theResult) {
+      String family = thePatient.getNameFirstRep().getFamily();
+      Long issued = family != null ? myTokenToIssuedNanos.remove(family) : null;
+      if (issued != null) {
+         theResult.myLatencies.recordValue(Math.max(0, (System.nanoTime() - issued) / 1000000));
+      }
+   }
+
+   private static long getProcessCpuNanos() {
+      return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+   }
+
+   private static class Result {
+      private final Histogram myLatencies = new ConcurrentHistogram(3);
+      private long myRequests;
+      private volatile long myDownloaded;
+      private double myCpuMillisPerSecond;
+   }
+
+   private interface Replica {
+
+      void start(IGenericClient theClient, ChangeFeedBenchmark theBenchmark, Result theResult);
+
+      void stop() throws InterruptedException;
+
+      long getCatchUpMillis();
+
+   }
+
+   /**
+    * Follows the change feed
+    */
+   private static class FeedReplica implements Replica {
+
+      private final int myWaitSeconds;
+      private ChangeFeedTailer myTailer;
+
+      FeedReplica(int theWaitSeconds) {
+         myWaitSeconds = theWaitSeconds;
+      }
+
+      @Override
+      public void start(IGenericClient theClient, ChangeFeedBenchmark theBenchmark, Result theResult) {
+         myTailer = new ChangeFeedTailer(theClient, 500, myWaitSeconds, new ChangeFeedTailer.IChangeListener() {
+            @Override
+            public void onChanges(List<BundleEntryComponent> theChanges) {
+               theResult.myDownloaded += theChanges.size();
+               for (BundleEntryComponent next : theChanges) {
+                  if (next.getResource() instanceof Patient) {
+                     theBenchmark.seen((Patient) next.getResource(), theResult);
+                  }
+               }
+            }
+
+            @Override
+            public void onReset() {
+               // The benchmark only measures latency, so there is nothing to reload
+            }
+         });
+         myTailer.start(null);
+      }
+
+      @Override
+      public void stop() {
+         myTailer.close();
+      }
+
+      @Override
+      public long getCatchUpMillis() {
+         return 500;
+      }
+
+      @Override
+      public String toString() {
+         return "feed";
+      }
+
+   }
+
+   /**
+    * Polls a search of every Patient, comparing versions with the last poll
+    */
+   private static class PollingReplica implements Replica {
+
+      private final long myIntervalMillis;
+      private final Map<String, String> myIdToVersion = new ConcurrentHashMap<>();
+      private volatile boolean myStopped;
+      private Thread myThread;
+
+      PollingReplica(long theIntervalMillis) {
+         myIntervalMillis = theIntervalMillis;
+      }
+
+      @Override
+      public void start(IGenericClient theClient, ChangeFeedBenchmark theBenchmark, Result theResult) {
+         myThread = new Thread(() -> {
+            while (!myStopped) {
+               long start = System.currentTimeMillis();
+               Bundle page = theClient.search().forResource(Patient.class).count(500).returnBundle(Bundle.class).execute();
+               while (true) {
+                  theResult.myDownloaded += page.getEntry().size();
+                  for (BundleEntryComponent next : page.getEntry()) {
+                     Patient patient = (Patient) next.getResource();
+                     String version = patient.getIdElement().getVersionIdPart();
+                     if (!version.equals(myIdToVersion.put(patient.getIdElement().getIdPart(), version))) {
+                        theBenchmark.seen(patient, theResult);
+                     }
+                  }
+                  if (page.getLink(Bundle.LINK_NEXT) == null) {
+                     break;
+                  }
+                  page = theClient.loadPage().next(page).execute();
+               }
+               long sleep = myIntervalMillis - (System.currentTimeMillis() - start);
+               if (sleep > 0) {
+                  try {
+                     Thread.sleep(sleep);
+                  } catch (InterruptedException e) {
+                     return;
+                  }
+               }
+            }
+         }, "polling-replica");
+         myThread.setDaemon(true);
+         myThread.start();
+      }
+
+      @Override
+      public void stop() throws InterruptedException {
+         myStopped = true;
+         myThread.join();
+      }
+
+      @Override
+      public long getCatchUpMillis() {
+         return myIntervalMillis * 2;
+      }
+
+      @Override
+      public String toString() {
+         return "poll " + myIntervalMillis + "ms";
+      }
+
+   }
+
+}
@@ -0,0 +1,197 @@
+package ca.uhn.example.benchmark;
+
+import ca.uhn.example.index.ReferenceIndex;
+import ca.uhn.example.provider.PatientResourceProvider;
+import ca.uhn.example.search.IncludeResolver;
+import ca.uhn.example.store.ChangeLog;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Patient;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how concurrent writers of Patients get in each other's way. Each
+ * writer reads a Patient and updates it with <code>If-Match</code> set to the
+ * version it read, retrying from a fresh read if it gets HTTP 412, by calling
+ * a {@link PatientResourceProvider} directly, with a {@link ChangeLog} as the
+ * server has. Three workloads are run:
+ * <ul>
+ * <li><code>DISJOINT</code> - Each writer updates Patients no other writer touches</li>
+ * <li><code>SHARED</code> - Every writer updates the same Patient</li>
+ * <li><code>GLOBAL_LOCK</code> - As <code>DISJOINT</code>, but each update holds one lock shared by all writers, as
+ * coarse locking would</li>
+ * </ul>
+ * For each, the throughput, the latency, the number of 412 conflicts, and
+ * how many times and for how long the writers were blocked waiting for a
+ * lock another writer held are printed.
+ * <p>
+ * The benchmark is configured with system properties (defaults in brackets):
+ * </p>
+ * <ul>
+ * <li><code>bench.writers</code> - Number of writer threads (4)</li>
+ * <li><code>bench.patients</code> - Number of Patients each writer updates in the disjoint workloads (1000)</li>
+ * <li><code>bench.updates</code> - Number of updates by each writer, after as many unrecorded ones (50000)</li>
+ * </ul>
+ */
+public class ContentionBenchmark {
+
+   /**
+    * The workloads
+    */
+   public enum Workload {
+      DISJOINT, SHARED, GLOBAL_LOCK
+   }
+
+   private final FhirContext myCtx = FhirContext.forDstu3();
+   private final ThreadMXBean myThreads = ManagementFactory.getThreadMXBean();
+   private final Object myGlobalLock = new Object();
+   private final int myWriters;
+   private final int myPatients;
+   private final int myUpdates;
+   private PatientResourceProvider myProvider;
+
+   public ContentionBenchmark(int theWriters, int thePatients, int theUpdates) {
+      myWriters = theWriters;
+      myPatients = thePatients;
+      myUpdates = theUpdates;
+   }
+
+   public static void main(String[] theArgs) throws InterruptedException {
+      ContentionBenchmark benchmark = new ContentionBenchmark(
+         Integer.getInteger("bench.writers", 4),
+         Integer.getInteger("bench.patients", 1000),
+         Integer.getInteger("bench.updates", 50000));
+      if (benchmark.myThreads.isThreadContentionMonitoringSupported()) {
+         benchmark.myThreads.setThreadContentionMonitoringEnabled(true);
+      }
+
+      System.out.println("Writers: " + benchmark.myWriters + ", processors: " + Runtime.getRuntime().availableProcessors());
+      System.out.println(String.format("%-12s %12s %10s %10s %10s %10s %12s", "workload", "updates/s", "p50 us", "p99 us", "conflicts", "blocked", "blocked ms"));
+      for (Workload next : Workload.values()) {
+         benchmark.run(next, false);
+         benchmark.run(next, true);
+      }
+   }
+
+   /**
+    * Runs a workload with a new provider
+    *
+    * @param theRecord If false, the run is a warmup and nothing is printed
+    */
+   private void run(Workload theWorkload, boolean theRecord) throws InterruptedException {
+      myProvider = new PatientResourceProvider(myCtx, new IncludeResolver(myCtx, new ReferenceIndex(myCtx)), Runtime.getRuntime().availableProcessors(), new ChangeLog(100000));
+      int patientsPerWriter = theWorkload == Workload.SHARED ? 1 : myPatients;
+      List<List<Long>> ids = new ArrayList<>();
+      for (int i = 0; i < myWriters; i++) {
+         List<Long> writerIds = new ArrayList<>();
+         for (int j = 0; j < patientsPerWriter; j++) {
+            if (theWorkload == Workload.SHARED && i > 0) {
+               writerIds.add(ids.get(0).get(0));
+            } else {
+               writerIds.add(myProvider.createPatient(newPatient(i * patientsPerWriter + j, 0), null).getId().getIdPartAsLong());
+            }
+         }
+         ids.add(writerIds);
+      }
+
+      Histogram latencies = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(1), 3);
+      AtomicLong conflicts = new AtomicLong();
+      AtomicLong blockedCount = new AtomicLong();
+      AtomicLong blockedMillis = new AtomicLong();
+      List<Thread> threads = new ArrayList<>();
+      for (int i = 0; i < myWriters; i++) {
+         List<Long> writerIds = ids.get(i);
+         int writer = i;
+         threads.add(new Thread(() -> {
+            ThreadInfo before = myThreads.getThreadInfo(Thread.currentThread().getId());
+            for (int j = 0; j < myUpdates; j++) {
+               long id = writerIds.get(j % writerIds.size());
+               long start = System.nanoTime();
+               conflicts.addAndGet(update(theWorkload, id, newPatient(writer * myPatients + j % writerIds.size(), j)));
+               latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            }
+            ThreadInfo after = myThreads.getThreadInfo(Thread.currentThread().getId());
+            blockedCount.addAndGet(after.getBlockedCount() - before.getBlockedCount());
+            blockedMillis.addAndGet(Math.max(0, after.getBlockedTime() - before.getBlockedTime()));
+         }, "writer-" + i));
+      }
+
+      long start = System.nanoTime();
+      for (Thread next : threads) {
+         next.start();
+      }
+      for (Thread next : threads) {
+         next.join();
+      }
+      long elapsedNanos = System.nanoTime() - start;
+
+      if (theRecord) {
+         System.out.println(String.format("%-12s %12d %10d %10d %10d %10d %12d", theWorkload,
+            (long) myWriters * myUpdates * TimeUnit.SECONDS.toNanos(1) / elapsedNanos,
+            latencies.getValueAtPercentile(50),
+            latencies.getValueAtPercentile(99),
+            conflicts.get(),
+            blockedCount.get(),
+            blockedMillis.get()));
+      }
+   }
+
+   /**
+    * Updates a Patient with the version just read, reading it again after each conflict
+    *
+    * @return The number of conflicts
+    */
+   private int update(Workload theWorkload, long theId, Patient thePatient) {
+      for (int retVal = 0; ; retVal++) {
+         IdType versionedId = myProvider.getStore().getLatest(theId).getIdElement();
+         RequestDetails ifMatch = newIfMatchRequest(versionedId.getVersionIdPart());
+         try {
+            if (theWorkload == Workload.GLOBAL_LOCK) {
+               synchronized (myGlobalLock) {
+                  myProvider.updatePatient(versionedId, thePatient, null, ifMatch);
+               }
+            } else {
+               myProvider.updatePatient(versionedId, thePatient, null, ifMatch);
+            }
+            return retVal;
+         } catch (PreconditionFailedException e) {
+            // Another writer stored a version since the read
+         }
+      }
+   }
+
+   /**
+    * Returns a request with <code>If-Match</code> set to a version, as a client would send it
+    */
+   private static RequestDetails newIfMatchRequest(String theVersion) {
+      return new ServletRequestDetails() {
+         @Override
+         public String getHeader(String theName) {
+            return Constants.HEADER_IF_MATCH.equalsIgnoreCase(theName) ? "W/\"" + theVersion + "\"" : null;
+         }
+      };
+   }
+
+   private static Patient newPatient(int thePatient, int theUpdate) {
+      Patient retVal = new Patient();
+      retVal.addIdentifier().setSystem("urn:hapitest:mrns").setValue(String.format("%08d", thePatient));
+      retVal.addName().setFamily("Family" + thePatient % 1000).addGiven("Given" + theUpdate % 200);
+      retVal.setGender(theUpdate % 2 == 0 ? AdministrativeGender.MALE : AdministrativeGender.FEMALE);
+      return retVal;
+   }
+
+}
@@ -0,0 +1,125 @@
+package ca.uhn.example.benchmark;
+
+import ca.uhn.example.index.ReferenceIndex;
+import ca.uhn.example.store.HistoryCompactor;
+import ca.uhn.example.store.PatientStore;
+import ca.uhn.example.store.RetentionPolicy;
+import ca.uhn.fhir.context.FhirContext;
+import org.HdrHistogram.Histogram;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.Patient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures the heap a {@link PatientStore} holds under a sustained update
+ * workload, with each retention policy. For each policy, a store is loaded
+ * with Patients, and then random Patients are updated as fast as one writer
+ * can for a while, with a {@link HistoryCompactor} running. Every so often
+ * the heap used after a full collection and the number of versions kept are
+ * printed, and at the end the latency of the writes.
+ * <p>
+ * The benchmark is configured with system properties (defaults in brackets):
+ * </p>
+ * <ul>
+ * <li><code>bench.patients</code> - Number of Patients (10000)</li>
+ * <li><code>bench.updates</code> - Number of updates with each policy (500000)</li>
+ * <li><code>bench.samples</code> - Number of times the heap is measured (5)</li>
+ * <li><code>bench.policies</code> - Comma separated policies to compare, each <code>all</code>, a number of versions, or a number of seconds followed by <code>s</code> (all,5,2s)</li>
+ * <li><code>bench.compactMillis</code> - Time between compactions (1000)</li>
+ * </ul>
+ */
+public class HistoryBenchmark {
+
+   private final FhirContext myCtx = FhirContext.forDstu3();
+   private final int myPatients;
+   private final int myUpdates;
+   private final int mySamples;
+   private final long myCompactMillis;
+
+   public HistoryBenchmark(int thePatients, int theUpdates, int theSamples, long theCompactMillis) {
+      myPatients = thePatients;
+      myUpdates = theUpdates;
+      mySamples = theSamples;
+      myCompactMillis = theCompactMillis;
+   }
+
+   public static void main(String[] theArgs) throws Exception {
+      HistoryBenchmark benchmark = new HistoryBenchmark(
+         Integer.getInteger("bench.patients", 10000),
+         Integer.getInteger("bench.updates", 500000),
+         Integer.getInteger("bench.samples", 5),
+         Long.getLong("bench.compactMillis", 1000));
+
+      System.out.println("Patients: " + benchmark.myPatients + ", updates: " + benchmark.myUpdates + ", compaction every " + benchmark.myCompactMillis + "ms");
+      for (String next : System.getProperty("bench.policies", "all,5,2s").split(",")) {
+         benchmark.run(parsePolicy(next.trim()));
+      }
+   }
+
+   private static RetentionPolicy parsePolicy(String thePolicy) {
+      if (thePolicy.equals("all")) {
+         return RetentionPolicy.keepAll();
+      }
+      if (thePolicy.endsWith("s")) {
+         return new RetentionPolicy(0, Long.parseLong(thePolicy.substring(0, thePolicy.length() - 1)) * 1000);
+      }
+      return RetentionPolicy.keepLast(Integer.parseInt(thePolicy));
+   }
+
+   private void run(RetentionPolicy thePolicy) throws InterruptedException {
+      System.out.println();
+      System.out.println("Keeping " + thePolicy);
+      System.out.println(String.format("%10s %12s %12s", "updates", "versions", "heap MB"));
+
+      PatientStore store = new PatientStore(new ReferenceIndex(myCtx), 4, ForkJoinPool.commonPool(), null, thePolicy);
+      List<Long> ids = new ArrayList<>(myPatients);
+      for (int i = 0; i < myPatients; i++) {
+         long id = store.newId();
+         store.addNewVersion(newPatient(i), id);
+         ids.add(id);
+      }
+      printSample(0, store);
+
+      Histogram writes = new Histogram(3);
+      Random random = new Random(0);
+      HistoryCompactor compactor = new HistoryCompactor(store, myCompactMillis);
+      try {
+         for (int i = 1; i <= myUpdates; i++) {
+            long id = ids.get(random.nextInt(ids.size()));
+            long start = System.nanoTime();
+            store.addNewVersion(newPatient(i), id);
+            writes.recordValue((System.nanoTime() - start) / 1000);
+            if (i % (myUpdates / mySamples) == 0) {
+               printSample(i, store);
+            }
+         }
+      } finally {
+         compactor.close();
+      }
+      System.out.println(String.format("write p50 %d us, p99 %d us, max %d us", writes.getValueAtPercentile(50), writes.getValueAtPercentile(99), writes.getMaxValue()));
+   }
+
+   private Patient newPatient(int theIndex) {
+      Patient retVal = new Patient();
+      retVal.addIdentifier().setSystem("urn:hapitest:mrns").setValue(String.format("%08d", theIndex));
+      retVal.addName().setFamily("Family" + theIndex % 1000).addGiven("Given" + theIndex % 200);
+      retVal.setGender(theIndex % 2 == 0 ? AdministrativeGender.MALE : AdministrativeGender.FEMALE);
+      return retVal;
+   }
+
+   /**
+    * Prints the versions kept and the heap used, after a full collection
+    */
+   private static void printSample(int theUpdates, PatientStore theStore) throws InterruptedException {
+      System.gc();
+      Thread.sleep(100);
+      Runtime runtime = Runtime.getRuntime();
+      long used = runtime.totalMemory() - runtime.freeMemory();
+      System.out.println(String.format("%10d %12d %12.1f", theUpdates, theStore.countVersions(), used / 1048576.0));
+   }
+
+}
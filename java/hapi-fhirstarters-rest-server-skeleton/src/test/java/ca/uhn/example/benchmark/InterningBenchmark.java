@@ -0,0 +1,160 @@
+package ca.uhn.example.benchmark;
+
+import ca.uhn.example.index.ReferenceIndex;
+import ca.uhn.example.intern.ResourceInterner;
+import ca.uhn.example.intern.StringInterner;
+import ca.uhn.example.store.PatientStore;
+import ca.uhn.example.store.RetentionPolicy;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.Identifier.IdentifierUse;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Reference;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how much heap interning (see {@link ResourceInterner}) saves on
+ * the Patients a {@link PatientStore} keeps. Synthetic Patients, with the
+ * identifier systems, extension, profile and codings a real feed repeats in
+ * every resource, are encoded as JSON and parsed again one by one, as the
+ * server would receive them, and stored, first as parsed and then interned.
+ * For each, the heap used by the store after a full collection, the time to
+ * parse (and intern) each Patient, and for interning the number of strings in
+ * the table and its own size are printed.
+ * <p>
+ * The table's size is worked out from its slots and strings, assuming
+ * compressed references: a 4 byte slot each, a 32 byte weak reference per
+ * string, and the strings themselves. The strings would take more room
+ * without the table, but are counted as its overhead.
+ * </p>
+ * <p>
+ * The benchmark is configured with system properties (defaults in brackets):
+ * </p>
+ * <ul>
+ * <li><code>bench.patients</code> - Number of Patients (1000000)</li>
+ * <li><code>bench.internSize</code> - Number of slots in the table of strings (4096)</li>
+ * </ul>
+ * <p>
+ * Each stored Patient takes around 8.5 KB, so run with a fixed heap large
+ * enough for them, e.g. <code>-Xms12g -Xmx12g</code> for a million, for
+ * steadier figures.
+ * </p>
+ */
+public class InterningBenchmark {
+
+   private static final String[] ourLanguages = {"en-CA", "fr-CA", "en-US", "es", "zh"};
+
+   private final FhirContext myCtx = FhirContext.forDstu3();
+   private final int myPatients;
+   private final int myInternSize;
+
+   public InterningBenchmark(int thePatients, int theInternSize) {
+      myPatients = thePatients;
+      myInternSize = theInternSize;
+   }
+
+   public static void main(String[] theArgs) {
+      InterningBenchmark benchmark = new InterningBenchmark(Integer.getInteger("bench.patients", 1000000), Integer.getInteger("bench.internSize", 4096));
+
+      System.out.println("Patients: " + benchmark.myPatients + ", max heap " + Runtime.getRuntime().maxMemory() / 1048576 + " MB");
+      System.out.println(String.format("%-10s %10s %14s %10s %10s %10s", "mode", "heap MB", "bytes/patient", "parse us", "strings", "table KB"));
+      benchmark.warmUp();
+      benchmark.run(false);
+      benchmark.run(true);
+   }
+
+   /**
+    * Parses and interns Patients without keeping them, so that neither mode
+    * is timed while the code is still being compiled
+    */
+   private void warmUp() {
+      ResourceInterner interner = new ResourceInterner(myCtx, new StringInterner(myInternSize, 256));
+      IParser parser = myCtx.newJsonParser();
+      for (int i = 0; i < 20000; i++) {
+         interner.intern(parser.parseResource(Patient.class, parser.encodeResourceToString(newPatient(i))));
+      }
+   }
+
+   /**
+    * Parses and stores the Patients, and prints the heap they take
+    *
+    * @param theIntern If true, each Patient is interned after it is parsed
+    */
+   private void run(boolean theIntern) {
+      StringInterner strings = new StringInterner(myInternSize, 256);
+      ResourceInterner interner = theIntern ? new ResourceInterner(myCtx, strings) : null;
+      IParser parser = myCtx.newJsonParser();
+
+      long before = usedMemory();
+      PatientStore store = new PatientStore(new ReferenceIndex(myCtx), 4, ForkJoinPool.commonPool(), null, RetentionPolicy.keepAll());
+      long parseNanos = 0;
+      for (int i = 0; i < myPatients; i++) {
+         String body = parser.encodeResourceToString(newPatient(i));
+         long start = System.nanoTime();
+         Patient patient = parser.parseResource(Patient.class, body);
+         if (interner != null) {
+            interner.intern(patient);
+         }
+         parseNanos += System.nanoTime() - start;
+         store.addNewVersion(patient, store.newId());
+      }
+      long used = usedMemory() - before;
+
+      int tableStrings = strings.size();
+      System.out.println(String.format("%-10s %10.1f %14d %10.1f %10s %10s",
+         theIntern ? "interned" : "parsed",
+         used / 1048576.0,
+         used / myPatients,
+         parseNanos / 1000.0 / myPatients,
+         theIntern ? Integer.toString(tableStrings) : "-",
+         theIntern ? Long.toString(estimateTableBytes(strings, tableStrings) / 1024) : "-"));
+
+      // Keep the store reachable until the heap has been measured
+      if (store.countVersions() != myPatients) {
+         throw new IllegalStateException("Stored " + store.countVersions() + " Patients");
+      }
+   }
+
+   /**
+    * Works out the size of the table, allowing 64 bytes for each string,
+    * which fits the URIs and codes of these Patients
+    */
+   private static long estimateTableBytes(StringInterner theInterner, int theStrings) {
+      return 16 + theInterner.getCapacity() * 4L + theStrings * (32L + 64L);
+   }
+
+   private static Patient newPatient(int theIndex) {
+      Patient retVal = new Patient();
+      retVal.getMeta().addProfile("http://acme.org/fhir/StructureDefinition/acme-patient");
+      retVal.addExtension()
+         .setUrl("http://hl7.org/fhir/StructureDefinition/patient-religion")
+         .setValue(new CodeableConcept().addCoding(new Coding("http://hl7.org/fhir/v3/ReligiousAffiliation", theIndex % 3 == 0 ? "1041" : "1013", null)));
+      retVal.addIdentifier().setUse(IdentifierUse.OFFICIAL).setSystem("urn:hapitest:mrns").setValue(String.format("%08d", theIndex));
+      retVal.addIdentifier().setSystem("http://acme.org/MRNs").setValue(String.format("A%07d", theIndex))
+         .getType().addCoding().setSystem("http://hl7.org/fhir/v2/0203").setCode("MR").setDisplay("Medical record number");
+      retVal.addName().setFamily("Family" + theIndex % 1000).addGiven("Given" + theIndex % 200);
+      retVal.addTelecom().setSystem(ContactPointSystem.PHONE).setValue(String.format("555-%07d", theIndex));
+      retVal.setGender(theIndex % 2 == 0 ? AdministrativeGender.MALE : AdministrativeGender.FEMALE);
+      retVal.setBirthDateElement(new DateType(String.format("19%02d-%02d-%02d", theIndex % 100, 1 + theIndex % 12, 1 + theIndex % 28)));
+      retVal.addAddress().setCity("Toronto").setCountry("Canada").addLine(theIndex + " Queen Street West");
+      retVal.getMaritalStatus().addCoding().setSystem("http://hl7.org/fhir/v3/MaritalStatus").setCode(theIndex % 2 == 0 ? "M" : "S").setDisplay(theIndex % 2 == 0 ? "Married" : "Never Married");
+      retVal.addCommunication().getLanguage().addCoding().setSystem("urn:ietf:bcp:47").setCode(ourLanguages[theIndex % ourLanguages.length]);
+      retVal.setManagingOrganization(new Reference("Organization/1"));
+      return retVal;
+   }
+
+   private static long usedMemory() {
+      Runtime runtime = Runtime.getRuntime();
+      for (int i = 0; i < 3; i++) {
+         System.gc();
+      }
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+
+}
@@ -0,0 +1,220 @@
+package ca.uhn.example.benchmark;
+
+import ca.uhn.example.store.ObservationStore;
+import ca.uhn.fhir.context.FhirContext;
+import org.HdrHistogram.Histogram;
+import org.hl7.fhir.dstu3.model.DateTimeType;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.dstu3.model.Reference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the memory used per Observation by {@link ObservationStore}, and the
+ * latency of its subject + code + date range searches and of
+ * <code>$lastn</code>, against a plain list of Observation objects searched by
+ * scanning, which is how the Patient provider stores and searches Patients.
+ * <p>
+ * The dataset is a series of vital signs for each subject and code, one every
+ * 15 minutes. It is configured with system properties (defaults in brackets):
+ * </p>
+ * <ul>
+ * <li><code>bench.subjects</code> - Number of subjects (100)</li>
+ * <li><code>bench.codes</code> - Number of codes per subject (4)</li>
+ * <li><code>bench.perSeries</code> - Observations per subject and code (250)</li>
+ * <li><code>bench.windowHours</code> - Length of the date range searched (24)</li>
+ * <li><code>bench.queries</code> - Number of queries to time against the store (5000)</li>
+ * <li><code>bench.scanQueries</code> - Number of queries to time against the list (200)</li>
+ * </ul>
+ * <p>
+ * Memory is measured from the heap used before and after loading, so run with
+ * a fixed heap (e.g. <code>-Xms2g -Xmx2g</code>) for steadier figures.
+ * </p>
+ */
+public class ObservationStoreBenchmark {
+
+   private static final String[] ourVitalSigns = {"8867-4", "8310-5", "9279-1", "2708-6", "8480-6", "8462-4", "29463-7", "8302-2"};
+   private static final long START = 1577836800000L; // 2020-01-01T00:00:00Z
+   private static final long INTERVAL = TimeUnit.MINUTES.toMillis(15);
+
+   private final FhirContext myCtx = FhirContext.forDstu3();
+   private final int mySubjects;
+   private final int myCodes;
+   private final int myPerSeries;
+   private final long myWindow;
+
+   public ObservationStoreBenchmark(int theSubjects, int theCodes, int thePerSeries, long theWindow) {
+      mySubjects = theSubjects;
+      myCodes = theCodes;
+      myPerSeries = thePerSeries;
+      myWindow = theWindow;
+   }
+
+   public static void main(String[] theArgs) {
+      ObservationStoreBenchmark benchmark = new ObservationStoreBenchmark(
+         Integer.getInteger("bench.subjects", 100),
+         Integer.getInteger("bench.codes", 4),
+         Integer.getInteger("bench.perSeries", 250),
+         TimeUnit.HOURS.toMillis(Integer.getInteger("bench.windowHours", 24)));
+      int queries = Integer.getInteger("bench.queries", 5000);
+      int scanQueries = Integer.getInteger("bench.scanQueries", 200);
+      int count = benchmark.mySubjects * benchmark.myCodes * benchmark.myPerSeries;
+
+      System.out.println("Observations: " + count);
+      System.out.println();
+      System.out.println(String.format("%-28s %12s %12s", "layout", "MB", "bytes/obs"));
+
+      long before = usedMemory();
+      List<Observation> list = benchmark.loadList();
+      long listBytes = usedMemory() - before;
+      System.out.println(String.format("%-28s %12.1f %12d", "List<Observation>", listBytes / 1048576.0, listBytes / count));
+
+      before = usedMemory();
+      ObservationStore store = benchmark.loadStore();
+      long storeBytes = usedMemory() - before;
+      System.out.println(String.format("%-28s %12.1f %12d", "ObservationStore", storeBytes / 1048576.0, storeBytes / count));
+
+      System.out.println();
+      System.out.println(String.format("%-28s %10s %10s %10s %10s %10s", "query", "count", "p50 us", "p99 us", "max us", "results"));
+      benchmark.timeScan(list, scanQueries);
+      benchmark.timeRange(store, queries, false);
+      benchmark.timeRange(store, queries, true);
+      benchmark.timeLastN(store, queries);
+
+      // Keep both datasets reachable until the end
+      System.out.println();
+      System.out.println("(" + list.size() + " / " + store.size() + " observations, " + store.getSeriesCount() + " series)");
+   }
+
+   private List<Observation> loadList() {
+      List<Observation> retVal = new ArrayList<>();
+      forEachObservation(retVal::add);
+      return retVal;
+   }
+
+   private ObservationStore loadStore() {
+      ObservationStore retVal = new ObservationStore(myCtx);
+      forEachObservation(retVal::create);
+      return retVal;
+   }
+
+   private void forEachObservation(java.util.function.Consumer<Observation> theConsumer) {
+      Random random = new Random(0);
+      for (int time = 0; time < myPerSeries; time++) {
+         for (int subject = 0; subject < mySubjects; subject++) {
+            for (int code = 0; code < myCodes; code++) {
+               Observation observation = new Observation();
+               observation.setStatus(Observation.ObservationStatus.FINAL);
+               observation.getCode().addCoding().setSystem("http://loinc.org").setCode(code(code));
+               observation.setSubject(new Reference("Patient/" + subject));
+               observation.setEffective(new DateTimeType(new Date(START + time * INTERVAL)));
+               observation.setValue(new Quantity().setValue(50 + random.nextInt(1000) / 10.0).setUnit("1").setSystem("http://unitsofmeasure.org"));
+               theConsumer.accept(observation);
+            }
+         }
+      }
+   }
+
+   /**
+    * Times a range search done by scanning every Observation object
+    */
+   private void timeScan(List<Observation> theList, int theQueries) {
+      Random random = new Random(1);
+      Histogram histogram = new Histogram(3);
+      long results = 0;
+      for (int i = 0; i < theQueries; i++) {
+         String subject = "Patient/" + random.nextInt(mySubjects);
+         String code = code(random.nextInt(myCodes));
+         long from = randomFrom(random);
+         long to = from + myWindow;
+
+         long start = System.nanoTime();
+         List<Observation> found = new ArrayList<>();
+         for (Observation next : theList) {
+            long time = next.getEffectiveDateTimeType().getValue().getTime();
+            if (next.getSubject().getReference().equals(subject)
+               && next.getCode().getCodingFirstRep().getCode().equals(code)
+               && time >= from && time <= to) {
+               found.add(next);
+            }
+         }
+         histogram.recordValue((System.nanoTime() - start) / 1000);
+         results += found.size();
+      }
+      print("scan List<Observation>", theQueries, histogram, results);
+   }
+
+   /**
+    * Times a range search against the store, either just finding the IDs or
+    * also decoding the resources
+    */
+   private void timeRange(ObservationStore theStore, int theQueries, boolean theDecode) {
+      Random random = new Random(1);
+      Histogram histogram = new Histogram(3);
+      long results = 0;
+      for (int i = 0; i < theQueries; i++) {
+         String subject = "Patient/" + random.nextInt(mySubjects);
+         String code = "http://loinc.org|" + code(random.nextInt(myCodes));
+         long from = randomFrom(random);
+
+         long start = System.nanoTime();
+         List<String> ids = theStore.findIds(subject, Collections.singletonList(code), from, from + myWindow);
+         if (theDecode) {
+            results += theStore.readLatest(ids).size();
+         } else {
+            results += ids.size();
+         }
+         histogram.recordValue((System.nanoTime() - start) / 1000);
+      }
+      print(theDecode ? "store range + decode" : "store range (IDs only)", theQueries, histogram, results);
+   }
+
+   private void timeLastN(ObservationStore theStore, int theQueries) {
+      Random random = new Random(1);
+      Histogram histogram = new Histogram(3);
+      long results = 0;
+      for (int i = 0; i < theQueries; i++) {
+         String subject = "Patient/" + random.nextInt(mySubjects);
+
+         long start = System.nanoTime();
+         List<String> ids = theStore.findLastIds(subject, Collections.emptyList(), 1);
+         results += theStore.readLatest(ids).size();
+         histogram.recordValue((System.nanoTime() - start) / 1000);
+      }
+      print("store $lastn + decode", theQueries, histogram, results);
+   }
+
+   private long randomFrom(Random theRandom) {
+      long span = Math.max(1, myPerSeries * INTERVAL - myWindow);
+      return START + (long) (theRandom.nextDouble() * span);
+   }
+
+   private static String code(int theIndex) {
+      return theIndex < ourVitalSigns.length ? ourVitalSigns[theIndex] : "code-" + theIndex;
+   }
+
+   private static void print(String theName, int theQueries, Histogram theHistogram, long theResults) {
+      System.out.println(String.format("%-28s %10d %10d %10d %10d %10.1f",
+         theName,
+         theQueries,
+         theHistogram.getValueAtPercentile(50),
+         theHistogram.getValueAtPercentile(99),
+         theHistogram.getMaxValue(),
+         theResults / (double) theQueries));
+   }
+
+   private static long usedMemory() {
+      Runtime runtime = Runtime.getRuntime();
+      for (int i = 0; i < 3; i++) {
+         System.gc();
+      }
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+
+}
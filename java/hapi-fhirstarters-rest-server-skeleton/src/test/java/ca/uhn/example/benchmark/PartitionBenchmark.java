@@ -0,0 +1,176 @@
+package ca.uhn.example.benchmark;
+
+import ca.uhn.example.index.ReferenceIndex;
+import ca.uhn.example.store.PatientStore;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.param.StringAndListParam;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenAndListParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import org.HdrHistogram.Histogram;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.Patient;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how Patient writes and searches scale with the number of
+ * partitions of a {@link PatientStore}. For each partition count, Patients
+ * are created by several writer threads at once, and then searches fetching
+ * the first page of their results are timed: one which is selective, and
+ * ones which match a large share of the Patients and are sorted by birth date,
+ * where each partition sorts its own matches and only the first page is
+ * merged.
+ * <p>
+ * Write throughput and search latency only improve with partitions when
+ * there are processors to run them on. The dataset is configured with system
+ * properties (defaults in brackets):
+ * </p>
+ * <ul>
+ * <li><code>bench.patients</code> - Number of Patients (100000)</li>
+ * <li><code>bench.partitions</code> - Comma separated partition counts to compare (1,2,4,8)</li>
+ * <li><code>bench.writers</code> - Threads creating Patients (the number of processors)</li>
+ * <li><code>bench.queries</code> - Number of queries of each kind to time (500)</li>
+ * <li><code>bench.pageSize</code> - Results fetched per query (20)</li>
+ * </ul>
+ */
+public class PartitionBenchmark {
+
+   private static final long START = -1262304000000L; // 1930-01-01T00:00:00Z
+   private static final long DAY = 86400000L;
+   private static final int DAYS = 90 * 365;
+   private static final int FAMILIES = 1000;
+
+   private final FhirContext myCtx = FhirContext.forDstu3();
+   private final int myPatients;
+   private final int myWriters;
+   private final int myPageSize;
+   private PatientStore myStore;
+
+   public PartitionBenchmark(int thePatients, int theWriters, int thePageSize) {
+      myPatients = thePatients;
+      myWriters = theWriters;
+      myPageSize = thePageSize;
+   }
+
+   public static void main(String[] theArgs) throws Exception {
+      PartitionBenchmark benchmark = new PartitionBenchmark(
+         Integer.getInteger("bench.patients", 100000),
+         Integer.getInteger("bench.writers", Runtime.getRuntime().availableProcessors()),
+         Integer.getInteger("bench.pageSize", 20));
+      int queries = Integer.getInteger("bench.queries", 500);
+
+      System.out.println("Patients: " + benchmark.myPatients + ", writers: " + benchmark.myWriters + ", processors: " + Runtime.getRuntime().availableProcessors());
+      System.out.println();
+      System.out.println(String.format("%-10s %-36s %12s %10s %10s %10s", "partitions", "case", "creates/s", "p50 us", "p99 us", "max us"));
+
+      for (String next : System.getProperty("bench.partitions", "1,2,4,8").split(",")) {
+         int partitions = Integer.parseInt(next.trim());
+         double createsPerSecond = benchmark.load(partitions);
+         System.out.println(String.format("%-10d %-36s %12.0f", partitions, "create", createsPerSecond));
+
+         // Warm up, then time each kind of query
+         for (int pass = 0; pass < 2; pass++) {
+            boolean print = pass == 1;
+            benchmark.time(partitions, "family + gender", queries, print, benchmark::familyAndGender);
+            benchmark.time(partitions, "gender, _sort=birthdate", queries, print, benchmark::genderSortedByBirthDate);
+            benchmark.time(partitions, "_sort=-birthdate", queries, print, benchmark::allSortedByBirthDate);
+         }
+      }
+   }
+
+   /**
+    * Creates the Patients in a new store
+    *
+    * @return The number of Patients created per second
+    */
+   private double load(int thePartitions) throws Exception {
+      myStore = new PatientStore(new ReferenceIndex(myCtx), thePartitions);
+      ExecutorService writers = Executors.newFixedThreadPool(myWriters);
+      List<Future<?>> futures = new ArrayList<>();
+      long start = System.nanoTime();
+      for (int writer = 0; writer < myWriters; writer++) {
+         int first = writer;
+         futures.add(writers.submit(() -> {
+            Random random = new Random(first);
+            for (int i = first; i < myPatients; i += myWriters) {
+               Patient patient = new Patient();
+               patient.addIdentifier().setSystem("urn:hapitest:mrns").setValue(String.format("%08d", i));
+               patient.addName().setFamily("Family" + random.nextInt(FAMILIES)).addGiven("Given" + random.nextInt(200));
+               patient.setGender(random.nextBoolean() ? AdministrativeGender.MALE : AdministrativeGender.FEMALE);
+               patient.setBirthDateElement(new DateType(new Date(START + random.nextInt(DAYS) * DAY)));
+               myStore.addNewVersion(patient, myStore.newId());
+            }
+         }));
+      }
+      for (Future<?> next : futures) {
+         next.get();
+      }
+      long nanos = System.nanoTime() - start;
+      writers.shutdown();
+      writers.awaitTermination(1, TimeUnit.MINUTES);
+      return myPatients / (nanos / 1e9);
+   }
+
+   private List<String> familyAndGender(Random theRandom) {
+      StringAndListParam family = new StringAndListParam().addAnd(new StringOrListParam().addOr(new StringParam("Family" + theRandom.nextInt(FAMILIES), true)));
+      return myStore.search(family, null, null, tokens("female"), null, null);
+   }
+
+   private List<String> genderSortedByBirthDate(Random theRandom) {
+      return myStore.search(null, null, null, tokens(theRandom.nextBoolean() ? "male" : "female"), null, SortOrderEnum.ASC);
+   }
+
+   private List<String> allSortedByBirthDate(Random theRandom) {
+      return myStore.search(null, null, null, null, null, SortOrderEnum.DESC);
+   }
+
+   /**
+    * Times a kind of query, including fetching the IDs of its first page
+    */
+   private void time(int thePartitions, String theName, int theQueries, boolean thePrint, Query theQuery) {
+      Random random = new Random(1);
+      Histogram histogram = new Histogram(3);
+      for (int i = 0; i < theQueries; i++) {
+         long start = System.nanoTime();
+         List<String> results = theQuery.run(random);
+         for (String next : results.subList(0, Math.min(myPageSize, results.size()))) {
+            if (next.isEmpty()) {
+               throw new IllegalStateException();
+            }
+         }
+         histogram.recordValue((System.nanoTime() - start) / 1000);
+      }
+      if (thePrint) {
+         System.out.println(String.format("%-10d %-36s %12s %10d %10d %10d",
+            thePartitions,
+            theName,
+            "",
+            histogram.getValueAtPercentile(50),
+            histogram.getValueAtPercentile(99),
+            histogram.getMaxValue()));
+      }
+   }
+
+   private static TokenAndListParam tokens(String theValue) {
+      return new TokenAndListParam().addAnd(new TokenOrListParam().add(new TokenParam(null, theValue)));
+   }
+
+   private interface Query {
+
+      List<String> run(Random theRandom);
+
+   }
+
+}
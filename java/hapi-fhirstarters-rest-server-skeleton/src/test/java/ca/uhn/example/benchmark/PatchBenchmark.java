@@ -0,0 +1,208 @@
+package ca.uhn.example.benchmark;
+
+import ca.uhn.example.client.ResourceDiff;
+import ca.uhn.example.server.EmbeddedJettyServer;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.HdrHistogram.Histogram;
+import org.hl7.fhir.dstu3.model.Address;
+import org.hl7.fhir.dstu3.model.CodeType;
+import org.hl7.fhir.dstu3.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.dstu3.model.ContactPoint.ContactPointUse;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.HumanName.NameUse;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.dstu3.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.StringType;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the cost of changing one element of a Patient by sending the
+ * whole Patient with an update, by sending a JSON Patch computed with
+ * {@link ResourceDiff}, and by sending a FHIRPath Patch. The server is
+ * started in-process, loaded with Patients of a realistic size, and then
+ * random Patients get a new phone number, one request at a time, in each
+ * mode. For each mode the request body size, the latency, and the CPU time
+ * of the server's request threads and of the client are printed.
+ * <p>
+ * The benchmark is configured with system properties (defaults in brackets):
+ * </p>
+ * <ul>
+ * <li><code>bench.patients</code> - Number of Patients (1000)</li>
+ * <li><code>bench.updates</code> - Number of updates in each mode, after as many unrecorded ones (20000)</li>
+ * </ul>
+ */
+public class PatchBenchmark {
+
+   /**
+    * The ways of sending a change
+    */
+   public enum Mode {
+      UPDATE, JSON_PATCH, FHIRPATH_PATCH
+   }
+
+   private final FhirContext myCtx = FhirContext.forDstu3();
+   private final ResourceDiff myDiff = new ResourceDiff(myCtx);
+   private final ThreadMXBean myThreads = ManagementFactory.getThreadMXBean();
+   private final List<Patient> myPatients = new ArrayList<>();
+   private final int myPatientCount;
+   private final int myUpdates;
+   private IGenericClient myClient;
+
+   public PatchBenchmark(int thePatientCount, int theUpdates) {
+      myPatientCount = thePatientCount;
+      myUpdates = theUpdates;
+   }
+
+   public static void main(String[] theArgs) throws Exception {
+      PatchBenchmark benchmark = new PatchBenchmark(Integer.getInteger("bench.patients", 1000), Integer.getInteger("bench.updates", 20000));
+
+      EmbeddedJettyServer server = EmbeddedJettyServer.fromSystemProperties();
+      server.setPort(0);
+      server.start();
+      try {
+         benchmark.connect(server.getBaseUrl());
+         benchmark.preload();
+         System.out.println(String.format("%-15s %12s %10s %10s %12s %12s", "mode", "bytes/update", "p50 us", "p99 us", "server us", "client us"));
+         for (Mode next : Mode.values()) {
+            benchmark.run(next, false);
+            benchmark.run(next, true);
+         }
+      } finally {
+         server.stop();
+      }
+   }
+
+   private void connect(String theBaseUrl) {
+      myCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+      myClient = myCtx.newRestfulGenericClient(theBaseUrl);
+      myClient.setEncoding(EncodingEnum.JSON);
+   }
+
+   private void preload() {
+      for (int i = 0; i < myPatientCount; i++) {
+         String id = myClient.create().resource(newPatient(i)).execute().getId().getIdPart();
+         myPatients.add(myClient.read().resource(Patient.class).withId(id).execute());
+      }
+   }
+
+   /**
+    * Gives random Patients a new phone number
+    *
+    * @param theRecord If false, the run is a warmup and nothing is printed
+    */
+   private void run(Mode theMode, boolean theRecord) {
+      Random random = new Random(0);
+      Histogram latencies = new Histogram(3);
+      long bytes = 0;
+      long serverCpu = getServerCpuNanos();
+      long clientCpu = myThreads.getCurrentThreadCpuTime();
+
+      for (int i = 0; i < myUpdates; i++) {
+         int index = random.nextInt(myPatients.size());
+         Patient current = myPatients.get(index);
+         String phone = String.format("555-%07d", random.nextInt(10000000));
+         long start = System.nanoTime();
+         bytes += send(theMode, current, phone);
+         latencies.recordValue((System.nanoTime() - start) / 1000);
+      }
+
+      if (theRecord) {
+         System.out.println(String.format("%-15s %12d %10d %10d %12d %12d", theMode,
+            bytes / myUpdates,
+            latencies.getValueAtPercentile(50),
+            latencies.getValueAtPercentile(99),
+            (getServerCpuNanos() - serverCpu) / myUpdates / 1000,
+            (myThreads.getCurrentThreadCpuTime() - clientCpu) / myUpdates / 1000));
+      }
+   }
+
+   /**
+    * Sends a change of a Patient's phone number, and keeps the changed copy
+    *
+    * @return The size of the request body
+    */
+   private int send(Mode theMode, Patient theCurrent, String thePhone) {
+      String body;
+      switch (theMode) {
+         case UPDATE:
+            Patient updated = theCurrent.copy();
+            updated.getTelecomFirstRep().setValue(thePhone);
+            body = myCtx.newJsonParser().encodeResourceToString(updated);
+            myClient.update().resource(body).withId(theCurrent.getIdElement().toUnqualifiedVersionless()).execute();
+            theCurrent.getTelecomFirstRep().setValue(thePhone);
+            break;
+         case JSON_PATCH:
+            Patient patched = theCurrent.copy();
+            patched.getTelecomFirstRep().setValue(thePhone);
+            body = myDiff.diff(theCurrent, patched);
+            myClient.patch().withBody(body).withId(theCurrent.getIdElement().toUnqualifiedVersionless()).execute();
+            theCurrent.getTelecomFirstRep().setValue(thePhone);
+            break;
+         case FHIRPATH_PATCH:
+            Parameters patch = new Parameters();
+            ParametersParameterComponent operation = patch.addParameter().setName("operation");
+            operation.addPart().setName("type").setValue(new CodeType("replace"));
+            operation.addPart().setName("path").setValue(new StringType("Patient.telecom[0].value"));
+            operation.addPart().setName("value").setValue(new StringType(thePhone));
+            body = myCtx.newJsonParser().encodeResourceToString(patch);
+            myClient.patch().withFhirPatch(patch).withId(theCurrent.getIdElement().toUnqualifiedVersionless()).execute();
+            theCurrent.getTelecomFirstRep().setValue(thePhone);
+            break;
+         default:
+            throw new IllegalStateException(theMode.name());
+      }
+      return body.getBytes(StandardCharsets.UTF_8).length;
+   }
+
+   /**
+    * Returns the CPU time used so far by the server's request threads
+    */
+   private long getServerCpuNanos() {
+      long retVal = 0;
+      for (ThreadInfo next : myThreads.getThreadInfo(myThreads.getAllThreadIds())) {
+         if (next != null && next.getThreadName().startsWith("fhir-http")) {
+            retVal += Math.max(0, myThreads.getThreadCpuTime(next.getThreadId()));
+         }
+      }
+      return retVal;
+   }
+
+   private static Patient newPatient(int theIndex) {
+      Patient retVal = new Patient();
+      retVal.addIdentifier().setSystem("urn:hapitest:mrns").setValue(String.format("%08d", theIndex));
+      retVal.addIdentifier().setSystem("urn:oid:2.16.840.1.113883.4.1").setValue(String.format("%09d", theIndex * 7919L));
+      retVal.addName().setUse(NameUse.OFFICIAL).setFamily("Family" + theIndex % 500).addGiven("Given" + theIndex % 200).addGiven("Middle").addPrefix("Ms.");
+      retVal.addName().setUse(NameUse.NICKNAME).addGiven("Nick" + theIndex % 50);
+      retVal.addTelecom().setSystem(ContactPointSystem.PHONE).setUse(ContactPointUse.HOME).setValue("555-0000000");
+      retVal.addTelecom().setSystem(ContactPointSystem.PHONE).setUse(ContactPointUse.MOBILE).setValue("555-1111111");
+      retVal.addTelecom().setSystem(ContactPointSystem.EMAIL).setValue("patient" + theIndex + "@example.com");
+      retVal.setGender(theIndex % 2 == 0 ? AdministrativeGender.MALE : AdministrativeGender.FEMALE);
+      retVal.setBirthDateElement(new DateType(String.format("19%02d-%02d-%02d", theIndex % 100, 1 + theIndex % 12, 1 + theIndex % 28)));
+      for (int i = 0; i < 2; i++) {
+         Address address = retVal.addAddress().setCity("Toronto").setState("ON").setPostalCode("M5V 2T" + i).setCountry("Canada");
+         address.addLine(theIndex + " Queen Street West").addLine("Unit " + (i + 1));
+      }
+      Patient.ContactComponent contact = retVal.addContact();
+      contact.getName().setFamily("Family" + theIndex % 500).addGiven("Contact");
+      contact.addTelecom().setSystem(ContactPointSystem.PHONE).setValue("555-2222222");
+      contact.addRelationship().addCoding().setSystem("http://hl7.org/fhir/v2/0131").setCode("N");
+      retVal.addCommunication().getLanguage().addCoding().setSystem("urn:ietf:bcp:47").setCode("en-CA");
+      retVal.addGeneralPractitioner(new Reference("Organization/1"));
+      retVal.setManagingOrganization(new Reference("Organization/1"));
+      return retVal;
+   }
+
+}
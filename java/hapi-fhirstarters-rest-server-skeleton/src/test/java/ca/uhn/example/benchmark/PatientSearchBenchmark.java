@@ -0,0 +1,180 @@
+package ca.uhn.example.benchmark;
+
+import ca.uhn.example.index.ReferenceIndex;
+import ca.uhn.example.provider.PatientResourceProvider;
+import ca.uhn.example.search.IncludeResolver;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.param.DateAndListParam;
+import ca.uhn.fhir.rest.param.DateOrListParam;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.StringAndListParam;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenAndListParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import org.HdrHistogram.Histogram;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.Patient;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the latency of Patient searches combining several parameters,
+ * planned by the {@link ca.uhn.example.search.SearchPlanner} over the
+ * Patient provider's indexes, against scanning a list of the same Patients.
+ * Each query pairs a selective parameter with unselective ones, so the
+ * planned search should take about as long as the selective parameter alone
+ * whatever the number of Patients.
+ * <p>
+ * The dataset is configured with system properties (defaults in brackets):
+ * </p>
+ * <ul>
+ * <li><code>bench.patients</code> - Number of Patients (100000)</li>
+ * <li><code>bench.families</code> - Distinct family names (1000)</li>
+ * <li><code>bench.queries</code> - Number of queries to time against the indexes (5000)</li>
+ * <li><code>bench.scanQueries</code> - Number of queries to time against the list (100)</li>
+ * </ul>
+ */
+public class PatientSearchBenchmark {
+
+   private static final long START = -1262304000000L; // 1930-01-01T00:00:00Z
+   private static final long DAY = 86400000L;
+   private static final int DAYS = 90 * 365;
+
+   private final FhirContext myCtx = FhirContext.forDstu3();
+   private final int myPatients;
+   private final int myFamilies;
+   private final List<Patient> myList = new ArrayList<>();
+   private PatientResourceProvider myProvider;
+
+   public PatientSearchBenchmark(int thePatients, int theFamilies) {
+      myPatients = thePatients;
+      myFamilies = theFamilies;
+   }
+
+   public static void main(String[] theArgs) {
+      PatientSearchBenchmark benchmark = new PatientSearchBenchmark(
+         Integer.getInteger("bench.patients", 100000),
+         Integer.getInteger("bench.families", 1000));
+      int queries = Integer.getInteger("bench.queries", 5000);
+      int scanQueries = Integer.getInteger("bench.scanQueries", 100);
+
+      benchmark.load();
+      System.out.println("Patients: " + benchmark.myPatients);
+      System.out.println();
+      System.out.println(String.format("%-36s %10s %10s %10s %10s %10s", "query", "count", "p50 us", "p99 us", "max us", "results"));
+
+      // Warm up, then time each kind of query
+      for (int pass = 0; pass < 2; pass++) {
+         boolean print = pass == 1;
+         benchmark.time("identifier + gender", queries, print, false, benchmark::identifierAndGender);
+         benchmark.time("scan: identifier + gender", scanQueries, print, true, benchmark::identifierAndGender);
+         benchmark.time("family + gender + birthdate", queries, print, false, benchmark::familyGenderAndBirthDate);
+         benchmark.time("scan: family + gender + birthdate", scanQueries, print, true, benchmark::familyGenderAndBirthDate);
+         benchmark.time("family + given", queries, print, false, benchmark::familyAndGiven);
+      }
+   }
+
+   private void load() {
+      myProvider = new PatientResourceProvider(myCtx, new IncludeResolver(myCtx, new ReferenceIndex(myCtx)));
+      Random random = new Random(0);
+      for (int i = 0; i < myPatients; i++) {
+         Patient patient = new Patient();
+         patient.addIdentifier().setSystem("urn:hapitest:mrns").setValue(mrn(i));
+         patient.addName().setFamily(family(random.nextInt(myFamilies))).addGiven(given(random.nextInt(200)));
+         patient.setGender(random.nextBoolean() ? AdministrativeGender.MALE : AdministrativeGender.FEMALE);
+         patient.setBirthDateElement(new DateType(new Date(START + random.nextInt(DAYS) * DAY)));
+         myProvider.createPatient(patient, null);
+         myList.add(patient);
+      }
+   }
+
+   private int identifierAndGender(Random theRandom, boolean theScan) {
+      String mrn = mrn(theRandom.nextInt(myPatients));
+      if (theScan) {
+         int retVal = 0;
+         for (Patient next : myList) {
+            if (next.getIdentifierFirstRep().getValue().equals(mrn) && next.getGender() == AdministrativeGender.FEMALE) {
+               retVal++;
+            }
+         }
+         return retVal;
+      }
+      return myProvider.findPatientsUsingArbitraryCtriteria(null, null, tokens(mrn), tokens("female"), null, null, null, null, null, null).size();
+   }
+
+   private int familyGenderAndBirthDate(Random theRandom, boolean theScan) {
+      String family = family(theRandom.nextInt(myFamilies));
+      Date from = new Date(START + theRandom.nextInt(DAYS / 2) * DAY);
+      if (theScan) {
+         int retVal = 0;
+         for (Patient next : myList) {
+            if (next.getNameFirstRep().getFamily().equals(family) && next.getGender() == AdministrativeGender.MALE && !next.getBirthDate().before(from)) {
+               retVal++;
+            }
+         }
+         return retVal;
+      }
+      StringParam familyParam = new StringParam(family, true);
+      DateAndListParam birthDate = new DateAndListParam().addAnd(new DateOrListParam().add(new DateParam("ge" + new DateType(from).getValueAsString())));
+      return myProvider.findPatientsUsingArbitraryCtriteria(new StringAndListParam().addAnd(new StringOrListParam().addOr(familyParam)), null, null, tokens("male"), birthDate, null, null, null, null, null).size();
+   }
+
+   private int familyAndGiven(Random theRandom, boolean theScan) {
+      // Only timed against the indexes
+      StringAndListParam family = new StringAndListParam().addAnd(new StringOrListParam().addOr(new StringParam(family(theRandom.nextInt(myFamilies)), true)));
+      StringAndListParam given = new StringAndListParam().addAnd(new StringOrListParam().addOr(new StringParam(given(theRandom.nextInt(200)), true)));
+      return myProvider.findPatientsUsingArbitraryCtriteria(family, given, null, null, null, null, null, null, null, null).size();
+   }
+
+   /**
+    * Times a kind of query, either planned over the indexes or by scanning the list
+    */
+   private void time(String theName, int theQueries, boolean thePrint, boolean theScan, Query theQuery) {
+      Random random = new Random(1);
+      Histogram histogram = new Histogram(3);
+      long results = 0;
+      for (int i = 0; i < theQueries; i++) {
+         long start = System.nanoTime();
+         results += theQuery.run(random, theScan);
+         histogram.recordValue((System.nanoTime() - start) / 1000);
+      }
+      if (thePrint) {
+         System.out.println(String.format("%-36s %10d %10d %10d %10d %10.1f",
+            theName,
+            theQueries,
+            histogram.getValueAtPercentile(50),
+            histogram.getValueAtPercentile(99),
+            histogram.getMaxValue(),
+            results / (double) theQueries));
+      }
+   }
+
+   private static TokenAndListParam tokens(String theValue) {
+      return new TokenAndListParam().addAnd(new TokenOrListParam().add(new TokenParam(null, theValue)));
+   }
+
+   private static String mrn(int theIndex) {
+      return String.format("%08d", theIndex);
+   }
+
+   private static String family(int theIndex) {
+      return "Family" + theIndex;
+   }
+
+   private static String given(int theIndex) {
+      return "Given" + theIndex;
+   }
+
+   private interface Query {
+
+      int run(Random theRandom, boolean theScan);
+
+   }
+
+}
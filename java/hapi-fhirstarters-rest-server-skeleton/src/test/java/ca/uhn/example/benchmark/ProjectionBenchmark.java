@@ -0,0 +1,167 @@
+package ca.uhn.example.benchmark;
+
+import ca.uhn.example.index.ReferenceIndex;
+import ca.uhn.example.provider.PatientResourceProvider;
+import ca.uhn.example.search.IResourceLookup;
+import ca.uhn.example.search.IncludeResolver;
+import ca.uhn.example.search.Projection;
+import ca.uhn.example.store.ObservationStore;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import org.hl7.fhir.dstu3.model.DateTimeType;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures the bytes and CPU time per search result of fetching and encoding
+ * Patients and Observations as JSON, in full and with <code>_elements</code>
+ * and <code>_summary</code>. Each projection is timed twice: with the whole
+ * resource fetched and the elements left out by the encoder, which is what
+ * the server did before providers supported {@link Projection}s, and with
+ * only the projected elements fetched.
+ * <p>
+ * The server's narrative generator is used, so a full encode includes a
+ * generated narrative. The dataset is configured with system properties
+ * (defaults in brackets):
+ * </p>
+ * <ul>
+ * <li><code>bench.resources</code> - Number of Patients, and of Observations (50000)</li>
+ * <li><code>bench.pages</code> - Number of pages of results to fetch and encode for each case (500)</li>
+ * <li><code>bench.pageSize</code> - Results per page (20)</li>
+ * </ul>
+ */
+public class ProjectionBenchmark {
+
+   private static final long START = 1577836800000L; // 2020-01-01T00:00:00Z
+
+   private final FhirContext myCtx = FhirContext.forDstu3();
+   private final int myResources;
+   private final int myPageSize;
+   private PatientResourceProvider myPatients;
+   private ObservationStore myObservations;
+
+   public ProjectionBenchmark(int theResources, int thePageSize) {
+      myResources = theResources;
+      myPageSize = thePageSize;
+      myCtx.setNarrativeGenerator(new DefaultThymeleafNarrativeGenerator());
+   }
+
+   public static void main(String[] theArgs) {
+      ProjectionBenchmark benchmark = new ProjectionBenchmark(
+         Integer.getInteger("bench.resources", 50000),
+         Integer.getInteger("bench.pageSize", 20));
+      int pages = Integer.getInteger("bench.pages", 500);
+
+      benchmark.load();
+      System.out.println("Patients and Observations: " + benchmark.myResources + " each");
+      System.out.println();
+      System.out.println(String.format("%-48s %12s %12s", "case", "bytes/entry", "us/entry"));
+
+      // Warm up, then time each case
+      for (int pass = 0; pass < 2; pass++) {
+         boolean print = pass == 1;
+         benchmark.time("Patient full", pages, print, benchmark.myPatients, Patient.class, null, null, false);
+         benchmark.time("Patient _elements=identifier,name (encoder)", pages, print, benchmark.myPatients, Patient.class, null, "identifier,name", false);
+         benchmark.time("Patient _elements=identifier,name (projected)", pages, print, benchmark.myPatients, Patient.class, null, "identifier,name", true);
+         benchmark.time("Patient _summary=true (encoder)", pages, print, benchmark.myPatients, Patient.class, SummaryEnum.TRUE, null, false);
+         benchmark.time("Patient _summary=true (projected)", pages, print, benchmark.myPatients, Patient.class, SummaryEnum.TRUE, null, true);
+         benchmark.time("Observation full", pages, print, benchmark.myObservations, Observation.class, null, null, false);
+         benchmark.time("Observation _elements=effective,value (encoder)", pages, print, benchmark.myObservations, Observation.class, null, "effective,value", false);
+         benchmark.time("Observation _elements=effective,value (projected)", pages, print, benchmark.myObservations, Observation.class, null, "effective,value", true);
+         benchmark.time("Observation _summary=true (encoder)", pages, print, benchmark.myObservations, Observation.class, SummaryEnum.TRUE, null, false);
+         benchmark.time("Observation _summary=true (projected)", pages, print, benchmark.myObservations, Observation.class, SummaryEnum.TRUE, null, true);
+      }
+   }
+
+   private void load() {
+      myPatients = new PatientResourceProvider(myCtx, new IncludeResolver(myCtx, new ReferenceIndex(myCtx)));
+      myObservations = new ObservationStore(myCtx);
+      Random random = new Random(0);
+      for (int i = 0; i < myResources; i++) {
+         Patient patient = new Patient();
+         patient.addIdentifier().setSystem("urn:hapitest:mrns").setValue(String.format("%08d", i));
+         patient.addName().setFamily("Family" + random.nextInt(1000)).addGiven("Given" + random.nextInt(200)).addGiven("Middle" + random.nextInt(200));
+         patient.setGender(random.nextBoolean() ? AdministrativeGender.MALE : AdministrativeGender.FEMALE);
+         patient.setBirthDateElement(new DateType(new Date(START - random.nextInt(30000) * 86400000L)));
+         patient.addAddress().addLine(random.nextInt(1000) + " Main Street").setCity("Toronto").setPostalCode("M5V 2T6").setCountry("CA");
+         patient.addTelecom().setValue("1-555-" + String.format("%07d", i));
+         patient.getCommunicationFirstRep().getLanguage().addCoding().setSystem("urn:ietf:bcp:47").setCode("en-CA");
+         myPatients.createPatient(patient, null);
+
+         Observation observation = new Observation();
+         observation.setStatus(Observation.ObservationStatus.FINAL);
+         observation.addCategory().addCoding().setSystem("http://hl7.org/fhir/observation-category").setCode("vital-signs");
+         observation.getCode().addCoding().setSystem("http://loinc.org").setCode("85354-9").setDisplay("Blood pressure panel");
+         observation.setSubject(new Reference("Patient/" + (i + 2)));
+         observation.setEffective(new DateTimeType(new Date(START + i * 60000L)));
+         observation.setValue(new Quantity().setValue(50 + random.nextInt(1000) / 10.0).setUnit("mmHg").setSystem("http://unitsofmeasure.org").setCode("mm[Hg]"));
+         observation.addComponent().setValue(new Quantity().setValue(120 + random.nextInt(40)).setUnit("mmHg")).getCode().addCoding().setSystem("http://loinc.org").setCode("8480-6");
+         observation.addComponent().setValue(new Quantity().setValue(70 + random.nextInt(30)).setUnit("mmHg")).getCode().addCoding().setSystem("http://loinc.org").setCode("8462-4");
+         observation.addReferenceRange().setText("90/60 - 120/80");
+         myObservations.create(observation);
+      }
+   }
+
+   /**
+    * Times fetching and encoding random pages of results
+    *
+    * @param theProjected If <code>false</code>, whole resources are fetched, and the encoder leaves out the elements which were not asked for
+    */
+   private void time(String theName, int thePages, boolean thePrint, IResourceLookup theLookup, Class<? extends IBaseResource> theType, SummaryEnum theSummary, String theElements, boolean theProjected) {
+      RuntimeResourceDefinition definition = myCtx.getResourceDefinition(theType);
+      Set<SummaryEnum> summary = theSummary != null ? Collections.singleton(theSummary) : null;
+      Set<String> elements = theElements != null ? new HashSet<>(Arrays.asList(theElements.split(","))) : null;
+      Projection projection = theProjected ? Projection.forRequest(definition, summary, elements) : Projection.ALL;
+
+      // Configured the way the server configures its parser for these parameters
+      IParser parser = myCtx.newJsonParser();
+      if (elements != null) {
+         Set<String> encodeElements = new HashSet<>();
+         for (String next : elements) {
+            encodeElements.add(definition.getName() + "." + next);
+         }
+         parser.setEncodeElements(encodeElements);
+      }
+      parser.setSummaryMode(theSummary == SummaryEnum.TRUE);
+
+      Random random = new Random(1);
+      long bytes = 0;
+      long entries = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < thePages; i++) {
+         List<String> idParts = new ArrayList<>(myPageSize);
+         for (int j = 0; j < myPageSize; j++) {
+            // Patient 1 is the provider's own example, so both types have IDs 2 and up
+            idParts.add(Integer.toString(2 + random.nextInt(myResources - 1)));
+         }
+         for (IBaseResource next : theLookup.readLatest(idParts, projection)) {
+            bytes += parser.encodeResourceToString(next).getBytes(StandardCharsets.UTF_8).length;
+            entries++;
+         }
+      }
+      long micros = (System.nanoTime() - start) / 1000;
+
+      if (thePrint) {
+         System.out.println(String.format("%-48s %12d %12.1f", theName, bytes / entries, micros / (double) entries));
+      }
+   }
+
+}
@@ -0,0 +1,286 @@
+package ca.uhn.example.benchmark;
+
+import ca.uhn.example.server.EmbeddedJettyServer;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An end-to-end benchmark of the FHIR server which needs no external
+ * infrastructure.
+ * <p>
+ * {@link ca.uhn.example.servlet.ExampleRestfulServlet} is started in-process
+ * on an ephemeral port, a synthetic dataset is loaded into it, and then a mix
+ * of read, vread, search, create and update operations is driven through an
+ * {@link IGenericClient} at each of a fixed set of concurrency levels. For each
+ * level the throughput and latency percentiles of every operation are printed.
+ * </p>
+ * <p>
+ * The benchmark is configured with system properties (defaults in brackets):
+ * </p>
+ * <ul>
+ * <li><code>bench.patients</code> - Number of Patients to preload (10000)</li>
+ * <li><code>bench.families</code> - Number of distinct family names in the dataset (500)</li>
+ * <li><code>bench.concurrency</code> - Comma separated concurrency levels (1,4,16)</li>
+ * <li><code>bench.warmupSeconds</code> - Warmup before each level, not recorded (5)</li>
+ * <li><code>bench.durationSeconds</code> - Measured time for each level (20)</li>
+ * <li><code>bench.mix</code> - Operation weights (read:60,vread:10,search:10,create:10,update:10)</li>
+ * </ul>
+ * <p>
+ * Any <code>fhir.*</code> property understood by {@link EmbeddedJettyServer} may
+ * also be supplied, except for the port.
+ * </p>
+ */
+public class ServerBenchmark {
+
+   private static final Logger ourLog = LoggerFactory.getLogger(ServerBenchmark.class);
+
+   /**
+    * The operations which make up the benchmark mix
+    */
+   public enum Operation {
+      READ, VREAD, SEARCH, CREATE, UPDATE
+   }
+
+   private final FhirContext myCtx = FhirContext.forDstu3();
+   private final Map<Operation, Integer> myMix;
+   private final int myPatientCount;
+   private final int myFamilyCount;
+   private final List<String> myIds = Collections.synchronizedList(new ArrayList<>());
+   private final List<IdType> myVersionedIds = new ArrayList<>();
+   private final AtomicLong myNextMrn = new AtomicLong();
+   private IGenericClient myClient;
+
+   public ServerBenchmark(int thePatientCount, int theFamilyCount, Map<Operation, Integer> theMix) {
+      myPatientCount = thePatientCount;
+      myFamilyCount = theFamilyCount;
+      myMix = theMix;
+   }
+
+   public static void main(String[] theArgs) throws Exception {
+      int patients = Integer.getInteger("bench.patients", 10000);
+      int families = Integer.getInteger("bench.families", 500);
+      int warmupSeconds = Integer.getInteger("bench.warmupSeconds", 5);
+      int durationSeconds = Integer.getInteger("bench.durationSeconds", 20);
+      Map<Operation, Integer> mix = parseMix(System.getProperty("bench.mix", "read:60,vread:10,search:10,create:10,update:10"));
+      List<Integer> concurrencyLevels = new ArrayList<>();
+      for (String next : System.getProperty("bench.concurrency", "1,4,16").split(",")) {
+         concurrencyLevels.add(Integer.parseInt(next.trim()));
+      }
+
+      EmbeddedJettyServer server = EmbeddedJettyServer.fromSystemProperties();
+      server.setPort(0);
+      server.start();
+      try {
+         ServerBenchmark benchmark = new ServerBenchmark(patients, families, mix);
+         benchmark.connect(server.getBaseUrl(), concurrencyLevels.stream().max(Integer::compare).orElse(1));
+         benchmark.preload();
+         for (int nextLevel : concurrencyLevels) {
+            benchmark.run(nextLevel, warmupSeconds, false);
+            Map<Operation, Histogram> results = benchmark.run(nextLevel, durationSeconds, true);
+            printResults(nextLevel, durationSeconds, results);
+         }
+      } finally {
+         server.stop();
+      }
+   }
+
+   /**
+    * Creates the client, sizing its connection pool for the highest concurrency level
+    */
+   public void connect(String theBaseUrl, int theMaxConcurrency) {
+      myCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+      myCtx.getRestfulClientFactory().setPoolMaxTotal(theMaxConcurrency);
+      myCtx.getRestfulClientFactory().setPoolMaxPerRoute(theMaxConcurrency);
+      myClient = myCtx.newRestfulGenericClient(theBaseUrl);
+   }
+
+   /**
+    * Loads the synthetic dataset through the client, then reads back a sample
+    * of the created resources so that vread operations have real version IDs
+    */
+   public void preload() throws InterruptedException {
+      long start = System.currentTimeMillis();
+      ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+      for (int i = 0; i < myPatientCount; i++) {
+         executor.submit(() -> myIds.add(myClient.create().resource(newPatient()).execute().getId().getIdPart()));
+      }
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.HOURS);
+
+      int sampleSize = Math.min(1000, myIds.size());
+      for (int i = 0; i < sampleSize; i++) {
+         Patient patient = myClient.read().resource(Patient.class).withId(myIds.get(i)).execute();
+         myVersionedIds.add(patient.getIdElement().toUnqualified());
+      }
+      ourLog.info("Preloaded {} patients in {}ms", myIds.size(), System.currentTimeMillis() - start);
+   }
+
+   /**
+    * Runs the operation mix with a fixed number of workers for the given time
+    *
+    * @param theRecord If false, the run is a warmup and no latencies are recorded
+    * @return Latencies in microseconds for each operation
+    */
+   public Map<Operation, Histogram> run(int theConcurrency, int theSeconds, boolean theRecord) throws InterruptedException {
+      Map<Operation, Histogram> retVal = new EnumMap<>(Operation.class);
+      for (Operation next : Operation.values()) {
+         Histogram histogram = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(1), 3);
+         histogram.setAutoResize(true);
+         retVal.put(next, histogram);
+      }
+      Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+      for (Operation next : Operation.values()) {
+         errors.put(next, new AtomicLong());
+      }
+
+      long endNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(theSeconds);
+      ExecutorService executor = Executors.newFixedThreadPool(theConcurrency);
+      for (int i = 0; i < theConcurrency; i++) {
+         executor.submit(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < endNanos) {
+               Operation operation = chooseOperation(random);
+               long start = System.nanoTime();
+               try {
+                  execute(operation, random);
+               } catch (Exception e) {
+                  errors.get(operation).incrementAndGet();
+                  ourLog.debug("Failed to execute {}", operation, e);
+                  continue;
+               }
+               if (theRecord) {
+                  retVal.get(operation).recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+               }
+            }
+         });
+      }
+      executor.shutdown();
+      executor.awaitTermination(theSeconds + 60, TimeUnit.SECONDS);
+
+      for (Map.Entry<Operation, AtomicLong> next : errors.entrySet()) {
+         if (next.getValue().get() > 0) {
+            ourLog.warn("{} {} operations failed at concurrency {}", next.getValue().get(), next.getKey(), theConcurrency);
+         }
+      }
+      return retVal;
+   }
+
+   private void execute(Operation theOperation, ThreadLocalRandom theRandom) {
+      switch (theOperation) {
+         case READ:
+            myClient.read().resource(Patient.class).withId(randomId(theRandom)).execute();
+            break;
+         case VREAD:
+            IdType versionedId = myVersionedIds.get(theRandom.nextInt(myVersionedIds.size()));
+            myClient.read().resource(Patient.class).withUrl(versionedId).execute();
+            break;
+         case SEARCH:
+            myClient
+               .search()
+               .forResource(Patient.class)
+               .where(Patient.FAMILY.matches().value(familyName(theRandom.nextInt(myFamilyCount))))
+               .returnBundle(Bundle.class)
+               .execute();
+            break;
+         case CREATE:
+            myIds.add(myClient.create().resource(newPatient()).execute().getId().getIdPart());
+            break;
+         case UPDATE:
+            Patient patient = newPatient();
+            patient.setId(randomId(theRandom));
+            myClient.update().resource(patient).execute();
+            break;
+      }
+   }
+
+   private Operation chooseOperation(ThreadLocalRandom theRandom) {
+      int total = 0;
+      for (int next : myMix.values()) {
+         total += next;
+      }
+      int choice = theRandom.nextInt(total);
+      for (Map.Entry<Operation, Integer> next : myMix.entrySet()) {
+         choice -= next.getValue();
+         if (choice < 0) {
+            return next.getKey();
+         }
+      }
+      throw new IllegalStateException();
+   }
+
+   private String randomId(ThreadLocalRandom theRandom) {
+      return myIds.get(theRandom.nextInt(myIds.size()));
+   }
+
+   private Patient newPatient() {
+      long mrn = myNextMrn.incrementAndGet();
+      Patient retVal = new Patient();
+      retVal.addIdentifier().setSystem("urn:hapitest:mrns").setValue(String.format("%08d", mrn));
+      retVal.addName().setFamily(familyName((int) (mrn % myFamilyCount))).addGiven("Given" + mrn);
+      retVal.setGender(mrn % 2 == 0 ? AdministrativeGender.FEMALE : AdministrativeGender.MALE);
+      retVal.setBirthDateElement(new DateType(1930 + (int) (mrn % 90), (int) (mrn % 12), 1 + (int) (mrn % 28)));
+      return retVal;
+   }
+
+   private static String familyName(int theIndex) {
+      return "Family" + theIndex;
+   }
+
+   private static Map<Operation, Integer> parseMix(String theMix) {
+      Map<Operation, Integer> retVal = new EnumMap<>(Operation.class);
+      for (String next : theMix.split(",")) {
+         String[] parts = next.split(":");
+         int weight = Integer.parseInt(parts[1].trim());
+         if (weight > 0) {
+            retVal.put(Operation.valueOf(parts[0].trim().toUpperCase()), weight);
+         }
+      }
+      if (retVal.isEmpty()) {
+         throw new IllegalArgumentException("Operation mix must contain at least one operation: " + theMix);
+      }
+      return retVal;
+   }
+
+   private static void printResults(int theConcurrency, int theSeconds, Map<Operation, Histogram> theResults) {
+      System.out.println();
+      System.out.println("Concurrency " + theConcurrency);
+      System.out.println(String.format("%-8s %10s %10s %10s %10s %10s %10s %10s", "op", "count", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+      long totalCount = 0;
+      for (Map.Entry<Operation, Histogram> next : theResults.entrySet()) {
+         Histogram histogram = next.getValue();
+         if (histogram.getTotalCount() == 0) {
+            continue;
+         }
+         totalCount += histogram.getTotalCount();
+         System.out.println(String.format("%-8s %10d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f",
+            next.getKey().name().toLowerCase(),
+            histogram.getTotalCount(),
+            histogram.getTotalCount() / (double) theSeconds,
+            histogram.getValueAtPercentile(50) / 1000.0,
+            histogram.getValueAtPercentile(90) / 1000.0,
+            histogram.getValueAtPercentile(99) / 1000.0,
+            histogram.getValueAtPercentile(99.9) / 1000.0,
+            histogram.getMaxValue() / 1000.0));
+      }
+      System.out.println(String.format("%-8s %10d %10.1f", "total", totalCount, totalCount / (double) theSeconds));
+   }
+
+}
@@ -0,0 +1,190 @@
+package ca.uhn.example.benchmark;
+
+import ca.uhn.example.store.ChangeLog;
+import ca.uhn.example.subscription.SubscriptionDispatcher;
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Patient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares delivering Subscription notifications one request per change
+ * with the batched, coalesced delivery of {@link SubscriptionDispatcher},
+ * against a local HTTP stub receiver which takes a fixed time to answer each
+ * request, as a real subscriber would.
+ * <p>
+ * A writer hands the dispatcher new versions of random Patients at a fixed
+ * rate, as the server does for a Subscription matching every Patient. Each
+ * version carries a token in the family name, so the receiver can tell how
+ * long it took to arrive. For each way, the notifications handed over, the
+ * requests the receiver got, the versions delivered, those replaced by a
+ * newer version while queued, and the delivery latency of the versions
+ * delivered are printed.
+ * </p>
+ * <p>
+ * The benchmark is configured with system properties (defaults in brackets):
+ * </p>
+ * <ul>
+ * <li><code>bench.patients</code> - Number of Patients updated (1000)</li>
+ * <li><code>bench.updatesPerSecond</code> - Rate of updates (500)</li>
+ * <li><code>bench.durationSeconds</code> - Time each way runs for (10)</li>
+ * <li><code>bench.receiverMillis</code> - Time the receiver takes to answer each request (10)</li>
+ * </ul>
+ */
+public class SubscriptionBenchmark {
+
+   private static final String TOKEN_PREFIX = "Update";
+
+   private final FhirContext myCtx = FhirContext.forDstu3();
+   private final int myPatients;
+   private final int myUpdatesPerSecond;
+   private final int myDurationSeconds;
+   private final Map<String, Long> myTokenToIssuedNanos = new ConcurrentHashMap<>();
+   private final AtomicLong myNextToken = new AtomicLong();
+   private final AtomicLong myRequests = new AtomicLong();
+   private volatile Histogram myLatencies = new ConcurrentHistogram(3);
+
+   public SubscriptionBenchmark(int thePatients, int theUpdatesPerSecond, int theDurationSeconds) {
+      myPatients = thePatients;
+      myUpdatesPerSecond = theUpdatesPerSecond;
+      myDurationSeconds = theDurationSeconds;
+   }
+
+   public static void main(String[] theArgs) throws Exception {
+      SubscriptionBenchmark benchmark = new SubscriptionBenchmark(
+         Integer.getInteger("bench.patients", 1000),
+         Integer.getInteger("bench.updatesPerSecond", 500),
+         Integer.getInteger("bench.durationSeconds", 10));
+      int receiverMillis = Integer.getInteger("bench.receiverMillis", 10);
+
+      HttpServer receiver = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      receiver.createContext("/notify", theExchange -> {
+         try {
+            benchmark.received(readFully(theExchange.getRequestBody()));
+            Thread.sleep(receiverMillis);
+            theExchange.sendResponseHeaders(200, -1);
+         } catch (Exception e) {
+            theExchange.sendResponseHeaders(500, -1);
+         } finally {
+            theExchange.close();
+         }
+      });
+      receiver.start();
+      String endpoint = "http://127.0.0.1:" + receiver.getAddress().getPort() + "/notify";
+      try {
+         System.out.println("Patients: " + benchmark.myPatients + ", updates/s: " + benchmark.myUpdatesPerSecond + ", seconds: " + benchmark.myDurationSeconds + ", receiver ms: " + receiverMillis);
+         System.out.println();
+         System.out.println(String.format("%-16s %10s %10s %10s %10s %10s %10s %10s", "delivery", "changes", "requests", "delivered", "coalesced", "p50 ms", "p99 ms", "max ms"));
+
+         // Warm up, then measure each way
+         for (int pass = 0; pass < 2; pass++) {
+            for (boolean batched : new boolean[]{false, true}) {
+               String name = batched ? "batched" : "one per change";
+               SubscriptionDispatcher dispatcher = batched
+                  ? new SubscriptionDispatcher(benchmark.myCtx, benchmark.myPatients)
+                  : new SubscriptionDispatcher(benchmark.myCtx, benchmark.myPatients, 1, 0, 1000, 60000);
+               long changes;
+               try {
+                  changes = benchmark.run(dispatcher, new SubscriptionDispatcher.Channel(endpoint, "application/fhir+json", Collections.emptyList()));
+               } finally {
+                  dispatcher.close();
+               }
+               if (pass == 1) {
+                  Histogram latencies = benchmark.myLatencies;
+                  System.out.println(String.format("%-16s %10d %10d %10d %10d %10d %10d %10d",
+                     name,
+                     changes,
+                     benchmark.myRequests.get(),
+                     dispatcher.getDelivered(),
+                     dispatcher.getCoalesced(),
+                     latencies.getValueAtPercentile(50),
+                     latencies.getValueAtPercentile(99),
+                     latencies.getMaxValue()));
+               }
+            }
+         }
+      } finally {
+         receiver.stop(0);
+      }
+   }
+
+   /**
+    * Runs the writer for the benchmark's duration, then waits for the
+    * dispatcher to deliver everything queued
+    *
+    * @return The number of notifications handed to the dispatcher
+    */
+   private long run(SubscriptionDispatcher theDispatcher, SubscriptionDispatcher.Channel theChannel) throws InterruptedException {
+      myLatencies = new ConcurrentHistogram(3);
+      myRequests.set(0);
+      long[] versions = new long[myPatients];
+      long retVal = 0;
+
+      long start = System.nanoTime();
+      Random random = new Random(0);
+      long intervalNanos = 1000000000L / myUpdatesPerSecond;
+      for (long next = start; next - start < myDurationSeconds * 1000000000L; next += intervalNanos) {
+         long sleep = next - System.nanoTime();
+         if (sleep > 0) {
+            Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+         }
+         int index = random.nextInt(myPatients);
+         String token = TOKEN_PREFIX + myNextToken.incrementAndGet();
+         Patient patient = new Patient();
+         patient.setId(new IdType("Patient", Long.toString(index), Long.toString(versions[index]++)));
+         patient.addName().setFamily(token);
+         myTokenToIssuedNanos.put(token, System.nanoTime());
+         theDispatcher.enqueue(theChannel, "http://localhost/fhir", patient, versions[index] == 1 ? ChangeLog.ChangeType.CREATE : ChangeLog.ChangeType.UPDATE);
+         retVal++;
+      }
+
+      // Wait for the queue to drain, but not for a receiver which can't keep up
+      long deadline = System.currentTimeMillis() + 60000;
+      while (theDispatcher.getDelivered() + theDispatcher.getCoalesced() + theDispatcher.getDropped() < retVal && System.currentTimeMillis() < deadline) {
+         Thread.sleep(50);
+      }
+      myTokenToIssuedNanos.clear();
+      return retVal;
+   }
+
+   /**
+    * Records the delivery latency of each version in a notification
+    */
+   private void received(byte[] theBody) {
+      myRequests.incrementAndGet();
+      Bundle bundle = myCtx.newJsonParser().parseResource(Bundle.class, new String(theBody, StandardCharsets.UTF_8));
+      for (BundleEntryComponent next : bundle.getEntry()) {
+         if (next.getResource() instanceof Patient) {
+            Long issued = myTokenToIssuedNanos.remove(((Patient) next.getResource()).getNameFirstRep().getFamily());
+            if (issued != null) {
+               myLatencies.recordValue(Math.max(0, (System.nanoTime() - issued) / 1000000));
+            }
+         }
+      }
+   }
+
+   private static byte[] readFully(InputStream theInputStream) throws IOException {
+      ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      for (int read; (read = theInputStream.read(buffer)) != -1; ) {
+         retVal.write(buffer, 0, read);
+      }
+      return retVal.toByteArray();
+   }
+
+}
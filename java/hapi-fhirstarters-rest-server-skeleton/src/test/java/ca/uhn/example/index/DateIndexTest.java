@@ -0,0 +1,112 @@
+package ca.uhn.example.index;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DateIndexTest {
+
+   private static final DateIndex.EntryFilter ourAll = (theStart, theEnd) -> true;
+
+   @Test
+   public void testPutReplacesTheDateOfAResource() {
+      DateIndex index = new DateIndex();
+      index.put(1, 100, 199);
+      index.put(1, 300, 399);
+      assertEquals(1, index.size());
+      assertEquals(300, index.get(1).getStart());
+      assertEquals(399, index.get(1).getEnd());
+      assertEquals(ids(), find(index, 100, 199, false));
+      assertEquals(ids(1), find(index, 300, 300, false));
+   }
+
+   @Test
+   public void testRemove() {
+      DateIndex index = new DateIndex();
+      index.put(1, 100, 199);
+      index.put(2, 100, 199);
+      index.remove(1);
+      index.remove(3);
+      assertEquals(1, index.size());
+      assertNull(index.get(1));
+      assertEquals(ids(2), find(index, Long.MIN_VALUE, Long.MAX_VALUE, false));
+   }
+
+   @Test
+   public void testMaxSpanIsTheLongestDate() {
+      DateIndex index = new DateIndex();
+      assertEquals(0, index.getMaxSpan());
+      index.put(1, 100, 199);
+      assertEquals(99, index.getMaxSpan());
+      index.put(2, 100, 1099);
+      index.put(3, 100, 149);
+      assertEquals(999, index.getMaxSpan());
+   }
+
+   @Test
+   public void testFindIsInclusiveAndOrderedByStartThenId() {
+      DateIndex index = new DateIndex();
+      index.put(3, 200, 299);
+      index.put(1, 300, 399);
+      index.put(2, 200, 299);
+      index.put(4, 100, 199);
+      assertEquals(ids(4, 2, 3, 1), find(index, 100, 300, false));
+      assertEquals(ids(1, 3, 2, 4), find(index, 100, 300, true));
+      assertEquals(ids(2, 3), find(index, 101, 299, false));
+      assertEquals(ids(), find(index, 301, 400, false));
+      assertEquals(ids(), find(index, 300, 200, false));
+   }
+
+   @Test
+   public void testFindKeepsOnlyWhatTheFilterAccepts() {
+      DateIndex index = new DateIndex();
+      index.put(1, 100, 199);
+      index.put(2, 100, 999);
+      List<Long> retVal = new ArrayList<>();
+      for (DateIndex.Entry next : index.find(Long.MIN_VALUE, Long.MAX_VALUE, false, (theStart, theEnd) -> theEnd > 500)) {
+         retVal.add(next.getId());
+      }
+      assertEquals(ids(2), retVal);
+   }
+
+   @Test
+   public void testCountStopsAtTheLimit() {
+      DateIndex index = new DateIndex();
+      for (int i = 0; i < 10; i++) {
+         index.put(i, i * 100, i * 100 + 99);
+      }
+      assertEquals(10, index.count(Long.MIN_VALUE, Long.MAX_VALUE, 100));
+      assertEquals(3, index.count(Long.MIN_VALUE, Long.MAX_VALUE, 3));
+      assertEquals(4, index.count(200, 500, 100));
+      assertEquals(0, index.count(500, 200, 100));
+   }
+
+   @Test
+   public void testExtremeStarts() {
+      DateIndex index = new DateIndex();
+      index.put(1, Long.MIN_VALUE, Long.MIN_VALUE);
+      index.put(2, Long.MAX_VALUE, Long.MAX_VALUE);
+      assertEquals(ids(1, 2), find(index, Long.MIN_VALUE, Long.MAX_VALUE, false));
+      assertEquals(1, index.count(Long.MIN_VALUE, Long.MIN_VALUE, 10));
+   }
+
+   private static List<Long> find(DateIndex theIndex, long theFrom, long theTo, boolean theDescending) {
+      List<Long> retVal = new ArrayList<>();
+      for (DateIndex.Entry next : theIndex.find(theFrom, theTo, theDescending, ourAll)) {
+         retVal.add(next.getId());
+      }
+      return retVal;
+   }
+
+   private static List<Long> ids(long... theIds) {
+      List<Long> retVal = new ArrayList<>();
+      Arrays.stream(theIds).forEach(retVal::add);
+      return retVal;
+   }
+
+}
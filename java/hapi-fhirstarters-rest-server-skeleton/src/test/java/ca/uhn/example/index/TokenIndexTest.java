@@ -0,0 +1,60 @@
+package ca.uhn.example.index;
+
+import ca.uhn.example.index.TokenIndex.Token;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenIndexTest {
+
+   @Test
+   public void testFindWithAndWithoutSystem() {
+      TokenIndex index = new TokenIndex();
+      index.put(1, Arrays.asList(new Token("a", "123"), new Token(null, "456")));
+      index.put(2, Collections.singletonList(new Token("b", "123")));
+
+      assertArrayEquals(new long[]{1}, index.find("a", "123"));
+      assertArrayEquals(new long[]{2}, index.find("b", "123"));
+      assertArrayEquals(new long[]{1, 2}, index.find(null, "123"));
+      assertArrayEquals(new long[]{1}, index.find("", "456"));
+      assertArrayEquals(new long[0], index.find("a", "456"));
+      assertEquals(2, index.count(null, "123"));
+   }
+
+   @Test
+   public void testDroppingATokenKeepsAValueStillHeldUnderAnotherSystem() {
+      TokenIndex index = new TokenIndex();
+      index.put(1, Arrays.asList(new Token("a", "123"), new Token("b", "123")));
+      index.put(1, Collections.singletonList(new Token("b", "123")));
+
+      assertArrayEquals(new long[0], index.find("a", "123"));
+      assertArrayEquals(new long[]{1}, index.find("b", "123"));
+      assertArrayEquals(new long[]{1}, index.find(null, "123"));
+      assertEquals(1, index.count(null, "123"));
+      assertTrue(index.contains(1, null, "123"));
+
+      // Once no token has the value, it is dropped too
+      index.put(1, Collections.singletonList(new Token("b", "456")));
+      assertArrayEquals(new long[0], index.find(null, "123"));
+      assertEquals(0, index.count(null, "123"));
+   }
+
+   @Test
+   public void testRemove() {
+      TokenIndex index = new TokenIndex();
+      index.put(1, Arrays.asList(new Token("a", "123"), new Token("b", "123")));
+      index.remove(1);
+
+      assertArrayEquals(new long[0], index.find(null, "123"));
+      assertArrayEquals(new long[0], index.find("b", "123"));
+      assertFalse(index.contains(1, null, "123"));
+      assertEquals(0, index.size());
+   }
+
+}
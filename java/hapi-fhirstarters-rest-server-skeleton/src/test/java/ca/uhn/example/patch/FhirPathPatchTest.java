@@ -0,0 +1,233 @@
+package ca.uhn.example.patch;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.dstu3.model.CodeType;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.HumanName;
+import org.hl7.fhir.dstu3.model.IntegerType;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.dstu3.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.Type;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+public class FhirPathPatchTest {
+
+   private static final FhirContext ourCtx = FhirContext.forDstu3();
+
+   @Test
+   public void testAdd() {
+      Parameters patch = new Parameters();
+      addOperation(patch, "add", "Patient").addPart().setName("name").setValue(new StringType("name"));
+      patch.getParameterFirstRep().addPart().setName("value").setValue(new HumanName().setFamily("Brown"));
+      assertEquals(Arrays.asList("Smith", "Jones", "Brown"), getFamilies(apply(newPatient(), patch)));
+
+      patch = new Parameters();
+      addOperation(patch, "add", "Patient.name[1]").addPart().setName("name").setValue(new StringType("given"));
+      patch.getParameterFirstRep().addPart().setName("value").setValue(new StringType("Jim"));
+      assertEquals("Jack Jim", apply(newPatient(), patch).getName().get(1).getGivenAsSingleString());
+
+      // An element which is not a datatype is given with a part for each child
+      patch = new Parameters();
+      ParametersParameterComponent operation = addOperation(patch, "add", "Patient");
+      operation.addPart().setName("name").setValue(new StringType("contact"));
+      ParametersParameterComponent value = operation.addPart().setName("value");
+      value.addPart().setName("name").setValue(new HumanName().setFamily("Brown"));
+      value.addPart().setName("gender").setValue(new CodeType("female"));
+      Patient patient = apply(newPatient(), patch);
+      assertEquals("Brown", patient.getContactFirstRep().getName().getFamily());
+      assertEquals(AdministrativeGender.FEMALE, patient.getContactFirstRep().getGender());
+
+      // A value of the wrong type
+      patch = new Parameters();
+      addOperation(patch, "add", "Patient").addPart().setName("name").setValue(new StringType("name"));
+      patch.getParameterFirstRep().addPart().setName("value").setValue(new StringType("Brown"));
+      assertInvalid(patch);
+   }
+
+   @Test
+   public void testInsert() {
+      assertEquals(Arrays.asList("Brown", "Smith", "Jones"), getFamilies(apply(newPatient(), newInsert(0))));
+      assertEquals(Arrays.asList("Smith", "Brown", "Jones"), getFamilies(apply(newPatient(), newInsert(1))));
+      assertEquals(Arrays.asList("Smith", "Jones", "Brown"), getFamilies(apply(newPatient(), newInsert(2))));
+      assertInvalid(newInsert(3));
+
+      Parameters patch = new Parameters();
+      addOperation(patch, "insert", "Patient.name", "value", new HumanName().setFamily("Brown"));
+      assertInvalid(patch);
+   }
+
+   @Test
+   public void testDelete() {
+      assertEquals(Arrays.asList("Smith"), getFamilies(apply(newPatient(), newOperation("delete", "Patient.name[1]"))));
+      assertEquals(Arrays.asList("Jones"), getFamilies(apply(newPatient(), newOperation("delete", "Patient.name.where(family = 'Smith')"))));
+      assertEquals(Arrays.asList("Jones"), getFamilies(apply(newPatient(), newOperation("delete", "Patient.name.first()"))));
+      assertFalse(apply(newPatient(), newOperation("delete", "Patient.gender")).hasGender());
+      assertEquals("", apply(newPatient(), newOperation("delete", "Patient.name[0].given[0]")).getName().get(0).getGivenAsSingleString());
+
+      // Deleting nothing does nothing
+      assertEquals(Arrays.asList("Smith", "Jones"), getFamilies(apply(newPatient(), newOperation("delete", "Patient.name.where(family = 'Brown')"))));
+
+      // A path must select at most one element
+      assertInvalid(newOperation("delete", "Patient.name"));
+   }
+
+   @Test
+   public void testReplace() {
+      Patient patient = apply(newPatient(), newOperation("replace", "Patient.name[1].family", "value", new StringType("Brown")));
+      assertEquals(Arrays.asList("Smith", "Brown"), getFamilies(patient));
+
+      patient = apply(newPatient(), newOperation("replace", "Patient.name.where(family = 'Smith')", "value", new HumanName().setFamily("Brown")));
+      assertEquals(Arrays.asList("Brown", "Jones"), getFamilies(patient));
+
+      patient = apply(newPatient(), newOperation("replace", "Patient.gender", "value", new CodeType("female")));
+      assertEquals(AdministrativeGender.FEMALE, patient.getGender());
+
+      assertInvalid(newOperation("replace", "Patient.birthDate", "value", new StringType("1970-06-15")));
+      assertInvalid(newOperation("replace", "Patient.name[0].family"));
+   }
+
+   @Test
+   public void testMove() {
+      Parameters patch = newOperation("move", "Patient.name", "source", new IntegerType(1));
+      patch.getParameterFirstRep().addPart().setName("destination").setValue(new IntegerType(0));
+      assertEquals(Arrays.asList("Jones", "Smith"), getFamilies(apply(newPatient(), patch)));
+
+      patch = newOperation("move", "Patient.name", "source", new IntegerType(0));
+      patch.getParameterFirstRep().addPart().setName("destination").setValue(new IntegerType(2));
+      assertInvalid(patch);
+
+      assertInvalid(newOperation("move", "Patient.name", "source", new IntegerType(0)));
+   }
+
+   @Test
+   public void testIdAndMetaCantBePatched() {
+      assertInvalid(newOperation("replace", "Patient.id", "value", new StringType("2")));
+      assertInvalid(newOperation("delete", "Patient.meta"));
+      assertInvalid(newOperation("replace", "Patient.meta.versionId", "value", new StringType("3")));
+
+      Parameters patch = new Parameters();
+      addOperation(patch, "add", "Patient").addPart().setName("name").setValue(new StringType("id"));
+      patch.getParameterFirstRep().addPart().setName("value").setValue(new StringType("2"));
+      assertInvalid(patch);
+   }
+
+   @Test
+   public void testInvalidPatch() {
+      assertInvalid(newOperation("frobnicate", "Patient.name"));
+      assertInvalid(newOperation("delete", "Patient.name.where("));
+      assertInvalid(newOperation("delete", "Patient.first()"));
+
+      Parameters patch = new Parameters();
+      patch.addParameter().setName("unknown");
+      assertInvalid(patch);
+
+      patch = new Parameters();
+      patch.addParameter().setName("operation").addPart().setName("type").setValue(new CodeType("delete"));
+      assertInvalid(patch);
+   }
+
+   @Test
+   public void testResourceIsNotChanged() {
+      Patient original = newPatient();
+      Patient patient = apply(original, newOperation("replace", "Patient.name[0].family", "value", new StringType("Brown")));
+      assertNotSame(original, patient);
+      assertEquals(Arrays.asList("Smith", "Jones"), getFamilies(original));
+   }
+
+   @Test
+   public void testCanBeAppliedAgainToANewerVersion() {
+      FhirPathPatch patch = new FhirPathPatch(ourCtx, newInsert(0));
+      assertEquals(Arrays.asList("Brown", "Smith", "Jones"), getFamilies((Patient) patch.apply(newPatient())));
+
+      Patient newer = newPatient();
+      newer.getName().remove(0);
+      Patient patched = (Patient) patch.apply(newer);
+      assertEquals(Arrays.asList("Brown", "Jones"), getFamilies(patched));
+
+      // The value is copied each time, so the versions don't share it
+      assertNotSame(((Patient) patch.apply(newPatient())).getName().get(0), patched.getName().get(0));
+   }
+
+   @Test
+   public void testChangedElements() {
+      Parameters patch = newOperation("replace", "Patient.name[0].family", "value", new StringType("Brown"));
+      addOperation(patch, "delete", "Patient.gender");
+      addOperation(patch, "add", "Patient.address[0]").addPart().setName("name").setValue(new StringType("city"));
+      patch.getParameter().get(2).addPart().setName("value").setValue(new StringType("Toronto"));
+      assertEquals(Arrays.asList("name", "gender", "address"), new ArrayList<>(new FhirPathPatch(ourCtx, patch).getChangedElements()));
+   }
+
+   private static Parameters newInsert(int theIndex) {
+      Parameters retVal = newOperation("insert", "Patient.name", "value", new HumanName().setFamily("Brown"));
+      retVal.getParameterFirstRep().addPart().setName("index").setValue(new IntegerType(theIndex));
+      return retVal;
+   }
+
+   private static Parameters newOperation(String theType, String thePath) {
+      Parameters retVal = new Parameters();
+      addOperation(retVal, theType, thePath);
+      return retVal;
+   }
+
+   private static Parameters newOperation(String theType, String thePath, String thePartName, Type thePartValue) {
+      Parameters retVal = new Parameters();
+      addOperation(retVal, theType, thePath, thePartName, thePartValue);
+      return retVal;
+   }
+
+   private static ParametersParameterComponent addOperation(Parameters thePatch, String theType, String thePath, String thePartName, Type thePartValue) {
+      ParametersParameterComponent retVal = addOperation(thePatch, theType, thePath);
+      retVal.addPart().setName(thePartName).setValue(thePartValue);
+      return retVal;
+   }
+
+   private static ParametersParameterComponent addOperation(Parameters thePatch, String theType, String thePath) {
+      ParametersParameterComponent retVal = thePatch.addParameter().setName("operation");
+      retVal.addPart().setName("type").setValue(new CodeType(theType));
+      retVal.addPart().setName("path").setValue(new StringType(thePath));
+      return retVal;
+   }
+
+   private static Patient apply(Patient thePatient, Parameters thePatch) {
+      return (Patient) new FhirPathPatch(ourCtx, thePatch).apply(thePatient);
+   }
+
+   private static void assertInvalid(Parameters thePatch) {
+      try {
+         apply(newPatient(), thePatch);
+         fail(ourCtx.newJsonParser().encodeResourceToString(thePatch));
+      } catch (InvalidRequestException e) {
+         // Expected
+      }
+   }
+
+   private static List<String> getFamilies(Patient thePatient) {
+      List<String> retVal = new ArrayList<>();
+      for (HumanName next : thePatient.getName()) {
+         retVal.add(next.getFamily());
+      }
+      return retVal;
+   }
+
+   private static Patient newPatient() {
+      Patient retVal = new Patient();
+      retVal.setId("Patient/1/_history/2");
+      retVal.addName().setFamily("Smith").addGiven("John");
+      retVal.addName().setFamily("Jones").addGiven("Jack");
+      retVal.setGender(AdministrativeGender.MALE);
+      return retVal;
+   }
+
+}
@@ -0,0 +1,211 @@
+package ca.uhn.example.patch;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.HumanName;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+public class JsonPatchTest {
+
+   private static final FhirContext ourCtx = FhirContext.forDstu3();
+
+   @Test
+   public void testAdd() {
+      Patient patient = apply(newPatient(), "[{'op':'add', 'path':'/name/-', 'value':{'family':'Brown'}}]");
+      assertEquals(Arrays.asList("Smith", "Jones", "Brown"), getFamilies(patient));
+
+      patient = apply(newPatient(), "[{'op':'add', 'path':'/name/0', 'value':{'family':'Brown'}}]");
+      assertEquals(Arrays.asList("Brown", "Smith", "Jones"), getFamilies(patient));
+
+      patient = apply(newPatient(), "[{'op':'add', 'path':'/name/2', 'value':{'family':'Brown'}}]");
+      assertEquals(Arrays.asList("Smith", "Jones", "Brown"), getFamilies(patient));
+
+      patient = apply(newPatient(), "[{'op':'add', 'path':'/name/1/given/-', 'value':'Jim'}]");
+      assertEquals("Jack Jim", patient.getName().get(1).getGivenAsSingleString());
+
+      patient = apply(newPatient(), "[{'op':'add', 'path':'/birthDate', 'value':'1970-06-15'}]");
+      assertEquals("1970-06-15", patient.getBirthDateElement().getValueAsString());
+
+      // A whole list is given as an array
+      patient = apply(newPatient(), "[{'op':'add', 'path':'/name', 'value':[{'family':'Brown'}]}]");
+      assertEquals(Arrays.asList("Brown"), getFamilies(patient));
+
+      assertInvalid("[{'op':'add', 'path':'/name/3', 'value':{'family':'Brown'}}]");
+      assertInvalid("[{'op':'add', 'path':'/name', 'value':{'family':'Brown'}}]");
+      assertInvalid("[{'op':'add', 'path':'/birthDate', 'value':'not a date'}]");
+      assertInvalid("[{'op':'add', 'path':'/unknown', 'value':'x'}]");
+   }
+
+   @Test
+   public void testReplace() {
+      Patient patient = apply(newPatient(), "[{'op':'replace', 'path':'/name/1/family', 'value':'Brown'}]");
+      assertEquals(Arrays.asList("Smith", "Brown"), getFamilies(patient));
+
+      patient = apply(newPatient(), "[{'op':'replace', 'path':'/name/0', 'value':{'family':'Brown'}}]");
+      assertEquals(Arrays.asList("Brown", "Jones"), getFamilies(patient));
+
+      patient = apply(newPatient(), "[{'op':'replace', 'path':'/gender', 'value':'female'}]");
+      assertEquals(AdministrativeGender.FEMALE, patient.getGender());
+
+      assertInvalid("[{'op':'replace', 'path':'/birthDate', 'value':'1970-06-15'}]");
+      assertInvalid("[{'op':'replace', 'path':'/name/2', 'value':{'family':'Brown'}}]");
+      assertInvalid("[{'op':'replace', 'path':'/name/-', 'value':{'family':'Brown'}}]");
+   }
+
+   @Test
+   public void testRemove() {
+      Patient patient = apply(newPatient(), "[{'op':'remove', 'path':'/name/0'}]");
+      assertEquals(Arrays.asList("Jones"), getFamilies(patient));
+
+      patient = apply(newPatient(), "[{'op':'remove', 'path':'/gender'}]");
+      assertFalse(patient.hasGender());
+
+      patient = apply(newPatient(), "[{'op':'remove', 'path':'/name'}]");
+      assertFalse(patient.hasName());
+
+      assertInvalid("[{'op':'remove', 'path':'/name/2'}]");
+      assertInvalid("[{'op':'remove', 'path':'/name/-'}]");
+      assertInvalid("[{'op':'remove', 'path':'/birthDate'}]");
+   }
+
+   @Test
+   public void testMove() {
+      Patient patient = apply(newPatient(), "[{'op':'move', 'from':'/name/1', 'path':'/name/0'}]");
+      assertEquals(Arrays.asList("Jones", "Smith"), getFamilies(patient));
+
+      patient = apply(newPatient(), "[{'op':'move', 'from':'/name/0/given/0', 'path':'/name/1/given/-'}]");
+      assertFalse(patient.getName().get(0).hasGiven());
+      assertEquals("Jack John", patient.getName().get(1).getGivenAsSingleString());
+
+      assertInvalid("[{'op':'move', 'from':'/name/0', 'path':'/name/0/given/-'}]");
+      assertInvalid("[{'op':'move', 'from':'/name/2', 'path':'/name/0'}]");
+   }
+
+   @Test
+   public void testCopy() {
+      Patient patient = apply(newPatient(), "[{'op':'copy', 'from':'/name/0', 'path':'/name/-'}, {'op':'replace', 'path':'/name/2/family', 'value':'Brown'}]");
+      assertEquals(Arrays.asList("Smith", "Jones", "Brown"), getFamilies(patient));
+      assertNotSame(patient.getName().get(0).getGiven().get(0), patient.getName().get(2).getGiven().get(0));
+
+      patient = apply(newPatient(), "[{'op':'copy', 'from':'/name/1/family', 'path':'/name/0/family'}]");
+      assertEquals(Arrays.asList("Jones", "Jones"), getFamilies(patient));
+
+      assertInvalid("[{'op':'copy', 'from':'/birthDate', 'path':'/name/0/family'}]");
+   }
+
+   @Test
+   public void testTest() {
+      Patient patient = apply(newPatient(), "[{'op':'test', 'path':'/name/0/family', 'value':'Smith'}, {'op':'replace', 'path':'/name/0/family', 'value':'Brown'}]");
+      assertEquals(Arrays.asList("Brown", "Jones"), getFamilies(patient));
+
+      apply(newPatient(), "[{'op':'test', 'path':'/name/1', 'value':{'family':'Jones', 'given':['Jack']}}]");
+      apply(newPatient(), "[{'op':'test', 'path':'/gender', 'value':'male'}]");
+
+      try {
+         apply(newPatient(), "[{'op':'test', 'path':'/name/0/family', 'value':'Jones'}, {'op':'replace', 'path':'/name/0/family', 'value':'Brown'}]");
+         fail();
+      } catch (UnprocessableEntityException e) {
+         assertEquals(422, e.getStatusCode());
+         assertEquals("Test failed at /name/0/family", e.getMessage());
+      }
+      try {
+         apply(newPatient(), "[{'op':'test', 'path':'/name/1', 'value':{'family':'Jones'}}]");
+         fail();
+      } catch (UnprocessableEntityException e) {
+         // The given name is missing from the value
+      }
+   }
+
+   @Test
+   public void testIdAndMetaCantBePatched() {
+      assertInvalid("[{'op':'replace', 'path':'/id', 'value':'2'}]");
+      assertInvalid("[{'op':'add', 'path':'/meta', 'value':{'versionId':'3'}}]");
+      assertInvalid("[{'op':'replace', 'path':'/meta/versionId', 'value':'3'}]");
+      assertInvalid("[{'op':'remove', 'path':'/resourceType'}]");
+      assertInvalid("[{'op':'copy', 'from':'/id', 'path':'/name/0/family'}]");
+      assertInvalid("[{'op':'move', 'from':'/name/0/family', 'path':'/id'}]");
+   }
+
+   @Test
+   public void testInvalidPatch() {
+      assertInvalid("{'op':'remove', 'path':'/name'}");
+      assertInvalid("[{'op':'frobnicate', 'path':'/name'}]");
+      assertInvalid("[{'op':'add', 'path':'/name/-'}]");
+      assertInvalid("[{'op':'remove', 'path':'name'}]");
+      assertInvalid("[{'op':'remove', 'path':'/name/01'}]");
+      assertInvalid("[{'op':'remove', 'path':'/name/-1'}]");
+      assertInvalid("[{'op':'remove', 'path':'/name/-/family'}]");
+   }
+
+   @Test
+   public void testResourceIsNotChanged() {
+      Patient original = newPatient();
+      Patient patient = apply(original, "[{'op':'replace', 'path':'/name/0/family', 'value':'Brown'}, {'op':'remove', 'path':'/gender'}]");
+      assertNotSame(original, patient);
+      assertEquals(Arrays.asList("Smith", "Jones"), getFamilies(original));
+      assertEquals(AdministrativeGender.MALE, original.getGender());
+   }
+
+   @Test
+   public void testCanBeAppliedAgainToANewerVersion() {
+      JsonPatch patch = new JsonPatch(ourCtx, "[{'op':'add', 'path':'/name/-', 'value':{'family':'Brown'}}]".replace('\'', '"'));
+      Patient first = (Patient) patch.apply(newPatient());
+      assertEquals(Arrays.asList("Smith", "Jones", "Brown"), getFamilies(first));
+
+      Patient newer = newPatient();
+      newer.setGender(AdministrativeGender.FEMALE);
+      Patient second = (Patient) patch.apply(newer);
+      assertEquals(Arrays.asList("Smith", "Jones", "Brown"), getFamilies(second));
+      assertEquals(AdministrativeGender.FEMALE, second.getGender());
+   }
+
+   @Test
+   public void testChangedElements() {
+      JsonPatch patch = new JsonPatch(ourCtx, ("[{'op':'test', 'path':'/birthDate', 'value':'1970-06-15'}, {'op':'replace', 'path':'/gender', 'value':'male'}, "
+         + "{'op':'move', 'from':'/telecom/0', 'path':'/name/0/given/-'}, {'op':'copy', 'from':'/address/0', 'path':'/address/-'}]").replace('\'', '"'));
+      assertEquals(new ArrayList<>(Arrays.asList("gender", "name", "telecom", "address")), new ArrayList<>(patch.getChangedElements()));
+   }
+
+   private static Patient apply(Patient thePatient, String thePatch) {
+      return (Patient) new JsonPatch(ourCtx, thePatch.replace('\'', '"')).apply(thePatient);
+   }
+
+   private static void assertInvalid(String thePatch) {
+      try {
+         apply(newPatient(), thePatch);
+         fail(thePatch);
+      } catch (InvalidRequestException e) {
+         // Expected
+      }
+   }
+
+   private static List<String> getFamilies(Patient thePatient) {
+      List<String> retVal = new ArrayList<>();
+      for (HumanName next : thePatient.getName()) {
+         retVal.add(next.getFamily());
+      }
+      return retVal;
+   }
+
+   private static Patient newPatient() {
+      Patient retVal = new Patient();
+      retVal.setId("Patient/1/_history/2");
+      retVal.addName().setFamily("Smith").addGiven("John");
+      retVal.addName().setFamily("Jones").addGiven("Jack");
+      retVal.setGender(AdministrativeGender.MALE);
+      return retVal;
+   }
+
+}
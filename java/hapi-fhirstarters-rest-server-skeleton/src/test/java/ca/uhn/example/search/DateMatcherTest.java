@@ -0,0 +1,272 @@
+package ca.uhn.example.search;
+
+import ca.uhn.example.index.DateIndex;
+import ca.uhn.fhir.rest.param.DateAndListParam;
+import ca.uhn.fhir.rest.param.DateOrListParam;
+import ca.uhn.fhir.rest.param.DateParam;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DateMatcherTest {
+
+   @Test
+   public void testEqual() {
+      assertTrue(matches("1970", "1970-06-15"));
+      assertTrue(matches("1970-06", "1970-06-15"));
+      assertTrue(matches("eq1970-06-15", "1970-06-15"));
+      assertFalse(matches("1970-06-16", "1970-06-15"));
+      assertFalse(matches("1971", "1970-06-15"));
+
+      // A resource date which is only partly within the search value doesn't match
+      assertFalse(matches("1970-06", "1970"));
+      assertFalse(matches("1970-06-15", "1970-06"));
+   }
+
+   @Test
+   public void testNotEqual() {
+      assertFalse(matches("ne1970", "1970-06-15"));
+      assertFalse(matches("ne1970-06", "1970-06-15"));
+      assertFalse(matches("ne1970-06-15", "1970-06-15"));
+      assertTrue(matches("ne1970-06-16", "1970-06-15"));
+      assertTrue(matches("ne1970-06-15", "1970-06"));
+   }
+
+   @Test
+   public void testGreaterThan() {
+      assertTrue(matches("gt1969", "1970-06-15"));
+      assertFalse(matches("gt1970", "1970-06-15"));
+      assertTrue(matches("gt1970-05", "1970-06-15"));
+      assertFalse(matches("gt1970-06", "1970-06-15"));
+      assertTrue(matches("gt1970-06-14", "1970-06-15"));
+      assertFalse(matches("gt1970-06-15", "1970-06-15"));
+
+      // The resource date extends after the search value
+      assertTrue(matches("gt1970-06", "1970"));
+      assertTrue(matches("gt1970-06-15", "1970-06"));
+   }
+
+   @Test
+   public void testLessThan() {
+      assertTrue(matches("lt1971", "1970-06-15"));
+      assertFalse(matches("lt1970", "1970-06-15"));
+      assertTrue(matches("lt1970-07", "1970-06-15"));
+      assertFalse(matches("lt1970-06", "1970-06-15"));
+      assertTrue(matches("lt1970-06-16", "1970-06-15"));
+      assertFalse(matches("lt1970-06-15", "1970-06-15"));
+
+      // The resource date extends before the search value
+      assertTrue(matches("lt1970-06", "1970"));
+      assertTrue(matches("lt1970-06-15", "1970-06"));
+   }
+
+   @Test
+   public void testGreaterThanOrEqual() {
+      assertTrue(matches("ge1970", "1970-06-15"));
+      assertFalse(matches("ge1971", "1970-06-15"));
+      assertTrue(matches("ge1970-06", "1970-06-15"));
+      assertFalse(matches("ge1970-07", "1970-06-15"));
+      assertTrue(matches("ge1970-06-15", "1970-06-15"));
+      assertFalse(matches("ge1970-06-16", "1970-06-15"));
+      assertTrue(matches("ge1970-06-15", "1970-06"));
+   }
+
+   @Test
+   public void testLessThanOrEqual() {
+      assertTrue(matches("le1970", "1970-06-15"));
+      assertFalse(matches("le1969", "1970-06-15"));
+      assertTrue(matches("le1970-06", "1970-06-15"));
+      assertFalse(matches("le1970-05", "1970-06-15"));
+      assertTrue(matches("le1970-06-15", "1970-06-15"));
+      assertFalse(matches("le1970-06-14", "1970-06-15"));
+      assertTrue(matches("le1970-06-15", "1970-06"));
+   }
+
+   @Test
+   public void testStartsAfter() {
+      assertTrue(matches("sa1969", "1970-06-15"));
+      assertFalse(matches("sa1970", "1970-06-15"));
+      assertTrue(matches("sa1970-05", "1970-06-15"));
+      assertFalse(matches("sa1970-06", "1970-06-15"));
+      assertTrue(matches("sa1970-06-14", "1970-06-15"));
+      assertFalse(matches("sa1970-06-15", "1970-06-15"));
+
+      // Extending after the search value isn't enough, the resource date must start after it
+      assertFalse(matches("sa1970-06-15", "1970-06"));
+   }
+
+   @Test
+   public void testEndsBefore() {
+      assertTrue(matches("eb1971", "1970-06-15"));
+      assertFalse(matches("eb1970", "1970-06-15"));
+      assertTrue(matches("eb1970-07", "1970-06-15"));
+      assertFalse(matches("eb1970-06", "1970-06-15"));
+      assertTrue(matches("eb1970-06-16", "1970-06-15"));
+      assertFalse(matches("eb1970-06-15", "1970-06-15"));
+      assertFalse(matches("eb1970-06-15", "1970-06"));
+   }
+
+   @Test
+   public void testApproximate() {
+      assertTrue(matches("ap1970", "1970-06-15"));
+      assertTrue(matches("ap1970-06", "1970-06-15"));
+      assertTrue(matches("ap1970-06-15", "1970-06-15"));
+
+      // A resource date which only overlaps the search value matches
+      assertTrue(matches("ap1970-06-15", "1970-06"));
+      assertTrue(matches("ap1970-06", "1970"));
+   }
+
+   @Test
+   public void testApproximateIsWidenedByTenPercentOfTheDistanceFromNow() {
+      // 2000 is more than 26 years ago, so the search value is widened by more than 2.6 years each way
+      assertFalse(matches("eq2000-01-01", "1998-06-01"));
+      assertTrue(matches("ap2000-01-01", "1998-06-01"));
+      assertFalse(matches("eq2000-01-01", "2002-01-01"));
+      assertTrue(matches("ap2000-01-01", "2002-01-01"));
+      assertFalse(matches("ap2000-01-01", "1990-01-01"));
+   }
+
+   @Test
+   public void testBoundaryMilliseconds() {
+      assertTrue(matches("1970-06-15", "1970-06-15T00:00:00.000"));
+      assertTrue(matches("1970-06-15", "1970-06-15T23:59:59.999"));
+      assertFalse(matches("1970-06-15", "1970-06-14T23:59:59.999"));
+      assertFalse(matches("1970-06-15", "1970-06-16T00:00:00.000"));
+
+      assertFalse(matches("gt1970-06-15", "1970-06-15T23:59:59.999"));
+      assertTrue(matches("gt1970-06-15", "1970-06-16T00:00:00.000"));
+      assertTrue(matches("ge1970-06-15", "1970-06-15T00:00:00.000"));
+      assertFalse(matches("ge1970-06-15", "1970-06-14T23:59:59.999"));
+
+      assertTrue(matches("lt1970-06-15", "1970-06-14T23:59:59.999"));
+      assertFalse(matches("lt1970-06-15", "1970-06-15T00:00:00.000"));
+      assertTrue(matches("le1970-06-15", "1970-06-15T23:59:59.999"));
+      assertFalse(matches("le1970-06-15", "1970-06-16T00:00:00.000"));
+
+      assertFalse(matches("sa1970-06-15", "1970-06-15T23:59:59.999"));
+      assertTrue(matches("sa1970-06-15", "1970-06-16T00:00:00.000"));
+      assertTrue(matches("eb1970-06-15", "1970-06-14T23:59:59.999"));
+      assertFalse(matches("eb1970-06-15", "1970-06-15T00:00:00.000"));
+
+      // A year ends on the last millisecond of December 31st
+      assertTrue(matches("1970", "1970-12-31T23:59:59.999"));
+      assertFalse(matches("1970", "1971-01-01T00:00:00.000"));
+   }
+
+   @Test
+   public void testValuesOfOneParameterAreOred() {
+      DateMatcher matcher = DateMatcher.forParam(newParam("1969,1971"));
+      assertTrue(test(matcher, "1969-06-15"));
+      assertFalse(test(matcher, "1970-06-15"));
+      assertTrue(test(matcher, "1971-06-15"));
+   }
+
+   @Test
+   public void testRepeatedParametersAreAnded() {
+      DateMatcher matcher = DateMatcher.forParam(newParam("ge1970", "lt1971"));
+      assertFalse(test(matcher, "1969-12-31"));
+      assertTrue(test(matcher, "1970-06-15"));
+      assertFalse(test(matcher, "1971-01-01"));
+   }
+
+   @Test
+   public void testNoParameterMatchesEverything() {
+      assertTrue(test(DateMatcher.forParam(null), "1970-06-15"));
+      assertTrue(test(DateMatcher.forParam(new DateAndListParam()), "1970-06-15"));
+   }
+
+   @Test
+   public void testFindBoundsStartsByMaxSpan() {
+      // Only days, so a date which ends after a day must start after the day before it
+      DateIndex index = new DateIndex();
+      for (int day = 1; day <= 30; day++) {
+         put(index, day, String.format("1970-06-%02d", day));
+      }
+      assertEquals(1, estimate(index, "1970-06-10"));
+      assertEquals(10, estimate(index, "gt1970-06-20"));
+      assertEquals(11, estimate(index, "ge1970-06-20"));
+      assertEquals(10, estimate(index, "sa1970-06-20"));
+      assertEquals(9, estimate(index, "lt1970-06-10"));
+      assertEquals(10, estimate(index, "le1970-06-10"));
+      assertEquals(9, estimate(index, "eb1970-06-10"));
+      assertEquals(30, estimate(index, "ne1970-06-10"));
+      assertEquals(0, estimate(index, "1970-06-10", "1970-06-20"));
+
+      assertEquals(ids(21, 22, 23, 24, 25, 26, 27, 28, 29, 30), find(index, "gt1970-06-20"));
+      assertEquals(ids(10, 11), find(index, "ge1970-06-10", "le1970-06-11"));
+
+      // Once a year is indexed, a date starting up to a year before the search value can end after it
+      put(index, 100, "1970");
+      assertEquals(31, estimate(index, "gt1970-06-20"));
+      assertEquals(ids(100, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30), find(index, "gt1970-06-20"));
+      assertEquals(ids(100, 1, 2), find(index, "lt1970-06-03"));
+   }
+
+   @Test
+   public void testFindDescending() {
+      DateIndex index = new DateIndex();
+      put(index, 1, "1970-06-01");
+      put(index, 2, "1970-06-02");
+      put(index, 3, "1970-06-03");
+      List<Long> retVal = new ArrayList<>();
+      for (DateIndex.Entry next : DateMatcher.forParam(newParam("ge1970-06-02")).find(index, true)) {
+         retVal.add(next.getId());
+      }
+      assertEquals(ids(3, 2), retVal);
+   }
+
+   private static boolean matches(String theParam, String theResourceDate) {
+      return test(DateMatcher.forParam(newParam(theParam)), theResourceDate);
+   }
+
+   private static boolean test(DateMatcher theMatcher, String theResourceDate) {
+      DateParam date = new DateParam(theResourceDate);
+      return theMatcher.test(DateRanges.getStart(date.getValue()), DateRanges.getEnd(date.getValue(), date.getPrecision()));
+   }
+
+   private static void put(DateIndex theIndex, long theId, String theDate) {
+      DateParam date = new DateParam(theDate);
+      theIndex.put(theId, DateRanges.getStart(date.getValue()), DateRanges.getEnd(date.getValue(), date.getPrecision()));
+   }
+
+   private static long estimate(DateIndex theIndex, String... theParams) {
+      return DateMatcher.forParam(newParam(theParams)).estimate(theIndex, Long.MAX_VALUE);
+   }
+
+   private static List<Long> find(DateIndex theIndex, String... theParams) {
+      List<Long> retVal = new ArrayList<>();
+      for (DateIndex.Entry next : DateMatcher.forParam(newParam(theParams)).find(theIndex, false)) {
+         retVal.add(next.getId());
+      }
+      return retVal;
+   }
+
+   private static List<Long> ids(long... theIds) {
+      List<Long> retVal = new ArrayList<>();
+      Arrays.stream(theIds).forEach(retVal::add);
+      return retVal;
+   }
+
+   /**
+    * Returns a parameter with each value repeated, and the comma separated values of each ORed
+    */
+   private static DateAndListParam newParam(String... theValues) {
+      DateAndListParam retVal = new DateAndListParam();
+      for (String nextAnd : theValues) {
+         DateOrListParam or = new DateOrListParam();
+         for (String nextOr : nextAnd.split(",")) {
+            or.addOr(new DateParam(nextOr));
+         }
+         retVal.addAnd(or);
+      }
+      return retVal;
+   }
+
+}
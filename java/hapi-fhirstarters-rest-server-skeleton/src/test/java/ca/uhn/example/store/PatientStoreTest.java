@@ -0,0 +1,164 @@
+package ca.uhn.example.store;
+
+import ca.uhn.example.index.ReferenceIndex;
+import ca.uhn.example.patch.IResourcePatch;
+import ca.uhn.example.patch.JsonPatch;
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.HumanName;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class PatientStoreTest {
+
+   private static final FhirContext ourCtx = FhirContext.forDstu3();
+
+   @Test
+   public void testUpdateIsGivenTheCurrentVersion() {
+      PatientStore store = new PatientStore(new ReferenceIndex(ourCtx), 2);
+      long id = store.newId();
+      Patient created = store.addNewVersion(id, theCurrent -> {
+         assertNull(theCurrent);
+         return newPatient("Smith");
+      });
+      assertEquals("0", created.getIdElement().getVersionIdPart());
+
+      Patient updated = store.addNewVersion(id, theCurrent -> {
+         assertSame(created, theCurrent);
+         return newPatient("Jones");
+      });
+      assertEquals("1", updated.getIdElement().getVersionIdPart());
+      assertSame(updated, store.getLatest(id));
+   }
+
+   @Test
+   public void testUpdateWhichReturnsNullOrThrowsStoresNothing() {
+      PatientStore store = new PatientStore(new ReferenceIndex(ourCtx), 2);
+      long id = store.newId();
+      Patient created = store.addNewVersion(id, theCurrent -> newPatient("Smith"));
+
+      assertNull(store.addNewVersion(id, theCurrent -> null));
+      try {
+         store.addNewVersion(id, theCurrent -> {
+            throw new IllegalStateException("Failed");
+         });
+         fail();
+      } catch (IllegalStateException e) {
+         assertEquals("Failed", e.getMessage());
+      }
+      assertEquals(1, store.getVersions(id).size());
+      assertSame(created, store.getLatest(id));
+
+      // An unknown ID is left unknown
+      assertNull(store.addNewVersion(store.newId(), theCurrent -> null));
+      assertEquals(1, store.size());
+   }
+
+   @Test
+   public void testCompareAndAddNewVersionFailsIfAnotherVersionWasStoredFirst() {
+      PatientStore store = new PatientStore(new ReferenceIndex(ourCtx), 2);
+      long id = store.newId();
+      Patient created = store.addNewVersion(id, theCurrent -> newPatient("Smith"));
+      Patient other = store.addNewVersion(id, theCurrent -> newPatient("Jones"));
+
+      assertNull(store.compareAndAddNewVersion(id, created, newPatient("Brown")));
+      assertSame(other, store.getLatest(id));
+      assertEquals(2, store.getVersions(id).size());
+
+      Patient retVal = store.compareAndAddNewVersion(id, other, newPatient("Brown"));
+      assertEquals("2", retVal.getIdElement().getVersionIdPart());
+      assertSame(retVal, store.getLatest(id));
+   }
+
+   /**
+    * A patch made from a version which another writer replaced before it was stored is applied again to the newer
+    * version, as the Patient provider does, so both changes are kept
+    */
+   @Test
+   public void testPatchIsAppliedAgainAfterLosingARace() {
+      PatientStore store = new PatientStore(new ReferenceIndex(ourCtx), 2);
+      long id = store.newId();
+      store.addNewVersion(id, theCurrent -> newPatient("Smith"));
+      IResourcePatch addGiven = newPatch("[{'op':'add', 'path':'/name/0/given/-', 'value':'John'}]");
+      IResourcePatch setGender = newPatch("[{'op':'add', 'path':'/gender', 'value':'female'}]");
+
+      Patient read = store.getLatest(id);
+      Patient lost = (Patient) addGiven.apply(read);
+
+      // Another writer stores a version in between
+      store.addNewVersion(id, theCurrent -> (Patient) setGender.apply(theCurrent));
+      assertNull(store.compareAndAddNewVersion(id, read, lost));
+
+      Patient current = store.getLatest(id);
+      Patient retVal = store.compareAndAddNewVersion(id, current, (Patient) addGiven.apply(current));
+      assertEquals("2", retVal.getIdElement().getVersionIdPart());
+      assertEquals("John", retVal.getNameFirstRep().getGivenAsSingleString());
+      assertEquals(AdministrativeGender.FEMALE, retVal.getGender());
+   }
+
+   @Test
+   public void testConcurrentPatchesAreAllKept() throws InterruptedException {
+      PatientStore store = new PatientStore(new ReferenceIndex(ourCtx), 2);
+      long id = store.newId();
+      store.addNewVersion(id, theCurrent -> newPatient("Smith"));
+
+      int writers = 4;
+      int patches = 50;
+      CountDownLatch start = new CountDownLatch(1);
+      List<Thread> threads = new ArrayList<>();
+      for (int i = 0; i < writers; i++) {
+         int writer = i;
+         threads.add(new Thread(() -> {
+            try {
+               start.await();
+            } catch (InterruptedException e) {
+               return;
+            }
+            for (int j = 0; j < patches; j++) {
+               IResourcePatch patch = newPatch("[{'op':'add', 'path':'/name/0/given/-', 'value':'G" + writer + "-" + j + "'}]");
+               while (true) {
+                  Patient current = store.getLatest(id);
+                  if (store.compareAndAddNewVersion(id, current, (Patient) patch.apply(current)) != null) {
+                     break;
+                  }
+               }
+            }
+         }));
+      }
+      threads.forEach(Thread::start);
+      start.countDown();
+      for (Thread next : threads) {
+         next.join();
+      }
+
+      Patient latest = store.getLatest(id);
+      assertEquals(Integer.toString(writers * patches), latest.getIdElement().getVersionIdPart());
+      Set<String> given = new HashSet<>();
+      latest.getNameFirstRep().getGiven().forEach(t -> given.add(t.getValue()));
+      assertEquals(writers * patches, given.size());
+   }
+
+   private static IResourcePatch newPatch(String thePatch) {
+      return new JsonPatch(ourCtx, thePatch.replace('\'', '"'));
+   }
+
+   private static Patient newPatient(String theFamily) {
+      Patient retVal = new Patient();
+      retVal.addName(new HumanName().setFamily(theFamily));
+      retVal.addIdentifier().setSystem("urn:hapitest:mrns").setValue(theFamily);
+      return retVal;
+   }
+
+}
@@ -0,0 +1,79 @@
+package ca.uhn.fhir.example;
+
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs {@link Example02_SimpleRestfulServer} in an embedded, tuned Jetty
+ * instance instead of through "mvn jetty:run".
+ * <p>
+ * Settings are read from system properties, e.g.
+ * <code>-Dfhir.port=8080 -Dfhir.acceptors=1 -Dfhir.selectors=4 -Dfhir.maxThreads=200 -Dfhir.http2=true</code>
+ * </p>
+ */
+public class Example04_EmbeddedJettyServer {
+
+   private static final Logger ourLog = LoggerFactory.getLogger(Example04_EmbeddedJettyServer.class);
+
+   public static void main(String[] theArgs) throws Exception {
+      long startNanos = System.nanoTime();
+
+      int port = Integer.getInteger("fhir.port", 8080);
+      int acceptors = Integer.getInteger("fhir.acceptors", 1);
+      int selectors = Integer.getInteger("fhir.selectors", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+      int minThreads = Integer.getInteger("fhir.minThreads", 16);
+      int maxThreads = Integer.getInteger("fhir.maxThreads", 200);
+      long idleTimeoutMillis = Long.getLong("fhir.idleTimeoutMillis", 30000);
+      long stopTimeoutMillis = Long.getLong("fhir.stopTimeoutMillis", 30000);
+      boolean http2 = Boolean.parseBoolean(System.getProperty("fhir.http2", "true"));
+
+      // A bounded pool of request threads
+      QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, minThreads, 60000);
+      threadPool.setName("fhir-http");
+      Server server = new Server(threadPool);
+
+      // One connector which speaks HTTP/1.1, and cleartext HTTP/2 for clients which ask for it
+      HttpConfiguration httpConfig = new HttpConfiguration();
+      httpConfig.setSendServerVersion(false);
+      HttpConnectionFactory http11 = new HttpConnectionFactory(httpConfig);
+      ServerConnector connector;
+      if (http2) {
+         HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfig);
+         h2c.setMaxConcurrentStreams(Integer.getInteger("fhir.maxConcurrentStreams", 128));
+         connector = new ServerConnector(server, acceptors, selectors, http11, h2c);
+      } else {
+         connector = new ServerConnector(server, acceptors, selectors, http11);
+      }
+      connector.setPort(port);
+      connector.setIdleTimeout(idleTimeoutMillis);
+      connector.setAcceptQueueSize(Integer.getInteger("fhir.acceptQueueSize", 1024));
+      server.addConnector(connector);
+
+      // Register the FHIR server servlet, initializing it eagerly
+      ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+      ServletHolder holder = new ServletHolder(new Example02_SimpleRestfulServer());
+      holder.setInitOrder(1);
+      context.addServlet(holder, "/*");
+
+      // The statistics handler lets shutdown wait for in-flight requests
+      StatisticsHandler statistics = new StatisticsHandler();
+      statistics.setHandler(context);
+      server.setHandler(statistics);
+      server.setStopTimeout(stopTimeoutMillis);
+      server.setStopAtShutdown(true);
+
+      server.start();
+      ourLog.info("FHIR server listening on port {} (http2={}) - started in {}ms", connector.getLocalPort(), http2, (System.nanoTime() - startNanos) / 1000000L);
+      server.join();
+   }
+
+}